@@ -0,0 +1,48 @@
+package com.geekhua.filequeue;
+
+/**
+ * 큐 폴더를 여는 방식. 같은 큐 폴더는 한 번에 하나의 EXCLUSIVE 프로세스,
+ * 또는 하나의 PRODUCER 프로세스와 하나의 CONSUMER 프로세스(또는 여러 COMPETING_CONSUMER 프로세스)가 열 수 있다.
+ */
+public enum AccessMode {
+    /**
+     * 쓰기와 읽기를 모두 한다.
+     */
+    EXCLUSIVE(true, true, false),
+    /**
+     * 쓰기만 한다. 쓴 위치를 meta 파일에 공유하여 CONSUMER 프로세스가 바로 읽을 수 있게 한다.
+     */
+    PRODUCER(true, false, false),
+    /**
+     * 읽기만 한다. PRODUCER 프로세스가 공유한 쓴 위치까지 읽는다.
+     */
+    CONSUMER(false, true, false),
+    /**
+     * 읽기만 하며 여러 프로세스가 큐 파일(segment) 단위로 나눠서 읽는다.
+     * 읽을 파일은 lease 파일로 소유하며 lease 가 만료(Config.setLeaseTimeoutMillis)되면 다른 프로세스가 마지막으로 읽은 위치부터 이어서 읽는다.
+     * 따라서 같은 데이터를 두 번 읽을 수 있으며(at-least-once) 파일 간의 순서는 보장하지 않는다.
+     */
+    COMPETING_CONSUMER(false, true, true);
+
+    private final boolean isWritable;
+    private final boolean isReadable;
+    private final boolean isCompeting;
+
+    AccessMode(boolean isWritable, boolean isReadable, boolean isCompeting) {
+        this.isWritable = isWritable;
+        this.isReadable = isReadable;
+        this.isCompeting = isCompeting;
+    }
+
+    public boolean isWritable() {
+        return isWritable;
+    }
+
+    public boolean isReadable() {
+        return isReadable;
+    }
+
+    public boolean isCompeting() {
+        return isCompeting;
+    }
+}
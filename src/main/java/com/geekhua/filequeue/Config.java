@@ -2,8 +2,9 @@ package com.geekhua.filequeue;
 
 import com.geekhua.filequeue.codec.Codec;
 import com.geekhua.filequeue.codec.ObjectCodec;
+import com.geekhua.filequeue.datastore.DiskQuota;
 
-public class Config {
+public class Config implements Cloneable {
 
     private Codec   codec         = new ObjectCodec();
     private String  name          = "default";
@@ -11,6 +12,38 @@ public class Config {
     private int     msgAvgLen     = 1024;
     private long    fileSiz       = 1024 * 1024 * 100L;
     private boolean isBackupReadFile;
+    private int     prefetchCount;
+    private long    prefetchBytes = 1024 * 1024 * 16L;
+    private int     janitorBacklog = 16;
+    private boolean isBackupCompress;
+    private long    backupMaxBytes;
+    private long    backupMaxAgeMillis;
+    private int     backupMaxFiles;
+    private int     readBufferSize = 256 * 1024;
+    private boolean isRecordTimestamp;
+    private long    timeIndexInterval = 1024 * 1024L;
+    private long    messageTtlMillis;
+    private long    delayTickMillis = 100L;
+    private int     delayWheelSize = 64;
+    private int[]   priorityWeights = new int[] {16, 4, 1};
+    private int     dedupWindowSize;
+    private AccessMode accessMode = AccessMode.EXCLUSIVE;
+    private long    leaseTimeoutMillis = 30000L;
+    private boolean isDirectIo;
+    private long    tailCacheBytes = 4 * 1024 * 1024L;
+    private long    visibilityTimeoutMillis;
+    private int     maxInFlight = 1024;
+    private int     maxDeliveries;
+    private WaitStrategy waitStrategy = WaitStrategies.SLEEP;
+    private long    maxQueueBytes;
+    private long    maxQueueMessages;
+    private DiskQuota globalQuota;
+    private QuotaPolicy quotaPolicy = QuotaPolicy.BLOCK;
+    private long    quotaTimeoutMillis = 1000L;
+    private int     batchMaxBytes = 64 * 1024;
+    private long    batchLingerMillis;
+    private int     batchMaxRecords = 64;
+    private boolean isTrackLatency;
 
     public boolean isBackupReadFile() {
         return isBackupReadFile;
@@ -20,6 +53,65 @@ public class Config {
         this.isBackupReadFile = backupReadFile;
     }
 
+    /**
+     * 백업할 파일을 gzip 으로 압축하여 저장한다. (q-000000000000000001.fq.gz)
+     */
+    public void setBackupCompress(boolean backupCompress) {
+        this.isBackupCompress = backupCompress;
+    }
+
+    /**
+     * 백업 폴더에 보관할 파일 크기의 합을 제한한다. 넘으면 오래된 파일부터 삭제한다.
+     * 0 이면 제한하지 않는다. (default : 0)
+     */
+    public void setBackupMaxBytes(long backupMaxBytes) {
+        if (backupMaxBytes < 0) {
+            throw new IllegalArgumentException("backupMaxBytes is not negative.(backupMaxBytes >= 0)");
+        }
+
+        this.backupMaxBytes = backupMaxBytes;
+    }
+
+    /**
+     * 백업 파일의 보관 기간(파일의 마지막 수정 시간 기준)을 제한한다.
+     * 0 이면 제한하지 않는다. (default : 0)
+     */
+    public void setBackupMaxAgeMillis(long backupMaxAgeMillis) {
+        if (backupMaxAgeMillis < 0) {
+            throw new IllegalArgumentException("backupMaxAgeMillis is not negative.(backupMaxAgeMillis >= 0)");
+        }
+
+        this.backupMaxAgeMillis = backupMaxAgeMillis;
+    }
+
+    /**
+     * 백업 폴더에 보관할 파일 개수를 제한한다. 넘으면 오래된 파일부터 삭제한다.
+     * 0 이면 제한하지 않는다. (default : 0)
+     */
+    public void setBackupMaxFiles(int backupMaxFiles) {
+        if (backupMaxFiles < 0) {
+            throw new IllegalArgumentException("backupMaxFiles is not negative.(backupMaxFiles >= 0)");
+        }
+
+        this.backupMaxFiles = backupMaxFiles;
+    }
+
+    public boolean isBackupCompress() {
+        return isBackupCompress;
+    }
+
+    public long getBackupMaxBytes() {
+        return backupMaxBytes;
+    }
+
+    public long getBackupMaxAgeMillis() {
+        return backupMaxAgeMillis;
+    }
+
+    public int getBackupMaxFiles() {
+        return backupMaxFiles;
+    }
+
     public void setFileSiz(long fileSiz) {
         this.fileSiz = fileSiz;
     }
@@ -58,6 +150,340 @@ public class Config {
         this.msgAvgLen = msgAvgLen;
     }
 
+    /**
+     * 백그라운드 스레드에서 미리 읽고 디코딩해 둘 최대 메시지 개수를 지정한다.
+     * 0 이면 선읽기를 사용하지 않는다. (default : 0)
+     */
+    public void setPrefetchCount(int prefetchCount) {
+        if (prefetchCount < 0) {
+            throw new IllegalArgumentException("prefetchCount is not negative.(prefetchCount >= 0)");
+        }
+
+        this.prefetchCount = prefetchCount;
+    }
+
+    /**
+     * 미리 읽어둘 메시지들의 최대 크기(byte)를 지정한다. (default : 16MB)
+     */
+    public void setPrefetchBytes(long prefetchBytes) {
+        if (prefetchBytes <= 0) {
+            throw new IllegalArgumentException("prefetchBytes is bigger than zero.(prefetchBytes > 0)");
+        }
+
+        this.prefetchBytes = prefetchBytes;
+    }
+
+    /**
+     * 읽기가 완료된 파일의 삭제, 백업을 백그라운드에서 처리할 때 대기할 수 있는 최대 파일 개수를 지정한다.
+     * 대기열이 가득 차면 읽는 스레드에서 직접 처리한다. 0 이면 항상 읽는 스레드에서 처리한다. (default : 16)
+     */
+    public void setJanitorBacklog(int janitorBacklog) {
+        if (janitorBacklog < 0) {
+            throw new IllegalArgumentException("janitorBacklog is not negative.(janitorBacklog >= 0)");
+        }
+
+        this.janitorBacklog = janitorBacklog;
+    }
+
+    /**
+     * 큐 파일을 읽을 때 한 번에 읽을 크기(byte)를 지정한다. (default : 256KB)
+     */
+    public void setReadBufferSize(int readBufferSize) {
+        if (readBufferSize <= 0) {
+            throw new IllegalArgumentException("readBufferSize is bigger than zero.(readBufferSize > 0)");
+        }
+
+        this.readBufferSize = readBufferSize;
+    }
+
+    /**
+     * 데이터를 쓴 시간을 함께 저장하고 큐 파일마다 시간 인덱스(q-000000000000000001.idx)를 만든다.
+     * 시간으로 읽기 위치를 찾을 때(seekToTime) 데이터를 디코딩하지 않고 찾을 수 있다. (default : false)
+     */
+    public void setRecordTimestamp(boolean recordTimestamp) {
+        this.isRecordTimestamp = recordTimestamp;
+    }
+
+    /**
+     * 시간 인덱스에 항목을 추가할 간격(byte)을 지정한다. (default : 1MB)
+     */
+    public void setTimeIndexInterval(long timeIndexInterval) {
+        if (timeIndexInterval <= 0) {
+            throw new IllegalArgumentException("timeIndexInterval is bigger than zero.(timeIndexInterval > 0)");
+        }
+
+        this.timeIndexInterval = timeIndexInterval;
+    }
+
+    /**
+     * 쓰여진 후 지정한 시간이 지난 데이터는 전달하지 않고 건너뛴다. 데이터를 쓴 시간을 함께 저장한다.
+     * 0 이면 제한하지 않는다. (default : 0)
+     */
+    public void setMessageTtlMillis(long messageTtlMillis) {
+        if (messageTtlMillis < 0) {
+            throw new IllegalArgumentException("messageTtlMillis is not negative.(messageTtlMillis >= 0)");
+        }
+
+        this.messageTtlMillis = messageTtlMillis;
+    }
+
+    /**
+     * 지연 데이터(addDelayed)를 모으는 가장 작은 시간 단위를 지정한다. 데이터는 최대 이 시간만큼 늦게 전달될 수 있다. (default : 100ms)
+     */
+    public void setDelayTickMillis(long delayTickMillis) {
+        if (delayTickMillis <= 0) {
+            throw new IllegalArgumentException("delayTickMillis is bigger than zero.(delayTickMillis > 0)");
+        }
+
+        this.delayTickMillis = delayTickMillis;
+    }
+
+    /**
+     * 지연 데이터의 timing wheel 한 단계의 bucket 개수를 지정한다. (default : 64)
+     */
+    public void setDelayWheelSize(int delayWheelSize) {
+        if (delayWheelSize <= 1) {
+            throw new IllegalArgumentException("delayWheelSize is bigger than one.(delayWheelSize > 1)");
+        }
+
+        this.delayWheelSize = delayWheelSize;
+    }
+
+    /**
+     * PriorityFileQueue 의 lane 별 가중치를 지정한다. lane 개수는 가중치의 개수(최대 64)이며 앞의 lane 이 우선순위가 높다.
+     * 데이터가 있는 lane 들은 가중치의 비율만큼 읽혀서 낮은 우선순위의 lane 도 읽히지 않는 일이 없다. (default : 16, 4, 1)
+     */
+    public void setPriorityWeights(int... priorityWeights) {
+        if (priorityWeights == null || priorityWeights.length == 0 || priorityWeights.length > Long.SIZE) {
+            throw new IllegalArgumentException("priorityWeights length is between 1 and 64.(0 < length <= 64)");
+        }
+
+        for (int weight : priorityWeights) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("priority weight is bigger than zero.(weight > 0)");
+            }
+        }
+
+        this.priorityWeights = priorityWeights.clone();
+    }
+
+    /**
+     * message id 를 지정하여 추가(add(E, long))할 때 최근 dedupWindowSize 개의 id 와 중복되면 추가하지 않는다.
+     * 시작할 때 최근 큐 파일들의 header 를 읽어서 다시 만든다. 0 이면 중복을 확인하지 않는다. (default : 0)
+     */
+    public void setDedupWindowSize(int dedupWindowSize) {
+        if (dedupWindowSize < 0) {
+            throw new IllegalArgumentException("dedupWindowSize is not negative.(dedupWindowSize >= 0)");
+        }
+
+        this.dedupWindowSize = dedupWindowSize;
+    }
+
+    /**
+     * 다른 프로세스와 큐를 함께 사용하는 방식. PRODUCER 프로세스와 CONSUMER 프로세스는 같은 큐를 함께 열 수 있으며
+     * 쓴 위치는 meta 파일(mmap)로 공유된다. 이미 같은 방식으로 열려 있다면 생성할 때 IOException 이 발생한다. (default : EXCLUSIVE)
+     */
+    public void setAccessMode(AccessMode accessMode) {
+        if (accessMode == null) {
+            throw new IllegalArgumentException("accessMode is null.");
+        }
+
+        this.accessMode = accessMode;
+    }
+
+    /**
+     * COMPETING_CONSUMER 가 읽고 있는 파일의 lease 를 갱신(heartbeat)하지 못하면 다른 프로세스가 가져가는 시간.
+     * heartbeat 는 leaseTimeoutMillis / 3 마다 한다. (default : 30000)
+     */
+    public void setLeaseTimeoutMillis(long leaseTimeoutMillis) {
+        if (leaseTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("leaseTimeoutMillis is bigger than zero.(leaseTimeoutMillis > 0)");
+        }
+
+        this.leaseTimeoutMillis = leaseTimeoutMillis;
+    }
+
+    /**
+     * 큐 파일을 O_DIRECT 로 쓰고 읽어서 한 번만 읽는 데이터가 page cache 를 차지하지 않게 한다.
+     * Linux, JDK 10 이상에서만 사용할 수 있으며 지원하지 않는다면 page cache 를 거쳐서 쓰고 읽는다. (default : false)
+     */
+    public void setDirectIo(boolean directIo) {
+        this.isDirectIo = directIo;
+    }
+
+    /**
+     * O_DIRECT 를 사용할 때 최근에 쓴 데이터를 기억해서 파일을 읽지 않고 전달하는 메모리 크기.
+     * 같은 프로세스에서 쓰고 읽는 경우(EXCLUSIVE)에만 사용하며 0 이면 사용하지 않는다. (default : 4MB)
+     */
+    public void setTailCacheBytes(long tailCacheBytes) {
+        if (tailCacheBytes < 0) {
+            throw new IllegalArgumentException("tailCacheBytes is not negative.(tailCacheBytes >= 0)");
+        }
+
+        this.tailCacheBytes = tailCacheBytes;
+    }
+
+    /**
+     * 0 보다 크면 읽은 데이터를 ack 할 때까지 읽기 위치를 기록하지 않는다. (FileQueueImpl.receive)
+     * 이 시간 안에 ack 하지 않거나 nack 한 데이터는 다시 전달되며, 종료 후 다시 시작하면 ack 하지 않은 데이터부터 다시 읽는다.
+     * 0 이면 읽을 때 바로 읽기 위치를 기록한다. (default : 0)
+     */
+    public void setVisibilityTimeoutMillis(long visibilityTimeoutMillis) {
+        if (visibilityTimeoutMillis < 0) {
+            throw new IllegalArgumentException("visibilityTimeoutMillis is not negative.(visibilityTimeoutMillis >= 0)");
+        }
+
+        this.visibilityTimeoutMillis = visibilityTimeoutMillis;
+    }
+
+    /**
+     * visibilityTimeoutMillis 를 사용할 때 ack 하지 않은 데이터의 최대 개수. 가장 오래된 데이터를 ack 하기 전에는 더 읽지 않는다.
+     * 다시 전달할 수 있도록 데이터를 메모리에 가지고 있는다. (default : 1024)
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight is bigger than zero.(maxInFlight > 0)");
+        }
+
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * visibilityTimeoutMillis 를 사용할 때 이 횟수만큼 전달했지만 ack 되지 않은 데이터는 다시 전달하지 않고 dead letter 로 옮긴다.
+     * 0 이면 제한하지 않는다. (default : 0)
+     */
+    public void setMaxDeliveries(int maxDeliveries) {
+        if (maxDeliveries < 0) {
+            throw new IllegalArgumentException("maxDeliveries is not negative.(maxDeliveries >= 0)");
+        }
+
+        this.maxDeliveries = maxDeliveries;
+    }
+
+    /**
+     * get(timeout), receive(timeout) 에서 읽을 데이터가 없을 때 기다리는 방법. (default : WaitStrategies.SLEEP)
+     * 지연 시간이 중요하다면 BUSY_SPIN, 기다리는 동안 CPU 를 사용하지 않으려면 BLOCKING 을 사용한다.
+     */
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        if (waitStrategy == null) {
+            throw new IllegalArgumentException("waitStrategy is null.");
+        }
+
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * 큐의 읽지 않은 데이터 크기(byte, 큐 파일 크기 기준)의 제한. 넘으면 quotaPolicy 에 따라 동작한다.
+     * PriorityFileQueue 는 사용량 제한을 사용하지 않는다. 0 이면 제한하지 않는다. (default : 0)
+     */
+    public void setMaxQueueBytes(long maxQueueBytes) {
+        if (maxQueueBytes < 0) {
+            throw new IllegalArgumentException("maxQueueBytes is not negative.(maxQueueBytes >= 0)");
+        }
+
+        this.maxQueueBytes = maxQueueBytes;
+    }
+
+    /**
+     * 큐의 읽지 않은 데이터 개수의 제한. 읽는 프로세스가 따로 있는(PRODUCER) 큐에서는 사용하지 않는다.
+     * 0 이면 제한하지 않는다. (default : 0)
+     */
+    public void setMaxQueueMessages(long maxQueueMessages) {
+        if (maxQueueMessages < 0) {
+            throw new IllegalArgumentException("maxQueueMessages is not negative.(maxQueueMessages >= 0)");
+        }
+
+        this.maxQueueMessages = maxQueueMessages;
+    }
+
+    /**
+     * 여러 큐가 함께 사용하는 사용량 제한. 같은 DiskQuota 를 설정한 큐들의 사용량을 합쳐서 제한한다. (default : null)
+     */
+    public void setGlobalQuota(DiskQuota globalQuota) {
+        this.globalQuota = globalQuota;
+    }
+
+    /**
+     * 사용량이 제한에 도달했을 때 add, addDelayed 의 동작. (default : BLOCK)
+     * 시간이 된 지연 데이터와 다시 넣는 dead letter 는 제한 아래로 내려갈 때까지 미룬다.
+     */
+    public void setQuotaPolicy(QuotaPolicy quotaPolicy) {
+        if (quotaPolicy == null) {
+            throw new IllegalArgumentException("quotaPolicy is null.");
+        }
+
+        this.quotaPolicy = quotaPolicy;
+    }
+
+    /**
+     * quotaPolicy 가 BLOCK 일 때 사용량이 줄어들기를 기다리는 시간. (default : 1000)
+     */
+    public void setQuotaTimeoutMillis(long quotaTimeoutMillis) {
+        if (quotaTimeoutMillis < 0) {
+            throw new IllegalArgumentException("quotaTimeoutMillis is not negative.(quotaTimeoutMillis >= 0)");
+        }
+
+        this.quotaTimeoutMillis = quotaTimeoutMillis;
+    }
+
+    /**
+     * 여러 데이터를 하나의 header, checksum 으로 묶는 batch 의 최대 크기(byte). (default : 64KB)
+     * 데이터 하나가 이보다 크다면 묶지 않는다.
+     */
+    public void setBatchMaxBytes(int batchMaxBytes) {
+        if (batchMaxBytes <= 0) {
+            throw new IllegalArgumentException("batchMaxBytes is bigger than zero.(batchMaxBytes > 0)");
+        }
+
+        this.batchMaxBytes = batchMaxBytes;
+    }
+
+    /**
+     * 0 보다 크다면 add 한 데이터를 바로 쓰지 않고 모아두었다가 batchMaxRecords 개가 모이거나
+     * 이 시간이 지나면 하나의 batch 로 쓴다. 쓰기 전에 종료되면 모아둔 데이터를 잃는다.
+     * PriorityFileQueue 는 사용하지 않는다. (default : 0)
+     */
+    public void setBatchLingerMillis(long batchLingerMillis) {
+        if (batchLingerMillis < 0) {
+            throw new IllegalArgumentException("batchLingerMillis is not negative.(batchLingerMillis >= 0)");
+        }
+
+        this.batchLingerMillis = batchLingerMillis;
+    }
+
+    /**
+     * batchLingerMillis 를 사용할 때 한 번에 쓸 데이터 개수. (default : 64)
+     */
+    public void setBatchMaxRecords(int batchMaxRecords) {
+        if (batchMaxRecords <= 0) {
+            throw new IllegalArgumentException("batchMaxRecords is bigger than zero.(batchMaxRecords > 0)");
+        }
+
+        this.batchMaxRecords = batchMaxRecords;
+    }
+
+    /**
+     * 모든 데이터에 쓴 시간(epoch nanoseconds)을 함께 저장하고, 읽을 때 쓴 후 읽을 때까지 걸린 시간의 분포를 기록한다.
+     * (FileQueueImpl.getLatencyStats) 다른 프로세스가 읽는다면 쓰는 프로세스와 읽는 프로세스 모두 설정한다. (default : false)
+     */
+    public void setTrackLatency(boolean trackLatency) {
+        this.isTrackLatency = trackLatency;
+    }
+
+    /**
+     * 폴더와 이름만 다른 설정을 만든다.
+     */
+    Config copy(String baseDir, String name) {
+        try {
+            Config copied = (Config) clone();
+            copied.baseDir = baseDir;
+            copied.name = name;
+            return copied;
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     public Codec getCodec() {
         return codec;
     }
@@ -77,4 +503,116 @@ public class Config {
     public long getFileSize() {
         return fileSiz;
     }
+
+    public int getPrefetchCount() {
+        return prefetchCount;
+    }
+
+    public long getPrefetchBytes() {
+        return prefetchBytes;
+    }
+
+    public int getJanitorBacklog() {
+        return janitorBacklog;
+    }
+
+    public int getReadBufferSize() {
+        return readBufferSize;
+    }
+
+    public boolean isRecordTimestamp() {
+        return isRecordTimestamp;
+    }
+
+    public long getTimeIndexInterval() {
+        return timeIndexInterval;
+    }
+
+    public long getMessageTtlMillis() {
+        return messageTtlMillis;
+    }
+
+    public long getDelayTickMillis() {
+        return delayTickMillis;
+    }
+
+    public int getDelayWheelSize() {
+        return delayWheelSize;
+    }
+
+    public int[] getPriorityWeights() {
+        return priorityWeights.clone();
+    }
+
+    public int getDedupWindowSize() {
+        return dedupWindowSize;
+    }
+
+    public AccessMode getAccessMode() {
+        return accessMode;
+    }
+
+    public long getLeaseTimeoutMillis() {
+        return leaseTimeoutMillis;
+    }
+
+    public boolean isDirectIo() {
+        return isDirectIo;
+    }
+
+    public long getTailCacheBytes() {
+        return tailCacheBytes;
+    }
+
+    public long getVisibilityTimeoutMillis() {
+        return visibilityTimeoutMillis;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public int getMaxDeliveries() {
+        return maxDeliveries;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    public long getMaxQueueBytes() {
+        return maxQueueBytes;
+    }
+
+    public long getMaxQueueMessages() {
+        return maxQueueMessages;
+    }
+
+    public DiskQuota getGlobalQuota() {
+        return globalQuota;
+    }
+
+    public QuotaPolicy getQuotaPolicy() {
+        return quotaPolicy;
+    }
+
+    public long getQuotaTimeoutMillis() {
+        return quotaTimeoutMillis;
+    }
+
+    public int getBatchMaxBytes() {
+        return batchMaxBytes;
+    }
+
+    public long getBatchLingerMillis() {
+        return batchLingerMillis;
+    }
+
+    public int getBatchMaxRecords() {
+        return batchMaxRecords;
+    }
+
+    public boolean isTrackLatency() {
+        return isTrackLatency;
+    }
 }
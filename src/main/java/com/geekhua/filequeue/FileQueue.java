@@ -3,6 +3,7 @@ package com.geekhua.filequeue;
 import com.geekhua.filequeue.exception.FileQueueClosedException;
 
 import java.io.IOException;
+import java.util.Spliterator;
 import java.util.concurrent.TimeUnit;
 
 public interface FileQueue<E> {
@@ -12,6 +13,12 @@ public interface FileQueue<E> {
 
     void add(E m) throws IOException, FileQueueClosedException;
 
+    /**
+     * 읽기 위치부터 현재 쓰기 위치까지의 데이터를 읽는 읽기 전용 Spliterator 를 반환한다.
+     * 읽기 위치에 영향을 주지 않으며 StreamSupport.stream(browse(), true) 로 병렬로 읽을 수 있다.
+     */
+    Spliterator<E> browse() throws FileQueueClosedException;
+
     void close() throws IOException;
 
 }
@@ -1,26 +1,132 @@
 package com.geekhua.filequeue;
 
+import com.geekhua.filequeue.codec.Codec;
 import com.geekhua.filequeue.datastore.DataStore;
 import com.geekhua.filequeue.datastore.DataStoreImpl;
+import com.geekhua.filequeue.datastore.DeadLetterStats;
+import com.geekhua.filequeue.datastore.Delivery;
+import com.geekhua.filequeue.datastore.IoScheduler;
+import com.geekhua.filequeue.datastore.JanitorStats;
+import com.geekhua.filequeue.datastore.ReplayCursor;
+import com.geekhua.filequeue.datastore.TimingWheel;
 import com.geekhua.filequeue.exception.FileQueueClosedException;
+import com.geekhua.filequeue.exception.QuotaExceededException;
+import com.geekhua.filequeue.utils.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Spliterator;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class FileQueueImpl<E> implements FileQueue<E> {
+	private static final Logger log = LoggerFactory.getLogger(FileQueueImpl.class);
+	// 쓴 순번으로 확인할 수 없는 데이터(선읽기, 다시 전달, 다른 프로세스가 쓴 데이터)를 위해 큐를 다시 확인하는 간격
+	private static final long RECHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	// 사용량이 줄어들기를 기다리는 동안 확인하는 간격과 파일 크기로 다시 계산하는 간격
+	private static final long QUOTA_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long QUOTA_REFRESH_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
 	private DataStore<E> dataStore;
+	private TimingWheel timingWheel;
+	private Codec codec;
+	private AccessMode accessMode;
 	private volatile boolean isStopped = false;
 	private final ReentrantLock writeLock = new ReentrantLock();
 	private final ReentrantLock readLock = new ReentrantLock();
+	// FileQueueManager 가 관리하지 않는다면 null
+	private final FileQueueManager manager;
+	private volatile long lastAccessNanos = System.nanoTime();
+	// releaseHandles 로 파일을 닫았는지 여부
+	private final AtomicBoolean isReleased = new AtomicBoolean(false);
+	private WaitStrategy waitStrategy;
+	private final PublishSequence published = new PublishSequence();
+	// 쓴 순번이 바뀌지 않았다면 읽을 데이터가 없다고 볼 수 있는지 여부
+	private boolean isPublishReliable;
+	// 마지막으로 읽을 데이터가 없었을 때의 순번. readLock 을 가진 스레드에서만 사용한다.
+	private long emptySequence = -1L;
+	private String name;
+	private QuotaPolicy quotaPolicy;
+	private long quotaTimeoutNanos;
+	// 사용량 제한 때문에 버린 데이터 개수
+	private final AtomicLong droppedCount = new AtomicLong();
+	// 마지막으로 사용량을 파일 크기로 다시 계산한 시간. writeLock 을 가진 스레드에서만 사용한다.
+	private long quotaRefreshedNanos = System.nanoTime() - QUOTA_REFRESH_NANOS;
+	// batchLingerMillis 동안 모아두었다가 하나의 batch 로 쓸 데이터. writeLock 을 가진 스레드에서만 사용한다.
+	private final List<byte[]> lingered = new ArrayList<>();
+	private long lingerStartNanos;
+	private long lingerNanos;
+	private int batchMaxRecords;
+	private Thread lingerThread;
 
 	public FileQueueImpl(Config config) throws IOException{
+		this(config, null, null);
+	}
+
+	FileQueueImpl(Config config, IoScheduler.Lane janitorLane, FileQueueManager manager) throws IOException {
 		if(config == null) {
 			config = new Config();
 		}
 
-		dataStore = new DataStoreImpl<>(config);
+		if (config.getQuotaPolicy() == QuotaPolicy.DROP_OLDEST && config.getAccessMode() != AccessMode.EXCLUSIVE) {
+			throw new IllegalArgumentException("DROP_OLDEST quota policy can be used in EXCLUSIVE access mode.");
+		}
+
+		this.manager = manager;
+		dataStore = new DataStoreImpl<>(config, janitorLane);
 		dataStore.init();
+
+		codec = config.getCodec();
+		accessMode = config.getAccessMode();
+		waitStrategy = config.getWaitStrategy();
+		isPublishReliable = isPublishReliable(config);
+		name = config.getName();
+		quotaPolicy = config.getQuotaPolicy();
+		quotaTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getQuotaTimeoutMillis());
+		lingerNanos = TimeUnit.MILLISECONDS.toNanos(config.getBatchLingerMillis());
+		batchMaxRecords = config.getBatchMaxRecords();
+		timingWheel = new TimingWheel(config, new TimingWheel.Sink() {
+			@Override
+			public void deliver(List<byte[]> contents) throws IOException {
+				putContents(contents);
+			}
+
+			@Override
+			public boolean isFull() {
+				return isQuotaExceeded();
+			}
+		});
+
+		// 지연 데이터는 쓰는 프로세스가 전달한다.
+		if (accessMode.isWritable()) {
+			try {
+				timingWheel.init();
+			} catch (IOException | RuntimeException e) {
+				dataStore.close();
+				throw e;
+			}
+
+			if (lingerNanos > 0) {
+				lingerThread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						flushLingeredPeriodically();
+					}
+				}, "FileQueue-linger-" + name);
+				lingerThread.setDaemon(true);
+				lingerThread.start();
+			}
+		}
 	}
 
 	/**
@@ -31,12 +137,79 @@ public class FileQueueImpl<E> implements FileQueue<E> {
 		this.readLock.lockInterruptibly();
 
 		try {
-			return this.dataStore.take();
+			access();
+			return poll(published.get());
 		} finally {
 			this.readLock.unlock();
 		}
 	}
 
+	/**
+	 * 다음 데이터를 쓴 byte 그대로 handler 에 전달한다. (immediately)
+	 * 선읽기를 사용하지 않는다면 데이터를 복사하지 않고 파일을 읽은 buffer 의 읽기 전용 view 를 전달하며,
+	 * view 는 handler 안에서만 사용할 수 있다. 데이터는 view 의 position 부터 limit 까지이다.
+	 * 선읽기한 데이터, batch(addAll), transaction 의 데이터, readBufferSize 보다 큰 데이터는 읽을 때 복사하고 디코딩하므로
+	 * 복사를 피할 수 없다.
+	 * handler 가 끝나면 읽기 위치를 옮기고, handler 가 예외를 던지면 옮기지 않으므로 다음에 같은 데이터를 다시 전달한다.
+	 * ack 를 사용(Config.setVisibilityTimeoutMillis)한다면 사용할 수 없다.
+	 * @return 읽을 데이터가 없다면 false
+	 */
+	public boolean poll(Consumer<ByteBuffer> handler) throws InterruptedException, IOException {
+		this.readLock.lockInterruptibly();
+
+		try {
+			access();
+			long seen = published.get();
+			if (seen == emptySequence) {
+				return false;
+			}
+
+			boolean isRead = this.dataStore.take(handler);
+			if (!isRead && isPublishReliable) {
+				emptySequence = seen;
+			}
+			return isRead;
+		} finally {
+			this.readLock.unlock();
+		}
+	}
+
+	/**
+	 * 읽을 데이터가 없었던 후에 쓴 데이터가 없다면 파일을 읽지 않는다.
+	 * @param seen 읽기 전에 확인한 쓴 순번
+	 */
+	private E poll(long seen) throws IOException {
+		if (seen == emptySequence) {
+			return null;
+		}
+
+		E res = this.dataStore.take();
+		if (res == null && isPublishReliable) {
+			emptySequence = seen;
+		}
+		return res;
+	}
+
+	/**
+	 * 같은 프로세스에서 쓰고, 선읽기 없이 읽으며, ack 를 사용하지 않는다면 쓴 순번만으로 새 데이터가 있는지 알 수 있다.
+	 */
+	static boolean isPublishReliable(Config config) {
+		return config.getAccessMode() == AccessMode.EXCLUSIVE && config.getPrefetchCount() <= 0 && config.getVisibilityTimeoutMillis() <= 0;
+	}
+
+	/**
+	 * @return 더 기다릴 수 없다면 false
+	 */
+	private boolean await(long seen, long startNanos, long timeoutNanos) throws InterruptedException {
+		long remaining = timeoutNanos - (System.nanoTime() - startNanos);
+		if (remaining <= 0L) {
+			return false;
+		}
+
+		waitStrategy.await(published, seen, isPublishReliable ? remaining : Math.min(remaining, RECHECK_NANOS));
+		return true;
+	}
+
 	@Override
 	public E get(long timeout, TimeUnit unit) throws InterruptedException, IOException {
 		long startNanos = System.nanoTime();
@@ -44,8 +217,10 @@ public class FileQueueImpl<E> implements FileQueue<E> {
 		this.readLock.lockInterruptibly();
 		
 		try {
+			access();
 			while(!isStopped) {
-				E res = this.dataStore.take();
+				long seen = published.get();
+				E res = poll(seen);
 				
 				if(res != null) {
 					return res;
@@ -54,9 +229,7 @@ public class FileQueueImpl<E> implements FileQueue<E> {
 					// but also last msg not flush to disk completely. We
 					// couldn't wait until not empty like
 					// LinkedBlockingQueue.poll
-					if(System.nanoTime() - startNanos < timeoutNanos) {
-						TimeUnit.NANOSECONDS.sleep(100);
-					} else {
+					if(!await(seen, startNanos, timeoutNanos)) {
 						return null;
 					}
 				}
@@ -68,6 +241,64 @@ public class FileQueueImpl<E> implements FileQueue<E> {
 		}
 	}
 
+	/**
+	 * ack 할 때까지 읽기 위치를 기록하지 않고 읽는다. Config.setVisibilityTimeoutMillis 를 설정해야 한다.
+	 * 처리를 마치면 ack 하고, 시간 안에 ack 하지 않거나 nack 하면 다시 전달된다.
+	 * @return 읽을 데이터가 없거나 ack 하지 않은 데이터가 maxInFlight 개라면 null
+	 */
+	public Delivery<E> receive() throws InterruptedException, IOException {
+		this.readLock.lockInterruptibly();
+
+		try {
+			access();
+			return this.dataStore.takeDelivery();
+		} finally {
+			this.readLock.unlock();
+		}
+	}
+
+	public Delivery<E> receive(long timeout, TimeUnit unit) throws InterruptedException, IOException {
+		long startNanos = System.nanoTime();
+		long timeoutNanos = unit.toNanos(timeout);
+		this.readLock.lockInterruptibly();
+
+		try {
+			access();
+			while (!isStopped) {
+				long seen = published.get();
+				Delivery<E> delivery = this.dataStore.takeDelivery();
+				if (delivery != null) {
+					return delivery;
+				}
+
+				if (!await(seen, startNanos, timeoutNanos)) {
+					return null;
+				}
+			}
+
+			return null;
+		} finally {
+			this.readLock.unlock();
+		}
+	}
+
+	/**
+	 * 처리를 마친 데이터를 알린다. 읽기 위치는 가장 오래된 데이터부터 연속으로 ack 된 데이터까지 옮겨진다.
+	 * 다른 스레드에서 호출해도 되며 receive 를 기다리게 하지 않는다.
+	 * @return 이미 ack 했거나 큐를 닫거나 rewind 해서 버려진 데이터라면 false
+	 */
+	public boolean ack(Delivery<E> delivery) {
+		return !this.isStopped && this.dataStore.ack(delivery.getSequence());
+	}
+
+	/**
+	 * 처리하지 못한 데이터를 다음 receive 에서 다시 받는다.
+	 * @return 이미 ack 했거나 큐를 닫거나 rewind 해서 버려진 데이터라면 false
+	 */
+	public boolean nack(Delivery<E> delivery) {
+		return !this.isStopped && this.dataStore.nack(delivery.getSequence());
+	}
+
 	@Override
 	public void add(E m) throws IOException, FileQueueClosedException {
 		this.writeLock.lock();
@@ -77,18 +308,488 @@ public class FileQueueImpl<E> implements FileQueue<E> {
 				throw new FileQueueClosedException();
 			}
 
-			this.dataStore.put(m);
+			access();
+			if (!acquireQuota(1)) {
+				return;
+			}
+
+			if (lingerNanos > 0) {
+				linger(codec.encode(m));
+			} else {
+				this.dataStore.put(m);
+				published.publish();
+			}
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	/**
+	 * 여러 데이터를 하나의 header, checksum 을 가진 batch 로 묶어서 추가한다. (Config.setBatchMaxBytes)
+	 * 데이터마다 add 하는 것보다 파일 크기와 checksum 계산이 줄어든다. 사용량 제한(DROP_NEWEST)에 걸리면 모두 추가하지 않는다.
+	 */
+	public void addAll(Collection<? extends E> elements) throws IOException, FileQueueClosedException {
+		if (elements.isEmpty()) {
+			return;
+		}
+
+		this.writeLock.lock();
+
+		try {
+			if (this.isStopped) {
+				throw new FileQueueClosedException();
+			}
+
+			access();
+			if (!acquireQuota(elements.size())) {
+				return;
+			}
+
+			flushLingered();
+			List<byte[]> contents = new ArrayList<>(elements.size());
+			for (E element : elements) {
+				contents.add(codec.encode(element));
+			}
+			this.dataStore.putBatch(contents);
+			published.publish();
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	/**
+	 * batchMaxRecords 개가 모이면 바로 쓴다. writeLock 을 가진 스레드에서만 호출한다.
+	 */
+	private void linger(byte[] content) throws IOException {
+		if (lingered.isEmpty()) {
+			lingerStartNanos = System.nanoTime();
+		}
+
+		lingered.add(content);
+		if (lingered.size() >= batchMaxRecords) {
+			flushLingered();
+		}
+	}
+
+	/**
+	 * 모아둔 데이터를 batch 로 쓴다. 순서가 바뀌지 않도록 다른 방법으로 쓰기 전에도 호출한다.
+	 * writeLock 을 가진 스레드에서만 호출한다.
+	 */
+	private void flushLingered() throws IOException {
+		if (lingered.isEmpty()) {
+			return;
+		}
+
+		try {
+			this.dataStore.putBatch(lingered);
+			published.publish();
+		} finally {
+			// 실패했다면 일부가 쓰였을 수 있으므로 다시 쓰지 않는다.
+			lingered.clear();
+		}
+	}
+
+	/**
+	 * linger 스레드. 가장 먼저 모아둔 데이터가 batchLingerMillis 를 넘기면 쓴다.
+	 */
+	private void flushLingeredPeriodically() {
+		long waitNanos = lingerNanos;
+		while (!Thread.currentThread().isInterrupted()) {
+			LockSupport.parkNanos(this, waitNanos);
+
+			writeLock.lock();
+			try {
+				if (isStopped) {
+					return;
+				}
+
+				waitNanos = lingerNanos;
+				if (!lingered.isEmpty()) {
+					long elapsed = System.nanoTime() - lingerStartNanos;
+					if (elapsed >= lingerNanos) {
+						access();
+						flushLingered();
+					} else {
+						waitNanos = lingerNanos - elapsed;
+					}
+				}
+			} catch (IOException e) {
+				log.error("Write lingered batch of queue(" + name + ") fail.", e);
+			} finally {
+				writeLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * 생산자가 지정한 message id 와 함께 추가한다. 재시도로 같은 데이터를 다시 추가하는 경우
+	 * 최근 Config.setDedupWindowSize 개의 id 와 중복되면 추가하지 않는다.
+	 * @return 중복되었거나 사용량 제한(DROP_NEWEST) 때문에 추가하지 않았다면 false
+	 */
+	public boolean add(E m, long messageId) throws IOException, FileQueueClosedException {
+		this.writeLock.lock();
+
+		try{
+			if(this.isStopped) {
+				throw new FileQueueClosedException();
+			}
+
+			access();
+			if (!acquireQuota(1)) {
+				return false;
+			}
+
+			flushLingered();
+			boolean isAdded = this.dataStore.putContent(codec.encode(m), messageId);
+			if (isAdded) {
+				published.publish();
+			}
+			return isAdded;
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	/**
+	 * 여러 데이터를 모두 추가하거나 하나도 추가하지 않는 transaction 을 시작한다.
+	 */
+	public Transaction<E> beginTransaction() {
+		return new Transaction<>(this, codec);
+	}
+
+	void commit(List<byte[]> contents) throws IOException, FileQueueClosedException {
+		this.writeLock.lock();
+
+		try {
+			if (this.isStopped) {
+				throw new FileQueueClosedException();
+			}
+
+			access();
+			if (acquireQuota(contents.size())) {
+				flushLingered();
+				this.dataStore.putTransaction(contents);
+				published.publish();
+			}
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	/**
+	 * 사용량이 제한에 도달했다면 quotaPolicy 에 따라 기다리거나, 실패하거나, 오래된 데이터를 버린다.
+	 * 제한은 유지하는 값으로 확인하며, 도달했을 때만 파일 크기로 다시 계산한다. (QUOTA_REFRESH_NANOS 에 한 번)
+	 * writeLock 을 가진 스레드에서만 호출한다.
+	 * @param count 추가하려는 데이터 개수
+	 * @return 추가하려는 데이터를 버려야 한다면(DROP_NEWEST) false
+	 */
+	private boolean acquireQuota(int count) throws IOException {
+		if (!isQuotaExceeded()) {
+			return true;
+		}
+
+		switch (quotaPolicy) {
+		case FAIL:
+			throw quotaExceeded();
+		case DROP_NEWEST:
+			droppedCount.addAndGet(count);
+			return false;
+		case DROP_OLDEST:
+			dropOldest();
+			return true;
+		default:
+			awaitQuota();
+			return true;
+		}
+	}
+
+	/**
+	 * 제한에 도달했다면 파일 크기로 다시 계산해서 확인한다.
+	 */
+	private boolean isQuotaExceeded() {
+		this.writeLock.lock();
+
+		try {
+			if (!this.dataStore.isQuotaExceeded()) {
+				return false;
+			}
+
+			return !refreshUsageIfNeeded() || this.dataStore.isQuotaExceeded();
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	private void awaitQuota() throws IOException {
+		long startNanos = System.nanoTime();
+
+		while (this.dataStore.isQuotaExceeded()) {
+			if (System.nanoTime() - startNanos >= quotaTimeoutNanos) {
+				throw quotaExceeded();
+			}
+
+			// 다른 프로세스가 읽는다면 유지하는 값이 줄어들지 않으므로 가끔 다시 계산한다.
+			if (refreshUsageIfNeeded()) {
+				continue;
+			}
+
+			LockSupport.parkNanos(QUOTA_PARK_NANOS);
+			if (Thread.interrupted()) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for quota of queue(" + name + ").");
+			}
+		}
+	}
+
+	/**
+	 * @return 다시 계산했다면 true
+	 */
+	private boolean refreshUsageIfNeeded() {
+		long now = System.nanoTime();
+		if (now - quotaRefreshedNanos < QUOTA_REFRESH_NANOS) {
+			return false;
+		}
+
+		this.dataStore.refreshUsage();
+		quotaRefreshedNanos = now;
+		return true;
+	}
+
+	/**
+	 * 제한 아래로 내려갈 때까지 가장 오래된 데이터를 읽어서 버린다. 읽는 스레드를 quotaTimeoutMillis 까지 기다린다.
+	 */
+	private void dropOldest() throws IOException {
+		try {
+			if (!this.readLock.tryLock(quotaTimeoutNanos, TimeUnit.NANOSECONDS)) {
+				throw quotaExceeded();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while dropping data of queue(" + name + ").");
+		}
+
+		try {
+			while (this.dataStore.isQuotaExceeded()) {
+				if (this.dataStore.take() == null) {
+					// 큐를 비워도 다른 큐들이 공유 사용량을 차지하고 있다.
+					throw quotaExceeded();
+				}
+				droppedCount.incrementAndGet();
+			}
+		} finally {
+			this.readLock.unlock();
+		}
+	}
+
+	private QuotaExceededException quotaExceeded() {
+		return new QuotaExceededException("Quota of queue(" + name + ") exceeded. usedBytes:" + this.dataStore.usedBytes()
+				+ ", usedMessages:" + this.dataStore.usedMessages());
+	}
+
+	/**
+	 * delay 가 지난 후에 읽을 수 있도록 데이터를 추가한다. 지연 데이터는 큐 폴더의 delay 폴더에 저장되며
+	 * 시간이 되면 큐에 추가된다. (Config.setDelayTickMillis 만큼 늦어질 수 있다.)
+	 * 사용량 제한은 추가할 때 quotaPolicy 에 따라 확인하며, 시간이 되었을 때 제한에 도달했다면 줄어들 때까지 큐에 추가하지 않고 미룬다.
+	 */
+	public void addDelayed(E m, long delay, TimeUnit unit) throws IOException, FileQueueClosedException {
+		if (delay <= 0) {
+			add(m);
+			return;
+		}
+
+		if (!accessMode.isWritable()) {
+			throw new IllegalStateException("Queue is opened in " + accessMode + " mode. Can not write.");
+		}
+
+		this.writeLock.lock();
+
+		try {
+			if (this.isStopped) {
+				throw new FileQueueClosedException();
+			}
+
+			access();
+			if (!acquireQuota(1)) {
+				return;
+			}
 		} finally {
 			this.writeLock.unlock();
 		}
+
+		byte[] content = codec.encode(m);
+		if (content != null && content.length > 0) {
+			timingWheel.add(content, System.currentTimeMillis() + unit.toMillis(delay));
+		}
+	}
+
+	/**
+	 * 시간이 된 지연 데이터를 한 번에 추가한다.
+	 */
+	private void putContents(List<byte[]> contents) throws IOException {
+		this.writeLock.lock();
+
+		try {
+			if (this.isStopped) {
+				throw new IOException("File queue is closed.");
+			}
+
+			access();
+			flushLingered();
+			for (byte[] content : contents) {
+				this.dataStore.putContent(content);
+				published.publish();
+			}
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	/**
+	 * 읽기 위치를 옮긴다. 읽기가 끝나 백업된 파일로 옮기면 백업 파일부터 다시 읽는다.
+	 * @param offset BlockGroup 이 시작하는 위치. getReadingFileOffset() 으로 얻은 값을 사용한다.
+	 */
+	public void rewind(long fileNo, long offset) throws InterruptedException, IOException {
+		this.readLock.lockInterruptibly();
+
+		try {
+			access();
+			this.dataStore.rewind(fileNo, offset);
+			emptySequence = -1L;
+		} finally {
+			this.readLock.unlock();
+		}
+	}
+
+	/**
+	 * timestamp(epoch millis) 이후에 쓰여진 데이터를 포함하는 가장 오래된 파일의 처음으로 읽기 위치를 옮긴다.
+	 * 시간을 기록(Config.setRecordTimestamp)한다면 seekToTime 과 같다.
+	 */
+	public void rewind(long timestamp) throws InterruptedException, IOException {
+		this.readLock.lockInterruptibly();
+
+		try {
+			access();
+			this.dataStore.rewind(timestamp);
+			emptySequence = -1L;
+		} finally {
+			this.readLock.unlock();
+		}
+	}
+
+	/**
+	 * epochMillis 이후에 쓰여진 첫 번째 데이터로 읽기 위치를 옮긴다. 데이터를 디코딩하지 않고 시간 인덱스와 header 만으로 찾는다.
+	 */
+	public void seekToTime(long epochMillis) throws InterruptedException, IOException {
+		this.readLock.lockInterruptibly();
+
+		try {
+			access();
+			this.dataStore.seekToTime(epochMillis);
+			emptySequence = -1L;
+		} finally {
+			this.readLock.unlock();
+		}
+	}
+
+	/**
+	 * 읽기 위치에 영향을 주지 않고 지정한 위치부터 데이터를 읽는 cursor 를 반환한다.
+	 * 백업 파일부터 읽고 이어서 현재 큐 파일을 읽는다.
+	 */
+	public ReplayCursor<E> replay(long fileNo, long offset) {
+		return this.dataStore.replay(fileNo, offset);
+	}
+
+	/**
+	 * timestamp(epoch millis) 이후에 쓰여진 데이터를 포함하는 가장 오래된 파일부터 읽는 cursor 를 반환한다.
+	 */
+	public ReplayCursor<E> replay(long timestamp) throws IOException {
+		return this.dataStore.replay(timestamp);
+	}
+
+	/**
+	 * 파일 단위로 나눠지며, 하나의 파일은 시간 인덱스(Config.setRecordTimestamp)가 있다면 인덱스 항목에서 나눠진다.
+	 * 읽는 스레드를 기다리지 않는다.
+	 */
+	@Override
+	public Spliterator<E> browse() throws FileQueueClosedException {
+		if (this.isStopped) {
+			throw new FileQueueClosedException();
+		}
+
+		access();
+		return this.dataStore.browse();
+	}
+
+	/**
+	 * 마지막으로 사용한 시간을 기록하고 파일을 닫았었다면 manager 에게 다시 열린다는 것을 알린다.
+	 */
+	private void access() {
+		if (manager != null) {
+			lastAccessNanos = System.nanoTime();
+			if (isReleased.compareAndSet(true, false)) {
+				manager.reopened(this);
+			}
+		}
+	}
+
+	long getLastAccessNanos() {
+		return lastAccessNanos;
+	}
+
+	/**
+	 * 사용하고 있지 않다면 열려있는 파일을 닫는다. 다음에 사용할 때 다시 연다.
+	 * @return 닫았다면 true
+	 */
+	boolean releaseHandles() throws IOException {
+		if (!writeLock.tryLock()) {
+			return false;
+		}
+
+		try {
+			if (!readLock.tryLock()) {
+				return false;
+			}
+
+			try {
+				if (isStopped) {
+					return false;
+				}
+
+				dataStore.releaseHandles();
+				isReleased.set(true);
+				return true;
+			} finally {
+				readLock.unlock();
+			}
+		} finally {
+			writeLock.unlock();
+		}
 	}
 
 	@Override
 	public void close() {
+		// 지연 데이터를 추가하는 스레드가 writeLock 을 사용하므로 먼저 멈춘다.
+		timingWheel.stop();
+		if (lingerThread != null) {
+			lingerThread.interrupt();
+			try {
+				lingerThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
 		writeLock.lock();
 		readLock.lock();
 		
 		try {
+			if (!this.isStopped) {
+				try {
+					flushLingered();
+				} catch (IOException e) {
+					log.error("Write lingered batch of queue(" + name + ") fail.", e);
+				}
+			}
 			this.isStopped = true;
 			this.dataStore.close();
 		} finally {
@@ -112,4 +813,76 @@ public class FileQueueImpl<E> implements FileQueue<E> {
 	public long getWritingFileOffset() {
 		return dataStore.writingFileOffset();
 	}
+
+	/**
+	 * @return 읽지 않은 데이터의 byte (큐 파일 크기 기준). 사용량 제한을 설정하지 않았다면 0
+	 */
+	public long getUsedBytes() {
+		return dataStore.usedBytes();
+	}
+
+	/**
+	 * @return 읽지 않은 데이터 개수. 사용량 제한을 설정하지 않았다면 0
+	 */
+	public long getUsedMessages() {
+		return dataStore.usedMessages();
+	}
+
+	/**
+	 * @return 사용량 제한(DROP_OLDEST, DROP_NEWEST) 때문에 버린 데이터 개수
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	public JanitorStats getJanitorStats() {
+		return dataStore.janitorStats();
+	}
+
+	/**
+	 * @return 쓴 후 읽을 때까지 걸린 시간(nanoseconds) 분포. Config.setTrackLatency 를 설정하지 않았다면 null
+	 */
+	public LatencyHistogram getLatencyStats() {
+		return dataStore.latency();
+	}
+
+	public DeadLetterStats getDeadLetterStats() {
+		return dataStore.deadLetterStats();
+	}
+
+	/**
+	 * 디코딩하지 못했거나 Config.setMaxDeliveries 번 넘게 전달된 데이터(dead letter)를 encode 된 원본 그대로 읽는다.
+	 * dead letter 는 큐 폴더의 dead-letter 폴더에 저장되며 읽어도 지워지지 않는다.
+	 */
+	public ReplayCursor<byte[]> browseDeadLetters() throws IOException {
+		return dataStore.browseDeadLetters();
+	}
+
+	/**
+	 * 오래된 dead letter 부터 max 개까지 큐에 다시 추가한다. 사용량 제한에 도달하면 멈추고 남은 dead letter 는 다음에 옮긴다.
+	 * @return 다시 추가한 개수
+	 */
+	public int requeueDeadLetters(int max) throws IOException, FileQueueClosedException {
+		this.writeLock.lock();
+
+		try {
+			if (this.isStopped) {
+				throw new FileQueueClosedException();
+			}
+
+			access();
+			flushLingered();
+			if (isQuotaExceeded()) {
+				return 0;
+			}
+
+			int requeued = this.dataStore.requeueDeadLetters(max);
+			if (requeued > 0) {
+				published.publish();
+			}
+			return requeued;
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
 }
@@ -0,0 +1,174 @@
+package com.geekhua.filequeue;
+
+import com.geekhua.filequeue.datastore.IoScheduler;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 이름을 가진 여러 개(수백 개)의 큐를 함께 관리한다. 큐 폴더는 설정(template)의 baseDir 아래에 이름별로 만들어진다.
+ * 큐가 늘어나도 스레드와 열린 파일 개수가 늘어나지 않도록
+ * - 읽기가 끝난 파일은 정해진 개수의 공유 I/O 스레드(IoScheduler)에서 큐의 가중치(ioWeight)에 따라 돌아가며 정리한다.
+ * - 큐 파일을 열고 있는 큐는 maxOpenQueues 개까지이며, 넘으면 가장 오래 사용하지 않은 큐의 파일을 닫는다. (다음에 사용할 때 다시 연다.)
+ * - 선읽기(prefetch)는 큐마다 스레드를 만들기 때문에 사용하지 않는다.
+ * 잠금 파일(lock)은 큐를 닫을 때까지 열려있으며, 지연 데이터(addDelayed)나 COMPETING_CONSUMER 를 사용하면 큐마다 스레드를 만든다.
+ */
+public class FileQueueManager implements Closeable {
+	private static final Logger log = LoggerFactory.getLogger(FileQueueManager.class);
+
+	private final Config template;
+	private final int maxOpenQueues;
+	private final IoScheduler scheduler;
+	private final Map<String, FileQueueImpl<?>> queues = new HashMap<>();
+	// 큐 파일을 열고 있는 큐
+	private final Set<FileQueueImpl<?>> openQueues = new HashSet<>();
+	private boolean isClosed = false;
+
+	/**
+	 * @param ioThreads 읽기가 끝난 파일을 정리할 스레드 개수
+	 * @param maxOpenQueues 큐 파일을 열어둘 큐의 최대 개수
+	 */
+	public FileQueueManager(Config template, int ioThreads, int maxOpenQueues) {
+		if (maxOpenQueues <= 0) {
+			throw new IllegalArgumentException("maxOpenQueues is bigger than zero.(maxOpenQueues > 0)");
+		}
+
+		this.template = template != null ? template : new Config();
+		this.maxOpenQueues = maxOpenQueues;
+		this.scheduler = new IoScheduler(ioThreads, this.template.getName());
+	}
+
+	public <E> FileQueueImpl<E> getQueue(String name) throws IOException {
+		return getQueue(name, 1);
+	}
+
+	/**
+	 * 이름에 해당하는 큐를 반환한다. 열려있지 않다면 연다.
+	 * @param ioWeight 공유 I/O 스레드에서 차례가 왔을 때 연속으로 정리할 파일 개수. 이미 열려있는 큐라면 무시한다.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized <E> FileQueueImpl<E> getQueue(String name, int ioWeight) throws IOException {
+		if (isClosed) {
+			throw new IllegalStateException("FileQueueManager is closed.");
+		}
+
+		if (StringUtils.isBlank(name)) {
+			throw new IllegalArgumentException("name is empty.");
+		}
+
+		FileQueueImpl<E> queue = (FileQueueImpl<E>) queues.get(name);
+		if (queue == null) {
+			Config config = template.copy(template.getBaseDir(), name);
+			config.setPrefetchCount(0);
+
+			queue = new FileQueueImpl<>(config, scheduler.register(name, ioWeight), this);
+			queues.put(name, queue);
+			opened(queue);
+		}
+
+		return queue;
+	}
+
+	/**
+	 * 큐를 닫고 관리 대상에서 뺀다.
+	 */
+	public void closeQueue(String name) {
+		FileQueueImpl<?> queue;
+		synchronized (this) {
+			queue = queues.remove(name);
+			if (queue == null) {
+				return;
+			}
+			openQueues.remove(queue);
+		}
+
+		queue.close();
+	}
+
+	public synchronized int getQueueCount() {
+		return queues.size();
+	}
+
+	/**
+	 * @return 큐 파일을 열고 있는 큐의 개수
+	 */
+	public synchronized int getOpenQueueCount() {
+		return openQueues.size();
+	}
+
+	/**
+	 * 닫았던 큐의 파일이 다시 열릴 때 FileQueueImpl 이 호출한다.
+	 */
+	synchronized void reopened(FileQueueImpl<?> queue) {
+		if (queues.containsValue(queue)) {
+			opened(queue);
+		}
+	}
+
+	private void opened(FileQueueImpl<?> queue) {
+		openQueues.add(queue);
+
+		if (openQueues.size() > maxOpenQueues) {
+			releaseLeastRecentlyUsed(queue);
+		}
+	}
+
+	/**
+	 * 열린 큐가 maxOpenQueues 개가 될 때까지 가장 오래 사용하지 않은 큐부터 파일을 닫는다. 사용 중인 큐는 건너뛴다.
+	 */
+	private void releaseLeastRecentlyUsed(FileQueueImpl<?> current) {
+		List<FileQueueImpl<?>> candidates = new ArrayList<>(openQueues);
+		candidates.remove(current);
+
+		while (openQueues.size() > maxOpenQueues && !candidates.isEmpty()) {
+			FileQueueImpl<?> oldest = candidates.get(0);
+			for (FileQueueImpl<?> candidate : candidates) {
+				if (candidate.getLastAccessNanos() - oldest.getLastAccessNanos() < 0) {
+					oldest = candidate;
+				}
+			}
+			candidates.remove(oldest);
+
+			try {
+				if (oldest.releaseHandles()) {
+					openQueues.remove(oldest);
+				}
+			} catch (IOException e) {
+				log.warn("Release files of queue fail.", e);
+			}
+		}
+	}
+
+	/**
+	 * 모든 큐를 닫은 후 공유 I/O 스레드를 멈춘다.
+	 */
+	@Override
+	public void close() {
+		List<FileQueueImpl<?>> closing;
+		synchronized (this) {
+			if (isClosed) {
+				return;
+			}
+
+			isClosed = true;
+			closing = new ArrayList<>(queues.values());
+			queues.clear();
+			openQueues.clear();
+		}
+
+		for (FileQueueImpl<?> queue : closing) {
+			queue.close();
+		}
+
+		scheduler.shutdown();
+	}
+}
@@ -0,0 +1,270 @@
+package com.geekhua.filequeue;
+
+import com.geekhua.filequeue.datastore.DataStore;
+import com.geekhua.filequeue.datastore.DataStoreImpl;
+import com.geekhua.filequeue.exception.FileQueueClosedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Spliterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * 우선순위 lane 을 가진 큐. lane 마다 큐 폴더 아래의 lane-k 폴더에 별도의 큐 파일을 사용한다.
+ * 데이터가 있는 lane 은 bitmap 으로 관리하기 때문에 비어있는 lane 을 확인하기 위해 파일을 읽지 않는다.
+ * 읽을 때는 가중치(credit)가 남아있는 lane 중에서 우선순위가 가장 높은 lane 을 읽고,
+ * 데이터가 있는 모든 lane 의 credit 을 다 쓰면 다시 채운다. (Config.setPriorityWeights)
+ * 사용량 제한(Config.setMaxQueueBytes, setMaxQueueMessages, setGlobalQuota)과 batchLingerMillis 는 사용하지 않는다.
+ */
+public class PriorityFileQueue<E> implements FileQueue<E> {
+	private static final Logger log = LoggerFactory.getLogger(PriorityFileQueue.class);
+	private static final String LANE_DIR_PREFIX = "lane-";
+
+	private final DataStore<E>[] lanes;
+	private final ReentrantLock[] writeLocks;
+	private final ReentrantLock readLock = new ReentrantLock();
+	private final int[] weights;
+	// readLock 을 가진 스레드에서만 사용한다.
+	private final int[] credits;
+	// 데이터가 있을 수 있는 lane 의 bit 가 설정된다.
+	private final AtomicLong nonEmptyLanes = new AtomicLong();
+	private volatile boolean isStopped = false;
+	private final WaitStrategy waitStrategy;
+	private final PublishSequence published = new PublishSequence();
+	// 쓴 순번만으로 새 데이터가 있는지 알 수 없다면 이 간격으로 lane 을 다시 확인한다.
+	private final long recheckNanos;
+
+	@SuppressWarnings("unchecked")
+	public PriorityFileQueue(Config config) throws IOException {
+		if (config == null) {
+			config = new Config();
+		}
+
+		weights = config.getPriorityWeights();
+		waitStrategy = config.getWaitStrategy();
+		recheckNanos = FileQueueImpl.isPublishReliable(config) ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(1);
+		credits = weights.clone();
+		lanes = (DataStore<E>[]) new DataStore<?>[weights.length];
+		writeLocks = new ReentrantLock[weights.length];
+
+		if (config.getMaxQueueBytes() > 0 || config.getMaxQueueMessages() > 0 || config.getGlobalQuota() != null || config.getBatchLingerMillis() > 0) {
+			log.warn("PriorityFileQueue({}) ignores quota and batchLingerMillis.", config.getName());
+		}
+
+		String queueDir = new File(config.getBaseDir(), config.getName()).getPath();
+		try {
+			for (int i = 0; i < lanes.length; ++i) {
+				DataStore<E> lane = new DataStoreImpl<>(laneConfig(config, queueDir, i));
+				lane.init();
+				lanes[i] = lane;
+				writeLocks[i] = new ReentrantLock();
+			}
+		} catch (IOException | RuntimeException e) {
+			closeLanes();
+			throw e;
+		}
+
+		// 전에 쓴 데이터가 남아있을 수 있으므로 처음에는 모든 lane 을 읽어본다.
+		nonEmptyLanes.set(lanes.length == Long.SIZE ? -1L : (1L << lanes.length) - 1);
+	}
+
+	/**
+	 * lane 마다 사용량을 제한하면 큐 전체의 제한이 lane 개수만큼 커지고, 공유 사용량(DiskQuota)에는 확인하지 않는 사용량이 더해지므로
+	 * 사용량 제한을 지운다.
+	 */
+	private static Config laneConfig(Config config, String queueDir, int lane) {
+		Config laneConfig = config.copy(queueDir, LANE_DIR_PREFIX + lane);
+		laneConfig.setMaxQueueBytes(0L);
+		laneConfig.setMaxQueueMessages(0L);
+		laneConfig.setGlobalQuota(null);
+		return laneConfig;
+	}
+
+	public int getLaneCount() {
+		return lanes.length;
+	}
+
+	@Override
+	public E get() throws InterruptedException, IOException {
+		this.readLock.lockInterruptibly();
+
+		try {
+			return poll();
+		} finally {
+			this.readLock.unlock();
+		}
+	}
+
+	@Override
+	public E get(long timeout, TimeUnit unit) throws InterruptedException, IOException {
+		long startNanos = System.nanoTime();
+		long timeoutNanos = unit.toNanos(timeout);
+		this.readLock.lockInterruptibly();
+
+		try {
+			while (!isStopped) {
+				long seen = published.get();
+				E res = poll();
+
+				if (res != null) {
+					return res;
+				}
+
+				long remaining = timeoutNanos - (System.nanoTime() - startNanos);
+				if (remaining <= 0L) {
+					return null;
+				}
+				waitStrategy.await(published, seen, Math.min(remaining, recheckNanos));
+			}
+
+			return null;
+		} finally {
+			this.readLock.unlock();
+		}
+	}
+
+	private E poll() throws IOException {
+		while (true) {
+			long lanesBits = nonEmptyLanes.get();
+			if (lanesBits == 0L) {
+				return null;
+			}
+
+			int lane = selectLane(lanesBits);
+			E res = take(lane);
+			if (res != null) {
+				--credits[lane];
+				return res;
+			}
+		}
+	}
+
+	/**
+	 * credit 이 남아있는 lane 중에서 우선순위가 가장 높은 lane 을 고른다. 없다면 모든 credit 을 다시 채운다.
+	 */
+	private int selectLane(long lanesBits) {
+		for (long bits = lanesBits; bits != 0L; bits &= bits - 1) {
+			int lane = Long.numberOfTrailingZeros(bits);
+			if (credits[lane] > 0) {
+				return lane;
+			}
+		}
+
+		System.arraycopy(weights, 0, credits, 0, weights.length);
+		return Long.numberOfTrailingZeros(lanesBits);
+	}
+
+	/**
+	 * lane 이 비어있다면 bit 를 지운 후에 한 번 더 읽는다.
+	 * bit 를 지우는 사이에 쓰여진 데이터는 다시 읽은 결과에 포함되거나 쓰는 쪽에서 bit 를 다시 설정한다.
+	 */
+	private E take(int lane) throws IOException {
+		E res = lanes[lane].take();
+		if (res == null) {
+			clearLane(lane);
+
+			res = lanes[lane].take();
+			if (res != null) {
+				markLane(lane);
+			}
+		}
+
+		return res;
+	}
+
+	private void markLane(int lane) {
+		long bits;
+		do {
+			bits = nonEmptyLanes.get();
+		} while ((bits & (1L << lane)) == 0L && !nonEmptyLanes.compareAndSet(bits, bits | (1L << lane)));
+	}
+
+	private void clearLane(int lane) {
+		long bits;
+		do {
+			bits = nonEmptyLanes.get();
+		} while ((bits & (1L << lane)) != 0L && !nonEmptyLanes.compareAndSet(bits, bits & ~(1L << lane)));
+	}
+
+	/**
+	 * 우선순위가 가장 낮은 lane 에 추가한다.
+	 */
+	@Override
+	public void add(E m) throws IOException, FileQueueClosedException {
+		add(m, lanes.length - 1);
+	}
+
+	/**
+	 * 사용량을 제한하지 않고 모아두지 않으며(batchLingerMillis) 바로 쓴다.
+	 * @param priority lane 번호. 0 이 가장 우선순위가 높다.
+	 */
+	public void add(E m, int priority) throws IOException, FileQueueClosedException {
+		if (priority < 0 || priority >= lanes.length) {
+			throw new IllegalArgumentException("priority is between 0 and " + (lanes.length - 1) + ". priority:" + priority);
+		}
+
+		ReentrantLock writeLock = writeLocks[priority];
+		writeLock.lock();
+
+		try {
+			if (this.isStopped) {
+				throw new FileQueueClosedException();
+			}
+
+			lanes[priority].put(m);
+		} finally {
+			writeLock.unlock();
+		}
+
+		markLane(priority);
+		published.publish();
+	}
+
+	/**
+	 * 우선순위가 높은 lane 부터 차례로 읽는다. lane 사이에서도 나눠진다.
+	 */
+	@Override
+	public Spliterator<E> browse() throws FileQueueClosedException {
+		if (this.isStopped) {
+			throw new FileQueueClosedException();
+		}
+
+		Stream<E> stream = StreamSupport.stream(lanes[0].browse(), false);
+		for (int i = 1; i < lanes.length; ++i) {
+			stream = Stream.concat(stream, StreamSupport.stream(lanes[i].browse(), false));
+		}
+		return stream.spliterator();
+	}
+
+	@Override
+	public void close() {
+		for (ReentrantLock writeLock : writeLocks) {
+			writeLock.lock();
+		}
+		readLock.lock();
+
+		try {
+			this.isStopped = true;
+			closeLanes();
+		} finally {
+			for (ReentrantLock writeLock : writeLocks) {
+				writeLock.unlock();
+			}
+			readLock.unlock();
+		}
+	}
+
+	private void closeLanes() {
+		for (DataStore<E> lane : lanes) {
+			if (lane != null) {
+				lane.close();
+			}
+		}
+	}
+}
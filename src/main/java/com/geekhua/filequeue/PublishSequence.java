@@ -0,0 +1,60 @@
+package com.geekhua.filequeue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 큐에 데이터를 쓸 때마다 증가하는 순번. 소비자는 파일을 읽기 전에 이 값으로 새로 쓴 데이터가 있는지 확인한다.
+ * 기다리는 소비자가 없다면 쓸 때 잠금을 사용하지 않는다.
+ */
+public final class PublishSequence {
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    public long get() {
+        return sequence.get();
+    }
+
+    void publish() {
+        sequence.incrementAndGet();
+
+        if (waiters.get() > 0) {
+            lock.lock();
+            try {
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 순번이 seen 에서 바뀌거나 timeoutNanos 가 지날 때까지 스레드를 멈춘다.
+     * @return 순번이 바뀌었다면 true
+     */
+    public boolean awaitChange(long seen, long timeoutNanos) throws InterruptedException {
+        // 기다린다는 것을 먼저 알린 후 순번을 확인해야 publish 의 signal 을 놓치지 않는다.
+        waiters.incrementAndGet();
+        try {
+            lock.lockInterruptibly();
+            try {
+                long nanos = timeoutNanos;
+                while (sequence.get() == seen) {
+                    if (nanos <= 0L) {
+                        return false;
+                    }
+                    nanos = changed.awaitNanos(nanos);
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+}
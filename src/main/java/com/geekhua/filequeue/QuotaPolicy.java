@@ -0,0 +1,24 @@
+package com.geekhua.filequeue;
+
+/**
+ * 큐 또는 공유 사용량(DiskQuota)이 제한에 도달했을 때 add 의 동작. addDelayed 도 추가할 때 같은 동작을 한다.
+ * 이미 추가된 지연 데이터와 다시 넣는 dead letter 는 정책과 관계없이 버리지 않고 제한 아래로 내려갈 때까지 큐에 넣지 않는다.
+ */
+public enum QuotaPolicy {
+    /**
+     * 사용량이 줄어들 때까지 Config.setQuotaTimeoutMillis 만큼 기다린다. 시간이 지나면 QuotaExceededException 이 발생한다.
+     */
+    BLOCK,
+    /**
+     * 기다리지 않고 QuotaExceededException 이 발생한다.
+     */
+    FAIL,
+    /**
+     * 가장 오래된 데이터를 읽어서 버린다. 같은 프로세스에서 읽는 큐(EXCLUSIVE)만 사용할 수 있다.
+     */
+    DROP_OLDEST,
+    /**
+     * 추가하려는 데이터를 버린다.
+     */
+    DROP_NEWEST
+}
@@ -0,0 +1,58 @@
+package com.geekhua.filequeue;
+
+import com.geekhua.filequeue.codec.Codec;
+import com.geekhua.filequeue.exception.FileQueueClosedException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 여러 데이터를 모두 추가하거나 하나도 추가하지 않는다. (FileQueueImpl.beginTransaction)
+ * 추가한 데이터는 commit 할 때 한 번에 쓰여지며 commit marker 가 쓰여진 후에 읽을 수 있다.
+ * 하나의 스레드에서 사용한다.
+ */
+public class Transaction<E> {
+	private final FileQueueImpl<E> queue;
+	private final Codec codec;
+	private List<byte[]> contents = new ArrayList<>();
+
+	Transaction(FileQueueImpl<E> queue, Codec codec) {
+		this.queue = queue;
+		this.codec = codec;
+	}
+
+	public void add(E m) {
+		checkActive();
+		contents.add(codec.encode(m));
+	}
+
+	/**
+	 * 추가한 데이터를 한 번에 쓴다. 실패하면 하나도 읽을 수 없다.
+	 */
+	public void commit() throws IOException, FileQueueClosedException {
+		checkActive();
+
+		List<byte[]> committing = contents;
+		contents = null;
+		queue.commit(committing);
+	}
+
+	public void rollback() {
+		checkActive();
+		contents = null;
+	}
+
+	/**
+	 * @return commit 하거나 rollback 하기 전에 추가한 데이터 개수
+	 */
+	public int size() {
+		return contents != null ? contents.size() : 0;
+	}
+
+	private void checkActive() {
+		if (contents == null) {
+			throw new IllegalStateException("Transaction is already completed.");
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package com.geekhua.filequeue;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 기본으로 제공하는 WaitStrategy. 위에서부터 지연 시간이 짧고 기다리는 동안 CPU 를 많이 사용한다.
+ */
+public enum WaitStrategies implements WaitStrategy {
+    /**
+     * CPU 하나를 계속 사용하면서 순번을 확인한다. 지연 시간이 가장 짧다.
+     * Thread.onSpinWait(JDK 9 이상)가 있다면 사용한다.
+     */
+    BUSY_SPIN {
+        @Override
+        public void await(PublishSequence sequence, long seen, long timeoutNanos) {
+            long startNanos = System.nanoTime();
+            while (sequence.get() == seen && System.nanoTime() - startNanos < timeoutNanos) {
+                onSpinWait();
+            }
+        }
+    },
+    /**
+     * 순번을 확인하면서 다른 스레드에게 CPU 를 양보한다.
+     */
+    YIELD {
+        @Override
+        public void await(PublishSequence sequence, long seen, long timeoutNanos) {
+            long startNanos = System.nanoTime();
+            while (sequence.get() == seen && System.nanoTime() - startNanos < timeoutNanos) {
+                Thread.yield();
+            }
+        }
+    },
+    /**
+     * 잠시 spin, yield 한 후에는 멈추는 시간을 두 배씩(최대 1ms) 늘리며 park 한다.
+     */
+    BACKOFF_PARK {
+        @Override
+        public void await(PublishSequence sequence, long seen, long timeoutNanos) throws InterruptedException {
+            long startNanos = System.nanoTime();
+            long parkNanos = MIN_PARK_NANOS;
+            for (int i = 0; sequence.get() == seen; ++i) {
+                long remaining = timeoutNanos - (System.nanoTime() - startNanos);
+                if (remaining <= 0L) {
+                    return;
+                }
+
+                if (i < SPIN_TRIES) {
+                    onSpinWait();
+                } else if (i < SPIN_TRIES + YIELD_TRIES) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(Math.min(parkNanos, remaining));
+                    parkNanos = Math.min(parkNanos << 1, MAX_PARK_NANOS);
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+            }
+        }
+    },
+    /**
+     * 짧게 sleep 하면서 순번을 확인한다. (default)
+     */
+    SLEEP {
+        @Override
+        public void await(PublishSequence sequence, long seen, long timeoutNanos) throws InterruptedException {
+            long startNanos = System.nanoTime();
+            while (sequence.get() == seen && System.nanoTime() - startNanos < timeoutNanos) {
+                TimeUnit.NANOSECONDS.sleep(100);
+            }
+        }
+    },
+    /**
+     * 데이터를 쓸 때 signal 을 받을 때까지 멈춘다. 기다리는 동안 CPU 를 사용하지 않지만
+     * 기다리는 소비자가 있으면 생산자가 쓸 때마다 잠금을 사용한다.
+     */
+    BLOCKING {
+        @Override
+        public void await(PublishSequence sequence, long seen, long timeoutNanos) throws InterruptedException {
+            sequence.awaitChange(seen, timeoutNanos);
+        }
+    };
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+    private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final MethodHandle ON_SPIN_WAIT = findOnSpinWait();
+
+    private static MethodHandle findOnSpinWait() {
+        try {
+            return MethodHandles.lookup().findStatic(Thread.class, "onSpinWait", MethodType.methodType(void.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    static void onSpinWait() {
+        if (ON_SPIN_WAIT != null) {
+            try {
+                ON_SPIN_WAIT.invokeExact();
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.geekhua.filequeue;
+
+/**
+ * 읽을 데이터가 없을 때 소비자가 기다리는 방법. (Config.setWaitStrategy)
+ * 기본 구현은 WaitStrategies 에 있다.
+ */
+public interface WaitStrategy {
+    /**
+     * 쓴 데이터의 순번(sequence)이 seen 에서 바뀌거나 timeoutNanos 가 지날 때까지 기다린다.
+     * 호출하는 쪽에서 큐를 다시 확인하므로 일찍 반환해도 된다.
+     */
+    void await(PublishSequence sequence, long seen, long timeoutNanos) throws InterruptedException;
+}
@@ -0,0 +1,412 @@
+package com.geekhua.filequeue.bench;
+
+import com.geekhua.filequeue.Config;
+import com.geekhua.filequeue.FileQueueImpl;
+import com.geekhua.filequeue.codec.ByteArrayCodec;
+import com.geekhua.filequeue.codec.ObjectCodec;
+import com.geekhua.filequeue.utils.LatencyHistogram;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 서버와 디스크를 확인하기 위한 부하 생성기. producers 개의 스레드가 쓰고 consumers 개의 스레드가 읽으며
+ * warmup 후 duration 동안의 처리량과 쓴 후 읽을 때까지의 지연 시간 분포를 출력한다.
+ * 데이터의 처음 8 byte 에 보낸 시간(System.nanoTime)을 기록한다. rate 를 지정하면 보내야 했던 시간을 기록하므로
+ * 쓰기가 밀린 시간도 지연 시간에 포함된다. (coordinated omission)
+ *
+ * <pre>
+ * java -cp file-queue.jar:... com.geekhua.filequeue.bench.LoadTest --producers=2 --consumers=2 --size=uniform:64-1024 --duration=30
+ * </pre>
+ */
+public class LoadTest {
+	private static final int TIMESTAMP_LENGTH = 8;
+	private static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+	private static final long POLL_TIMEOUT_MILLIS = 100L;
+
+	private String baseDir = new File(System.getProperty("java.io.tmpdir"), "filequeue-loadtest").getAbsolutePath();
+	private int producers = 1;
+	private int consumers = 1;
+	private long warmupMillis = TimeUnit.SECONDS.toMillis(2);
+	private long durationMillis = TimeUnit.SECONDS.toMillis(10);
+	private String size = "fixed:100";
+	private String codec = "bytes";
+	private long fileSize = 128 * 1024 * 1024L;
+	private boolean directIo = false;
+	private int batch = 1;
+	private long lingerMillis = 0L;
+	// producer 하나의 초당 데이터 개수. 0 이라면 제한하지 않는다.
+	private long rate = 0L;
+
+	private int minSize;
+	private int maxSize;
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final AtomicLong produced = new AtomicLong();
+	private final AtomicLong producedBytes = new AtomicLong();
+	private final AtomicLong consumed = new AtomicLong();
+	private final AtomicLong consumedBytes = new AtomicLong();
+	// 예외로 멈춘 producer, consumer 스레드 개수와 처음 발생한 예외
+	private final AtomicInteger failedWorkers = new AtomicInteger();
+	private final AtomicReference<Exception> firstFailure = new AtomicReference<>();
+	private volatile boolean isProducing = true;
+	private volatile boolean isConsuming = true;
+
+	public LoadTest() {
+		parseSize();
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadTest loadTest = new LoadTest();
+		try {
+			for (String arg : args) {
+				loadTest.set(arg);
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			printUsage(System.err);
+			System.exit(1);
+		}
+
+		if (!loadTest.run(System.out)) {
+			System.exit(1);
+		}
+	}
+
+	private static void printUsage(PrintStream out) {
+		out.println("Usage: LoadTest [--option=value ...]");
+		out.println("  --dir=<path>          queue base directory (default: java.io.tmpdir/filequeue-loadtest)");
+		out.println("  --producers=<n>       producer threads (default: 1)");
+		out.println("  --consumers=<n>       consumer threads (default: 1)");
+		out.println("  --warmup=<seconds>    warmup before measuring (default: 2)");
+		out.println("  --duration=<seconds>  measured time (default: 10)");
+		out.println("  --size=<dist>         fixed:<n> | uniform:<min>-<max> | exp:<mean> bytes (default: fixed:100)");
+		out.println("  --codec=<name>        bytes | object (default: bytes)");
+		out.println("  --fileSize=<bytes>    segment file size (default: 134217728)");
+		out.println("  --directIo=<bool>     write with O_DIRECT (default: false)");
+		out.println("  --batch=<n>           messages per addAll, 1 uses add (default: 1)");
+		out.println("  --linger=<millis>     batch linger of add (default: 0)");
+		out.println("  --rate=<n>            messages per second of each producer, 0 is unlimited (default: 0)");
+	}
+
+	/**
+	 * @param arg --name=value
+	 */
+	void set(String arg) {
+		int index = arg.indexOf('=');
+		if (!arg.startsWith("--") || index < 0) {
+			throw new IllegalArgumentException("Invalid argument: " + arg);
+		}
+
+		String name = arg.substring(2, index);
+		String value = arg.substring(index + 1);
+		try {
+			switch (name) {
+			case "dir":
+				baseDir = value;
+				break;
+			case "producers":
+				producers = positive(name, Integer.parseInt(value));
+				break;
+			case "consumers":
+				consumers = positive(name, Integer.parseInt(value));
+				break;
+			case "warmup":
+				warmupMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+				break;
+			case "duration":
+				durationMillis = TimeUnit.SECONDS.toMillis(positive(name, Integer.parseInt(value)));
+				break;
+			case "size":
+				size = value;
+				parseSize();
+				break;
+			case "codec":
+				if (!"bytes".equals(value) && !"object".equals(value)) {
+					throw new IllegalArgumentException("Unknown codec: " + value);
+				}
+				codec = value;
+				break;
+			case "fileSize":
+				fileSize = Long.parseLong(value);
+				break;
+			case "directIo":
+				directIo = Boolean.parseBoolean(value);
+				break;
+			case "batch":
+				batch = positive(name, Integer.parseInt(value));
+				break;
+			case "linger":
+				lingerMillis = Long.parseLong(value);
+				break;
+			case "rate":
+				rate = Long.parseLong(value);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option: " + name);
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid number: " + arg);
+		}
+	}
+
+	private static int positive(String name, int value) {
+		if (value <= 0) {
+			throw new IllegalArgumentException(name + " is bigger than zero.(" + name + " > 0)");
+		}
+
+		return value;
+	}
+
+	private void parseSize() {
+		String[] kind = size.split(":", 2);
+		if (kind.length != 2) {
+			throw new IllegalArgumentException("Invalid size: " + size);
+		}
+
+		switch (kind[0]) {
+		case "fixed":
+			minSize = maxSize = Integer.parseInt(kind[1]);
+			break;
+		case "uniform":
+			String[] range = kind[1].split("-", 2);
+			if (range.length != 2) {
+				throw new IllegalArgumentException("Invalid size: " + size);
+			}
+			minSize = Integer.parseInt(range[0]);
+			maxSize = Integer.parseInt(range[1]);
+			break;
+		case "exp":
+			// 평균을 minSize 에 기록한다.
+			minSize = Integer.parseInt(kind[1]);
+			maxSize = -1;
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown size distribution: " + kind[0]);
+		}
+
+		if (minSize < TIMESTAMP_LENGTH || minSize > MAX_MESSAGE_SIZE || (maxSize >= 0 && (maxSize < minSize || maxSize > MAX_MESSAGE_SIZE))) {
+			throw new IllegalArgumentException("Size is between " + TIMESTAMP_LENGTH + " and " + MAX_MESSAGE_SIZE + " bytes: " + size);
+		}
+	}
+
+	private int nextSize(ThreadLocalRandom random) {
+		if (maxSize < 0) {
+			double exp = -Math.log(1.0 - random.nextDouble()) * minSize;
+			return (int) Math.max(TIMESTAMP_LENGTH, Math.min(MAX_MESSAGE_SIZE, exp));
+		}
+
+		return minSize == maxSize ? minSize : random.nextInt(minSize, maxSize + 1);
+	}
+
+	private Config createConfig() {
+		Config config = new Config();
+		config.setBaseDir(baseDir);
+		config.setName("loadtest");
+		config.setMsgAvgLen(maxSize < 0 ? minSize : (minSize + maxSize) / 2);
+		config.setFileSiz(fileSize);
+		config.setDirectIo(directIo);
+		config.setCodec("object".equals(codec) ? new ObjectCodec() : new ByteArrayCodec());
+		config.setBatchLingerMillis(lingerMillis);
+		return config;
+	}
+
+	/**
+	 * 큐 폴더를 지우고 부하를 준 후 결과를 출력한다. 끝나면 큐 폴더를 지운다.
+	 * @return 예외로 멈춘 producer, consumer 스레드가 있다면 false. 결과는 멈추기 전까지만 반영되어 있다.
+	 */
+	public boolean run(PrintStream out) throws IOException, InterruptedException {
+		File queueDir = new File(baseDir, "loadtest");
+		FileUtils.deleteDirectory(queueDir);
+
+		final FileQueueImpl<byte[]> fq = new FileQueueImpl<>(createConfig());
+		List<Thread> producerThreads = new ArrayList<>();
+		List<Thread> consumerThreads = new ArrayList<>();
+		try {
+			for (int i = 0; i < consumers; ++i) {
+				consumerThreads.add(start("LoadTest-consumer-" + i, new Runnable() {
+					@Override
+					public void run() {
+						consume(fq);
+					}
+				}));
+			}
+			for (int i = 0; i < producers; ++i) {
+				producerThreads.add(start("LoadTest-producer-" + i, new Runnable() {
+					@Override
+					public void run() {
+						produce(fq);
+					}
+				}));
+			}
+
+			Thread.sleep(warmupMillis);
+			latency.reset();
+			long startProduced = produced.get();
+			long startProducedBytes = producedBytes.get();
+			long startConsumed = consumed.get();
+			long startConsumedBytes = consumedBytes.get();
+			long startNanos = System.nanoTime();
+
+			Thread.sleep(durationMillis);
+			double seconds = (System.nanoTime() - startNanos) / 1e9;
+			long endProduced = produced.get();
+			long endProducedBytes = producedBytes.get();
+			long endConsumed = consumed.get();
+			long endConsumedBytes = consumedBytes.get();
+
+			// 남은 데이터를 모두 읽은 후 끝낸다.
+			isProducing = false;
+			join(producerThreads);
+			isConsuming = false;
+			join(consumerThreads);
+
+			out.println(String.format("producers=%d consumers=%d size=%s codec=%s fileSize=%d directIo=%s batch=%d linger=%dms rate=%d",
+					producers, consumers, size, codec, fileSize, directIo, batch, lingerMillis, rate));
+			out.println(String.format("produce: %,.0f msg/s, %,.2f MB/s", (endProduced - startProduced) / seconds,
+					(endProducedBytes - startProducedBytes) / seconds / (1024 * 1024)));
+			out.println(String.format("consume: %,.0f msg/s, %,.2f MB/s", (endConsumed - startConsumed) / seconds,
+					(endConsumedBytes - startConsumedBytes) / seconds / (1024 * 1024)));
+			out.println(String.format("latency(us): count=%d mean=%.1f p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f p99.99=%.1f max=%.1f",
+					latency.getCount(), latency.getMean() / 1000, micros(50), micros(90), micros(99), micros(99.9), micros(99.99),
+					latency.getMax() / 1000.0));
+
+			if (failedWorkers.get() > 0) {
+				out.println(String.format("FAILED: %d of %d workers stopped with an error. first:", failedWorkers.get(), producers + consumers));
+				firstFailure.get().printStackTrace(out);
+				return false;
+			}
+			return true;
+		} finally {
+			isProducing = false;
+			isConsuming = false;
+			join(producerThreads);
+			join(consumerThreads);
+			fq.close();
+			FileUtils.deleteDirectory(queueDir);
+		}
+	}
+
+	private double micros(double percentile) {
+		return latency.getValueAtPercentile(percentile) / 1000.0;
+	}
+
+	private static Thread start(String name, Runnable runnable) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	private static void join(List<Thread> threads) throws InterruptedException {
+		for (Thread thread : threads) {
+			thread.join();
+		}
+	}
+
+	private void produce(FileQueueImpl<byte[]> fq) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0L;
+		long nextNanos = System.nanoTime();
+		List<byte[]> messages = new ArrayList<>(batch);
+
+		try {
+			while (isProducing) {
+				long sentNanos = System.nanoTime();
+				if (intervalNanos > 0) {
+					while (nextNanos - sentNanos > 0) {
+						LockSupport.parkNanos(nextNanos - sentNanos);
+						sentNanos = System.nanoTime();
+					}
+					// 늦어진 만큼 지연 시간에 포함되도록 보내야 했던 시간을 기록한다.
+					sentNanos = nextNanos;
+					nextNanos += intervalNanos * batch;
+				}
+
+				messages.clear();
+				long bytes = 0;
+				for (int i = 0; i < batch; ++i) {
+					byte[] message = new byte[nextSize(random)];
+					writeLong(message, sentNanos);
+					messages.add(message);
+					bytes += message.length;
+				}
+
+				if (batch == 1) {
+					fq.add(messages.get(0));
+				} else {
+					fq.addAll(messages);
+				}
+				produced.addAndGet(batch);
+				producedBytes.addAndGet(bytes);
+			}
+		} catch (Exception e) {
+			failed(e);
+		}
+	}
+
+	private void consume(FileQueueImpl<byte[]> fq) {
+		try {
+			while (true) {
+				byte[] message = fq.get(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+				if (message == null) {
+					if (!isConsuming) {
+						return;
+					}
+					continue;
+				}
+
+				latency.record(System.nanoTime() - readLong(message));
+				consumed.incrementAndGet();
+				consumedBytes.addAndGet(message.length);
+			}
+		} catch (Exception e) {
+			failed(e);
+		}
+	}
+
+	private void failed(Exception e) {
+		failedWorkers.incrementAndGet();
+		firstFailure.compareAndSet(null, e);
+	}
+
+	private static void writeLong(byte[] bytes, long value) {
+		for (int i = TIMESTAMP_LENGTH - 1; i >= 0; --i) {
+			bytes[i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+
+	private static long readLong(byte[] bytes) {
+		long value = 0;
+		for (int i = 0; i < TIMESTAMP_LENGTH; ++i) {
+			value = (value << 8) | (bytes[i] & 0xFF);
+		}
+		return value;
+	}
+
+	long getProducedCount() {
+		return produced.get();
+	}
+
+	long getConsumedCount() {
+		return consumed.get();
+	}
+
+	int getFailedWorkers() {
+		return failedWorkers.get();
+	}
+
+	LatencyHistogram getLatency() {
+		return latency;
+	}
+}
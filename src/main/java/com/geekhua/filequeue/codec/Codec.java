@@ -8,5 +8,8 @@ public interface Codec {
 
     byte[] encode(Object element);
 
+    /**
+     * @throws com.geekhua.filequeue.exception.CodecException 디코딩할 수 없는 데이터라면. 큐는 이 데이터를 dead letter 로 옮긴다.
+     */
     Object decode(byte[] bytes);
 }
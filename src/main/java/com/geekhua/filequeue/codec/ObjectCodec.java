@@ -5,11 +5,12 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.util.Arrays;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.geekhua.filequeue.exception.CodecException;
+
 /**
  * 
  * @author Leo Liang
@@ -36,8 +37,8 @@ public class ObjectCodec implements Codec {
             ObjectInputStream ois = new ObjectInputStream(bis);
             return ois.readObject();
         } catch (Exception e) {
-			log.warn("Decode object({}) fail", Arrays.toString(bytes));
-            return null;
+            // 데이터가 클 수 있으므로 내용은 남기지 않는다.
+            throw new CodecException("Decode object fail. length:" + bytes.length, e);
         }
     }
 
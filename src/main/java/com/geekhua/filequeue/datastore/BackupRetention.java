@@ -0,0 +1,153 @@
+package com.geekhua.filequeue.datastore;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * 백업 폴더의 파일 개수, 전체 크기, 보관 기간을 제한한다.
+ * 백업 폴더는 시작할 때 한 번만 조회하고, 이후에는 백업된 파일을 기억해 두었다가 오래된 파일부터 삭제한다.
+ */
+class BackupRetention {
+	private static final Logger log = LoggerFactory.getLogger(BackupRetention.class);
+
+	static final String TEMP_EXTENSION = ".tmp";
+
+	private final File backDir;
+	private final long maxBytes;
+	private final long maxAgeMillis;
+	private final int maxFiles;
+
+	// 파일 번호 오름차순
+	private final LinkedList<Archived> archived = new LinkedList<>();
+	private long totalBytes;
+
+	/**
+	 * @param maxBytes 0 이면 제한하지 않는다.
+	 * @param maxAgeMillis 0 이면 제한하지 않는다.
+	 * @param maxFiles 0 이면 제한하지 않는다.
+	 */
+	BackupRetention(File backDir, long maxBytes, long maxAgeMillis, int maxFiles) {
+		this.backDir = backDir;
+		this.maxBytes = maxBytes;
+		this.maxAgeMillis = maxAgeMillis;
+		this.maxFiles = maxFiles;
+	}
+
+	boolean isEnabled() {
+		return maxBytes > 0 || maxAgeMillis > 0 || maxFiles > 0;
+	}
+
+	boolean hasAgeLimit() {
+		return maxAgeMillis > 0;
+	}
+
+	/**
+	 * 백업 폴더에 있는 파일들을 읽어온다. 압축 중에 종료되어 남은 임시 파일은 삭제한다.
+	 */
+	synchronized void load() {
+		File[] files = backDir.listFiles();
+		if (files == null) {
+			return;
+		}
+
+		List<Archived> loaded = new ArrayList<>();
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(TEMP_EXTENSION)) {
+				FileUtils.deleteQuietly(file);
+			} else if (SegmentFiles.isDataFile(name) || SegmentFiles.isCompressedFile(name)) {
+				loaded.add(new Archived(file, SegmentFiles.fileNumber(name)));
+			}
+		}
+
+		Collections.sort(loaded, new Comparator<Archived>() {
+			@Override
+			public int compare(Archived o1, Archived o2) {
+				return Long.compare(o1.fileNo, o2.fileNo);
+			}
+		});
+
+		archived.clear();
+		totalBytes = 0L;
+		for (Archived a : loaded) {
+			archived.addLast(a);
+			totalBytes += a.length;
+		}
+	}
+
+	/**
+	 * 백업된 파일을 추가한다.
+	 */
+	synchronized void add(File file, long fileNo) {
+		Archived added = new Archived(file, fileNo);
+
+		// 대부분 마지막에 추가된다.
+		Iterator<Archived> it = archived.descendingIterator();
+		int index = archived.size();
+		while (it.hasNext() && it.next().fileNo > fileNo) {
+			--index;
+		}
+
+		archived.add(index, added);
+		totalBytes += added.length;
+	}
+
+	/**
+	 * 제한을 넘는 오래된 백업 파일들을 삭제한다.
+	 * @return 삭제한 파일 개수
+	 */
+	synchronized int enforce(long now) {
+		int deleted = 0;
+
+		while (!archived.isEmpty() && isExceeded(archived.getFirst(), now)) {
+			Archived oldest = archived.removeFirst();
+			totalBytes -= oldest.length;
+
+			if (!FileUtils.deleteQuietly(oldest.file) && oldest.file.exists()) {
+				log.warn("Delete backup file({}) fail.", oldest.file);
+			}
+			FileUtils.deleteQuietly(new File(backDir, SegmentFiles.indexFileName(oldest.fileNo)));
+
+			++deleted;
+		}
+
+		return deleted;
+	}
+
+	private boolean isExceeded(Archived oldest, long now) {
+		return (maxFiles > 0 && archived.size() > maxFiles)
+				|| (maxBytes > 0 && totalBytes > maxBytes)
+				|| (maxAgeMillis > 0 && now - oldest.lastModified > maxAgeMillis);
+	}
+
+	synchronized int getFileCount() {
+		return archived.size();
+	}
+
+	synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	private static class Archived {
+		private final File file;
+		private final long fileNo;
+		private final long length;
+		private final long lastModified;
+
+		private Archived(File file, long fileNo) {
+			this.file = file;
+			this.fileNo = fileNo;
+			this.length = file.length();
+			this.lastModified = file.lastModified();
+		}
+	}
+}
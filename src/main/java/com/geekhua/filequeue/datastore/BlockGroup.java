@@ -1,41 +1,282 @@
 package com.geekhua.filequeue.datastore;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import com.geekhua.filequeue.utils.EncryptUtils;
-import com.geekhua.filequeue.utils.StreamUtils;
 
 /**
  * @author kwonsm
  * ----------------------------------------------------------
  * | header(4) | checksum(20) | content length(4) | content |
  * ----------------------------------------------------------
- * 
+ *
+ * 속성(시간 등)이 있는 데이터는 다른 header 를 사용한다.
+ * --------------------------------------------------------------------------------------------
+ * | header(4) | checksum(20) | content length(4) | type(1) | flags(1) | fields(8 * n) | content |
+ * --------------------------------------------------------------------------------------------
+ * fields 는 flags 에 설정된 bit 순서대로 저장되며 checksum 은 type 부터 content 까지를 대상으로 한다.
+ *
+ * 작은 데이터 여러 개는 하나의 batch(TYPE_BATCH)로 묶어서 header, checksum, padding 을 함께 사용한다.
+ * batch 의 content 는 | length(varint) | data | 의 반복이며 데이터 개수는 FLAG_RECORD_COUNT 에 기록한다.
  */
 class BlockGroup {
 	private static final byte[] HEADER = new byte[] {(byte) 0xAA, (byte) 0xAA, (byte) 0xAA, (byte) 0xAB};
+	private static final byte[] HEADER_V2 = new byte[] {(byte) 0xAA, (byte) 0xAA, (byte) 0xAA, (byte) 0xAC};
+	// 파일의 끝을 나타내는 BlockGroup 의 content
+	static final byte[] END_CONTENT = new byte[] {(byte) 0xAA, (byte) 0xAA, (byte) 0xAA, (byte) 0xAA, (byte) 0xAA, (byte) 0xAA, (byte) 0xAA, (byte) 0xAB};
 	private static final int CHECKSUM_SIZE = 20;
 	private static final int CONTENT_SIZE_LENGTH = 4;
 	// content 를 제외한 고정된 길이
 	private static final int PRE_FIX_LENGTH = HEADER.length + CHECKSUM_SIZE + CONTENT_SIZE_LENGTH;
+	// type(1) + flags(1)
+	private static final int ATTRIBUTE_LENGTH = 2;
+	private static final int FIELD_SIZE = 8;
+	private static final int MAX_FIELDS = 8;
+	// padding 으로 쓰는 0. 읽기만 한다.
+	private static final byte[] ZERO_PADDING = new byte[64 * 1024];
+	// view 로 읽은 BlockGroup 이 파일의 끝인지 비교한다. 위치를 바꾸지 않는다.
+	private static final ByteBuffer END_VIEW = ByteBuffer.wrap(END_CONTENT).asReadOnlyBuffer();
+	private static final int READ_HEADER = 0;
+	private static final int READ_CONTENT = 1;
+	private static final int READ_VIEW = 2;
 
-	private ByteBuffer data;
+	static final byte TYPE_DATA = 0;
+	// transaction 의 데이터를 읽을 수 있게 한다.
+	static final byte TYPE_COMMIT = 1;
+	// transaction 의 데이터를 버린다.
+	static final byte TYPE_ABORT = 2;
+	// 여러 데이터를 묶은 batch
+	static final byte TYPE_BATCH = 3;
+
+	// 쓰여진 시간 (epoch nanoseconds)
+	static final int FLAG_TIMESTAMP = 1;
+	// 큐로 전달할 시간 (epoch millis)
+	static final int FLAG_DELIVER_AT = 1 << 1;
+	// transaction 번호
+	static final int FLAG_TXN_ID = 1 << 2;
+	// 생산자가 지정한 message id
+	static final int FLAG_MESSAGE_ID = 1 << 3;
+	// batch 에 들어있는 데이터 개수
+	static final int FLAG_RECORD_COUNT = 1 << 4;
+
+	private int blockSize;
 	private byte[] content;
+	// content 를 복사하지 않고 읽었다면 읽은 buffer 의 content 부분 (position ~ limit)
+	private ByteBuffer contentView;
+	private byte type = TYPE_DATA;
+	private int flags;
+	private long[] fields;
+	// 파일에서 읽은 BlockGroup 의 padding 을 포함한 크기
+	private int size;
 
 	private BlockGroup(int blockSize, byte[] content) {
-        int blockCount = getBlockCount(content.length, blockSize);
-
-        this.data = ByteBuffer.allocate(blockCount * blockSize);
+		this.blockSize = blockSize;
 		this.content = content;
 	}
-	
+
+	/**
+	 * @return header 만 읽었다면 null
+	 */
 	byte[] getContent() {
 		return content;
 	}
 
+	/**
+	 * @return view 로 읽지 않았다면 null. 다음 BlockGroup 을 읽기 전까지만 사용할 수 있다.
+	 */
+	ByteBuffer getContentView() {
+		return contentView;
+	}
+
+	boolean isEnd() {
+		if (contentView != null) {
+			return flags == 0 && contentView.equals(END_VIEW);
+		}
+
+		return flags == 0 && Arrays.equals(content, END_CONTENT);
+	}
+
+	byte getType() {
+		return type;
+	}
+
+	BlockGroup type(byte type) {
+		this.type = type;
+		return this;
+	}
+
+	boolean isData() {
+		return type == TYPE_DATA;
+	}
+
+	boolean isBatch() {
+		return type == TYPE_BATCH;
+	}
+
+	/**
+	 * @return 들어있는 데이터 개수. commit, abort marker 는 0
+	 */
+	int recordCount() {
+		if (type == TYPE_DATA) {
+			return 1;
+		}
+
+		return type == TYPE_BATCH ? (int) getField(FLAG_RECORD_COUNT) : 0;
+	}
+
+	/**
+	 * batch 의 content 를 데이터들로 나눈다.
+	 */
+	List<byte[]> records() {
+		int count = recordCount();
+		List<byte[]> records = new ArrayList<>(count);
+		int position = 0;
+		for (int i = 0; i < count && position < content.length; ++i) {
+			int length = 0;
+			for (int shift = 0; ; shift += 7) {
+				byte b = content[position++];
+				length |= (b & 0x7F) << shift;
+				if (b >= 0) {
+					break;
+				}
+			}
+
+			records.add(Arrays.copyOfRange(content, position, position + length));
+			position += length;
+		}
+
+		return records;
+	}
+
+	/**
+	 * 여러 데이터를 하나의 batch 로 묶는다. 데이터마다 varint 로 길이를 앞에 쓴다.
+	 */
+	static BlockGroup batch(List<byte[]> records, int blockSize) {
+		int length = 0;
+		for (byte[] record : records) {
+			length += batchLength(record.length);
+		}
+
+		byte[] content = new byte[length];
+		int position = 0;
+		for (byte[] record : records) {
+			int value = record.length;
+			while ((value & ~0x7F) != 0) {
+				content[position++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			content[position++] = (byte) value;
+
+			System.arraycopy(record, 0, content, position, record.length);
+			position += record.length;
+		}
+
+		return allocate(content, blockSize).type(TYPE_BATCH).setField(FLAG_RECORD_COUNT, records.size());
+	}
+
+	/**
+	 * @return batch 에 넣었을 때 길이(varint)를 포함한 크기
+	 */
+	static int batchLength(int recordLength) {
+		return recordLength + (32 - Integer.numberOfLeadingZeros(recordLength | 1) + 6) / 7;
+	}
+
+	boolean hasTimestamp() {
+		return hasField(FLAG_TIMESTAMP);
+	}
+
+	/**
+	 * @return 쓰여진 시간 (epoch nanoseconds). 없다면 0
+	 */
+	long getTimestamp() {
+		return getField(FLAG_TIMESTAMP);
+	}
+
+	BlockGroup timestamp(long timestamp) {
+		return setField(FLAG_TIMESTAMP, timestamp);
+	}
+
+	boolean hasTxnId() {
+		return hasField(FLAG_TXN_ID);
+	}
+
+	long getTxnId() {
+		return getField(FLAG_TXN_ID);
+	}
+
+	BlockGroup txnId(long txnId) {
+		return setField(FLAG_TXN_ID, txnId);
+	}
+
+	boolean hasMessageId() {
+		return hasField(FLAG_MESSAGE_ID);
+	}
+
+	long getMessageId() {
+		return getField(FLAG_MESSAGE_ID);
+	}
+
+	BlockGroup messageId(long messageId) {
+		return setField(FLAG_MESSAGE_ID, messageId);
+	}
+
+	long getDeliverAt() {
+		return getField(FLAG_DELIVER_AT);
+	}
+
+	BlockGroup deliverAt(long deliverAt) {
+		return setField(FLAG_DELIVER_AT, deliverAt);
+	}
+
+	/**
+	 * content 와 속성을 복사한다. 쓴 후에 호출자가 content 배열을 바꿔도 영향을 받지 않는다.
+	 */
+	BlockGroup copy() {
+		BlockGroup copy = new BlockGroup(blockSize, content.clone());
+		copy.type = type;
+		copy.flags = flags;
+		copy.fields = fields != null ? fields.clone() : null;
+		copy.size = size;
+		return copy;
+	}
+
+	/**
+	 * @return padding 을 포함한 크기. header 만 읽었다면 파일에서 읽은 크기
+	 */
+	int size() {
+		if (size != 0) {
+			return size;
+		}
+
+		int attributeLength = isV2() ? getAttributeLength(flags) : 0;
+		return getBlockCount(attributeLength + content.length, blockSize) * blockSize;
+	}
+
+	private boolean hasField(int flag) {
+		return (flags & flag) != 0;
+	}
+
+	private long getField(int flag) {
+		return hasField(flag) ? fields[Integer.numberOfTrailingZeros(flag)] : 0L;
+	}
+
+	private BlockGroup setField(int flag, long value) {
+		if (fields == null) {
+			fields = new long[MAX_FIELDS];
+		}
+
+		flags |= flag;
+		fields[Integer.numberOfTrailingZeros(flag)] = value;
+		return this;
+	}
+
+	private boolean isV2() {
+		return flags != 0 || type != TYPE_DATA;
+	}
+
 	static int estimateBlockGroupSize(int contentSize) {
 		return PRE_FIX_LENGTH + contentSize;
 	}
@@ -43,7 +284,7 @@ class BlockGroup {
     /**
      * 하나의 데이터를 저장할 때 필요한 블록 개수를 구한다.
      * header(4) + checksum(20) + content length(4) + content
-     * @param contentLength content length
+     * @param contentLength content length (v2 는 type, flags, fields 를 포함한다.)
      * @param blockSize block 하나의 크기
      * @return 전체 block 개수
      */
@@ -52,6 +293,10 @@ class BlockGroup {
         return dataLength / blockSize + (dataLength % blockSize == 0 ? 0 : 1);
     }
 
+	private static int getAttributeLength(int flags) {
+		return ATTRIBUTE_LENGTH + Integer.bitCount(flags) * FIELD_SIZE;
+	}
+
 	/**
 	 * content 에 필요한 block 개수를 구한뒤 block 전체크기의 Buffer 를 할당한 BlockGroup 를 반환한다.
 	 * 데이터 하나의 구조 : header(4) + checksum(20) + content length(4) + content
@@ -67,75 +312,197 @@ class BlockGroup {
 		return new BlockGroup(blockSize, content);
 	}
 
-	static BlockGroup read(RandomAccessFile fileQue, int blockSize) throws IOException {
-		long markedPos = fileQue.getFilePointer();
-		if(fileQue.length() - markedPos < blockSize) {
-			return null;
-		}
+	/**
+	 * buffer 의 현재 위치에서 BlockGroup 하나를 읽고 buffer 의 위치를 다음 BlockGroup 으로 옮긴다.
+	 * HEADER 가 맞지 않으면 HEADER 길이만큼, checksum 이 맞지 않으면 블록 하나만큼 건너뛰고 다시 읽는다.
+	 * @return 하나의 BlockGroup 이 모두 buffer 에 들어있지 않다면 위치를 바꾸지 않고 null 을 반환
+	 */
+	static BlockGroup read(ByteBuffer buffer, int blockSize) {
+		return read(buffer, blockSize, READ_CONTENT);
+	}
 
-        byte[] block = new byte[blockSize];
-		StreamUtils.readFully(fileQue, block, 0, blockSize);
+	/**
+	 * checksum 을 검사하지 않고 content 도 복사하지 않는다. 시간 등의 속성만 확인할 때 사용한다.
+	 */
+	static BlockGroup readHeader(ByteBuffer buffer, int blockSize) {
+		return read(buffer, blockSize, READ_HEADER);
+	}
 
-		if(validateHeader(block)) {
-			ByteBuffer blockBuffer = ByteBuffer.wrap(block);
-			blockBuffer.position(HEADER.length);
+	/**
+	 * checksum 을 검사하지만 transaction 이 아닌 데이터는 content 를 복사하지 않고 buffer 의 읽기 전용 view 로 읽는다.
+	 * view 는 buffer 를 다시 채우기 전까지만 사용할 수 있다. batch, marker 등은 read 와 같이 복사한다.
+	 */
+	static BlockGroup readView(ByteBuffer buffer, int blockSize) {
+		return read(buffer, blockSize, READ_VIEW);
+	}
 
-			byte[] checksum = new byte[CHECKSUM_SIZE];
-			blockBuffer.get(checksum);
-			int contentLength = blockBuffer.getInt();
-			//HEADER 검사를 위해서 먼저 읽은 하나의 블록은 빼준다.
-			int unreadBlockCount = getBlockCount(contentLength, blockSize) - 1;
+	private static BlockGroup read(ByteBuffer buffer, int blockSize, int mode) {
+		boolean isReadContent = mode != READ_HEADER;
+		while (buffer.remaining() >= blockSize) {
+			int markedPos = buffer.position();
 
-			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-			buffer.write(block);
+			boolean isV2 = validateHeader(buffer, markedPos, HEADER_V2);
+			if (!isV2 && !validateHeader(buffer, markedPos, HEADER)) {
+				buffer.position(markedPos + HEADER.length);
+				continue;
+			}
 
-			for(int i = 0; i < unreadBlockCount; i++) {
-				long remain = fileQue.length() - fileQue.getFilePointer();
-				if(remain > 0 && remain < blockSize) {
-					return null;
-				}
+			int contentLength = buffer.getInt(markedPos + HEADER.length + CHECKSUM_SIZE);
+			int flags = isV2 ? buffer.get(markedPos + PRE_FIX_LENGTH + 1) & 0xFF : 0;
+			int attributeLength = isV2 ? getAttributeLength(flags) : 0;
+			if (contentLength < 0 || contentLength > Integer.MAX_VALUE - PRE_FIX_LENGTH - attributeLength - blockSize) {
+				buffer.position(markedPos + HEADER.length);
+				continue;
+			}
 
-				StreamUtils.readFully(fileQue, block, 0, blockSize);
-                buffer.write(block);
+			int blockGroupSize = getBlockCount(attributeLength + contentLength, blockSize) * blockSize;
+			if (buffer.remaining() < blockGroupSize) {
+				return null;
 			}
 
-			byte[] blockGroupData = buffer.toByteArray();
-			byte[] content = new byte[contentLength];
-			System.arraycopy(blockGroupData, PRE_FIX_LENGTH, content, 0, contentLength);
+			if (isReadContent && !validateChecksum(buffer, markedPos, attributeLength + contentLength)) {
+				buffer.position(markedPos + blockSize);
+				continue;
+			}
 
-			if(validateChecksum(checksum, content)) {
-				return BlockGroup.allocate(content, blockSize);
-			} else {
-				fileQue.seek(markedPos + blockSize);
+			int contentPos = markedPos + PRE_FIX_LENGTH + attributeLength;
+			byte type = isV2 ? buffer.get(markedPos + PRE_FIX_LENGTH) : TYPE_DATA;
+			boolean isView = mode == READ_VIEW && type == TYPE_DATA && (flags & FLAG_TXN_ID) == 0;
+			byte[] content = null;
+			ByteBuffer contentView = null;
+			if (isView) {
+				contentView = buffer.asReadOnlyBuffer();
+				contentView.limit(contentPos + contentLength);
+				contentView.position(contentPos);
+			} else if (isReadContent) {
+				content = new byte[contentLength];
+				buffer.position(contentPos);
+				buffer.get(content);
 			}
-		} else {
-			fileQue.seek(markedPos + HEADER.length);
+
+			BlockGroup blockGroup = BlockGroup.allocate(content, blockSize);
+			blockGroup.contentView = contentView;
+			blockGroup.size = blockGroupSize;
+
+			if (isV2) {
+				blockGroup.type = type;
+				int fieldPos = markedPos + PRE_FIX_LENGTH + ATTRIBUTE_LENGTH;
+				for (int i = 0; i < MAX_FIELDS; ++i) {
+					if ((flags & (1 << i)) != 0) {
+						blockGroup.setField(1 << i, buffer.getLong(fieldPos));
+						fieldPos += FIELD_SIZE;
+					}
+				}
+			}
+
+			buffer.position(markedPos + blockGroupSize);
+			return blockGroup;
 		}
-		
-		return read(fileQue, blockSize);
+
+		return null;
 	}
 
 	/**
-	 * HEADER 가 포함된 첫 번째 블록에 맨 앞에서 부터 HEADER 가 포함되어 있는지 검사한다.
+	 * buffer 의 현재 위치의 BlockGroup 의 크기를 header 만 보고 구한다. 위치는 바꾸지 않는다.
+	 * @return header 가 맞지 않거나 prefix(header, checksum, content length, 속성)가 모두 buffer 에 들어있지 않다면 -1
 	 */
-	private static boolean validateHeader(byte[] block) {
-		if(block != null && block.length >= HEADER.length) {
-			for(int i = 0; i < HEADER.length; i++) {
-				if(block[i] != HEADER[i]) {
-					return false;
+	static int peekSize(ByteBuffer buffer, int blockSize) {
+		int prefixLength = peekPrefixLength(buffer);
+		if (prefixLength < 0 || buffer.remaining() < prefixLength) {
+			return -1;
+		}
+
+		int contentLength = peekContentLength(buffer);
+		if (contentLength < 0 || contentLength > Integer.MAX_VALUE - prefixLength - blockSize) {
+			return -1;
+		}
+
+		return getBlockCount(prefixLength - PRE_FIX_LENGTH + contentLength, blockSize) * blockSize;
+	}
+
+	/**
+	 * @return header, checksum, content length, 속성의 길이. header 가 맞지 않다면 -1
+	 */
+	static int peekPrefixLength(ByteBuffer buffer) {
+		int position = buffer.position();
+		if (buffer.remaining() < PRE_FIX_LENGTH + ATTRIBUTE_LENGTH) {
+			return -1;
+		}
+
+		if (validateHeader(buffer, position, HEADER)) {
+			return PRE_FIX_LENGTH;
+		} else if (validateHeader(buffer, position, HEADER_V2)) {
+			return PRE_FIX_LENGTH + getAttributeLength(buffer.get(position + PRE_FIX_LENGTH + 1) & 0xFF);
+		}
+
+		return -1;
+	}
+
+	static int peekContentLength(ByteBuffer buffer) {
+		return buffer.getInt(buffer.position() + HEADER.length + CHECKSUM_SIZE);
+	}
+
+	/**
+	 * 따로 읽은 prefix(header, checksum, content length, 속성)와 content 로 BlockGroup 을 만든다. (scattering read)
+	 * @return checksum 이 맞지 않다면 null
+	 */
+	static BlockGroup read(ByteBuffer prefix, byte[] content, int blockSize) {
+		boolean isV2 = validateHeader(prefix, 0, HEADER_V2);
+		int attributeLength = prefix.limit() - PRE_FIX_LENGTH;
+		byte[] checksum = EncryptUtils.sha1(prefix.array(), prefix.arrayOffset() + PRE_FIX_LENGTH, attributeLength, content);
+		for (int i = 0; i < CHECKSUM_SIZE; ++i) {
+			if (prefix.get(HEADER.length + i) != checksum[i]) {
+				return null;
+			}
+		}
+
+		BlockGroup blockGroup = BlockGroup.allocate(content, blockSize);
+		if (isV2) {
+			blockGroup.type = prefix.get(PRE_FIX_LENGTH);
+			int flags = prefix.get(PRE_FIX_LENGTH + 1) & 0xFF;
+			int fieldPos = PRE_FIX_LENGTH + ATTRIBUTE_LENGTH;
+			for (int i = 0; i < MAX_FIELDS; ++i) {
+				if ((flags & (1 << i)) != 0) {
+					blockGroup.setField(1 << i, prefix.getLong(fieldPos));
+					fieldPos += FIELD_SIZE;
 				}
 			}
+		}
+		blockGroup.size = blockGroup.size();
+
+		return blockGroup;
+	}
 
-			return true;
+	/**
+	 * HEADER 가 포함된 첫 번째 블록에 맨 앞에서 부터 HEADER 가 포함되어 있는지 검사한다.
+	 */
+	private static boolean validateHeader(ByteBuffer buffer, int position, byte[] header) {
+		for (int i = 0; i < header.length; i++) {
+			if (buffer.get(position + i) != header[i]) {
+				return false;
+			}
 		}
 
-		return false;
+		return true;
 	}
 
-	private static boolean validateChecksum(byte[] checksum, byte[] content) {
-	    byte[] contentChecksum = EncryptUtils.sha1(content);
+	/**
+	 * @param length checksum 대상(content length 다음부터)의 길이
+	 */
+	private static boolean validateChecksum(ByteBuffer buffer, int position, int length) {
+		byte[] contentChecksum;
+		if (buffer.hasArray()) {
+			contentChecksum = EncryptUtils.sha1(buffer.array(), buffer.arrayOffset() + position + PRE_FIX_LENGTH, length);
+		} else {
+			byte[] data = new byte[length];
+			ByteBuffer duplicate = buffer.duplicate();
+			duplicate.position(position + PRE_FIX_LENGTH);
+			duplicate.get(data);
+			contentChecksum = EncryptUtils.sha1(data);
+		}
+
 	    for (int i = 0; i < CHECKSUM_SIZE; ++i) {
-	        if (checksum[i] != contentChecksum[i]) {
+	        if (buffer.get(position + HEADER.length + i) != contentChecksum[i]) {
 	            return false;
             }
         }
@@ -144,10 +511,40 @@ class BlockGroup {
 	}
 
 	byte[] array() {
-	    data.put(HEADER);
-	    data.put(EncryptUtils.sha1(content));
-	    data.putInt(content.length);
-	    data.put(content);
-	    return data.array();
+		ByteBuffer data = ByteBuffer.allocate(size());
+		for (ByteBuffer buffer : buffers()) {
+			data.put(buffer);
+		}
+		return data.array();
+	}
+
+	/**
+	 * content 를 복사하지 않고 파일에 쓸 buffer 들을 만든다. (gathering write)
+	 * @return prefix(header, checksum, content length, 속성), content, padding
+	 */
+	ByteBuffer[] buffers() {
+		boolean isV2 = isV2();
+		int attributeLength = isV2 ? getAttributeLength(flags) : 0;
+		ByteBuffer prefix = ByteBuffer.allocate(PRE_FIX_LENGTH + attributeLength);
+		prefix.put(isV2 ? HEADER_V2 : HEADER);
+		prefix.position(HEADER.length + CHECKSUM_SIZE);
+		prefix.putInt(content.length);
+		if (isV2) {
+			prefix.put(type);
+			prefix.put((byte) flags);
+			for (int i = 0; i < MAX_FIELDS; ++i) {
+				if ((flags & (1 << i)) != 0) {
+					prefix.putLong(fields[i]);
+				}
+			}
+		}
+
+		prefix.position(HEADER.length);
+		prefix.put(EncryptUtils.sha1(prefix.array(), PRE_FIX_LENGTH, attributeLength, content));
+		prefix.clear();
+
+		int padding = size() - prefix.capacity() - content.length;
+		ByteBuffer paddingBuffer = padding <= ZERO_PADDING.length ? ByteBuffer.wrap(ZERO_PADDING, 0, padding) : ByteBuffer.allocate(padding);
+		return new ByteBuffer[] {prefix, ByteBuffer.wrap(content), paddingBuffer};
 	}
 }
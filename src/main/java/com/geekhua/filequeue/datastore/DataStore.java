@@ -1,6 +1,12 @@
 package com.geekhua.filequeue.datastore;
 
+import com.geekhua.filequeue.utils.LatencyHistogram;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
 
 /**
  * 
@@ -11,18 +17,131 @@ public interface DataStore<E> {
 
     void put(E element) throws IOException;
 
+    /**
+     * codec 으로 인코딩된 데이터를 쓴다.
+     */
+    void putContent(byte[] content) throws IOException;
+
+    /**
+     * message id 와 함께 쓴다. 중복 확인(Config.setDedupWindowSize)을 사용한다면 최근에 쓴 id 와 중복될 때 쓰지 않는다.
+     * @return 중복되어 쓰지 않았다면 false
+     */
+    boolean putContent(byte[] content, long messageId) throws IOException;
+
+    /**
+     * 여러 데이터를 하나의 header, checksum 을 사용하는 batch 로 묶어서 쓴다.
+     */
+    void putBatch(List<byte[]> contents) throws IOException;
+
+    /**
+     * codec 으로 인코딩된 데이터들을 하나의 transaction 으로 한 번에 쓴다.
+     * commit marker 가 쓰여지기 전에는 읽을 수 없고 쓰기에 실패하면 abort marker 를 쓴다.
+     */
+    void putTransaction(List<byte[]> contents) throws IOException;
+
     E take() throws IOException;
 
+    /**
+     * 다음 데이터의 content 를 handler 에 전달한다. handler 가 끝난 후에 읽기 위치를 옮긴다.
+     * @return 읽을 데이터가 없다면 false
+     */
+    boolean take(Consumer<ByteBuffer> handler) throws IOException;
+
+    /**
+     * ack 할 때까지 읽기 위치를 기록하지 않고 읽는다. (Config.setVisibilityTimeoutMillis)
+     * @return 읽을 데이터가 없거나 ack 하지 않은 데이터가 maxInFlight 개라면 null
+     */
+    Delivery<E> takeDelivery() throws IOException;
+
+    /**
+     * 가장 오래된 데이터부터 연속으로 ack 된 데이터까지 읽기 위치를 옮긴다.
+     * @return 이미 ack 했거나 rewind, close 로 버려진 데이터라면 false
+     */
+    boolean ack(long sequence);
+
+    /**
+     * 다음에 읽을 때 다시 전달한다.
+     * @return 이미 ack 했거나 rewind, close 로 버려진 데이터라면 false
+     */
+    boolean nack(long sequence);
+
     void init() throws IOException;
 
     void close();
 
     long readingFileOffset();
 
+    /**
+     * 큐 또는 공유 사용량이 제한(Config.setMaxQueueBytes, setMaxQueueMessages, setGlobalQuota)에 도달했는지 유지하는 값으로 확인한다.
+     */
+    boolean isQuotaExceeded();
+
+    /**
+     * 읽지 않은 데이터의 byte 를 파일 크기로 다시 계산한다. 제한에 도달했을 때만 사용한다.
+     */
+    void refreshUsage();
+
+    long usedBytes();
+
+    long usedMessages();
+
     long readingFileNo();
     
     long writingFileNo();
     
     long writingFileOffset();
 
+    JanitorStats janitorStats();
+
+    /**
+     * @return 쓴 후 소비자에게 전달할 때까지의 시간(nanoseconds) 분포. 기록하지 않는다면(Config.setTrackLatency) null
+     */
+    LatencyHistogram latency();
+
+    /**
+     * 열려있는 큐 파일을 닫는다. 다음에 쓰거나 읽을 때 다시 연다.
+     */
+    void releaseHandles() throws IOException;
+
+    /**
+     * 읽기 위치를 옮긴다. 백업 폴더에 있는 파일로도 옮길 수 있다.
+     * @param offset BlockGroup 이 시작하는 위치(block size 의 배수)
+     */
+    void rewind(long fileNo, long offset) throws IOException;
+
+    /**
+     * timestamp(epoch millis) 이후에 쓰여진 데이터를 포함하는 가장 오래된 파일의 처음으로 읽기 위치를 옮긴다.
+     */
+    void rewind(long timestamp) throws IOException;
+
+    /**
+     * epochMillis 이후에 쓰여진 첫 번째 데이터로 읽기 위치를 옮긴다. 시간을 기록(Config.setRecordTimestamp)한 데이터만 찾을 수 있다.
+     */
+    void seekToTime(long epochMillis) throws IOException;
+
+    /**
+     * 디코딩하지 못했거나 maxDeliveries 번 넘게 전달된 데이터의 통계.
+     */
+    DeadLetterStats deadLetterStats();
+
+    /**
+     * 아직 다시 넣지 않은 dead letter 를 원본 그대로 읽는다. 읽기 위치에 영향을 주지 않는다.
+     */
+    ReplayCursor<byte[]> browseDeadLetters() throws IOException;
+
+    /**
+     * 오래된 dead letter 부터 max 개까지 큐에 다시 쓴다. 사용량 제한에 도달하면 멈춘다.
+     * @return 다시 쓴 개수
+     */
+    int requeueDeadLetters(int max) throws IOException;
+
+    ReplayCursor<E> replay(long fileNo, long offset);
+
+    /**
+     * 읽기 위치부터 현재 쓰기 위치까지의 데이터를 읽는 Spliterator 를 반환한다. 읽기 위치에 영향을 주지 않는다.
+     */
+    Spliterator<E> browse();
+
+    ReplayCursor<E> replay(long timestamp) throws IOException;
+
 }
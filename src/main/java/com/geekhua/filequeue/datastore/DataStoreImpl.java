@@ -1,12 +1,12 @@
 package com.geekhua.filequeue.datastore;
 
+import com.geekhua.filequeue.AccessMode;
 import com.geekhua.filequeue.Config;
 import com.geekhua.filequeue.codec.Codec;
+import com.geekhua.filequeue.exception.CodecException;
 import com.geekhua.filequeue.meta.MetaHolder;
 import com.geekhua.filequeue.meta.MetaHolderImpl;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.lang.ArrayUtils;
-import org.apache.commons.lang.StringUtils;
+import com.geekhua.filequeue.utils.LatencyHistogram;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -15,15 +15,26 @@ import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 public class DataStoreImpl<E> implements DataStore<E> {
     private static final Logger log = LoggerFactory.getLogger(DataStoreImpl.class);
 
 	private static final String DATAFILE_DIRNAME = "data";
-	private static final String DATAFILE_PREFIX = "q-";
-	private static final String DATAFILE_EXTENSION = ".fq";
 	private static final String DATAFILE_BACK_DIR = "bak";
+	// COMPETING_CONSUMER 가 읽을 파일이 없을 때 다시 찾는 간격
+	private static final long CLAIM_INTERVAL_MILLIS = 100L;
 
 	private final byte[] endBlock;
 
@@ -32,58 +43,259 @@ public class DataStoreImpl<E> implements DataStore<E> {
 	private int blockSize;
 	private Codec codec;
 	private long maxFileSize;
+	private int readBufferSize;
+	private boolean isRecordTimestamp;
+	// 쓴 후 소비자에게 전달할 때까지의 시간. 기록하지 않는다면 null
+	private LatencyHistogram latency;
+	// 0 이면 제한하지 않는다.
+	private long messageTtlNanos;
+	private Config config;
 	
-	private RandomAccessFile readingFile = null;
+	private SegmentReader segmentReader = null;
+	// segmentReader 의 파일 번호. 선읽기를 사용하면 소비자에게 전달된 위치(readingFileNo)보다 앞서 있을 수 있다.
+	private long cursorFileNo;
+	// cursorFileNo 파일의 마지막 데이터의 시간. 알 수 없다면 Long.MAX_VALUE
+	private long cursorLastTimestamp = Long.MAX_VALUE;
+	// 소비자에게 전달된 위치. meta 에 기록된다.
 	private AtomicLong readingFileNo;
 	private AtomicLong readingOffset;
-	private boolean isBackupReadFile;
+	private Prefetcher<E> prefetcher;
+	private SegmentJanitor janitor;
 
 	private AtomicLong writingFileNo = new AtomicLong(-1L);
-	private RandomAccessFile writingFile = null;
+	private SegmentWriter writingFile = null;
+	// 시간을 기록하지 않는다면 null
+	private TimeIndex.Writer timeIndexWriter = null;
+	// 마지막으로 쓴 데이터의 시간 (epoch nanoseconds)
+	private long lastTimestamp;
+	private long lastTxnId;
+	// commit 을 확인한 transaction 의 데이터. readNext 를 호출하는 스레드에서만 사용한다.
+	private final Deque<ReadResult<E>> committed = new ArrayDeque<>();
+	// take(handler) 에서 handler 가 실패하여 다시 전달할 데이터
+	private ReadResult<E> unread;
+	// take(handler) 에서 데이터를 복사하지 않고 view 로 읽는 동안 true. view 를 읽기 전의 위치를 viewStartOffset 에 기록한다.
+	private boolean isViewRead;
+	private long viewStartOffset;
+	// 중복 확인을 하지 않는다면 null
+	private DedupWindow dedupWindow;
 
 	private MetaHolder metaHolder;
+	private final AccessMode accessMode;
+	private QueueLock queueLock;
+	// 다른 잠금으로 여러 프로세스의 접근을 막는다면 true (DeadLetterQueue)
+	private boolean isExternallyLocked;
+	// COMPETING_CONSUMER 가 아니라면 null
+	private SegmentLeases leases;
+	// cursorFileNo 파일의 lease. readNext 를 호출하는 스레드에서만 사용한다.
+	private SegmentLeases.Lease cursorLease;
+	// 소비자에게 전달된 파일의 lease. take 를 호출하는 스레드에서만 사용한다. (ack 를 사용하면 inFlight 를 잠그고 사용한다.)
+	private SegmentLeases.Lease readingLease;
+	private long nextClaimMillis;
+	// ack 하지 않은 데이터. visibilityTimeout 을 사용하지 않는다면 null
+	private InFlightWindow<E> inFlight;
+	private long visibilityTimeoutNanos;
+	// 0 이면 제한하지 않는다.
+	private int maxDeliveries;
+	private DeadLetterQueue deadLetters;
+	private int batchMaxBytes;
+	// 읽지 않은 데이터의 사용량. 제한을 설정하지 않았거나 쓰지 않는다면 null
+	private QueueUsage usage;
+	// releaseHandles 로 닫은 segmentReader 의 위치. 닫지 않았다면 -1
+	private long releasedReaderOffset = -1L;
+	// O_DIRECT 로 쓰고 읽는다.
+	private boolean isDirectIo;
+	// 최근에 쓴 데이터. O_DIRECT 를 사용하지 않거나 같은 프로세스에서 읽지 않는다면 null
+	private TailCache tailCache;
 
 	public DataStoreImpl(Config config) {
+		this(config, null);
+	}
+
+	/**
+	 * @param janitorLane 읽기가 끝난 파일을 정리할 공유 스케줄러의 대기열. null 이면 큐마다 스레드를 만든다.
+	 */
+	public DataStoreImpl(Config config, IoScheduler.Lane janitorLane) {
 		String name = config.getName();
 		baseDir = new File(new File(config.getBaseDir(), name), DATAFILE_DIRNAME);
 
-		final byte[] endContent = new byte[] {(byte) 0xAA, (byte) 0xAA, (byte) 0xAA, (byte) 0xAA, (byte) 0xAA, (byte) 0xAA, (byte) 0xAA, (byte) 0xAB};
 		blockSize = BlockGroup.estimateBlockGroupSize(config.getMsgAvgLen());
-		endBlock = BlockGroup.allocate(endContent, blockSize).array();
+		endBlock = BlockGroup.allocate(BlockGroup.END_CONTENT, blockSize).array();
 
 		metaHolder = new MetaHolderImpl(config.getName(), config.getBaseDir());
 		codec = config.getCodec();
 		maxFileSize = config.getFileSize();
-		isBackupReadFile = config.isBackupReadFile();
+		readBufferSize = config.getReadBufferSize();
+		messageTtlNanos = TimeUnit.MILLISECONDS.toNanos(config.getMessageTtlMillis());
+		isRecordTimestamp = config.isRecordTimestamp() || messageTtlNanos > 0;
+		if (config.isTrackLatency()) {
+			latency = new LatencyHistogram();
+		}
 		backDir = new File(new File(config.getBaseDir(), name), DATAFILE_BACK_DIR);
+		janitor = new SegmentJanitor(backDir, config, janitorLane);
+		if (config.getVisibilityTimeoutMillis() > 0) {
+			visibilityTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getVisibilityTimeoutMillis());
+			inFlight = new InFlightWindow<>(config.getMaxInFlight());
+		}
+		accessMode = config.getAccessMode();
+		if (config.isDirectIo()) {
+			isDirectIo = DirectIo.isSupported();
+			if (!isDirectIo) {
+				log.warn("O_DIRECT is not supported. queue({}) uses page cache.", name);
+			} else if (accessMode.isWritable() && accessMode.isReadable() && config.getTailCacheBytes() > 0) {
+				tailCache = new TailCache(config.getTailCacheBytes(), blockSize);
+			}
+		}
+		if (accessMode.isCompeting()) {
+			leases = new SegmentLeases(baseDir.getParentFile(), baseDir, config.getLeaseTimeoutMillis(), name);
+		}
+		// 여러 프로세스가 함께 읽더라도 같은 폴더를 사용해서 재시작한 후나 PRODUCER 프로세스가 다시 넣을 수 있게 한다.
+		deadLetters = new DeadLetterQueue(baseDir.getParentFile(), config);
+		maxDeliveries = config.getMaxDeliveries();
+		batchMaxBytes = config.getBatchMaxBytes();
+		if (accessMode.isWritable() && (config.getMaxQueueBytes() > 0 || config.getMaxQueueMessages() > 0 || config.getGlobalQuota() != null)) {
+			long maxMessages = config.getMaxQueueMessages();
+			if (!accessMode.isReadable() && maxMessages > 0) {
+				log.warn("Queue({}) is read by another process. maxQueueMessages is ignored.", name);
+				maxMessages = 0;
+			}
+			usage = new QueueUsage(config.getMaxQueueBytes(), maxMessages, config.getGlobalQuota());
+		}
+		this.config = config;
 	}
 
-    private static String getDataFileName(long fileNo) {
-        return DATAFILE_PREFIX + String.format("%018d", fileNo)	+ DATAFILE_EXTENSION;
-    }
+	/**
+	 * init 에서 큐 폴더를 잠그지 않는다. 호출하는 쪽에서 다른 프로세스와 동시에 사용하지 않도록 막아야 한다.
+	 */
+	void disableQueueLock() {
+		isExternallyLocked = true;
+	}
 
-    /**
-     * @param fileName q-000000000000000001.fq 형식
-     * @return 파일 큐 이름이 q-000000000000000001.fq 이면 1을 반환
-     */
-    private long getFileNumber(String fileName) {
-        String fileNumber = fileName.substring(DATAFILE_PREFIX.length(), fileName.length() - DATAFILE_EXTENSION.length());
-        return StringUtils.isBlank(fileName) ? 0L : Long.valueOf(fileNumber);
+    private static String getDataFileName(long fileNo) {
+        return SegmentFiles.dataFileName(fileNo);
     }
 
+	/**
+	 * 다른 프로세스가 같은 방식(AccessMode)으로 열었다면 IOException 이 발생한다.
+	 * 초기화에 실패하면 잠금과 열었던 파일들을 닫는다.
+	 */
 	public void init() throws IOException {
-		metaHolder.init();
-		readingFileNo = new AtomicLong(metaHolder.getReadingFileNo());
-		readingOffset = new AtomicLong(metaHolder.getReadingFileOffset());
-
 		createBaseDirIfNeeded();
 		createBakDirIfNeeded();
-		findLastWroteFileNo();
-		closeLastWroteFile();
-		createNewWriteFile();
-		
-		checkReadingFile();
-		openReadingFile();
+		if (!isExternallyLocked) {
+			queueLock = QueueLock.acquire(baseDir.getParentFile(), accessMode);
+		}
+
+		try {
+			metaHolder.init();
+			readingFileNo = new AtomicLong(metaHolder.getReadingFileNo());
+			readingOffset = new AtomicLong(metaHolder.getReadingFileOffset());
+
+			// 파일 목록은 meta 에 기록된 쓴 위치를 사용할 수 없을 때만 읽는다.
+			if (accessMode.isWritable()) {
+				if (!resumeWritingFile()) {
+					findLastWroteFileNo();
+					closeLastWroteFile();
+					createNewWriteFile();
+				}
+				rebuildDedupWindow();
+			} else if (refreshWritingFileNo() < 0L) {
+				findLastWroteFileNo();
+			}
+
+			if (accessMode.isReadable()) {
+				if (leases != null) {
+					// 읽을 파일은 읽을 때 lease 를 얻어서 정한다.
+					leases.init();
+					cursorFileNo = -1L;
+
+					janitor.start();
+					for (long fileNo : leases.uncleanedFileNos()) {
+						log.info("Clean up remaining file({}).", getDataFileName(fileNo));
+						janitor.submit(new File(baseDir, getDataFileName(fileNo)));
+					}
+				} else {
+					checkReadingFile();
+					cursorFileNo = readingFileNo.get();
+					openReadingFile();
+
+					janitor.start();
+					submitUncleanedFiles();
+				}
+
+				startPrefetcher();
+			}
+
+			if (usage != null) {
+				initUsage();
+			}
+		} catch (IOException | RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * 파일 크기로 byte 를 계산하고, 같은 프로세스에서 읽는다면 읽기 위치부터 데이터 개수를 센다.
+	 * end block 은 content 로 구분하므로 header 만 읽지 않는다.
+	 */
+	private void initUsage() throws IOException {
+		refreshUsage();
+		if (!accessMode.isReadable()) {
+			return;
+		}
+
+		long messages = 0L;
+		long lastFileNo = writingFileNo.get();
+		for (long fileNo = Math.max(readingFileNo.get(), 0L); fileNo <= lastFileNo; ++fileNo) {
+			long offset = fileNo == readingFileNo.get() ? readingOffset.get() : 0L;
+			try (SegmentReader reader = SegmentReader.open(baseDir, backDir, fileNo, offset, blockSize, readBufferSize)) {
+				BlockGroup blockGroup;
+				while (reader != null && (blockGroup = reader.next()) != null) {
+					if (!blockGroup.isEnd()) {
+						messages += blockGroup.recordCount();
+					}
+				}
+			}
+		}
+
+		usage.reset(usage.bytes(), messages);
+	}
+
+	/**
+	 * 쓰지 않는 프로세스(CONSUMER)는 쓰는 프로세스가 공유한 쓴 위치로 writingFileNo 를 갱신한다.
+	 * 공유된 위치가 없다면 파일 목록에서 찾은 번호를 그대로 사용한다.
+	 * @return 공유된 쓴 위치의 offset, 없다면 -1
+	 */
+	private long refreshWritingFileNo() {
+		long[] writing = metaHolder.getWriting();
+		if (writing == null) {
+			return -1L;
+		}
+
+		if (writing[0] > writingFileNo.get()) {
+			writingFileNo.set(writing[0]);
+		}
+
+		return writing[0] == writingFileNo.get() ? writing[1] : -1L;
+	}
+
+	private void startPrefetcher() {
+		if (config.getPrefetchCount() > 0) {
+			prefetcher = new Prefetcher<>(new Prefetcher.Source<E>() {
+				@Override
+				public ReadResult<E> readNext() throws IOException {
+					return DataStoreImpl.this.readNext();
+				}
+			}, config.getPrefetchCount(), config.getPrefetchBytes(), config.getName());
+			prefetcher.start();
+		}
+	}
+
+	private void stopPrefetcher() {
+		if (prefetcher != null) {
+			prefetcher.stop();
+			prefetcher = null;
+		}
 	}
 
 	private void createBaseDirIfNeeded() throws IOException {
@@ -104,7 +316,7 @@ public class DataStoreImpl<E> implements DataStore<E> {
     private void findLastWroteFileNo() {
         String[] dataFilesArr = baseDir.list(new FilenameFilter() {
             public boolean accept(File dir, String name) {
-                return StringUtils.endsWith(name, DATAFILE_EXTENSION) && StringUtils.startsWith(name, DATAFILE_PREFIX);
+                return SegmentFiles.isDataFile(name);
             }
         });
 
@@ -113,7 +325,7 @@ public class DataStoreImpl<E> implements DataStore<E> {
 
         if (dataFilesArr != null) {
             for (String dataFile : dataFilesArr) {
-                long fileNo = getFileNumber(dataFile);
+                long fileNo = SegmentFiles.fileNumber(dataFile);
                 if(fileNo > maxDataFileNo) {
                     maxDataFileNo = fileNo;
                 }
@@ -123,6 +335,86 @@ public class DataStoreImpl<E> implements DataStore<E> {
         }
     }
 
+    /**
+     * meta 에 기록된 쓴 위치의 큐 파일을 이어서 쓴다. 다시 시작할 때마다 새로운 파일을 만들지 않는다.
+     * 기록된 위치 이후에 쓰던 중에 종료되어 온전하지 않은 데이터가 남았다면 마지막 온전한 BlockGroup 까지 잘라낸다.
+     * 끝난 파일이거나, 다음 번호의 파일이 있다면 false 를 반환한다.
+     */
+    private boolean resumeWritingFile() throws IOException {
+        long[] writing = metaHolder.getWriting();
+        if (writing == null || writing[0] < 0) {
+            return false;
+        }
+
+        long fileNo = writing[0];
+        File file = new File(baseDir, getDataFileName(fileNo));
+        if (!file.exists() || new File(baseDir, getDataFileName(fileNo + 1)).exists()) {
+            return false;
+        }
+
+        // 기록된 위치가 block 단위가 아니라면 다른 block 크기(msgAvgLen)로 쓴 파일이다.
+        long length = file.length();
+        if (length < writing[1] || writing[1] % blockSize != 0) {
+            return false;
+        }
+
+        // 쓰기를 마친 후 meta 를 갱신하기 전에 종료되었을 수 있으므로 기록된 위치 이후의 데이터를 확인한다.
+        // 깨진 header 는 건너뛰며 읽으므로 reader 의 위치가 아니라 마지막으로 온전하게 읽은 데이터의 끝까지 남긴다.
+        long validLength = writing[1];
+        try (SegmentReader reader = SegmentReader.open(file, writing[1], blockSize, readBufferSize)) {
+            BlockGroup blockGroup;
+            while ((blockGroup = reader.next()) != null) {
+                if (blockGroup.isEnd()) {
+                    return false;
+                }
+                validLength = reader.offset();
+            }
+        }
+
+        // 깨진 데이터 사이에서 읽은 데이터라면 block 단위가 아닌 위치에서 끝난다. 이어서 쓰지 않는다.
+        if (validLength % blockSize != 0) {
+            return false;
+        }
+
+        if (validLength != length) {
+            log.warn("Data after offset({}) of file({}) is broken. truncate it.", validLength, file.getName());
+            try (RandomAccessFile randomFile = new RandomAccessFile(file, "rw")) {
+                randomFile.setLength(validLength);
+            }
+            length = validLength;
+        }
+
+        if (length >= maxFileSize) {
+            return false;
+        }
+
+        TimeIndex.Writer indexWriter = null;
+        File indexFile = new File(baseDir, SegmentFiles.indexFileName(fileNo));
+        if (isRecordTimestamp) {
+            long lastIndexedOffset = -1L;
+            if (indexFile.exists()) {
+                TimeIndex index = TimeIndex.load(indexFile);
+                if (index.isSealed()) {
+                    return false;
+                }
+
+                if (!index.isEmpty()) {
+                    lastIndexedOffset = index.lastOffset();
+                    lastTimestamp = Math.max(lastTimestamp, lastTimestamp(fileNo, index));
+                }
+            }
+            indexWriter = new TimeIndex.Writer(indexFile, config.getTimeIndexInterval(), lastIndexedOffset);
+        }
+
+        writingFile = openWritingFile(file);
+        timeIndexWriter = indexWriter;
+        writingFileNo.set(fileNo);
+        metaHolder.updateWriting(fileNo, length);
+
+        log.info("Resume writing file({}) at offset({}).", file.getName(), length);
+        return true;
+    }
+
     /**
      * 전에 사용하던 마지막 큐파일은 더 이상 사용하지 않고 새로운 큐파일을 사용하기 위해 end block 을 쓴다.
      */
@@ -135,12 +427,55 @@ public class DataStoreImpl<E> implements DataStore<E> {
                 throw new IOException("file size % block size != 0. file size:" + lastFile.length() + ", block size:" + blockSize);
             }
 
+            sealLastTimeIndex(writingFileNo.get());
+
             try (FileOutputStream lastWriteFile = new FileOutputStream(lastFile, true)) {
                 lastWriteFile.write(endBlock);
             }
         }
     }
 
+    /**
+     * 종료되기 전에 쓰던 큐 파일의 시간 인덱스에 마지막 데이터의 시간을 기록한다.
+     * 마지막 인덱스 항목의 위치부터 header 만 읽어서 마지막 시간을 찾는다.
+     */
+    private void sealLastTimeIndex(long fileNo) throws IOException {
+        File indexFile = new File(baseDir, SegmentFiles.indexFileName(fileNo));
+        if (!indexFile.exists()) {
+            return;
+        }
+
+        TimeIndex index = TimeIndex.load(indexFile);
+        if (index.isEmpty()) {
+            return;
+        }
+
+        long last = index.lastTimestamp();
+        if (!index.isSealed()) {
+            last = lastTimestamp(fileNo, index);
+            TimeIndex.seal(indexFile, last);
+        }
+
+        lastTimestamp = Math.max(lastTimestamp, last);
+    }
+
+    /**
+     * 마지막 인덱스 항목의 위치부터 header 만 읽어서 마지막 데이터의 시간을 찾는다.
+     */
+    private long lastTimestamp(long fileNo, TimeIndex index) throws IOException {
+        long last = index.lastTimestamp();
+        try (SegmentReader reader = SegmentReader.open(baseDir, backDir, fileNo, index.lastOffset(), blockSize, readBufferSize)) {
+            BlockGroup blockGroup;
+            while (reader != null && (blockGroup = reader.nextHeader()) != null) {
+                if (blockGroup.hasTimestamp()) {
+                    last = Math.max(last, blockGroup.getTimestamp());
+                }
+            }
+        }
+
+        return last;
+    }
+
 	private void createNewWriteFile() throws IOException {
         // 실행 단계에서는 null 이기 때문에 실행되지 않는다.
 		if(this.writingFile != null) {
@@ -148,10 +483,41 @@ public class DataStoreImpl<E> implements DataStore<E> {
 			this.writingFile.write(endBlock);
 			this.writingFile.close();
 			this.writingFile = null;
+			if (usage != null) {
+				usage.add(endBlock.length, 0L);
+			}
+		}
+
+		if (timeIndexWriter != null) {
+			timeIndexWriter.seal();
+			timeIndexWriter = null;
+		}
+
+		// 읽는 쪽에서 파일이 없는 번호를 보지 않도록 파일을 만든 후에 번호를 증가시킨다.
+		long newWritingFileNo = writingFileNo.get() + 1;
+		this.writingFile = openWritingFile(new File(this.baseDir, getDataFileName(newWritingFileNo)));
+		if (isRecordTimestamp) {
+			timeIndexWriter = new TimeIndex.Writer(new File(baseDir, SegmentFiles.indexFileName(newWritingFileNo)), config.getTimeIndexInterval());
+		}
+		writingFileNo.incrementAndGet();
+		metaHolder.updateWriting(writingFileNo.get(), 0L);
+	}
+
+	/**
+	 * 파일 시스템이 O_DIRECT 를 지원하지 않는다면 (tmpfs 등) page cache 를 거쳐서 쓰고 읽는다.
+	 */
+	private SegmentWriter openWritingFile(File file) throws IOException {
+		if (isDirectIo) {
+			try {
+				return SegmentWriter.open(file, true);
+			} catch (IOException e) {
+				log.warn(String.format("Open file(%s) with O_DIRECT fail. use page cache.", file.getName()), e);
+				isDirectIo = false;
+				tailCache = null;
+			}
 		}
 
-		String newWriteFileName = getDataFileName(writingFileNo.incrementAndGet());
-        this.writingFile = new RandomAccessFile(new File(this.baseDir, newWriteFileName), "rw");
+		return SegmentWriter.open(file, false);
 	}
 
 	private void checkReadingFile() {
@@ -160,163 +526,1386 @@ public class DataStoreImpl<E> implements DataStore<E> {
 			readingOffset.set(0L);
 		}
 
-		File file = new File(baseDir, getDataFileName(readingFileNo.get()));
-		if (!file.exists()) {
+		// 되감기(rewind)를 했다면 백업 폴더의 파일부터 읽을 수 있다.
+		File file = SegmentReader.find(baseDir, backDir, readingFileNo.get());
+		if (file == null) {
 			readingOffset.set(0L);
+
+			// 파일을 삭제(백업)한 후 meta 를 갱신하기 전에 종료되었다면 다음 파일부터 읽는다.
+			while (file == null && readingFileNo.get() < writingFileNo.get()) {
+				log.warn("Reading file({}) not exists. skip to next file.", getDataFileName(readingFileNo.get()));
+				file = SegmentReader.find(baseDir, backDir, readingFileNo.incrementAndGet());
+			}
+
+			metaHolder.update(readingFileNo.get(), readingOffset.get());
+		}
+	}
+
+	/**
+	 * 정리 대기 중에 종료되어 남아있는 파일들을 다시 정리한다.
+	 * 파일은 순서대로 정리되므로 읽기 위치 바로 앞에서부터 파일이 없을 때까지만 확인한다.
+	 */
+	private void submitUncleanedFiles() {
+		long fileNo = readingFileNo.get() - 1;
+		while (fileNo >= 0 && new File(baseDir, getDataFileName(fileNo)).exists()) {
+			--fileNo;
+		}
+
+		while (++fileNo < readingFileNo.get()) {
+			log.info("Clean up remaining file({}).", getDataFileName(fileNo));
+			janitor.submit(new File(baseDir, getDataFileName(fileNo)));
 		}
 	}
 
+	/**
+	 * cursorFileNo 파일을 연다. 소비자에게 전달된 위치의 파일이라면 그 위치부터 읽는다.
+	 * 데이터 폴더에 없다면 백업 폴더에서 찾는다.
+	 */
 	private void openReadingFile() {
-		if(readingFileNo.get() >= 0) {
-			String fileName = getDataFileName(readingFileNo.get());
+		releasedReaderOffset = -1L;
 
-			try {
-				this.readingFile = new RandomAccessFile(new File(baseDir, fileName), "r");
+		if(cursorFileNo >= 0) {
+			long readPosition;
+			if (cursorLease != null) {
+				readPosition = cursorLease.getOffset();
+			} else {
+				readPosition = cursorFileNo == readingFileNo.get() ? readingOffset.get() : 0L;
+			}
 
-				long readPosition = readingOffset.get();
-				if(readPosition > 0L) {
-					readingFile.seek(readPosition);
-				}
+			try {
+				this.segmentReader = SegmentReader.open(baseDir, backDir, cursorFileNo, readPosition, blockSize, readBufferSize, isDirectIo);
+				this.cursorLastTimestamp = messageTtlNanos > 0 ? sealedLastTimestamp(cursorFileNo) : Long.MAX_VALUE;
 			} catch (IOException e) {
-				if(this.readingFile != null) {
-					try {
-						this.readingFile.close();
-						this.readingFile = null;
-					} catch (Exception e1) {
-						// ignore
-					}
-				}
-
-				throw new IllegalStateException(String.format("File(%s) open fail",	fileName), e);
+				throw new IllegalStateException(String.format("File(%s) open fail", getDataFileName(cursorFileNo)), e);
 			}
 		}
 	}
 
+	/**
+	 * @return 끝난 파일이라면 시간 인덱스에 기록된 마지막 데이터의 시간, 아니라면 Long.MAX_VALUE
+	 */
+	private long sealedLastTimestamp(long fileNo) {
+		File indexFile = TimeIndex.find(baseDir, backDir, fileNo);
+		if (indexFile == null) {
+			return Long.MAX_VALUE;
+		}
+
+		try {
+			TimeIndex index = TimeIndex.load(indexFile);
+			return index.isSealed() ? index.lastTimestamp() : Long.MAX_VALUE;
+		} catch (IOException e) {
+			log.warn(String.format("Read time index(%s) fail.", indexFile), e);
+			return Long.MAX_VALUE;
+		}
+	}
+
 	public void put(E element) throws IOException {
-		byte[] content = codec.encode(element);
+		putContent(codec.encode(element));
+	}
+
+	@Override
+	public void putContent(byte[] content) throws IOException {
+		checkWritable();
+
+		if(content != null && content.length > 0) {
+			prepareWritingFile();
+			write(Collections.singletonList(BlockGroup.allocate(content, blockSize)));
+		}
+	}
+
+	@Override
+	public boolean putContent(byte[] content, long messageId) throws IOException {
+		checkWritable();
+
+		if (dedupWindow != null && dedupWindow.contains(messageId)) {
+			return false;
+		}
 
 		if(content != null && content.length > 0) {
-			long writingFileSize = writingFile.length();
-			if (writingFileSize % blockSize != 0) {
-				writingFile.seek((writingFileSize / blockSize + 1) * blockSize);
-				writingFile.write(endBlock);
-				log.error("Fail to write file. So new file created. file size % block size != 0. file size:{}, block size:{}", writingFileSize, blockSize);
+			prepareWritingFile();
+			write(Collections.singletonList(BlockGroup.allocate(content, blockSize).messageId(messageId)));
 
-				createNewWriteFile();
-			} else if(writingFile.length() >= maxFileSize) {
-				createNewWriteFile();
+			if (dedupWindow != null) {
+				dedupWindow.add(messageId);
 			}
-
-			BlockGroup blockGroup = BlockGroup.allocate(content, blockSize);
-			writingFile.write(blockGroup.array());
 		}
+
+		return true;
 	}
 
-	@SuppressWarnings("unchecked")
-	public E take() throws IOException {
-		BlockGroup blockGroup = null;
+	/**
+	 * 최근 큐 파일부터 거꾸로 header 만 읽어서 최근에 쓴 message id 를 찾는다. window 가 가득 차면 멈춘다.
+	 */
+	private void rebuildDedupWindow() throws IOException {
+		int windowSize = config.getDedupWindowSize();
+		if (windowSize <= 0) {
+			return;
+		}
+
+		dedupWindow = new DedupWindow(windowSize);
 
-		if(readingFileNo.longValue() >= 0) {
-			blockGroup = BlockGroup.read(readingFile, blockSize);
-			
-			// 읽은 데이터(blockGroup)이 파일의 마지막이라면 readingFile 을 삭제하거나 백업한다.
-			boolean isEndFile = blockGroup != null && ArrayUtils.isEquals(blockGroup.array(), endBlock);
-			if(isEndFile || blockGroup == null) {
-				return completeReadingFile();
+		// 파일 번호 내림차순
+		List<long[]> recentIds = new ArrayList<>();
+		int count = 0;
+		for (long fileNo = writingFileNo.get(); fileNo >= 0 && count < windowSize; --fileNo) {
+			long[] ids = readMessageIds(fileNo);
+			if (ids == null) {
+				break;
 			}
+
+			recentIds.add(ids);
+			count += ids.length;
 		}
-		
-		if(blockGroup == null) {
-			return null;
-		} else {
-			readingOffset.set(readingFile.getFilePointer());
-			metaHolder.update(readingFileNo.get(), readingOffset.get());
 
-			return (E)codec.decode(blockGroup.getContent());
+		for (int i = recentIds.size() - 1; i >= 0; --i) {
+			for (long id : recentIds.get(i)) {
+				dedupWindow.add(id);
+			}
 		}
+
+		log.info("Dedup window rebuilt with {} message ids from {} files.", dedupWindow.size(), recentIds.size());
 	}
 
 	/**
-	 * 읽기가 완료된 파일일 경우 백업이 필요하면 백업을 수행하고 새로운 파일을 열고 읽기를 시작한다.
+	 * @return 파일이 없다면 null
 	 */
-	private E completeReadingFile() throws IOException {
-		if(readingFileNo.get() < writingFileNo.get()) {
-			readingFile.close();
-			readingFile = null;
+	private long[] readMessageIds(long fileNo) throws IOException {
+		try (SegmentReader reader = SegmentReader.open(baseDir, backDir, fileNo, 0L, blockSize, readBufferSize)) {
+			if (reader == null) {
+				return null;
+			}
 
-			if(isBackupReadFile) {
-				try {
-					String fileName = getDataFileName(readingFileNo.get());
-					FileUtils.moveFileToDirectory(new File(baseDir, fileName), backDir, true);
-				} catch (IOException e) {
-					String fileName = getDataFileName(readingFileNo.get());
-					log.warn("Move file({}) to dir({}) fail.", new File(baseDir, fileName), backDir);
+			long[] ids = new long[16];
+			int count = 0;
+			BlockGroup blockGroup;
+			while ((blockGroup = reader.nextHeader()) != null) {
+				if (blockGroup.hasMessageId()) {
+					if (count == ids.length) {
+						ids = Arrays.copyOf(ids, count * 2);
+					}
+					ids[count++] = blockGroup.getMessageId();
 				}
-			} else {
-				String fileName = getDataFileName(readingFileNo.get());
-				FileUtils.deleteQuietly(new File(baseDir, fileName));
 			}
 
-			readingFileNo.incrementAndGet();
-			readingOffset.set(0L);
-			metaHolder.update(readingFileNo.get(), readingOffset.get());
+			return Arrays.copyOf(ids, count);
+		}
+	}
+
+	/**
+	 * 데이터들을 batch 로 묶어서 쓴다. batch 하나는 batchMaxBytes 를 넘지 않으며, 데이터가 하나라면 묶지 않는다.
+	 */
+	@Override
+	public void putBatch(List<byte[]> contents) throws IOException {
+		checkWritable();
+
+		List<BlockGroup> blockGroups = new ArrayList<>();
+		List<byte[]> records = new ArrayList<>();
+		int length = 0;
+		for (byte[] content : contents) {
+			if (content == null || content.length == 0) {
+				continue;
+			}
 
-			openReadingFile();
+			if (!records.isEmpty() && length + BlockGroup.batchLength(content.length) > batchMaxBytes) {
+				blockGroups.add(toBlockGroup(records));
+				records = new ArrayList<>();
+				length = 0;
+			}
 
-			return take();
+			records.add(content);
+			length += BlockGroup.batchLength(content.length);
 		}
 
-		return null;
-	}
+		if (records.isEmpty()) {
+			return;
+		}
+		blockGroups.add(toBlockGroup(records));
 
-	@Override
-	public long readingFileOffset() {
-		return this.readingOffset.get();
+		prepareWritingFile();
+		write(blockGroups);
 	}
 
-	@Override
-	public long readingFileNo() {
-		return this.readingFileNo.get();
+	private BlockGroup toBlockGroup(List<byte[]> records) {
+		return records.size() == 1 ? BlockGroup.allocate(records.get(0), blockSize) : BlockGroup.batch(records, blockSize);
 	}
 
 	@Override
-	public long writingFileNo()
-	{
-		return writingFileNo.get();
-	}
+	public void putTransaction(List<byte[]> contents) throws IOException {
+		checkWritable();
+
+		long txnId = nextTxnId();
+		List<BlockGroup> blockGroups = new ArrayList<>(contents.size() + 1);
+		for (byte[] content : contents) {
+			if (content != null && content.length > 0) {
+				blockGroups.add(BlockGroup.allocate(content, blockSize).txnId(txnId));
+			}
+		}
+
+		if (blockGroups.isEmpty()) {
+			return;
+		}
+
+		blockGroups.add(BlockGroup.allocate(new byte[0], blockSize).type(BlockGroup.TYPE_COMMIT).txnId(txnId));
+		prepareWritingFile();
 
-	@Override
-	public long writingFileOffset() {
 		try {
-			return writingFile.getFilePointer();
+			write(blockGroups);
 		} catch (IOException e) {
-			return -1;
+			abortTransaction(txnId);
+			throw e;
 		}
 	}
 
-	public void close() {
-		if (readingFile != null) {
-			try {
-				this.readingFile.close();
-			} catch (IOException e) {
-				log.error("Close reading file({}) fail.", getDataFileName(readingFileNo.get()), e);
+	/**
+	 * 전에 쓰기를 실패했거나 파일이 가득 찼다면 새로운 파일을 만든다.
+	 */
+	private void prepareWritingFile() throws IOException {
+		// releaseHandles 로 닫았다면 다시 열어서 이어서 쓴다.
+		if (writingFile == null) {
+			writingFile = openWritingFile(new File(baseDir, getDataFileName(writingFileNo.get())));
+		}
+
+		long writingFileSize = writingFile.length();
+		if (writingFileSize % blockSize != 0) {
+			writingFile.seek((writingFileSize / blockSize + 1) * blockSize);
+			writingFile.write(endBlock);
+			log.error("Fail to write file. So new file created. file size % block size != 0. file size:{}, block size:{}", writingFileSize, blockSize);
+
+			createNewWriteFile();
+		} else if(writingFileSize >= maxFileSize) {
+			createNewWriteFile();
+		}
+	}
+
+	/**
+	 * 여러 BlockGroup 을 한 번에 쓴다. content 는 복사하지 않고 header, content, padding 을 gathering write 로 쓴다.
+	 */
+	private void write(List<BlockGroup> blockGroups) throws IOException {
+		long offset = writingFile.position();
+		long[] offsets = new long[blockGroups.size()];
+		List<ByteBuffer> buffers = new ArrayList<>(blockGroups.size() * 3);
+		long length = 0;
+		int messages = 0;
+
+		for (int i = 0; i < offsets.length; ++i) {
+			BlockGroup blockGroup = blockGroups.get(i);
+			if (blockGroup.recordCount() > 0) {
+				messages += blockGroup.recordCount();
+				if (timeIndexWriter != null || latency != null) {
+					blockGroup.timestamp(nextTimestamp());
+				}
 			}
+
+			Collections.addAll(buffers, blockGroup.buffers());
+			offsets[i] = offset + length;
+			length += blockGroup.size();
 		}
 
-		if (writingFile != null) {
-			try {
-				this.writingFile.close();
-			} catch (IOException e) {
-				log.error("Close reading file({}) fail.", getDataFileName(writingFileNo.get()));
+		writingFile.write(buffers.toArray(new ByteBuffer[buffers.size()]));
+		metaHolder.updateWriting(writingFileNo.get(), offset + length);
+		if (usage != null) {
+			usage.add(length, accessMode.isReadable() ? messages : 0);
+		}
+
+		if (tailCache != null) {
+			for (int i = 0; i < offsets.length; ++i) {
+				tailCache.put(writingFileNo.get(), offsets[i], blockGroups.get(i));
 			}
 		}
 
-		if (metaHolder != null) {
-			try {
-				metaHolder.close();
-			} catch (IOException e) {
-				log.error("File to meta file close.", e);
+		if (timeIndexWriter != null) {
+			for (int i = 0; i < offsets.length; ++i) {
+				if (blockGroups.get(i).hasTimestamp()) {
+					appendTimeIndex(blockGroups.get(i).getTimestamp(), offsets[i]);
+				}
+			}
+		}
+
+		if (prefetcher != null) {
+			prefetcher.wakeUp();
+		}
+	}
+
+	/**
+	 * 일부만 쓰여진 transaction 을 읽지 않도록 abort marker 를 쓴다.
+	 */
+	private void abortTransaction(long txnId) {
+		try {
+			long length = writingFile.length();
+			writingFile.seek((length + blockSize - 1) / blockSize * blockSize);
+			writingFile.write(BlockGroup.allocate(new byte[0], blockSize).type(BlockGroup.TYPE_ABORT).txnId(txnId).array());
+		} catch (IOException e) {
+			log.error(String.format("Write abort marker of transaction(%d) fail.", txnId), e);
+		}
+	}
+
+	/**
+	 * 다시 시작해도 겹치지 않도록 시간(micro seconds)을 기준으로 증가시킨다.
+	 */
+	private long nextTxnId() {
+		lastTxnId = Math.max(TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()), lastTxnId + 1);
+		return lastTxnId;
+	}
+
+	/**
+	 * 시스템 시간이 뒤로 바뀌어도 파일 안의 시간이 줄어들지 않도록 마지막 시간보다 작다면 마지막 시간을 사용한다.
+	 */
+	private long nextTimestamp() {
+		lastTimestamp = Math.max(EpochClock.nanos(), lastTimestamp);
+		return lastTimestamp;
+	}
+
+	/**
+	 * 데이터는 이미 쓰여졌기 때문에 인덱스를 쓰지 못해도 실패로 처리하지 않는다. 시간으로 찾을 때 header 를 더 읽게 될 뿐이다.
+	 */
+	private void appendTimeIndex(long timestamp, long offset) {
+		try {
+			timeIndexWriter.append(timestamp, offset);
+		} catch (IOException e) {
+			log.warn(String.format("Write time index of file(%s) fail.", getDataFileName(writingFileNo.get())), e);
+		}
+	}
+
+	private void checkAckable() {
+		if (inFlight == null) {
+			throw new IllegalStateException("Queue(" + config.getName() + ") does not use visibility timeout. Can not ack.");
+		}
+	}
+
+	private void checkWritable() {
+		if (!accessMode.isWritable()) {
+			throw new IllegalStateException("Queue(" + config.getName() + ") is opened in " + accessMode + " mode. Can not write.");
+		}
+	}
+
+	private void checkReadable() {
+		if (!accessMode.isReadable()) {
+			throw new IllegalStateException("Queue(" + config.getName() + ") is opened in " + accessMode + " mode. Can not read.");
+		}
+	}
+
+	public E take() throws IOException {
+		checkReadable();
+
+		// ack 를 사용한다면 바로 ack 한다.
+		if (inFlight != null) {
+			Delivery<E> delivery = takeDelivery();
+			if (delivery == null) {
+				return null;
+			}
+
+			ack(delivery.getSequence());
+			return delivery.getElement();
+		}
+
+		while (true) {
+			ReadResult<E> result = nextResult();
+			if (result == null) {
+				resetUsageIfEmpty();
+				return null;
+			} else if (result.getFailure() != null) {
+				throw result.getFailure();
+			} else if (result.isSegmentEnd()) {
+				completeReadingFile(result.getFileNo());
+			} else {
+				commitRead(result);
+				if (!result.isSkipped()) {
+					recordLatency(result);
+					return result.getElement();
+				}
+			}
+		}
+	}
+
+	/**
+	 * 선읽기 없이 읽는다면 content 를 복사하지 않고 읽은 buffer 의 읽기 전용 view 를 handler 에 전달한다.
+	 * 선읽기한 데이터, batch, transaction 의 데이터, buffer 보다 큰 데이터는 읽을 때 디코딩하므로 복사한 원본을 전달한다.
+	 * (다시 인코딩하지 않으므로 쓴 byte 그대로 전달된다.)
+	 * handler 가 끝난 후에 읽기 위치를 옮기며, handler 가 예외를 던지면 옮기지 않고 다음에 다시 전달한다.
+	 */
+	@Override
+	public boolean take(Consumer<ByteBuffer> handler) throws IOException {
+		checkReadable();
+		if (inFlight != null) {
+			throw new IllegalStateException("Queue(" + config.getName() + ") uses visibility timeout. Can not read with handler.");
+		}
+
+		while (true) {
+			ReadResult<E> result;
+			isViewRead = prefetcher == null;
+			try {
+				result = nextResult();
+			} finally {
+				isViewRead = false;
+			}
+
+			if (result == null) {
+				resetUsageIfEmpty();
+				return false;
+			} else if (result.getFailure() != null) {
+				throw result.getFailure();
+			} else if (result.isSegmentEnd()) {
+				completeReadingFile(result.getFileNo());
+				continue;
+			}
+
+			if (!result.isSkipped()) {
+				ByteBuffer content = result.getView();
+				if (content == null) {
+					content = ByteBuffer.wrap(result.getContent()).asReadOnlyBuffer();
+				}
+
+				boolean isHandled = false;
+				try {
+					handler.accept(content);
+					isHandled = true;
+				} finally {
+					// Error 를 던져도 view 를 읽기 전의 위치로 되돌린다.
+					if (!isHandled) {
+						unread(result);
+					}
+				}
+				recordLatency(result);
+			}
+
+			commitRead(result);
+			if (!result.isSkipped()) {
+				return true;
+			}
+		}
+	}
+
+	private ReadResult<E> nextResult() throws IOException {
+		if (unread != null) {
+			ReadResult<E> result = unread;
+			unread = null;
+			return result;
+		}
+
+		return prefetcher != null ? prefetcher.poll() : readNext();
+	}
+
+	/**
+	 * view 는 다시 사용할 수 없으므로 view 를 읽기 전의 위치로 되돌린다.
+	 */
+	private void unread(ReadResult<E> result) throws IOException {
+		if (result.getView() != null && segmentReader != null) {
+			segmentReader.reset(viewStartOffset);
+		} else {
+			unread = result;
+		}
+	}
+
+	/**
+	 * 소비자에게 전달한 데이터의 다음으로 읽기 위치를 옮긴다.
+	 */
+	private void commitRead(ReadResult<E> result) {
+		consumed(result.getFileNo(), result.getOffset(), 1);
+		readingFileNo.set(result.getFileNo());
+		readingOffset.set(result.getOffset());
+		if (leases != null) {
+			commitLease(result.getFileNo(), result.getOffset());
+		} else {
+			metaHolder.update(readingFileNo.get(), readingOffset.get());
+		}
+	}
+
+	/**
+	 * nack 했거나 만료된 데이터를 먼저 다시 전달하고, 없다면 다음 데이터를 읽는다.
+	 * ack 하지 않은 데이터가 maxInFlight 개라면 읽지 않는다.
+	 */
+	@Override
+	public Delivery<E> takeDelivery() throws IOException {
+		checkReadable();
+		checkAckable();
+
+		synchronized (inFlight) {
+			long now = System.nanoTime();
+			long sequence;
+			while ((sequence = inFlight.nextRedelivery(now)) >= 0) {
+				if (maxDeliveries > 0 && inFlight.deliveryCount(sequence) >= maxDeliveries) {
+					// 처리할 수 없는 데이터(poison message)는 원본을 남기고 넘어간다.
+					log.warn("Message({}) not acked after {} deliveries. move to dead letter.", sequence, maxDeliveries);
+					deadLetters.add(inFlight.content(sequence), true);
+					inFlight.ack(sequence);
+					advanceCommitted();
+					continue;
+				}
+
+				int deliveryCount = inFlight.redeliver(sequence, now + visibilityTimeoutNanos);
+				return new Delivery<>(sequence, inFlight.element(sequence), deliveryCount);
+			}
+		}
+
+		while (true) {
+			synchronized (inFlight) {
+				if (inFlight.isFull()) {
+					return null;
+				}
+			}
+
+			// 파일을 읽는 동안 ack 를 막지 않도록 잠그지 않는다.
+			ReadResult<E> result = prefetcher != null ? prefetcher.poll() : readNext();
+			if (result == null) {
+				return null;
+			} else if (result.getFailure() != null) {
+				throw result.getFailure();
+			}
+
+			synchronized (inFlight) {
+				if (result.isSegmentEnd()) {
+					inFlight.addSegmentEnd(result.getFileNo());
+					advanceCommitted();
+				} else if (result.isSkipped()) {
+					inFlight.ack(inFlight.add(null, null, result.getFileNo(), result.getOffset(), 0L));
+					advanceCommitted();
+				} else {
+					// 원본은 dead letter 로 옮길 때만 가지고 있는다.
+					byte[] content = maxDeliveries > 0 ? result.getContent() : null;
+					long sequence = inFlight.add(result.getElement(), content, result.getFileNo(), result.getOffset(), System.nanoTime() + visibilityTimeoutNanos);
+					recordLatency(result);
+					return new Delivery<>(sequence, result.getElement(), 1);
+				}
+			}
+		}
+	}
+
+	@Override
+	public boolean ack(long sequence) {
+		checkAckable();
+
+		synchronized (inFlight) {
+			if (!inFlight.ack(sequence)) {
+				return false;
+			}
+
+			advanceCommitted();
+			return true;
+		}
+	}
+
+	@Override
+	public boolean nack(long sequence) {
+		checkAckable();
+
+		synchronized (inFlight) {
+			return inFlight.nack(sequence);
+		}
+	}
+
+	/**
+	 * 처음 전달할 때만 기록한다. 쓴 시간을 기록하지 않은 데이터(설정하기 전에 쓴 데이터)는 무시한다.
+	 */
+	private void recordLatency(ReadResult<E> result) {
+		if (latency != null && result.getTimestamp() > 0) {
+			latency.record(EpochClock.nanos() - result.getTimestamp());
+		}
+	}
+
+	/**
+	 * 가장 오래된 데이터부터 연속으로 ack 된 데이터까지 읽기 위치를 옮긴다. 끝난 파일을 지나면 파일을 정리한다.
+	 * inFlight 를 잠근 상태에서 호출한다.
+	 */
+	private void advanceCommitted() {
+		long fileNo = -1L;
+		long offset = 0L;
+		int messages = 0;
+
+		while (inFlight.isHeadAcked()) {
+			if (inFlight.isHeadSegmentEnd()) {
+				completeReadingFile(inFlight.headFileNo());
+				fileNo = -1L;
+			} else {
+				fileNo = inFlight.headFileNo();
+				offset = inFlight.headOffset();
+				++messages;
+			}
+			inFlight.removeHead();
+		}
+
+		if (fileNo >= 0) {
+			consumed(fileNo, offset, messages);
+		} else if (messages > 0) {
+			consumed(readingFileNo.get(), readingOffset.get(), messages);
+		}
+
+		if (fileNo >= 0) {
+			readingFileNo.set(fileNo);
+			readingOffset.set(offset);
+			if (leases != null) {
+				commitLease(fileNo, offset);
+			} else {
+				metaHolder.update(fileNo, offset);
+			}
+		}
+	}
+
+	/**
+	 * segmentReader 에서 다음 데이터를 읽는다.
+	 * 파일의 끝에 도달했고 다음 파일이 있다면 다음 파일을 열고 segment end 를 반환한다.
+	 * 선읽기를 사용하면 선읽기 스레드에서만 호출된다.
+	 * @return 읽을 데이터가 없다면 null
+	 */
+	@SuppressWarnings("unchecked")
+	private ReadResult<E> readNext() throws IOException {
+		while (true) {
+			if (!committed.isEmpty()) {
+				return committed.poll();
+			}
+
+			if (leases != null && !claimSegmentIfNeeded()) {
+				return null;
+			}
+
+			if(cursorFileNo < 0) {
+				return null;
+			}
+
+			// 파일이 바뀌기 전에 쓴 마지막 데이터를 놓치지 않도록 읽기 전에 쓰고 있는 파일 번호를 확인한다.
+			if (!accessMode.isWritable()) {
+				refreshWritingFileNo();
+			}
+			long lastWritingFileNo = writingFileNo.get();
+
+			if (releasedReaderOffset >= 0) {
+				reopenReleasedReader();
+			}
+
+			// 쓰는 프로세스가 아직 만들지 않은 파일이었다면 다시 열어본다.
+			if (segmentReader == null && cursorFileNo >= lastWritingFileNo && !accessMode.isWritable()) {
+				openReadingFile();
+			}
+
+			// 마지막 데이터까지 만료된 파일은 읽지 않고 건너뛴다.
+			long minTimestamp = messageTtlNanos > 0 ? TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - messageTtlNanos : Long.MIN_VALUE;
+			boolean isExpiredFile = cursorLastTimestamp < minTimestamp;
+
+			BlockGroup blockGroup = null;
+			long startOffset = 0L;
+			if (segmentReader != null && !isExpiredFile) {
+				startOffset = segmentReader.offset();
+				blockGroup = nextBlockGroup(minTimestamp);
+			}
+
+			// 읽은 데이터(blockGroup)이 파일의 마지막이라면 다음 파일을 연다.
+			if(blockGroup == null || blockGroup.isEnd()) {
+				if(cursorFileNo < lastWritingFileNo) {
+					long completedFileNo = cursorFileNo;
+					if (isExpiredFile) {
+						log.info("All data in file({}) expired. skip to next file.", getDataFileName(completedFileNo));
+					}
+
+					if (segmentReader != null) {
+						segmentReader.close();
+						segmentReader = null;
+					} else {
+						log.warn("Reading file({}) not exists. skip to next file.", getDataFileName(completedFileNo));
+					}
+
+					if (leases != null) {
+						// 다음 파일은 다음에 읽을 때 lease 를 얻어서 정한다.
+						cursorLease = null;
+						cursorFileNo = -1L;
+						nextClaimMillis = 0L;
+					} else {
+						++cursorFileNo;
+						openReadingFile();
+					}
+
+					return ReadResult.segmentEnd(completedFileNo);
+				}
+
+				return null;
+			}
+
+			if (blockGroup.isBatch()) {
+				unpackBatch(blockGroup, startOffset);
+				continue;
+			}
+
+			// transaction 없이 남은 commit, abort marker 는 건너뛴다.
+			if (!blockGroup.isData()) {
+				continue;
+			}
+
+			if (blockGroup.hasTxnId()) {
+				if (!readTransaction(blockGroup, startOffset, lastWritingFileNo)) {
+					return null;
+				}
+				continue;
+			}
+
+			if (blockGroup.getContentView() != null) {
+				viewStartOffset = startOffset;
+				return ReadResult.view(blockGroup.getContentView(), blockGroup.getTimestamp(), cursorFileNo, segmentReader.offset());
+			}
+
+			return decode(blockGroup.getContent(), blockGroup.getTimestamp(), segmentReader.offset());
+		}
+	}
+
+	/**
+	 * 디코딩하지 못한 데이터는 dead letter 로 옮기고 건너뛴다. 한 데이터 때문에 다음 데이터를 읽지 못하게 되지 않는다.
+	 * @param timestamp 쓴 시간 (epoch nanoseconds). 기록하지 않았다면 0
+	 * @param offset 데이터를 읽은 후의 파일 위치
+	 */
+	@SuppressWarnings("unchecked")
+	private ReadResult<E> decode(byte[] content, long timestamp, long offset) throws IOException {
+		try {
+			return ReadResult.data((E) codec.decode(content), content, timestamp, cursorFileNo, offset);
+		} catch (CodecException e) {
+			log.warn(String.format("Decode data in file(%s) fail. move to dead letter.", getDataFileName(cursorFileNo)), e);
+			deadLetters.add(content, false);
+			return ReadResult.skipped(cursorFileNo, offset);
+		}
+	}
+
+	/**
+	 * batch 의 데이터들을 committed 에 넣는다. 마지막 데이터를 전달하면 batch 다음으로 읽기 위치를 옮기고,
+	 * 그 전에는 batch 의 시작 위치에 머무르므로 중간에 종료되면 batch 를 처음부터 다시 읽는다. (at-least-once)
+	 */
+	private void unpackBatch(BlockGroup batch, long startOffset) throws IOException {
+		List<byte[]> records = batch.records();
+		for (int i = 0; i < records.size(); ++i) {
+			committed.add(decode(records.get(i), batch.getTimestamp(), i == records.size() - 1 ? segmentReader.offset() : startOffset));
+		}
+	}
+
+	/**
+	 * transaction 의 commit marker 를 찾을 때까지 미리 읽는다. commit 되었다면 데이터들을 committed 에 넣는다.
+	 * abort marker 를 만나거나 commit 없이 다른 데이터가 이어지면(commit 전에 종료됨) transaction 의 데이터를 버린다.
+	 * @return 아직 쓰고 있는 transaction 이라면 읽기 위치를 되돌리고 false
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean readTransaction(BlockGroup first, long startOffset, long lastWritingFileNo) throws IOException {
+		long txnId = first.getTxnId();
+		List<BlockGroup> blockGroups = new ArrayList<>();
+		List<Long> offsets = new ArrayList<>();
+		blockGroups.add(first);
+		offsets.add(segmentReader.offset());
+
+		while (true) {
+			long offset = segmentReader.offset();
+			BlockGroup blockGroup = segmentReader.next();
+
+			if (blockGroup == null) {
+				if (cursorFileNo < lastWritingFileNo) {
+					log.warn("Transaction({}) in file({}) not completed. discard.", txnId, getDataFileName(cursorFileNo));
+					return true;
+				}
+
+				segmentReader.reset(startOffset);
+				return false;
+			}
+
+			if (!blockGroup.hasTxnId() || blockGroup.getTxnId() != txnId) {
+				log.warn("Transaction({}) in file({}) not completed. discard.", txnId, getDataFileName(cursorFileNo));
+				segmentReader.reset(offset);
+				return true;
+			}
+
+			if (blockGroup.getType() == BlockGroup.TYPE_ABORT) {
+				log.info("Transaction({}) in file({}) aborted. discard.", txnId, getDataFileName(cursorFileNo));
+				return true;
+			}
+
+			if (blockGroup.getType() == BlockGroup.TYPE_COMMIT) {
+				// 마지막 데이터를 전달하면 commit marker 다음으로 읽기 위치를 옮긴다.
+				offsets.set(offsets.size() - 1, segmentReader.offset());
+				for (int i = 0; i < blockGroups.size(); ++i) {
+					committed.add(decode(blockGroups.get(i).getContent(), blockGroups.get(i).getTimestamp(), offsets.get(i)));
+				}
+				return true;
+			}
+
+			blockGroups.add(blockGroup);
+			offsets.add(segmentReader.offset());
+		}
+	}
+
+	/**
+	 * 읽기가 완료된 파일은 janitor 에게 정리(삭제, 백업)를 맡기고 다음 파일의 처음으로 읽기 위치를 옮긴다.
+	 * 되감기(rewind)로 다시 읽은 백업 파일은 정리하지 않는다.
+	 */
+	private void completeReadingFile(long fileNo) {
+		if (leases != null) {
+			readingLease = null;
+			// lease 를 다른 프로세스가 가져갔다면 그 프로세스가 정리한다.
+			if (leases.complete(fileNo)) {
+				janitor.submit(new File(baseDir, getDataFileName(fileNo)));
+			}
+			return;
+		}
+
+		File file = new File(baseDir, getDataFileName(fileNo));
+		if (usage != null && fileNo == readingFileNo.get() && file.exists()) {
+			usage.add(readingOffset.get() - file.length(), 0L);
+		}
+
+		readingFileNo.set(fileNo + 1);
+		readingOffset.set(0L);
+		metaHolder.update(readingFileNo.get(), readingOffset.get());
+
+		if (file.exists()) {
+			janitor.submit(file);
+		}
+	}
+
+	/**
+	 * 읽기 위치를 옮기기 전에 읽은 만큼 사용량에서 뺀다. 다른 파일로 옮겨졌다면(rewind) byte 는 다시 계산할 때 맞춰진다.
+	 */
+	private void consumed(long fileNo, long offset, int messages) {
+		if (usage != null) {
+			usage.add(fileNo == readingFileNo.get() ? readingOffset.get() - offset : 0L, -messages);
+		}
+	}
+
+	/**
+	 * 쓴 위치까지 모두 읽었다면 사용량을 0 으로 맞춘다. 건너뛴 데이터(만료, rewind) 때문에 어긋난 값이 여기서 바로잡힌다.
+	 */
+	private void resetUsageIfEmpty() {
+		if (usage == null) {
+			return;
+		}
+
+		long[] writing = writingPosition();
+		// 쓰기 위치를 갱신하지 않는 abort marker 를 읽었다면 쓰기 위치를 지나친다.
+		if (readingFileNo.get() == writing[0] && readingOffset.get() >= writing[1]) {
+			usage.reset(0L, 0L);
+		}
+	}
+
+	/**
+	 * 최근에 쓴 데이터라면 파일을 읽지 않고 tail cache 에서 가져온다.
+	 * minTimestamp 보다 먼저 쓰여진 데이터는 건너뛴다.
+	 */
+	private BlockGroup nextBlockGroup(long minTimestamp) throws IOException {
+		if (tailCache != null) {
+			while (true) {
+				long offset = segmentReader.offset();
+				BlockGroup blockGroup = tailCache.get(cursorFileNo, offset);
+				if (blockGroup == null) {
+					break;
+				}
+
+				segmentReader.reset(offset + blockGroup.size());
+				if (!blockGroup.hasTimestamp() || blockGroup.getTimestamp() >= minTimestamp) {
+					return blockGroup;
+				}
+			}
+		}
+
+		if (isViewRead) {
+			return messageTtlNanos > 0 ? segmentReader.next(minTimestamp, true) : segmentReader.nextView();
+		}
+
+		return messageTtlNanos > 0 ? segmentReader.next(minTimestamp) : segmentReader.next();
+	}
+
+	/**
+	 * 소유한 파일이 없거나 만료되어 다른 프로세스가 가져갔다면 가장 앞의 파일의 lease 를 얻는다.
+	 * @return 읽을 파일이 있다면 true
+	 */
+	private boolean claimSegmentIfNeeded() throws IOException {
+		if (cursorLease != null && cursorLease.isLost()) {
+			// 이미 읽은 데이터는 가져간 프로세스가 다시 읽는다. (at-least-once)
+			if (segmentReader != null) {
+				segmentReader.close();
+				segmentReader = null;
+			}
+			releasedReaderOffset = -1L;
+			cursorLease = null;
+			cursorFileNo = -1L;
+		}
+
+		if (cursorLease != null) {
+			return true;
+		}
+
+		long now = System.currentTimeMillis();
+		if (now < nextClaimMillis) {
+			return false;
+		}
+
+		refreshWritingFileNo();
+		cursorLease = leases.claimNext(writingFileNo.get());
+		if (cursorLease == null) {
+			nextClaimMillis = now + CLAIM_INTERVAL_MILLIS;
+			return false;
+		}
+
+		cursorFileNo = cursorLease.getFileNo();
+		openReadingFile();
+		return true;
+	}
+
+	private void commitLease(long fileNo, long offset) {
+		if (readingLease == null || readingLease.getFileNo() != fileNo) {
+			readingLease = leases.get(fileNo);
+		}
+
+		if (readingLease != null) {
+			readingLease.commit(offset);
+		}
+	}
+
+	@Override
+	public void rewind(long fileNo, long offset) throws IOException {
+		checkReadable();
+		if (leases != null) {
+			throw new IllegalStateException("Queue(" + config.getName() + ") is opened in " + accessMode + " mode. Can not rewind.");
+		}
+
+		if (fileNo < 0 || offset < 0 || offset % blockSize != 0) {
+			throw new IllegalArgumentException("Invalid position. fileNo:" + fileNo + ", offset:" + offset + ", block size:" + blockSize);
+		}
+
+		long[] writing = writingPosition();
+		if (fileNo > writing[0] || (fileNo == writing[0] && offset > writing[1])) {
+			throw new IllegalArgumentException("Position is after writing position. fileNo:" + fileNo + ", offset:" + offset);
+		}
+
+		if (SegmentReader.find(baseDir, backDir, fileNo) == null) {
+			throw new IOException("File(" + getDataFileName(fileNo) + ") not exists in data or backup directory.");
+		}
+
+		// 선읽기 버퍼는 버리고 새로운 위치부터 다시 읽는다.
+		stopPrefetcher();
+		committed.clear();
+		unread = null;
+		if (segmentReader != null) {
+			segmentReader.close();
+			segmentReader = null;
+		}
+
+		if (inFlight != null) {
+			// ack 하지 않은 데이터는 버리고 새로운 위치부터 다시 전달한다.
+			synchronized (inFlight) {
+				inFlight.clear();
+				readingFileNo.set(fileNo);
+				readingOffset.set(offset);
+				metaHolder.update(fileNo, offset);
+			}
+		} else {
+			readingFileNo.set(fileNo);
+			readingOffset.set(offset);
+			metaHolder.update(fileNo, offset);
+		}
+
+		cursorFileNo = fileNo;
+		openReadingFile();
+		startPrefetcher();
+	}
+
+	@Override
+	public void rewind(long timestamp) throws IOException {
+		if (isRecordTimestamp) {
+			seekToTime(timestamp);
+			return;
+		}
+
+		long fileNo = findFileNoByTime(timestamp);
+		long[] writing = writingPosition();
+		if (fileNo > writing[0]) {
+			rewind(writing[0], writing[1]);
+		} else {
+			rewind(fileNo, 0L);
+		}
+	}
+
+	@Override
+	public void seekToTime(long epochMillis) throws IOException {
+		long[] position = findPositionByTime(TimeUnit.MILLISECONDS.toNanos(epochMillis));
+		rewind(position[0], position[1]);
+	}
+
+	/**
+	 * timestamp 이후에 쓰여진 첫 번째 데이터의 위치를 찾는다. 데이터는 디코딩하지 않는다.
+	 * 파일의 첫 번째 데이터의 시간으로 파일을 이진 탐색한 후 시간 인덱스에서 가장 가까운 위치부터 header 만 읽는다.
+	 * 시간이 없는 파일(삭제된 파일, 시간을 기록하지 않은 파일, 빈 파일)은 다음 파일의 시간을 사용한다.
+	 * @param timestamp epoch nanoseconds
+	 * @return {fileNo, offset}. 없다면 쓰고 있는 위치
+	 */
+	private long[] findPositionByTime(long timestamp) throws IOException {
+		long[] writing = writingPosition();
+		long lastWritingFileNo = writing[0];
+		long lastWritingOffset = writing[1];
+
+		// 첫 번째 데이터의 시간이 timestamp 보다 앞선 마지막 파일
+		long found = -1L;
+		// 첫 번째 데이터의 시간이 timestamp 이후인 가장 앞의 파일
+		long after = -1L;
+		long low = 0L;
+		long high = lastWritingFileNo;
+
+		while (low <= high) {
+			long mid = (low + high) >>> 1;
+			long probe = mid;
+			long first = firstTimestamp(probe);
+			while (first < 0 && probe < high) {
+				first = firstTimestamp(++probe);
+			}
+
+			if (first >= 0 && first < timestamp) {
+				found = probe;
+				low = probe + 1;
+			} else {
+				if (first >= 0) {
+					after = probe;
+				}
+				high = mid - 1;
+			}
+		}
+
+		if (found >= 0) {
+			long offset = findOffsetByTime(found, timestamp);
+			if (offset >= 0) {
+				return new long[] {found, offset};
+			}
+
+			after = found + 1;
+		}
+
+		if (after >= 0 && after <= lastWritingFileNo) {
+			return new long[] {after, 0L};
+		}
+
+		return new long[] {lastWritingFileNo, lastWritingOffset};
+	}
+
+	/**
+	 * 시간 인덱스가 없다면 첫 번째 데이터의 header 만 확인한다.
+	 * @return epoch nanoseconds. 시간이 없다면 -1
+	 */
+	private long firstTimestamp(long fileNo) throws IOException {
+		File indexFile = TimeIndex.find(baseDir, backDir, fileNo);
+		if (indexFile != null) {
+			TimeIndex index = TimeIndex.load(indexFile);
+			if (!index.isEmpty()) {
+				return index.firstTimestamp();
+			}
+		}
+
+		try (SegmentReader reader = SegmentReader.open(baseDir, backDir, fileNo, 0L, blockSize, readBufferSize)) {
+			BlockGroup blockGroup = reader != null ? reader.nextHeader() : null;
+			return blockGroup != null && blockGroup.hasTimestamp() ? blockGroup.getTimestamp() : -1L;
+		}
+	}
+
+	/**
+	 * 파일 안에서 timestamp 이후에 쓰여진 첫 번째 데이터의 위치를 찾는다.
+	 * @return 없다면 -1
+	 */
+	private long findOffsetByTime(long fileNo, long timestamp) throws IOException {
+		long offset = 0L;
+		File indexFile = TimeIndex.find(baseDir, backDir, fileNo);
+		if (indexFile != null) {
+			offset = TimeIndex.load(indexFile).floorOffset(timestamp);
+		}
+
+		try (SegmentReader reader = SegmentReader.open(baseDir, backDir, fileNo, offset, blockSize, readBufferSize)) {
+			while (reader != null) {
+				long position = reader.offset();
+				BlockGroup blockGroup = reader.nextHeader();
+				if (blockGroup == null) {
+					break;
+				}
+
+				if (blockGroup.hasTimestamp() && blockGroup.getTimestamp() >= timestamp) {
+					return position;
+				}
+			}
+		}
+
+		return -1L;
+	}
+
+	/**
+	 * 마지막 수정 시간이 timestamp 이후인 가장 오래된 파일을 찾는다.
+	 * timestamp 이후에 쓰여진 데이터는 이 파일이나 이후의 파일에 있다.
+	 * @return 없다면 writingFileNo + 1
+	 */
+	private long findFileNoByTime(long timestamp) {
+		TreeSet<Long> fileNos = new TreeSet<>();
+		for (File dir : new File[] {baseDir, backDir}) {
+			String[] names = dir.list();
+			if (names != null) {
+				for (String name : names) {
+					if (SegmentFiles.isDataFile(name) || SegmentFiles.isCompressedFile(name)) {
+						fileNos.add(SegmentFiles.fileNumber(name));
+					}
+				}
+			}
+		}
+
+		for (long fileNo : fileNos) {
+			File file = SegmentReader.find(baseDir, backDir, fileNo);
+			if (file != null && file.lastModified() >= timestamp) {
+				return fileNo;
+			}
+		}
+
+		return writingFileNo.get() + 1;
+	}
+
+	@Override
+	public DeadLetterStats deadLetterStats() {
+		return deadLetters.getStats();
+	}
+
+	@Override
+	public ReplayCursor<byte[]> browseDeadLetters() throws IOException {
+		return deadLetters.browse();
+	}
+
+	@Override
+	public int requeueDeadLetters(int max) throws IOException {
+		checkWritable();
+
+		return deadLetters.requeue(max, new DeadLetterQueue.Sink() {
+			@Override
+			public void put(byte[] content) throws IOException {
+				putContent(content);
+			}
+
+			@Override
+			public boolean isFull() {
+				return isQuotaExceeded();
+			}
+		});
+	}
+
+	@Override
+	public ReplayCursor<E> replay(long fileNo, long offset) {
+		return new ReplayCursor<>(baseDir, backDir, fileNo, offset, blockSize, readBufferSize, codec, writingFileNo);
+	}
+
+	@Override
+	public Spliterator<E> browse() {
+		// 쓰기 위치를 먼저 읽어서 읽기 위치가 쓰기 위치를 앞서더라도 빈 범위가 되게 한다.
+		long[] writing = writingPosition();
+		long endFileNo = writing[0];
+		long endOffset = writing[1];
+		// 읽는 스레드를 기다리지 않으므로 읽는 동안 파일이 바뀌었다면 다시 읽는다.
+		long fileNo;
+		long offset;
+		do {
+			fileNo = readingFileNo.get();
+			offset = readingOffset.get();
+		} while (fileNo != readingFileNo.get());
+
+		return new SegmentSpliterator<>(baseDir, backDir, fileNo, offset, endFileNo, endOffset,
+				blockSize, readBufferSize, maxFileSize, codec, messageTtlNanos);
+	}
+
+	@Override
+	public ReplayCursor<E> replay(long timestamp) throws IOException {
+		if (isRecordTimestamp) {
+			long[] position = findPositionByTime(TimeUnit.MILLISECONDS.toNanos(timestamp));
+			return replay(position[0], position[1]);
+		}
+
+		long fileNo = findFileNoByTime(timestamp);
+		long[] writing = writingPosition();
+		if (fileNo > writing[0]) {
+			return replay(writing[0], writing[1]);
+		}
+
+		return replay(fileNo, 0L);
+	}
+
+	@Override
+	public JanitorStats janitorStats() {
+		return janitor.getStats();
+	}
+
+	@Override
+	public LatencyHistogram latency() {
+		return latency;
+	}
+
+	@Override
+	public long readingFileOffset() {
+		return this.readingOffset.get();
+	}
+
+	@Override
+	public boolean isQuotaExceeded() {
+		return usage != null && usage.isExceeded();
+	}
+
+	/**
+	 * 읽기 위치부터 쓴 위치까지의 파일 크기로 byte 를 다시 계산한다. 파일 목록은 읽지 않는다.
+	 * 다른 프로세스(CONSUMER)가 읽는다면 meta 에 공유된 읽기 위치를 사용한다.
+	 */
+	@Override
+	public void refreshUsage() {
+		if (usage == null) {
+			return;
+		}
+
+		long fileNo = accessMode.isReadable() ? readingFileNo.get() : metaHolder.getReadingFileNo();
+		long offset = accessMode.isReadable() ? readingOffset.get() : metaHolder.getReadingFileOffset();
+		if (fileNo < 0) {
+			fileNo = 0L;
+			offset = 0L;
+		}
+
+		long[] writing = writingPosition();
+		long lastFileNo = writing[0];
+		long bytes = writing[1] - offset;
+		for (long no = fileNo; no < lastFileNo; ++no) {
+			bytes += new File(baseDir, getDataFileName(no)).length();
+		}
+		usage.resetBytes(Math.max(bytes, 0L));
+	}
+
+	@Override
+	public long usedBytes() {
+		return usage != null ? usage.bytes() : 0L;
+	}
+
+	@Override
+	public long usedMessages() {
+		return usage != null ? usage.messages() : 0L;
+	}
+
+	@Override
+	public long readingFileNo() {
+		return this.readingFileNo.get();
+	}
+
+	@Override
+	public long writingFileNo()
+	{
+		if (!accessMode.isWritable()) {
+			refreshWritingFileNo();
+		}
+
+		return writingFileNo.get();
+	}
+
+	@Override
+	public long writingFileOffset() {
+		if (!accessMode.isWritable()) {
+			long offset = refreshWritingFileNo();
+			if (offset < 0L) {
+				File file = new File(baseDir, getDataFileName(writingFileNo.get()));
+				offset = file.exists() ? file.length() : 0L;
+			}
+			return offset;
+		}
+
+		return writingPosition()[1];
+	}
+
+	/**
+	 * 쓰는 스레드가 아니어도 사용할 수 있는 쓴 위치. 쓸 때마다 meta 에 갱신하는 위치를 seqlock 으로 읽으므로
+	 * 파일 번호와 위치가 어긋나지 않는다. writingFile 은 쓰는 스레드만 사용한다.
+	 * 공유된 위치가 없다면(이전 버전의 쓰는 프로세스) 쓰고 있는 파일의 크기를 사용한다.
+	 * @return {fileNo, offset}
+	 */
+	private long[] writingPosition() {
+		long[] writing = metaHolder.getWriting();
+		if (writing != null && writing[0] >= 0) {
+			return writing;
+		}
+
+		long fileNo = writingFileNo.get();
+		File file = new File(baseDir, getDataFileName(fileNo));
+		return new long[] {fileNo, file.exists() ? file.length() : 0L};
+	}
+
+	/**
+	 * 열려있는 큐 파일(쓰고 있는 파일, 읽고 있는 파일, 시간 인덱스)을 닫는다. 다음에 쓰거나 읽을 때 다시 연다.
+	 * 선읽기를 사용하거나 전달하지 않은 transaction 데이터가 있다면 읽고 있는 파일은 닫지 않는다.
+	 * 쓰기, 읽기와 동시에 호출하면 안된다. (FileQueueManager)
+	 */
+	public void releaseHandles() throws IOException {
+		if (writingFile != null) {
+			writingFile.close();
+			writingFile = null;
+		}
+
+		if (timeIndexWriter != null) {
+			timeIndexWriter.close();
+		}
+
+		if (segmentReader != null && prefetcher == null && committed.isEmpty()) {
+			releasedReaderOffset = segmentReader.offset();
+			segmentReader.close();
+			segmentReader = null;
+		}
+	}
+
+	private void reopenReleasedReader() {
+		try {
+			segmentReader = SegmentReader.open(baseDir, backDir, cursorFileNo, releasedReaderOffset, blockSize, readBufferSize, isDirectIo);
+		} catch (IOException e) {
+			throw new IllegalStateException(String.format("File(%s) open fail", getDataFileName(cursorFileNo)), e);
+		}
+		releasedReaderOffset = -1L;
+	}
+
+	public void close() {
+		if (inFlight != null) {
+			// 이후의 ack 는 무시된다. ack 하지 않은 데이터는 다시 시작할 때 다시 읽는다.
+			synchronized (inFlight) {
+				inFlight.clear();
+			}
+		}
+
+		stopPrefetcher();
+		janitor.stop();
+		if (leases != null) {
+			leases.stop();
+		}
+		deadLetters.close();
+
+		if (segmentReader != null) {
+			try {
+				this.segmentReader.close();
+			} catch (IOException e) {
+				log.error("Close reading file({}) fail.", getDataFileName(readingFileNo.get()), e);
+			}
+		}
+
+		if (timeIndexWriter != null) {
+			try {
+				timeIndexWriter.close();
+			} catch (IOException e) {
+				log.error("Close time index of file({}) fail.", getDataFileName(writingFileNo.get()));
+			}
+		}
+
+		if (writingFile != null) {
+			try {
+				this.writingFile.close();
+			} catch (IOException e) {
+				log.error("Close reading file({}) fail.", getDataFileName(writingFileNo.get()));
+			}
+		}
+
+		if (metaHolder != null) {
+			try {
+				metaHolder.close();
+			} catch (IOException e) {
+				log.error("File to meta file close.", e);
+			}
+		}
+
+		if (usage != null) {
+			// 다시 열 때 읽지 않은 데이터를 다시 세므로 공유 사용량(DiskQuota)에서 뺀다.
+			usage.reset(0L, 0L);
+		}
+
+		if (queueLock != null) {
+			try {
+				queueLock.release();
+			} catch (IOException e) {
+				log.error("Release queue lock fail.", e);
 			}
+			queueLock = null;
 		}
 	}
 }
@@ -0,0 +1,203 @@
+package com.geekhua.filequeue.datastore;
+
+import com.geekhua.filequeue.Config;
+import com.geekhua.filequeue.codec.ByteArrayCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 디코딩하지 못한 데이터와 maxDeliveries 번 전달했지만 ack 되지 않은 데이터를 원본(encode 된 byte) 그대로 저장한다.
+ * 큐 폴더 아래의 dead-letter 폴더에 같은 형식의 큐 파일로 저장한다. 처음 사용할 때 열어서 큐를 닫을 때까지 사용하지만
+ * 큐 폴더는 잠그지 않는다. (CONSUMER 프로세스가 옮긴 데이터를 PRODUCER 프로세스가 다시 넣을 수 있다.)
+ * 여러 COMPETING_CONSUMER 프로세스도 같은 폴더를 사용하며, 사용할 때마다 guard 파일을 잠금이 풀릴 때까지 기다려서 잠그므로
+ * 다른 프로세스가 사용하고 있어도 실패하지 않는다. guard 파일에는 사용할 때마다 늘어나는 번호를 기록하고, 마지막으로
+ * 기록한 번호와 다르다면 다른 프로세스가 사용한 것이므로 열어둔 큐 파일을 닫고 다시 연다.
+ * 다시 큐에 넣을 때는 ack 를 사용해서 옮기는 도중에 종료되어도 잃어버리지 않는다. (중복될 수는 있다.)
+ */
+class DeadLetterQueue {
+	static final String DIR_NAME = "dead-letter";
+	private static final String GUARD_FILE_NAME = "guard";
+	private static final long REQUEUE_VISIBILITY_TIMEOUT_MILLIS = 60000L;
+
+	// 같은 JVM 안에서는 같은 파일을 두 번 잠글 수 없으므로 guard 파일마다 하나의 lock 을 함께 사용한다.
+	private static final ConcurrentMap<File, ReentrantLock> localLocks = new ConcurrentHashMap<>();
+
+	private final Config config;
+	private final DeadLetterStats stats = new DeadLetterStats();
+	private final File guardFile;
+	private final ReentrantLock localLock;
+	// 아직 사용하지 않았거나 닫았다면 null
+	private DataStoreImpl<byte[]> store;
+	// 마지막으로 guard 파일에 기록한 번호
+	private long version = -1L;
+
+	DeadLetterQueue(File queueDir, Config queueConfig) {
+		guardFile = new File(new File(queueDir, DIR_NAME), GUARD_FILE_NAME).getAbsoluteFile();
+		ReentrantLock lock = new ReentrantLock();
+		ReentrantLock existing = localLocks.putIfAbsent(guardFile, lock);
+		localLock = existing != null ? existing : lock;
+
+		config = new Config();
+		config.setBaseDir(queueDir.getPath());
+		config.setName(DIR_NAME);
+		config.setCodec(new ByteArrayCodec());
+		config.setMsgAvgLen(queueConfig.getMsgAvgLen());
+		config.setFileSiz(queueConfig.getFileSize());
+		config.setReadBufferSize(queueConfig.getReadBufferSize());
+		// 스레드를 만들지 않도록 읽기가 끝난 파일은 바로 삭제한다.
+		config.setJanitorBacklog(0);
+		config.setVisibilityTimeoutMillis(REQUEUE_VISIBILITY_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * @param isPoison maxDeliveries 를 넘겨서 옮기는 데이터라면 true, 디코딩하지 못한 데이터라면 false
+	 */
+	synchronized void add(byte[] content, boolean isPoison) throws IOException {
+		Guard guard = lock();
+		try {
+			open().putContent(content);
+		} finally {
+			guard.release();
+		}
+
+		if (isPoison) {
+			stats.poison();
+		} else {
+			stats.decodeFailed();
+		}
+	}
+
+	/**
+	 * 읽기 위치에 영향을 주지 않고 아직 다시 넣지 않은 데이터를 읽는다.
+	 */
+	synchronized ReplayCursor<byte[]> browse() throws IOException {
+		Guard guard = lock();
+		try {
+			DataStoreImpl<byte[]> store = open();
+			return store.replay(store.readingFileNo(), store.readingFileOffset());
+		} finally {
+			guard.release();
+		}
+	}
+
+	/**
+	 * 오래된 데이터부터 max 개까지 sink 로 옮긴다. sink 가 가득 차면 멈춘다.
+	 * @return 옮긴 개수
+	 */
+	synchronized int requeue(int max, Sink sink) throws IOException {
+		Guard guard = lock();
+		int count = 0;
+		try {
+			DataStoreImpl<byte[]> store = open();
+			while (count < max && !sink.isFull()) {
+				Delivery<byte[]> delivery = store.takeDelivery();
+				if (delivery == null) {
+					break;
+				}
+
+				// 쓰지 못했다면 nack 해서 다음에 다시 옮긴다.
+				try {
+					sink.put(delivery.getElement());
+				} catch (IOException | RuntimeException e) {
+					store.nack(delivery.getSequence());
+					throw e;
+				}
+				store.ack(delivery.getSequence());
+				++count;
+			}
+		} finally {
+			stats.requeued(count);
+			guard.release();
+		}
+
+		return count;
+	}
+
+	DeadLetterStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * 열어둔 큐 파일을 닫는다. 다시 사용하면 다시 연다.
+	 */
+	synchronized void close() {
+		if (store != null) {
+			store.close();
+			store = null;
+		}
+	}
+
+	/**
+	 * 같은 dead-letter 폴더를 사용하는 다른 큐(프로세스)가 다 사용할 때까지 기다린다.
+	 * 그 사이에 다른 큐가 사용했다면 열어둔 큐 파일을 닫는다.
+	 */
+	private Guard lock() throws IOException {
+		localLock.lock();
+		try {
+			guardFile.getParentFile().mkdirs();
+			RandomAccessFile file = new RandomAccessFile(guardFile, "rw");
+			try {
+				Guard guard = new Guard(file, file.getChannel().lock());
+				long current = file.length() >= 8 ? file.readLong() : 0L;
+				if (current != version) {
+					close();
+				}
+				version = current + 1;
+				file.seek(0);
+				file.writeLong(version);
+				return guard;
+			} catch (IOException e) {
+				// 파일을 닫으면 잠금도 풀린다.
+				file.close();
+				throw e;
+			}
+		} catch (IOException e) {
+			localLock.unlock();
+			throw e;
+		}
+	}
+
+	private DataStoreImpl<byte[]> open() throws IOException {
+		if (store == null) {
+			DataStoreImpl<byte[]> opened = new DataStoreImpl<>(config);
+			opened.disableQueueLock();
+			opened.init();
+			store = opened;
+		}
+		return store;
+	}
+
+	interface Sink {
+		void put(byte[] content) throws IOException;
+
+		/**
+		 * @return 사용량 제한에 도달했다면 true. 남은 데이터는 다음에 옮긴다.
+		 */
+		boolean isFull();
+	}
+
+	private class Guard {
+		private final RandomAccessFile file;
+		private final FileLock fileLock;
+
+		private Guard(RandomAccessFile file, FileLock fileLock) {
+			this.file = file;
+			this.fileLock = fileLock;
+		}
+
+		private void release() throws IOException {
+			try {
+				fileLock.release();
+				file.close();
+			} finally {
+				localLock.unlock();
+			}
+		}
+	}
+}
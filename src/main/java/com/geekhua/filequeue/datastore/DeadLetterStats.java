@@ -0,0 +1,50 @@
+package com.geekhua.filequeue.datastore;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * dead letter 로 옮긴 데이터의 통계. 큐를 연 후의 개수이다.
+ */
+public class DeadLetterStats {
+	private final AtomicLong decodeFailedCount = new AtomicLong();
+	private final AtomicLong poisonCount = new AtomicLong();
+	private final AtomicLong requeuedCount = new AtomicLong();
+
+	void decodeFailed() {
+		decodeFailedCount.incrementAndGet();
+	}
+
+	void poison() {
+		poisonCount.incrementAndGet();
+	}
+
+	void requeued(int count) {
+		requeuedCount.addAndGet(count);
+	}
+
+	/**
+	 * @return 디코딩하지 못해서 옮긴 데이터 개수
+	 */
+	public long getDecodeFailedCount() {
+		return decodeFailedCount.get();
+	}
+
+	/**
+	 * @return maxDeliveries 번 전달했지만 ack 되지 않아서 옮긴 데이터 개수
+	 */
+	public long getPoisonCount() {
+		return poisonCount.get();
+	}
+
+	/**
+	 * @return 다시 큐에 넣은 데이터 개수
+	 */
+	public long getRequeuedCount() {
+		return requeuedCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "DeadLetterStats [decodeFailed=" + getDecodeFailedCount() + ", poison=" + getPoisonCount() + ", requeued=" + getRequeuedCount() + "]";
+	}
+}
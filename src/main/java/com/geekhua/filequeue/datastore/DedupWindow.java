@@ -0,0 +1,114 @@
+package com.geekhua.filequeue.datastore;
+
+/**
+ * 최근에 추가된 message id 를 capacity 개까지 기억한다.
+ * open addressing(linear probing) 으로 구현한 long set 과 추가된 순서를 기억하는 ring 으로 구성되며
+ * 가득 차면 가장 오래된 id 부터 지운다. 모든 연산은 O(1) 이며 boxing 하지 않는다.
+ */
+class DedupWindow {
+	private static final long EMPTY = 0L;
+
+	private final long[] ring;
+	private final long[] slots;
+	private final int mask;
+	// 0 은 빈 slot 을 나타내므로 따로 기억한다.
+	private boolean hasZero;
+	private int head;
+	private int size;
+
+	DedupWindow(int capacity) {
+		this.ring = new long[capacity];
+		// load factor 가 0.5 를 넘지 않도록 한다.
+		int slotCount = Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1) << 1;
+		this.slots = new long[slotCount];
+		this.mask = slotCount - 1;
+	}
+
+	boolean contains(long id) {
+		if (id == EMPTY) {
+			return hasZero;
+		}
+
+		for (int i = index(id); slots[i] != EMPTY; i = (i + 1) & mask) {
+			if (slots[i] == id) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return 이미 있다면 false
+	 */
+	boolean add(long id) {
+		if (contains(id)) {
+			return false;
+		}
+
+		if (size == ring.length) {
+			remove(ring[head]);
+		} else {
+			++size;
+		}
+
+		ring[head] = id;
+		head = (head + 1) % ring.length;
+
+		if (id == EMPTY) {
+			hasZero = true;
+		} else {
+			int i = index(id);
+			while (slots[i] != EMPTY) {
+				i = (i + 1) & mask;
+			}
+			slots[i] = id;
+		}
+
+		return true;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * 지운 slot 뒤의 id 들을 앞으로 옮겨서 탐색이 끊기지 않게 한다. (backward shift deletion)
+	 */
+	private void remove(long id) {
+		if (id == EMPTY) {
+			hasZero = false;
+			return;
+		}
+
+		int i = index(id);
+		while (slots[i] != id) {
+			if (slots[i] == EMPTY) {
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+
+		slots[i] = EMPTY;
+		for (int j = (i + 1) & mask; slots[j] != EMPTY; j = (j + 1) & mask) {
+			int k = index(slots[j]);
+			// k 가 (i, j] 범위 밖이라면 i 로 옮겨야 찾을 수 있다.
+			boolean isMovable = i <= j ? (k <= i || k > j) : (k <= i && k > j);
+			if (isMovable) {
+				slots[i] = slots[j];
+				slots[j] = EMPTY;
+				i = j;
+			}
+		}
+	}
+
+	private int index(long id) {
+		long h = id;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int) h & mask;
+	}
+}
@@ -0,0 +1,35 @@
+package com.geekhua.filequeue.datastore;
+
+/**
+ * ack 를 받을 때까지 읽기 위치를 기록하지 않고 전달한 데이터. (Config.setVisibilityTimeoutMillis)
+ * 처리를 마치면 ack 하고, 다시 받으려면 nack 한다.
+ */
+public final class Delivery<E> {
+	private final long sequence;
+	private final E element;
+	private final int deliveryCount;
+
+	Delivery(long sequence, E element, int deliveryCount) {
+		this.sequence = sequence;
+		this.element = element;
+		this.deliveryCount = deliveryCount;
+	}
+
+	public E getElement() {
+		return element;
+	}
+
+	/**
+	 * @return 큐를 연 후 전달한 순서. 다시 전달된 데이터는 처음과 같은 값을 가진다.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return 몇 번째 전달인지. 1 보다 크다면 nack 했거나 시간 안에 ack 하지 않아서 다시 전달된 데이터이다.
+	 */
+	public int getDeliveryCount() {
+		return deliveryCount;
+	}
+}
@@ -0,0 +1,91 @@
+package com.geekhua.filequeue.datastore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Linux 의 O_DIRECT 로 page cache 를 거치지 않고 파일을 읽고 쓴다. (Config.setDirectIo)
+ * ExtendedOpenOption.DIRECT(JDK 10 이상)와 ByteBuffer.alignedSlice(JDK 9 이상)를 reflection 으로 찾으며
+ * 없다면 사용할 수 없다. 위치, 크기, buffer 주소는 모두 ALIGNMENT 의 배수여야 한다.
+ */
+final class DirectIo {
+	private static final Logger log = LoggerFactory.getLogger(DirectIo.class);
+
+	// 대부분의 파일 시스템의 block 크기(512, 4096)의 배수
+	static final int ALIGNMENT = 4096;
+
+	private static final OpenOption DIRECT = findDirectOption();
+	private static final Method ALIGNED_SLICE = findAlignedSlice();
+
+	private DirectIo() {
+
+	}
+
+	static boolean isSupported() {
+		return DIRECT != null && ALIGNED_SLICE != null;
+	}
+
+	/**
+	 * @throws IOException 파일 시스템이 O_DIRECT 를 지원하지 않는다면 (tmpfs 등)
+	 */
+	static FileChannel open(File file, OpenOption... options) throws IOException {
+		Set<OpenOption> optionSet = new HashSet<>(Arrays.asList(options));
+		optionSet.add(DIRECT);
+		return FileChannel.open(file.toPath(), optionSet);
+	}
+
+	/**
+	 * @return 주소가 ALIGNMENT 의 배수인 direct buffer
+	 */
+	static ByteBuffer allocate(int capacity) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(capacity + ALIGNMENT);
+		try {
+			ByteBuffer aligned = (ByteBuffer) ALIGNED_SLICE.invoke(buffer, ALIGNMENT);
+			aligned.limit(capacity);
+			return aligned.slice();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Allocate aligned buffer fail.", e);
+		}
+	}
+
+	static long alignDown(long position) {
+		return position & -ALIGNMENT;
+	}
+
+	static long alignUp(long position) {
+		return (position + ALIGNMENT - 1) & -ALIGNMENT;
+	}
+
+	private static OpenOption findDirectOption() {
+		try {
+			Class<?> type = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+			for (Object constant : type.getEnumConstants()) {
+				if ("DIRECT".equals(((Enum<?>) constant).name())) {
+					return (OpenOption) constant;
+				}
+			}
+		} catch (ClassNotFoundException e) {
+			log.debug("ExtendedOpenOption not found.");
+		}
+
+		return null;
+	}
+
+	private static Method findAlignedSlice() {
+		try {
+			return ByteBuffer.class.getMethod("alignedSlice", int.class);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package com.geekhua.filequeue.datastore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * O_DIRECT 로 큐 파일을 쓴다. 다 채운 page(ALIGNMENT)는 O_DIRECT 로 쓰고 다 채우지 못한 마지막 page 만 page cache 를 거쳐서 쓴다.
+ * 마지막 page 를 0 으로 채워서 쓰지 않으므로 읽는 쪽은 쓰지 않은 데이터를 보지 않는다.
+ * page 를 다 채우면 O_DIRECT 로 다시 쓰며 이때 page cache 의 page 는 버려진다.
+ */
+class DirectSegmentWriter extends SegmentWriter {
+	private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+	private final FileChannel directChannel;
+	private final FileChannel channel;
+	// bufferStart 부터 length 까지의 데이터. bufferStart 는 ALIGNMENT 의 배수이다.
+	private ByteBuffer buffer;
+	private long bufferStart;
+	private long length;
+	private long position;
+
+	DirectSegmentWriter(File file) throws IOException {
+		super(file);
+		try {
+			this.directChannel = DirectIo.open(file, StandardOpenOption.WRITE);
+		} catch (IOException e) {
+			super.close();
+			throw e;
+		}
+		this.channel = this.file.getChannel();
+
+		length = channel.size();
+		position = length;
+		bufferStart = DirectIo.alignDown(length);
+		buffer = DirectIo.allocate(INITIAL_BUFFER_SIZE);
+
+		// 마지막 page 의 데이터를 읽어둔다.
+		while (bufferStart + buffer.position() < length) {
+			if (channel.read(buffer, bufferStart + buffer.position()) < 0) {
+				break;
+			}
+		}
+		buffer.position((int) (length - bufferStart));
+	}
+
+	@Override
+	long length() {
+		return length;
+	}
+
+	@Override
+	long position() {
+		return position;
+	}
+
+	@Override
+	void seek(long position) throws IOException {
+		if (position < length) {
+			throw new IOException("Can not seek backward in direct mode. position:" + position + ", length:" + length);
+		}
+
+		this.position = position;
+	}
+
+	@Override
+	void write(byte[] data) throws IOException {
+		write(new ByteBuffer[] {ByteBuffer.wrap(data)});
+	}
+
+	/**
+	 * O_DIRECT 는 정렬된 buffer 로만 쓸 수 있으므로 정렬된 buffer 에 모아서 쓴다.
+	 */
+	@Override
+	void write(ByteBuffer[] buffers) throws IOException {
+		int length = 0;
+		for (ByteBuffer data : buffers) {
+			length += data.remaining();
+		}
+
+		int gap = (int) (position - this.length);
+		ensureCapacity(buffer.position() + gap + length);
+
+		for (int i = 0; i < gap; ++i) {
+			buffer.put((byte) 0);
+		}
+		for (ByteBuffer data : buffers) {
+			buffer.put(data);
+		}
+		position += length;
+
+		flush();
+	}
+
+	private void flush() throws IOException {
+		int end = buffer.position();
+		int fullEnd = (int) DirectIo.alignDown(end);
+		int written = (int) (length - bufferStart);
+
+		if (fullEnd > 0 && fullEnd > DirectIo.alignDown(written)) {
+			// 이전에 page cache 로 쓴 부분을 포함하여 다 채운 page 들을 다시 쓴다.
+			ByteBuffer pages = buffer.duplicate();
+			pages.position(0);
+			pages.limit(fullEnd);
+			while (pages.hasRemaining()) {
+				directChannel.write(pages, bufferStart + pages.position());
+			}
+		}
+
+		if (end > fullEnd) {
+			ByteBuffer tail = buffer.duplicate();
+			tail.position(Math.max(written, fullEnd));
+			tail.limit(end);
+			while (tail.hasRemaining()) {
+				channel.write(tail, bufferStart + tail.position());
+			}
+		}
+
+		length = bufferStart + end;
+
+		// 다 채운 page 는 buffer 에서 지운다.
+		if (fullEnd > 0) {
+			buffer.position(fullEnd);
+			buffer.limit(end);
+			buffer.compact();
+			bufferStart += fullEnd;
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > buffer.capacity()) {
+			ByteBuffer larger = DirectIo.allocate((int) DirectIo.alignUp(Math.max(capacity, buffer.capacity() * 2)));
+			buffer.flip();
+			larger.put(buffer);
+			buffer = larger;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			directChannel.close();
+		} finally {
+			super.close();
+		}
+	}
+}
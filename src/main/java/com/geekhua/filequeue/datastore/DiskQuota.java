@@ -0,0 +1,58 @@
+package com.geekhua.filequeue.datastore;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 여러 큐가 함께 사용하는 사용량 제한. (Config.setGlobalQuota)
+ * 큐마다 읽지 않은 데이터의 byte, 개수를 더하고 빼서 유지하므로 확인할 때 파일을 보지 않는다.
+ * 0 이면 제한하지 않는다.
+ */
+public class DiskQuota {
+	private final long maxBytes;
+	private final long maxMessages;
+	private final AtomicLong usedBytes = new AtomicLong();
+	private final AtomicLong usedMessages = new AtomicLong();
+
+	public DiskQuota(long maxBytes, long maxMessages) {
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException("maxBytes is not negative.(maxBytes >= 0)");
+		}
+
+		if (maxMessages < 0) {
+			throw new IllegalArgumentException("maxMessages is not negative.(maxMessages >= 0)");
+		}
+
+		this.maxBytes = maxBytes;
+		this.maxMessages = maxMessages;
+	}
+
+	void add(long bytes, long messages) {
+		usedBytes.addAndGet(bytes);
+		usedMessages.addAndGet(messages);
+	}
+
+	public boolean isExceeded() {
+		return (maxBytes > 0 && usedBytes.get() >= maxBytes) || (maxMessages > 0 && usedMessages.get() >= maxMessages);
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public long getMaxMessages() {
+		return maxMessages;
+	}
+
+	public long getUsedBytes() {
+		return usedBytes.get();
+	}
+
+	public long getUsedMessages() {
+		return usedMessages.get();
+	}
+
+	@Override
+	public String toString() {
+		return "DiskQuota [usedBytes=" + getUsedBytes() + "/" + maxBytes + ", usedMessages=" + getUsedMessages() + "/" + maxMessages + "]";
+	}
+}
@@ -0,0 +1,50 @@
+package com.geekhua.filequeue.datastore;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * nanoseconds 단위의 epoch 시간. System.nanoTime 에 epoch 와의 차이를 더해서 계산하므로 시스템 시간을 읽지 않는다.
+ * 차이는 공유 스레드가 ANCHOR_INTERVAL_MILLIS 마다 시스템 시간으로 다시 맞춘다.
+ * System.nanoTime 과 달리 다른 프로세스에서 기록한 시간과 비교할 수 있지만 다시 맞출 때 뒤로 갈 수 있다.
+ */
+final class EpochClock {
+	private static final long ANCHOR_INTERVAL_MILLIS = 1000L;
+
+	// epoch nanoseconds - System.nanoTime
+	private static volatile long offset = anchor();
+
+	static {
+		Thread ticker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(ANCHOR_INTERVAL_MILLIS);
+					} catch (InterruptedException e) {
+						return;
+					}
+					offset = anchor();
+				}
+			}
+		}, "FileQueue-clock");
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+
+	private EpochClock() {
+	}
+
+	/**
+	 * @return epoch nanoseconds
+	 */
+	static long nanos() {
+		return System.nanoTime() + offset;
+	}
+
+	private static long anchor() {
+		// Java 9 부터 Instant.now 는 millis 보다 정밀하다.
+		Instant now = Instant.now();
+		return TimeUnit.SECONDS.toNanos(now.getEpochSecond()) + now.getNano() - System.nanoTime();
+	}
+}
@@ -0,0 +1,257 @@
+package com.geekhua.filequeue.datastore;
+
+/**
+ * 전달했지만 ack 하지 않은 데이터. sequence 로 찾는 ring buffer 이며 ack 여부는 bitmap 으로 관리한다.
+ * 가장 오래된 데이터(head)부터 연속으로 ack 된 데이터까지만 읽기 위치를 옮길 수 있다.
+ * 파일의 끝(segment end)도 하나의 항목을 차지하며 처음부터 ack 된 것으로 본다.
+ * 만료 시간은 전달한 순서대로 따로 기록하므로 만료된 데이터를 찾을 때 전체를 보지 않는다.
+ * 전달, ack 할 때 할당하지 않으며 동기화하지 않는다.
+ */
+final class InFlightWindow<E> {
+	private static final long SEGMENT_END = -1L;
+	private static final int INITIAL_EXPIRY_CAPACITY = 64;
+
+	private final int maxInFlight;
+	private final int mask;
+	private final Object[] elements;
+	// dead letter 로 옮길 원본. maxDeliveries 를 사용하지 않는다면 null
+	private final byte[][] contents;
+	private final long[] fileNos;
+	// 데이터를 읽은 후의 파일 위치. segment end 라면 SEGMENT_END
+	private final long[] offsets;
+	private final long[] deadlines;
+	private final int[] deliveryCounts;
+	private final long[] ackedBits;
+	// nack 되어 다시 전달하기를 기다리는 항목
+	private final long[] pendingBits;
+	private final long[] redeliveries;
+	private int redeliveryHead;
+	private int redeliveryCount;
+	// 전달한 순서(만료 시간 순서)의 sequence 와 만료 시간. 다시 전달한 항목의 이전 기록은 무시된다.
+	private long[] expirySequences = new long[INITIAL_EXPIRY_CAPACITY];
+	private long[] expiryDeadlines = new long[INITIAL_EXPIRY_CAPACITY];
+	private int expiryHead;
+	private int expiryCount;
+
+	private long head;
+	private long tail;
+	// segment end 를 제외한 항목 개수
+	private int dataCount;
+
+	InFlightWindow(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+		// segment end 를 위한 자리를 더 둔다.
+		int capacity = Math.max(Integer.highestOneBit(maxInFlight) << 2, 64);
+		this.mask = capacity - 1;
+		this.elements = new Object[capacity];
+		this.contents = new byte[capacity][];
+		this.fileNos = new long[capacity];
+		this.offsets = new long[capacity];
+		this.deadlines = new long[capacity];
+		this.deliveryCounts = new int[capacity];
+		this.ackedBits = new long[capacity >>> 6];
+		this.pendingBits = new long[capacity >>> 6];
+		this.redeliveries = new long[capacity];
+	}
+
+	boolean isFull() {
+		return dataCount >= maxInFlight || tail - head > mask;
+	}
+
+	int size() {
+		return (int) (tail - head);
+	}
+
+	/**
+	 * @param content 디코딩하기 전의 원본. dead letter 로 옮기지 않는다면 null
+	 * @param offset 데이터를 읽은 후의 파일 위치
+	 * @param deadline 다시 전달할 시간 (System.nanoTime)
+	 * @return sequence
+	 */
+	long add(E element, byte[] content, long fileNo, long offset, long deadline) {
+		long sequence = tail++;
+		int slot = (int) sequence & mask;
+		elements[slot] = element;
+		contents[slot] = content;
+		fileNos[slot] = fileNo;
+		offsets[slot] = offset;
+		deadlines[slot] = deadline;
+		deliveryCounts[slot] = 1;
+		++dataCount;
+		clear(ackedBits, slot);
+		clear(pendingBits, slot);
+		addExpiry(sequence, deadline);
+		return sequence;
+	}
+
+	void addSegmentEnd(long fileNo) {
+		int slot = (int) tail++ & mask;
+		elements[slot] = null;
+		contents[slot] = null;
+		fileNos[slot] = fileNo;
+		offsets[slot] = SEGMENT_END;
+		set(ackedBits, slot);
+		clear(pendingBits, slot);
+	}
+
+	/**
+	 * @return 이미 ack 했거나 없는 sequence 라면 false
+	 */
+	boolean ack(long sequence) {
+		if (!isUnacked(sequence)) {
+			return false;
+		}
+
+		int slot = (int) sequence & mask;
+		set(ackedBits, slot);
+		elements[slot] = null;
+		contents[slot] = null;
+		return true;
+	}
+
+	/**
+	 * @return 이미 ack 했거나 다시 전달하기를 기다리고 있거나 없는 sequence 라면 false
+	 */
+	boolean nack(long sequence) {
+		if (!isUnacked(sequence) || isSet(pendingBits, (int) sequence & mask)) {
+			return false;
+		}
+
+		set(pendingBits, (int) sequence & mask);
+		redeliveries[(redeliveryHead + redeliveryCount++) & mask] = sequence;
+		return true;
+	}
+
+	/**
+	 * nack 된 항목을 먼저 찾고, 없다면 만료 시간이 지난 항목을 찾는다.
+	 * @return 다시 전달할 sequence, 없다면 -1
+	 */
+	long nextRedelivery(long now) {
+		while (redeliveryCount > 0) {
+			long sequence = redeliveries[redeliveryHead];
+			redeliveryHead = (redeliveryHead + 1) & mask;
+			--redeliveryCount;
+
+			if (isUnacked(sequence) && isSet(pendingBits, (int) sequence & mask)) {
+				clear(pendingBits, (int) sequence & mask);
+				return sequence;
+			}
+		}
+
+		// ack 된 항목의 기록은 만료 시간 전이라도 지워서 기록이 window 크기 이상으로 늘어나지 않게 한다.
+		while (expiryCount > 0) {
+			long sequence = expirySequences[expiryHead];
+			long deadline = expiryDeadlines[expiryHead];
+			int slot = (int) sequence & mask;
+			boolean isLive = isUnacked(sequence) && !isSet(pendingBits, slot) && deadlines[slot] == deadline;
+			if (isLive && deadline - now > 0) {
+				break;
+			}
+
+			expiryHead = (expiryHead + 1) % expirySequences.length;
+			--expiryCount;
+			if (isLive) {
+				return sequence;
+			}
+		}
+
+		return -1L;
+	}
+
+	/**
+	 * 다시 전달한다.
+	 * @return 전달한 횟수
+	 */
+	int redeliver(long sequence, long deadline) {
+		int slot = (int) sequence & mask;
+		deadlines[slot] = deadline;
+		addExpiry(sequence, deadline);
+		return ++deliveryCounts[slot];
+	}
+
+	int deliveryCount(long sequence) {
+		return deliveryCounts[(int) sequence & mask];
+	}
+
+	@SuppressWarnings("unchecked")
+	E element(long sequence) {
+		return (E) elements[(int) sequence & mask];
+	}
+
+	byte[] content(long sequence) {
+		return contents[(int) sequence & mask];
+	}
+
+	boolean isHeadAcked() {
+		return head < tail && isSet(ackedBits, (int) head & mask);
+	}
+
+	boolean isHeadSegmentEnd() {
+		return offsets[(int) head & mask] == SEGMENT_END;
+	}
+
+	long headFileNo() {
+		return fileNos[(int) head & mask];
+	}
+
+	long headOffset() {
+		return offsets[(int) head & mask];
+	}
+
+	void removeHead() {
+		int slot = (int) head++ & mask;
+		if (offsets[slot] != SEGMENT_END) {
+			--dataCount;
+		}
+		elements[slot] = null;
+		contents[slot] = null;
+		clear(ackedBits, slot);
+		clear(pendingBits, slot);
+	}
+
+	/**
+	 * 모든 항목을 지운다. 전달했던 sequence 는 다시 사용하지 않으므로 ack 해도 무시된다.
+	 */
+	void clear() {
+		while (head < tail) {
+			removeHead();
+		}
+
+		redeliveryCount = 0;
+		expiryCount = 0;
+	}
+
+	private boolean isUnacked(long sequence) {
+		return sequence >= head && sequence < tail && !isSet(ackedBits, (int) sequence & mask);
+	}
+
+	private void addExpiry(long sequence, long deadline) {
+		if (expiryCount == expirySequences.length) {
+			long[] sequences = new long[expiryCount * 2];
+			long[] expiries = new long[expiryCount * 2];
+			for (int i = 0; i < expiryCount; ++i) {
+				sequences[i] = expirySequences[(expiryHead + i) % expiryCount];
+				expiries[i] = expiryDeadlines[(expiryHead + i) % expiryCount];
+			}
+			expirySequences = sequences;
+			expiryDeadlines = expiries;
+			expiryHead = 0;
+		}
+
+		int index = (expiryHead + expiryCount++) % expirySequences.length;
+		expirySequences[index] = sequence;
+		expiryDeadlines[index] = deadline;
+	}
+
+	private static boolean isSet(long[] bits, int index) {
+		return (bits[index >>> 6] & (1L << index)) != 0L;
+	}
+
+	private static void set(long[] bits, int index) {
+		bits[index >>> 6] |= 1L << index;
+	}
+
+	private static void clear(long[] bits, int index) {
+		bits[index >>> 6] &= ~(1L << index);
+	}
+}
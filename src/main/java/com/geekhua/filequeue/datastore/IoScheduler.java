@@ -0,0 +1,198 @@
+package com.geekhua.filequeue.datastore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 여러 큐가 함께 사용하는 정해진 개수의 I/O 스레드. (FileQueueManager)
+ * 큐마다 작업 대기열(Lane)을 두고 대기열을 돌아가며 한 번에 weight 개까지 실행한다. (weighted round robin)
+ * 하나의 대기열의 작업은 동시에 실행되지 않으며 넣은 순서대로 실행된다. 큐가 늘어나도 스레드 개수는 바뀌지 않는다.
+ */
+public class IoScheduler {
+	private static final Logger log = LoggerFactory.getLogger(IoScheduler.class);
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	// 실행할 작업이 있고 실행 중이 아닌 대기열
+	private final Deque<Lane> ready = new ArrayDeque<>();
+	private final Thread[] threads;
+	private boolean isStopped = false;
+
+	public IoScheduler(int threadCount, String name) {
+		if (threadCount <= 0) {
+			throw new IllegalArgumentException("threadCount is bigger than zero.(threadCount > 0)");
+		}
+
+		threads = new Thread[threadCount];
+		for (int i = 0; i < threadCount; ++i) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, "FileQueue-io-" + name + "-" + i);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+	}
+
+	/**
+	 * @param weight 차례가 왔을 때 연속으로 실행할 작업 개수
+	 */
+	public Lane register(String name, int weight) {
+		if (weight <= 0) {
+			throw new IllegalArgumentException("weight is bigger than zero.(weight > 0)");
+		}
+
+		return new Lane(name, weight);
+	}
+
+	public int getThreadCount() {
+		return threads.length;
+	}
+
+	/**
+	 * 대기 중인 작업을 모두 실행한 후 스레드를 멈춘다.
+	 */
+	public void shutdown() {
+		lock.lock();
+		try {
+			isStopped = true;
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private void work() {
+		while (true) {
+			Lane lane;
+			lock.lock();
+			try {
+				while (ready.isEmpty() && !isStopped) {
+					notEmpty.awaitUninterruptibly();
+				}
+
+				lane = ready.pollFirst();
+				if (lane == null) {
+					return;
+				}
+				lane.isRunning = true;
+			} finally {
+				lock.unlock();
+			}
+
+			for (int i = 0; i < lane.weight; ++i) {
+				Runnable task;
+				lock.lock();
+				try {
+					task = lane.tasks.pollFirst();
+				} finally {
+					lock.unlock();
+				}
+
+				if (task == null) {
+					break;
+				}
+
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					log.error(String.format("Run task of queue(%s) fail.", lane.name), e);
+				}
+			}
+
+			lock.lock();
+			try {
+				lane.isRunning = false;
+				if (!lane.tasks.isEmpty()) {
+					// 차례를 다 사용했다면 뒤로 보낸다.
+					ready.addLast(lane);
+					notEmpty.signal();
+				} else {
+					lane.idle.signalAll();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * 하나의 큐의 작업 대기열.
+	 */
+	public class Lane {
+		private final String name;
+		private final int weight;
+		private final Deque<Runnable> tasks = new ArrayDeque<>();
+		private final Condition idle = lock.newCondition();
+		private boolean isRunning = false;
+
+		private Lane(String name, int weight) {
+			this.name = name;
+			this.weight = weight;
+		}
+
+		/**
+		 * @return 스케줄러가 멈췄다면 false
+		 */
+		boolean submit(Runnable task) {
+			lock.lock();
+			try {
+				if (isStopped) {
+					return false;
+				}
+
+				tasks.addLast(task);
+				if (tasks.size() == 1 && !isRunning) {
+					ready.addLast(this);
+					notEmpty.signal();
+				}
+				return true;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * @return 실행을 기다리는 작업 개수
+		 */
+		int pending() {
+			lock.lock();
+			try {
+				return tasks.size();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * 대기 중인 작업이 모두 실행될 때까지 기다린다.
+		 */
+		void awaitIdle() {
+			lock.lock();
+			try {
+				// 스케줄러가 멈춰도 스레드는 대기열을 모두 비운 후 끝나므로 기다리면 된다.
+				while (!tasks.isEmpty() || isRunning) {
+					idle.awaitUninterruptibly();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
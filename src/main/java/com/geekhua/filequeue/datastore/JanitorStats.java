@@ -0,0 +1,128 @@
+package com.geekhua.filequeue.datastore;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 읽기가 완료된 파일을 정리(삭제, 백업)하는 작업의 통계.
+ */
+public class JanitorStats {
+	private final AtomicLong submittedCount = new AtomicLong();
+	private final AtomicLong completedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong inlineCount = new AtomicLong();
+	private final AtomicLong backlog = new AtomicLong();
+	private final AtomicLong processedBytes = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+	private final AtomicLong expiredCount = new AtomicLong();
+	private volatile long backupFileCount;
+	private volatile long backupBytes;
+
+	void submitted() {
+		submittedCount.incrementAndGet();
+		backlog.incrementAndGet();
+	}
+
+	void dequeued() {
+		backlog.decrementAndGet();
+	}
+
+	void inline() {
+		inlineCount.incrementAndGet();
+	}
+
+	void processed(boolean isSuccess, long bytes, long elapsedNanos) {
+		if (isSuccess) {
+			completedCount.incrementAndGet();
+			processedBytes.addAndGet(bytes);
+		} else {
+			failedCount.incrementAndGet();
+		}
+
+		totalNanos.addAndGet(elapsedNanos);
+
+		long max = maxNanos.get();
+		while (elapsedNanos > max && !maxNanos.compareAndSet(max, elapsedNanos)) {
+			max = maxNanos.get();
+		}
+	}
+
+	void expired(int count) {
+		expiredCount.addAndGet(count);
+	}
+
+	void backup(long fileCount, long bytes) {
+		this.backupFileCount = fileCount;
+		this.backupBytes = bytes;
+	}
+
+	/**
+	 * @return 정리를 요청한 파일 개수
+	 */
+	public long getSubmittedCount() {
+		return submittedCount.get();
+	}
+
+	public long getCompletedCount() {
+		return completedCount.get();
+	}
+
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * @return 대기열이 가득 차서 요청한 스레드에서 직접 정리한 파일 개수
+	 */
+	public long getInlineCount() {
+		return inlineCount.get();
+	}
+
+	/**
+	 * @return 정리를 기다리고 있는 파일 개수
+	 */
+	public long getBacklog() {
+		return backlog.get();
+	}
+
+	public long getProcessedBytes() {
+		return processedBytes.get();
+	}
+
+	public long getTotalNanos() {
+		return totalNanos.get();
+	}
+
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	/**
+	 * @return 보관 정책(개수, 크기, 기간)에 의해 삭제된 백업 파일 개수
+	 */
+	public long getExpiredCount() {
+		return expiredCount.get();
+	}
+
+	/**
+	 * @return 보관 정책을 사용할 때 백업 폴더에 있는 파일 개수
+	 */
+	public long getBackupFileCount() {
+		return backupFileCount;
+	}
+
+	/**
+	 * @return 보관 정책을 사용할 때 백업 폴더에 있는 파일 크기의 합
+	 */
+	public long getBackupBytes() {
+		return backupBytes;
+	}
+
+	@Override
+	public String toString() {
+		return "JanitorStats [submitted=" + getSubmittedCount() + ", completed=" + getCompletedCount() + ", failed=" + getFailedCount()
+				+ ", inline=" + getInlineCount() + ", backlog=" + getBacklog() + ", bytes=" + getProcessedBytes()
+				+ ", totalNanos=" + getTotalNanos() + ", maxNanos=" + getMaxNanos() + ", expired=" + getExpiredCount()
+				+ ", backupFiles=" + getBackupFileCount() + ", backupBytes=" + getBackupBytes() + "]";
+	}
+}
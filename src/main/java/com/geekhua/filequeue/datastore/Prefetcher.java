@@ -0,0 +1,171 @@
+package com.geekhua.filequeue.datastore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 소비자가 메시지를 처리하는 동안 백그라운드 스레드에서 다음 메시지들을 미리 읽고 디코딩해 둔다.
+ * 버퍼는 개수(maxCount)와 content 바이트 합(maxBytes)으로 제한된다.
+ * meta 는 소비자에게 전달될 때만 갱신되기 때문에 버퍼에 남은 데이터는 close 시 버려도 다시 읽을 수 있다.
+ */
+class Prefetcher<E> {
+	private static final Logger log = LoggerFactory.getLogger(Prefetcher.class);
+
+	// 읽을 데이터가 없을 때 최대로 기다리는 시간. put 이 발생하면 바로 깨운다.
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final long FAILURE_BACKOFF_MILLIS = 100L;
+
+	interface Source<E> {
+		/**
+		 * @return 읽을 데이터가 없으면 null
+		 */
+		ReadResult<E> readNext() throws IOException;
+	}
+
+	private final Source<E> source;
+	private final int maxCount;
+	private final long maxBytes;
+	private final String name;
+
+	private final ArrayDeque<ReadResult<E>> buffer = new ArrayDeque<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notFull = lock.newCondition();
+	private int count;
+	private long bytes;
+
+	private volatile boolean isStopped = false;
+	private volatile boolean isIdle = false;
+	private Thread thread;
+
+	Prefetcher(Source<E> source, int maxCount, long maxBytes, String name) {
+		this.source = source;
+		this.maxCount = maxCount;
+		this.maxBytes = maxBytes;
+		this.name = name;
+	}
+
+	void start() {
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				fill();
+			}
+		}, "FileQueue-prefetch-" + name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void fill() {
+		while (!isStopped) {
+			ReadResult<E> result;
+			try {
+				result = source.readNext();
+			} catch (Exception e) {
+				log.error(String.format("Prefetch fail. queue:%s", name), e);
+				result = ReadResult.failure(e instanceof IOException ? (IOException) e : new IOException(e));
+			}
+
+			if (result == null) {
+				isIdle = true;
+				LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+				isIdle = false;
+			} else if (!offer(result)) {
+				return;
+			} else if (result.getFailure() != null) {
+				try {
+					Thread.sleep(FAILURE_BACKOFF_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	private boolean offer(ReadResult<E> result) {
+		lock.lock();
+		try {
+			// 버퍼가 비어 있다면 maxBytes 보다 큰 데이터도 하나는 넣을 수 있다.
+			while (!isStopped && count > 0 && (count >= maxCount || bytes + result.getContentLength() > maxBytes)) {
+				notFull.awaitUninterruptibly();
+			}
+
+			if (isStopped) {
+				return false;
+			}
+
+			buffer.addLast(result);
+			++count;
+			bytes += result.getContentLength();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return 미리 읽어둔 데이터가 없다면 null
+	 */
+	ReadResult<E> poll() {
+		lock.lock();
+		try {
+			ReadResult<E> result = buffer.pollFirst();
+			if (result != null) {
+				--count;
+				bytes -= result.getContentLength();
+				notFull.signal();
+			}
+
+			return result;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 새로운 데이터가 쓰여졌음을 알린다.
+	 */
+	void wakeUp() {
+		if (isIdle) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * 스레드를 멈추고 미리 읽어둔 데이터를 버린다.
+	 */
+	void stop() {
+		isStopped = true;
+
+		lock.lock();
+		try {
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+
+		if (thread != null) {
+			LockSupport.unpark(thread);
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		lock.lock();
+		try {
+			buffer.clear();
+			count = 0;
+			bytes = 0L;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package com.geekhua.filequeue.datastore;
+
+import com.geekhua.filequeue.AccessMode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 여러 프로세스(JVM)가 같은 큐 폴더를 동시에 쓰거나 읽지 않도록 큐 폴더의 lock 파일을 잠근다.
+ * lock 파일의 첫 번째 byte 는 쓰기, 두 번째 byte 는 읽기를 나타내며 EXCLUSIVE 는 두 byte 를 모두 잠근다.
+ * COMPETING_CONSUMER 는 읽기 byte 를 공유 잠금(shared lock)한다.
+ */
+class QueueLock {
+	private static final String LOCK_FILE_NAME = "lock";
+	private static final long WRITER_POSITION = 0L;
+	private static final long READER_POSITION = 1L;
+
+	// 같은 JVM 안에서는 같은 영역을 두 번 잠글 수 없으므로 공유 잠금은 lock 파일마다 하나만 만들어서 함께 사용한다.
+	private static final Map<File, SharedLock> sharedLocks = new HashMap<>();
+
+	private final RandomAccessFile lockFile;
+	private FileLock writerLock;
+	private FileLock readerLock;
+	private SharedLock sharedReaderLock;
+
+	private QueueLock(RandomAccessFile lockFile) {
+		this.lockFile = lockFile;
+	}
+
+	/**
+	 * @throws IOException 다른 프로세스(또는 같은 프로세스의 다른 큐)가 이미 같은 방식으로 열었다면
+	 */
+	static QueueLock acquire(File queueDir, AccessMode accessMode) throws IOException {
+		QueueLock lock = new QueueLock(new RandomAccessFile(new File(queueDir, LOCK_FILE_NAME), "rw"));
+
+		try {
+			FileChannel channel = lock.lockFile.getChannel();
+			if (accessMode.isWritable()) {
+				lock.writerLock = tryLock(channel, WRITER_POSITION, false, queueDir, "writer");
+			}
+
+			if (accessMode.isCompeting()) {
+				lock.sharedReaderLock = acquireShared(queueDir);
+			} else if (accessMode.isReadable()) {
+				lock.readerLock = tryLock(channel, READER_POSITION, false, queueDir, "reader");
+			}
+		} catch (IOException e) {
+			lock.release();
+			throw e;
+		}
+
+		return lock;
+	}
+
+	private static FileLock tryLock(FileChannel channel, long position, boolean isShared, File queueDir, String role) throws IOException {
+		FileLock fileLock;
+		try {
+			fileLock = channel.tryLock(position, 1L, isShared);
+		} catch (OverlappingFileLockException e) {
+			fileLock = null;
+		}
+
+		if (fileLock == null) {
+			throw new IOException("Queue(" + queueDir.getAbsolutePath() + ") is already opened by another " + role + ".");
+		}
+
+		return fileLock;
+	}
+
+	private static SharedLock acquireShared(File queueDir) throws IOException {
+		File key = new File(queueDir, LOCK_FILE_NAME).getCanonicalFile();
+
+		synchronized (sharedLocks) {
+			SharedLock sharedLock = sharedLocks.get(key);
+			if (sharedLock == null) {
+				RandomAccessFile file = new RandomAccessFile(key, "rw");
+				try {
+					sharedLock = new SharedLock(key, file, tryLock(file.getChannel(), READER_POSITION, true, queueDir, "reader"));
+				} catch (IOException e) {
+					file.close();
+					throw e;
+				}
+				sharedLocks.put(key, sharedLock);
+			}
+
+			++sharedLock.count;
+			return sharedLock;
+		}
+	}
+
+	private static void releaseShared(SharedLock sharedLock) throws IOException {
+		synchronized (sharedLocks) {
+			if (--sharedLock.count == 0) {
+				sharedLocks.remove(sharedLock.key);
+				try {
+					sharedLock.fileLock.release();
+				} finally {
+					sharedLock.file.close();
+				}
+			}
+		}
+	}
+
+	void release() throws IOException {
+		try {
+			if (writerLock != null) {
+				writerLock.release();
+			}
+
+			if (readerLock != null) {
+				readerLock.release();
+			}
+
+			if (sharedReaderLock != null) {
+				releaseShared(sharedReaderLock);
+				sharedReaderLock = null;
+			}
+		} finally {
+			lockFile.close();
+		}
+	}
+
+	private static class SharedLock {
+		private final File key;
+		private final RandomAccessFile file;
+		private final FileLock fileLock;
+		private int count;
+
+		private SharedLock(File key, RandomAccessFile file, FileLock fileLock) {
+			this.key = key;
+			this.file = file;
+			this.fileLock = fileLock;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package com.geekhua.filequeue.datastore;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 큐의 읽지 않은 데이터의 byte, 개수. 쓸 때 더하고 읽을 때 빼며, 바뀐 만큼 공유 사용량(DiskQuota)에도 반영한다.
+ * byte 는 header, padding, 파일의 end block 을 포함한 파일 크기이다.
+ * 어긋난 값(rewind, 만료되어 건너뛴 데이터)은 큐가 비었을 때나 파일 크기로 다시 계산할 때 맞춰진다.
+ */
+final class QueueUsage {
+	private final long maxBytes;
+	private final long maxMessages;
+	// null 이면 공유 사용량을 사용하지 않는다.
+	private final DiskQuota global;
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong messages = new AtomicLong();
+
+	QueueUsage(long maxBytes, long maxMessages, DiskQuota global) {
+		this.maxBytes = maxBytes;
+		this.maxMessages = maxMessages;
+		this.global = global;
+	}
+
+	void add(long bytes, long messages) {
+		long addedBytes = add(this.bytes, bytes);
+		long addedMessages = add(this.messages, messages);
+		if (global != null) {
+			global.add(addedBytes, addedMessages);
+		}
+	}
+
+	void reset(long bytes, long messages) {
+		add(bytes - this.bytes.get(), messages - this.messages.get());
+	}
+
+	void resetBytes(long bytes) {
+		add(bytes - this.bytes.get(), 0L);
+	}
+
+	boolean isExceeded() {
+		return (maxBytes > 0 && bytes.get() >= maxBytes) || (maxMessages > 0 && messages.get() >= maxMessages)
+				|| (global != null && global.isExceeded());
+	}
+
+	long bytes() {
+		return bytes.get();
+	}
+
+	long messages() {
+		return messages.get();
+	}
+
+	/**
+	 * 0 보다 작아지지 않게 더한다.
+	 * @return 실제로 더한 값
+	 */
+	private static long add(AtomicLong counter, long delta) {
+		while (true) {
+			long current = counter.get();
+			long next = Math.max(current + delta, 0L);
+			if (counter.compareAndSet(current, next)) {
+				return next - current;
+			}
+		}
+	}
+}
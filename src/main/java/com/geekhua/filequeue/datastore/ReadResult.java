@@ -0,0 +1,120 @@
+package com.geekhua.filequeue.datastore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 파일에서 읽은 하나의 결과.
+ * 데이터, 건너뛴 데이터(dead letter 로 옮김), 파일의 끝(segment end), 읽기 실패 중 하나를 나타내며
+ * 소비자에게 전달될 때 meta 에 기록할 위치(fileNo, offset)를 함께 가지고 있다.
+ */
+final class ReadResult<E> {
+	private final E element;
+	// 디코딩하기 전의 원본. data 가 아니라면 null
+	private final byte[] content;
+	// 디코딩하지 않고 읽은 buffer 의 content 부분. 다음 데이터를 읽기 전까지만 사용할 수 있다.
+	private final ByteBuffer view;
+	private final int contentLength;
+	// 쓴 시간 (epoch nanoseconds). 기록하지 않았다면 0
+	private final long timestamp;
+	private final long fileNo;
+	private final long offset;
+	private final boolean segmentEnd;
+	private final boolean skipped;
+	private final IOException failure;
+
+	private ReadResult(E element, byte[] content, ByteBuffer view, int contentLength, long timestamp, long fileNo, long offset, boolean segmentEnd, boolean skipped, IOException failure) {
+		this.element = element;
+		this.content = content;
+		this.view = view;
+		this.contentLength = contentLength;
+		this.timestamp = timestamp;
+		this.fileNo = fileNo;
+		this.offset = offset;
+		this.segmentEnd = segmentEnd;
+		this.skipped = skipped;
+		this.failure = failure;
+	}
+
+	/**
+	 * @param content 디코딩하기 전의 원본
+	 * @param timestamp 쓴 시간 (epoch nanoseconds). 기록하지 않았다면 0
+	 * @param offset 데이터를 읽은 후의 파일 위치
+	 */
+	static <E> ReadResult<E> data(E element, byte[] content, long timestamp, long fileNo, long offset) {
+		return new ReadResult<>(element, content, null, content.length, timestamp, fileNo, offset, false, false, null);
+	}
+
+	/**
+	 * 디코딩하지 않은 데이터. (BlockGroup.readView)
+	 * @param offset 데이터를 읽은 후의 파일 위치
+	 */
+	static <E> ReadResult<E> view(ByteBuffer view, long timestamp, long fileNo, long offset) {
+		return new ReadResult<>(null, null, view, view.remaining(), timestamp, fileNo, offset, false, false, null);
+	}
+
+	/**
+	 * 전달하지 않고 읽기 위치만 옮기는 데이터.
+	 * @param offset 데이터를 읽은 후의 파일 위치
+	 */
+	static <E> ReadResult<E> skipped(long fileNo, long offset) {
+		return new ReadResult<>(null, null, null, 0, 0L, fileNo, offset, false, true, null);
+	}
+
+	/**
+	 * @param fileNo 읽기가 끝난 파일 번호
+	 */
+	static <E> ReadResult<E> segmentEnd(long fileNo) {
+		return new ReadResult<>(null, null, null, 0, 0L, fileNo, 0L, true, false, null);
+	}
+
+	static <E> ReadResult<E> failure(IOException failure) {
+		return new ReadResult<>(null, null, null, 0, 0L, -1L, 0L, false, false, failure);
+	}
+
+	E getElement() {
+		return element;
+	}
+
+	/**
+	 * @return data 가 아니라면 null
+	 */
+	byte[] getContent() {
+		return content;
+	}
+
+	/**
+	 * @return view 로 읽지 않았다면 null
+	 */
+	ByteBuffer getView() {
+		return view;
+	}
+
+	int getContentLength() {
+		return contentLength;
+	}
+
+	long getTimestamp() {
+		return timestamp;
+	}
+
+	long getFileNo() {
+		return fileNo;
+	}
+
+	long getOffset() {
+		return offset;
+	}
+
+	boolean isSegmentEnd() {
+		return segmentEnd;
+	}
+
+	boolean isSkipped() {
+		return skipped;
+	}
+
+	IOException getFailure() {
+		return failure;
+	}
+}
@@ -0,0 +1,124 @@
+package com.geekhua.filequeue.datastore;
+
+import com.geekhua.filequeue.codec.Codec;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 지정한 위치부터 데이터를 다시 읽는 읽기 전용 cursor.
+ * 백업 폴더의 파일(압축된 파일 포함)부터 읽고 이어서 데이터 폴더의 파일을 읽는다.
+ * meta 를 변경하지 않기 때문에 큐의 소비자에게 영향을 주지 않는다.
+ */
+public class ReplayCursor<E> implements Closeable {
+	private final File dataDir;
+	private final File backDir;
+	private final int blockSize;
+	private final int bufferSize;
+	private final Codec codec;
+	private final AtomicLong writingFileNo;
+
+	private SegmentReader reader;
+	private long fileNo;
+	private long offset;
+	private boolean isClosed = false;
+	// 읽은 batch 에서 아직 반환하지 않은 데이터
+	private final Deque<byte[]> records = new ArrayDeque<>();
+
+	ReplayCursor(File dataDir, File backDir, long fileNo, long offset, int blockSize, int bufferSize, Codec codec, AtomicLong writingFileNo) {
+		this.dataDir = dataDir;
+		this.backDir = backDir;
+		this.fileNo = fileNo;
+		this.offset = offset;
+		this.blockSize = blockSize;
+		this.bufferSize = bufferSize;
+		this.codec = codec;
+		this.writingFileNo = writingFileNo;
+	}
+
+	/**
+	 * @return 쓰여진 데이터를 모두 읽었다면 null. 이후에 데이터가 추가되면 다시 읽을 수 있다.
+	 */
+	@SuppressWarnings("unchecked")
+	public E next() throws IOException {
+		if (records.isEmpty()) {
+			BlockGroup blockGroup = nextBlockGroup();
+			if (blockGroup == null) {
+				return null;
+			}
+
+			if (!blockGroup.isBatch()) {
+				return (E) codec.decode(blockGroup.getContent());
+			}
+			records.addAll(blockGroup.records());
+		}
+
+		return (E) codec.decode(records.poll());
+	}
+
+	BlockGroup nextBlockGroup() throws IOException {
+		if (isClosed) {
+			throw new IOException("Replay cursor is closed.");
+		}
+
+		while (true) {
+			long lastWritingFileNo = writingFileNo.get();
+
+			if (reader == null) {
+				reader = SegmentReader.open(dataDir, backDir, fileNo, offset, blockSize, bufferSize);
+			}
+
+			BlockGroup blockGroup = reader != null ? reader.next() : null;
+			// commit, abort marker 는 건너뛴다.
+			if (blockGroup != null && !blockGroup.isData() && !blockGroup.isBatch()) {
+				offset = reader.offset();
+				continue;
+			}
+
+			if (blockGroup != null && !blockGroup.isEnd()) {
+				offset = reader.offset();
+				return blockGroup;
+			}
+
+			// 파일이 끝났거나 보관 정책에 의해 삭제된 파일이라면 다음 파일을 읽는다.
+			if (fileNo < lastWritingFileNo) {
+				closeReader();
+				++fileNo;
+				offset = 0L;
+			} else {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * @return 다음에 읽을 파일 번호
+	 */
+	public long getFileNo() {
+		return fileNo;
+	}
+
+	/**
+	 * @return 다음에 읽을 파일 위치. batch 를 읽는 중이라면 batch 다음의 위치
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	private void closeReader() throws IOException {
+		if (reader != null) {
+			reader.close();
+			reader = null;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		isClosed = true;
+		closeReader();
+	}
+}
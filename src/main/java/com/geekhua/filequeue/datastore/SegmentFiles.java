@@ -0,0 +1,55 @@
+package com.geekhua.filequeue.datastore;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * 큐 파일(segment) 이름 규칙.
+ * 데이터 파일 : q-000000000000000001.fq
+ * 압축된 백업 파일 : q-000000000000000001.fq.gz
+ */
+final class SegmentFiles {
+	static final String DATAFILE_PREFIX = "q-";
+	static final String DATAFILE_EXTENSION = ".fq";
+	static final String COMPRESSED_EXTENSION = ".gz";
+	static final String INDEX_EXTENSION = ".idx";
+
+	private SegmentFiles() {
+
+	}
+
+	static String dataFileName(long fileNo) {
+		return DATAFILE_PREFIX + String.format("%018d", fileNo) + DATAFILE_EXTENSION;
+	}
+
+	static String compressedFileName(long fileNo) {
+		return dataFileName(fileNo) + COMPRESSED_EXTENSION;
+	}
+
+	/**
+	 * 시간 인덱스 파일 : q-000000000000000001.idx
+	 */
+	static String indexFileName(long fileNo) {
+		return DATAFILE_PREFIX + String.format("%018d", fileNo) + INDEX_EXTENSION;
+	}
+
+	static boolean isDataFile(String fileName) {
+		return StringUtils.startsWith(fileName, DATAFILE_PREFIX) && StringUtils.endsWith(fileName, DATAFILE_EXTENSION);
+	}
+
+	static boolean isCompressedFile(String fileName) {
+		return StringUtils.startsWith(fileName, DATAFILE_PREFIX) && StringUtils.endsWith(fileName, DATAFILE_EXTENSION + COMPRESSED_EXTENSION);
+	}
+
+	/**
+	 * @param fileName q-000000000000000001.fq 또는 q-000000000000000001.fq.gz 형식
+	 * @return 파일 큐 이름이 q-000000000000000001.fq 이면 1을 반환
+	 */
+	static long fileNumber(String fileName) {
+		if (StringUtils.isBlank(fileName)) {
+			return 0L;
+		}
+
+		int end = fileName.indexOf(DATAFILE_EXTENSION, DATAFILE_PREFIX.length());
+		return Long.valueOf(fileName.substring(DATAFILE_PREFIX.length(), end));
+	}
+}
@@ -0,0 +1,254 @@
+package com.geekhua.filequeue.datastore;
+
+import com.geekhua.filequeue.Config;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 읽기가 완료된 파일을 백그라운드 스레드에서 삭제하거나 백업 폴더로 옮긴다. (필요하면 압축한다.)
+ * 백업 폴더가 다른 파일 시스템에 있으면 이동은 전체 복사가 되기 때문에 take() 에서 직접 수행하지 않는다.
+ * 대기열(maxBacklog)이 가득 차면 요청한 스레드에서 직접 정리한다.
+ * 공유 스케줄러(IoScheduler)의 대기열(lane)이 주어지면 스레드를 만들지 않고 스케줄러에서 정리한다.
+ * 이 때는 새로운 파일을 정리할 때만 보관 기간이 지난 백업 파일을 삭제한다.
+ */
+class SegmentJanitor {
+	private static final Logger log = LoggerFactory.getLogger(SegmentJanitor.class);
+
+	private static final File STOP = new File("");
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+	private static final long RETENTION_CHECK_INTERVAL_MILLIS = 1000L;
+
+	private final File backDir;
+	private final boolean isBackupReadFile;
+	private final boolean isCompress;
+	private final String name;
+	private final BlockingQueue<File> backlog;
+	private final BackupRetention retention;
+	private final JanitorStats stats = new JanitorStats();
+	private final IoScheduler.Lane lane;
+	private final int maxBacklog;
+
+	private Thread thread;
+
+	SegmentJanitor(File backDir, Config config) {
+		this(backDir, config, null);
+	}
+
+	SegmentJanitor(File backDir, Config config, IoScheduler.Lane lane) {
+		this.backDir = backDir;
+		this.isBackupReadFile = config.isBackupReadFile();
+		this.isCompress = config.isBackupCompress();
+		this.name = config.getName();
+		// janitorBacklog 가 0 이면 백그라운드 스레드를 사용하지 않는다.
+		this.maxBacklog = config.getJanitorBacklog();
+		this.lane = maxBacklog > 0 ? lane : null;
+		this.backlog = maxBacklog > 0 && lane == null ? new ArrayBlockingQueue<File>(maxBacklog + 1) : null;
+		this.retention = new BackupRetention(backDir, config.getBackupMaxBytes(), config.getBackupMaxAgeMillis(), config.getBackupMaxFiles());
+	}
+
+	void start() {
+		if (isBackupReadFile && retention.isEnabled()) {
+			retention.load();
+			enforceRetention();
+		}
+
+		if (backlog != null) {
+			thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, "FileQueue-janitor-" + name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private void work() {
+		boolean isCheckAge = isBackupReadFile && retention.hasAgeLimit();
+
+		while (true) {
+			File segment;
+			try {
+				// 보관 기간이 있다면 새로운 파일이 없어도 주기적으로 오래된 백업 파일을 삭제한다.
+				segment = isCheckAge ? backlog.poll(RETENTION_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS) : backlog.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			if (segment == STOP) {
+				return;
+			}
+
+			if (segment != null) {
+				stats.dequeued();
+				clean(segment);
+			} else {
+				enforceRetention();
+			}
+		}
+	}
+
+	/**
+	 * 정리할 파일을 전달한다.
+	 */
+	void submit(final File segment) {
+		stats.submitted();
+
+		if (lane != null) {
+			if (lane.pending() >= maxBacklog || !lane.submit(new Runnable() {
+				@Override
+				public void run() {
+					stats.dequeued();
+					clean(segment);
+				}
+			})) {
+				stats.dequeued();
+				stats.inline();
+				clean(segment);
+			}
+			return;
+		}
+
+		// STOP 을 넣을 자리 하나는 남겨둔다.
+		if (backlog == null || backlog.remainingCapacity() <= 1 || !backlog.offer(segment)) {
+			stats.dequeued();
+			stats.inline();
+			clean(segment);
+		}
+	}
+
+	private void clean(File segment) {
+		long start = System.nanoTime();
+		long length = segment.length();
+		boolean isSuccess = true;
+
+		if (isBackupReadFile) {
+			try {
+				File archived = isCompress ? compress(segment) : move(segment);
+				if (retention.isEnabled()) {
+					retention.add(archived, SegmentFiles.fileNumber(segment.getName()));
+				}
+			} catch (IOException e) {
+				isSuccess = false;
+				log.warn(String.format("Move file(%s) to dir(%s) fail.", segment, backDir), e);
+			}
+		} else {
+			isSuccess = FileUtils.deleteQuietly(segment);
+			if (!isSuccess) {
+				log.warn("Delete file({}) fail.", segment);
+			}
+		}
+
+		cleanIndex(segment);
+		stats.processed(isSuccess, length, System.nanoTime() - start);
+
+		if (isBackupReadFile) {
+			enforceRetention();
+		}
+	}
+
+	/**
+	 * 시간 인덱스는 압축하지 않고 큐 파일과 함께 옮기거나 삭제한다.
+	 */
+	private void cleanIndex(File segment) {
+		File index = new File(segment.getParentFile(), SegmentFiles.indexFileName(SegmentFiles.fileNumber(segment.getName())));
+		if (!index.exists()) {
+			return;
+		}
+
+		if (isBackupReadFile) {
+			try {
+				FileUtils.deleteQuietly(new File(backDir, index.getName()));
+				FileUtils.moveFileToDirectory(index, backDir, true);
+			} catch (IOException e) {
+				log.warn(String.format("Move file(%s) to dir(%s) fail.", index, backDir), e);
+			}
+		} else if (!FileUtils.deleteQuietly(index)) {
+			log.warn("Delete file({}) fail.", index);
+		}
+	}
+
+	private File move(File segment) throws IOException {
+		FileUtils.moveFileToDirectory(segment, backDir, true);
+		return new File(backDir, segment.getName());
+	}
+
+	/**
+	 * gzip 으로 압축하여 백업 폴더에 저장한 후 원본 파일을 삭제한다.
+	 * 압축이 끝나기 전에 종료되어도 온전하지 않은 파일이 남지 않도록 임시 파일에 압축한 후 이름을 바꾼다.
+	 */
+	private File compress(File segment) throws IOException {
+		File target = new File(backDir, segment.getName() + SegmentFiles.COMPRESSED_EXTENSION);
+		File temp = new File(backDir, target.getName() + BackupRetention.TEMP_EXTENSION);
+
+		byte[] buffer = new byte[COPY_BUFFER_SIZE];
+		try (InputStream in = new FileInputStream(segment);
+			 OutputStream out = new GZIPOutputStream(new FileOutputStream(temp), COPY_BUFFER_SIZE)) {
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, n);
+			}
+		} catch (IOException e) {
+			FileUtils.deleteQuietly(temp);
+			throw e;
+		}
+
+		// 보관 기간은 원본 파일의 마지막 수정 시간을 기준으로 한다.
+		if (!temp.setLastModified(segment.lastModified())) {
+			log.debug("Set last modified time of file({}) fail.", temp);
+		}
+
+		FileUtils.deleteQuietly(target);
+		if (!temp.renameTo(target)) {
+			FileUtils.deleteQuietly(temp);
+			throw new IOException("Rename file(" + temp + ") to (" + target + ") fail.");
+		}
+
+		FileUtils.forceDelete(segment);
+		return target;
+	}
+
+	private void enforceRetention() {
+		if (retention.isEnabled()) {
+			stats.expired(retention.enforce(System.currentTimeMillis()));
+			stats.backup(retention.getFileCount(), retention.getTotalBytes());
+		}
+	}
+
+	/**
+	 * 대기 중인 파일을 모두 정리한 후 스레드를 멈춘다.
+	 */
+	void stop() {
+		if (lane != null) {
+			lane.awaitIdle();
+		}
+
+		if (thread != null) {
+			try {
+				backlog.put(STOP);
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			thread = null;
+		}
+	}
+
+	JanitorStats getStats() {
+		return stats;
+	}
+}
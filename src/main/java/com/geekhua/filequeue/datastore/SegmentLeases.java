@@ -0,0 +1,420 @@
+package com.geekhua.filequeue.datastore;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 여러 프로세스의 COMPETING_CONSUMER 가 큐 파일(segment)을 나눠서 읽도록 lease 파일로 소유권을 관리한다.
+ * lease 폴더의 q-000000000000000001.lease 파일 형식 : | heartbeat(8) | offset(8) | owner(8) |
+ * heartbeat 는 소유한 프로세스가 주기적으로 갱신하는 시간(epoch millis)이며 offset 은 마지막으로 전달한 데이터의 다음 위치이다.
+ *
+ * lease 는 내용을 쓴 임시 파일을 hard link 로 만들기 때문에 이미 있다면 실패한다.
+ * 만료된 lease 는 rename 으로 가져오므로 하나의 프로세스만 마지막 offset 부터 이어서 읽는다.
+ * 다 읽은 파일의 lease 는 q-000000000000000001.done 으로 바뀌며 큐 파일이 정리된 후에 삭제된다.
+ */
+class SegmentLeases {
+	private static final Logger log = LoggerFactory.getLogger(SegmentLeases.class);
+
+	private static final String LEASE_DIR = "lease";
+	private static final String LEASE_EXTENSION = ".lease";
+	private static final String DONE_EXTENSION = ".done";
+	// lease 를 만들거나 가져오는 동안 사용하는 임시 파일. q-000000000000000001.claim-<owner>
+	private static final String CLAIM_EXTENSION = ".claim-";
+	private static final String EXPIRED_EXTENSION = ".expired-";
+	private static final int LEASE_FILE_SIZE = 24;
+	private static final int HEARTBEAT_POSITION = 0;
+	private static final int OFFSET_POSITION = 8;
+	private static final int OWNER_POSITION = 16;
+
+	private final File dir;
+	private final File dataDir;
+	private final long timeoutMillis;
+	private final String name;
+	private final long owner;
+	private final String ownerName;
+	private final ConcurrentMap<Long, Lease> leases = new ConcurrentHashMap<>();
+	private final Object signal = new Object();
+
+	private Thread thread;
+	private volatile boolean isStopped = false;
+
+	SegmentLeases(File queueDir, File dataDir, long timeoutMillis, String name) {
+		this.dir = new File(queueDir, LEASE_DIR);
+		this.dataDir = dataDir;
+		this.timeoutMillis = timeoutMillis;
+		this.name = name;
+
+		long id = 0L;
+		SecureRandom random = new SecureRandom();
+		while (id == 0L) {
+			id = random.nextLong();
+		}
+		this.owner = id;
+		this.ownerName = Long.toHexString(id);
+	}
+
+	/**
+	 * 종료되어 남아있는 임시 파일을 정리하고 heartbeat 스레드를 시작한다.
+	 */
+	void init() throws IOException {
+		if (!dir.exists() && !dir.mkdirs()) {
+			throw new IOException("Can not create lease directory. " + dir.getAbsolutePath());
+		}
+
+		String[] names = dir.list();
+		if (names != null) {
+			long expiredTime = System.currentTimeMillis() - timeoutMillis;
+			for (String fileName : names) {
+				File file = new File(dir, fileName);
+				boolean isTemporary = fileName.contains(CLAIM_EXTENSION) || fileName.contains(EXPIRED_EXTENSION);
+				if (isTemporary && file.lastModified() < expiredTime && !file.delete()) {
+					log.warn("Delete temporary lease file({}) fail.", fileName);
+				}
+			}
+		}
+		cleanDoneFiles();
+
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long interval = Math.max(timeoutMillis / 3, 1L);
+				while (!isStopped) {
+					heartbeat();
+
+					synchronized (signal) {
+						if (!isStopped) {
+							try {
+								signal.wait(interval);
+							} catch (InterruptedException e) {
+								return;
+							}
+						}
+					}
+				}
+			}
+		}, "FileQueue-lease-" + name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * maxFileNo 이하의 큐 파일 중에서 가장 작은 번호의 파일을 소유한다.
+	 * @return 소유할 수 있는 파일이 없다면 null
+	 */
+	Lease claimNext(long maxFileNo) throws IOException {
+		String[] names = dataDir.list();
+		if (names == null) {
+			return null;
+		}
+
+		// 파일 번호는 같은 길이이므로 이름 순서가 번호 순서이다.
+		Arrays.sort(names);
+		for (String fileName : names) {
+			if (!SegmentFiles.isDataFile(fileName)) {
+				continue;
+			}
+
+			long fileNo = SegmentFiles.fileNumber(fileName);
+			if (fileNo > maxFileNo) {
+				break;
+			}
+
+			if (!leases.containsKey(fileNo)) {
+				Lease lease = claim(fileNo);
+				if (lease != null) {
+					return lease;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return 다른 프로세스가 소유하고 있거나 다 읽은 파일이라면 null
+	 */
+	Lease claim(long fileNo) throws IOException {
+		String baseName = baseName(fileNo);
+		File leaseFile = new File(dir, baseName + LEASE_EXTENSION);
+		File doneFile = new File(dir, baseName + DONE_EXTENSION);
+		if (doneFile.exists()) {
+			return null;
+		}
+
+		long offset = 0L;
+		File expiredFile = null;
+		if (leaseFile.exists()) {
+			long[] state = readState(leaseFile);
+			if (state == null || !isExpired(state)) {
+				return null;
+			}
+
+			expiredFile = new File(dir, baseName + EXPIRED_EXTENSION + ownerName);
+			if (!leaseFile.renameTo(expiredFile)) {
+				return null;
+			}
+
+			state = readState(expiredFile);
+			if (state == null || !isExpired(state)) {
+				// 확인한 후에 다른 프로세스가 새로 만든 lease 를 가져왔다면 되돌린다.
+				restore(expiredFile, leaseFile);
+				return null;
+			}
+
+			offset = state[1];
+			log.warn("Lease of file({}) expired. continue to read from offset {}.", SegmentFiles.dataFileName(fileNo), offset);
+		}
+
+		File claimFile = new File(dir, baseName + CLAIM_EXTENSION + ownerName);
+		RandomAccessFile randomFile = new RandomAccessFile(claimFile, "rw");
+		Lease lease;
+		try {
+			MappedByteBuffer buffer = randomFile.getChannel().map(MapMode.READ_WRITE, 0, LEASE_FILE_SIZE);
+			buffer.putLong(HEARTBEAT_POSITION, System.currentTimeMillis());
+			buffer.putLong(OFFSET_POSITION, offset);
+			buffer.putLong(OWNER_POSITION, owner);
+
+			Files.createLink(leaseFile.toPath(), claimFile.toPath());
+			lease = new Lease(fileNo, leaseFile, randomFile, buffer);
+		} catch (FileAlreadyExistsException e) {
+			// 다른 프로세스가 먼저 만들었다. 만료된 lease 를 가져온 후라면 그 프로세스는 처음부터 다시 읽는다.
+			randomFile.close();
+			return null;
+		} catch (IOException e) {
+			randomFile.close();
+			throw e;
+		} finally {
+			deleteQuietly(claimFile);
+			if (expiredFile != null) {
+				deleteQuietly(expiredFile);
+			}
+		}
+
+		// 확인한 후에 다 읽은 파일이 되었다면 만든 lease 를 지운다.
+		if (doneFile.exists()) {
+			lease.close();
+			deleteQuietly(leaseFile);
+			return null;
+		}
+
+		leases.put(fileNo, lease);
+		return lease;
+	}
+
+	/**
+	 * @return 다 읽었지만 정리(삭제, 백업)되기 전에 종료되어 남아있는 큐 파일 번호
+	 */
+	List<Long> uncleanedFileNos() {
+		List<Long> fileNos = new ArrayList<>();
+		String[] names = dir.list();
+		if (names == null) {
+			return fileNos;
+		}
+
+		for (String fileName : names) {
+			if (fileName.endsWith(DONE_EXTENSION)) {
+				String dataFileName = StringUtils.removeEnd(fileName, DONE_EXTENSION) + SegmentFiles.DATAFILE_EXTENSION;
+				if (new File(dataDir, dataFileName).exists()) {
+					fileNos.add(SegmentFiles.fileNumber(dataFileName));
+				}
+			}
+		}
+
+		Collections.sort(fileNos);
+		return fileNos;
+	}
+
+	Lease get(long fileNo) {
+		return leases.get(fileNo);
+	}
+
+	/**
+	 * 다 읽은 파일로 표시한다.
+	 * @return 표시했다면 true, 이미 다른 프로세스가 lease 를 가져갔다면 false
+	 */
+	boolean complete(long fileNo) {
+		Lease lease = leases.remove(fileNo);
+		if (lease == null || lease.isLost) {
+			return false;
+		}
+
+		lease.close();
+		if (!lease.file.renameTo(new File(dir, baseName(fileNo) + DONE_EXTENSION))) {
+			log.warn("Complete lease of file({}) fail.", SegmentFiles.dataFileName(fileNo));
+			return false;
+		}
+
+		cleanDoneFiles();
+		return true;
+	}
+
+	/**
+	 * 다른 프로세스가 바로 가져갈 수 있도록 heartbeat 를 0 으로 바꾼다. 마지막으로 전달한 위치(offset)는 남긴다.
+	 */
+	void release(Lease lease) {
+		if (leases.remove(lease.fileNo, lease) && !lease.isLost) {
+			lease.buffer.putLong(HEARTBEAT_POSITION, 0L);
+		}
+		lease.close();
+	}
+
+	void stop() {
+		isStopped = true;
+		synchronized (signal) {
+			signal.notifyAll();
+		}
+
+		if (thread != null) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			thread = null;
+		}
+
+		for (Lease lease : leases.values()) {
+			release(lease);
+		}
+	}
+
+	/**
+	 * 소유한 lease 의 heartbeat 를 갱신한다. 만료되어 다른 프로세스가 가져갔다면 더 이상 사용하지 않는다.
+	 */
+	private void heartbeat() {
+		long now = System.currentTimeMillis();
+		for (Lease lease : leases.values()) {
+			long[] state = readState(lease.file);
+			if (state == null || state[2] != owner) {
+				log.warn("Lease of file({}) is taken by another consumer.", SegmentFiles.dataFileName(lease.fileNo));
+				lease.isLost = true;
+				leases.remove(lease.fileNo, lease);
+				lease.close();
+				continue;
+			}
+
+			lease.buffer.putLong(HEARTBEAT_POSITION, now);
+		}
+	}
+
+	/**
+	 * 큐 파일이 정리(삭제, 백업)된 done 파일을 지운다.
+	 */
+	private void cleanDoneFiles() {
+		String[] names = dir.list();
+		if (names == null) {
+			return;
+		}
+
+		for (String fileName : names) {
+			if (fileName.endsWith(DONE_EXTENSION)) {
+				String dataFileName = StringUtils.removeEnd(fileName, DONE_EXTENSION) + SegmentFiles.DATAFILE_EXTENSION;
+				if (!new File(dataDir, dataFileName).exists()) {
+					deleteQuietly(new File(dir, fileName));
+				}
+			}
+		}
+	}
+
+	private boolean isExpired(long[] state) {
+		return System.currentTimeMillis() - state[0] > timeoutMillis;
+	}
+
+	private void restore(File from, File to) {
+		try {
+			Files.createLink(to.toPath(), from.toPath());
+		} catch (IOException e) {
+			log.warn("Restore lease file({}) fail.", to.getName());
+		}
+		deleteQuietly(from);
+	}
+
+	/**
+	 * @return {heartbeat, offset, owner}, 파일이 없다면 null
+	 */
+	private static long[] readState(File file) {
+		try (RandomAccessFile randomFile = new RandomAccessFile(file, "r")) {
+			if (randomFile.length() < LEASE_FILE_SIZE) {
+				return null;
+			}
+
+			return new long[] {randomFile.readLong(), randomFile.readLong(), randomFile.readLong()};
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static void deleteQuietly(File file) {
+		if (file.exists() && !file.delete()) {
+			log.warn("Delete lease file({}) fail.", file.getName());
+		}
+	}
+
+	private static String baseName(long fileNo) {
+		return StringUtils.removeEnd(SegmentFiles.dataFileName(fileNo), SegmentFiles.DATAFILE_EXTENSION);
+	}
+
+	/**
+	 * 하나의 큐 파일에 대한 소유권. offset 은 읽는 스레드, heartbeat 는 heartbeat 스레드만 갱신한다.
+	 */
+	static class Lease {
+		private final long fileNo;
+		private final File file;
+		private final RandomAccessFile randomFile;
+		private final MappedByteBuffer buffer;
+		private volatile boolean isLost = false;
+
+		private Lease(long fileNo, File file, RandomAccessFile randomFile, MappedByteBuffer buffer) {
+			this.fileNo = fileNo;
+			this.file = file;
+			this.randomFile = randomFile;
+			this.buffer = buffer;
+		}
+
+		long getFileNo() {
+			return fileNo;
+		}
+
+		/**
+		 * @return 마지막으로 전달한 데이터의 다음 위치
+		 */
+		long getOffset() {
+			return buffer.getLong(OFFSET_POSITION);
+		}
+
+		void commit(long offset) {
+			buffer.putLong(OFFSET_POSITION, offset);
+		}
+
+		/**
+		 * @return 만료되어 다른 프로세스가 가져갔다면 true
+		 */
+		boolean isLost() {
+			return isLost;
+		}
+
+		private void close() {
+			try {
+				randomFile.close();
+			} catch (IOException e) {
+				log.warn("Close lease file({}) fail.", file.getName());
+			}
+		}
+	}
+}
@@ -0,0 +1,360 @@
+package com.geekhua.filequeue.datastore;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 하나의 큐 파일(segment)에서 BlockGroup 을 순서대로 읽는다.
+ * 데이터 폴더의 파일, 백업 폴더의 파일, 압축된 백업 파일을 모두 읽을 수 있으며
+ * 큰 buffer 단위로 읽어서 system call 횟수를 줄인다.
+ */
+class SegmentReader implements Closeable {
+	private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+	private final long fileNo;
+	private final int blockSize;
+	private final boolean isArchived;
+	private final File file;
+	// 압축된 파일이 아니라면 위치를 지정해서 읽는다. (쓰고 있는 파일은 EOF 이후에도 다시 읽을 수 있어야 한다.)
+	private final FileChannel fileChannel;
+	private ReadableByteChannel channel;
+	private Closeable closeable;
+	// O_DIRECT 로 읽는다면 null 이 아니다.
+	private FileChannel directChannel;
+	private ByteBuffer directBuffer;
+
+	private ByteBuffer buffer;
+	// buffer 의 0 번째 byte 의 파일 위치
+	private long bufferOffset;
+
+	private SegmentReader(File file, long fileNo, int blockSize, int bufferSize, boolean isArchived, FileChannel fileChannel, ReadableByteChannel channel, Closeable closeable) {
+		this.file = file;
+		this.fileNo = fileNo;
+		this.blockSize = blockSize;
+		this.isArchived = isArchived;
+		this.fileChannel = fileChannel;
+		this.channel = channel;
+		this.closeable = closeable;
+		this.buffer = ByteBuffer.allocate(Math.max(bufferSize, blockSize));
+		this.buffer.flip();
+	}
+
+	/**
+	 * 데이터 폴더, 백업 폴더, 압축된 백업 파일 순서로 파일을 찾는다.
+	 * @return 파일이 없다면 null
+	 */
+	static File find(File dataDir, File backDir, long fileNo) {
+		File file = new File(dataDir, SegmentFiles.dataFileName(fileNo));
+		if (file.exists()) {
+			return file;
+		}
+
+		file = new File(backDir, SegmentFiles.dataFileName(fileNo));
+		if (file.exists()) {
+			return file;
+		}
+
+		file = new File(backDir, SegmentFiles.compressedFileName(fileNo));
+		return file.exists() ? file : null;
+	}
+
+	/**
+	 * @param offset 읽기 시작할 위치
+	 * @return 파일이 없다면 null
+	 */
+	static SegmentReader open(File dataDir, File backDir, long fileNo, long offset, int blockSize, int bufferSize) throws IOException {
+		return open(dataDir, backDir, fileNo, offset, blockSize, bufferSize, false);
+	}
+
+	/**
+	 * @param isDirect 데이터 폴더의 파일을 O_DIRECT 로 읽을지 여부
+	 */
+	static SegmentReader open(File dataDir, File backDir, long fileNo, long offset, int blockSize, int bufferSize, boolean isDirect) throws IOException {
+		File file = find(dataDir, backDir, fileNo);
+		if (file == null) {
+			return null;
+		}
+
+		boolean isArchived = !file.getParentFile().equals(dataDir);
+		SegmentReader reader = open(file, fileNo, isArchived, offset, blockSize, bufferSize);
+		if (isDirect && !isArchived) {
+			try {
+				reader.directChannel = DirectIo.open(file, StandardOpenOption.READ);
+			} catch (IOException e) {
+				reader.close();
+				throw e;
+			}
+		}
+
+		return reader;
+	}
+
+	/**
+	 * 큐 파일이 아닌 BlockGroup 형식의 파일을 읽는다.
+	 */
+	static SegmentReader open(File file, long offset, int blockSize, int bufferSize) throws IOException {
+		return open(file, -1L, false, offset, blockSize, bufferSize);
+	}
+
+	private static SegmentReader open(File file, long fileNo, boolean isArchived, long offset, int blockSize, int bufferSize) throws IOException {
+		SegmentReader reader;
+
+		if (SegmentFiles.isCompressedFile(file.getName())) {
+			GZIPInputStream in = new GZIPInputStream(new FileInputStream(file), GZIP_BUFFER_SIZE);
+			reader = new SegmentReader(file, fileNo, blockSize, bufferSize, isArchived, null, Channels.newChannel(in), in);
+			reader.skip(offset);
+		} else {
+			RandomAccessFile randomFile = new RandomAccessFile(file, "r");
+			reader = new SegmentReader(file, fileNo, blockSize, bufferSize, isArchived, randomFile.getChannel(), null, randomFile);
+		}
+
+		reader.bufferOffset = offset;
+		return reader;
+	}
+
+	/**
+	 * 읽기 위치를 offset 으로 옮긴다. 압축된 파일은 처음부터 다시 읽는다.
+	 */
+	void reset(long offset) throws IOException {
+		buffer.clear();
+		buffer.flip();
+
+		if (fileChannel == null) {
+			closeable.close();
+			GZIPInputStream in = new GZIPInputStream(new FileInputStream(file), GZIP_BUFFER_SIZE);
+			channel = Channels.newChannel(in);
+			closeable = in;
+			skip(offset);
+		}
+
+		bufferOffset = offset;
+	}
+
+	private void skip(long offset) throws IOException {
+		long remain = offset;
+		while (remain > 0) {
+			buffer.clear();
+			if (remain < buffer.capacity()) {
+				buffer.limit((int) remain);
+			}
+
+			int n = channel.read(buffer);
+			if (n < 0) {
+				break;
+			}
+
+			remain -= n;
+		}
+
+		buffer.clear();
+		buffer.flip();
+	}
+
+	/**
+	 * 다음 BlockGroup 을 읽는다. 파일의 끝을 나타내는 BlockGroup 도 그대로 반환한다.
+	 * @return 읽을 수 있는 데이터가 아직 없다면 null
+	 */
+	BlockGroup next() throws IOException {
+		return next(true, false);
+	}
+
+	/**
+	 * content 를 읽지 않고 checksum 도 검사하지 않고 다음 BlockGroup 의 header 만 읽는다.
+	 */
+	BlockGroup nextHeader() throws IOException {
+		return next(false, false);
+	}
+
+	/**
+	 * 데이터의 content 를 복사하지 않고 buffer 의 view 로 읽는다. (BlockGroup.readView)
+	 * view 는 다음 BlockGroup 을 읽거나 위치를 옮기기 전까지만 사용할 수 있다. buffer 보다 큰 데이터는 복사한다.
+	 */
+	BlockGroup nextView() throws IOException {
+		return next(true, true);
+	}
+
+	/**
+	 * minTimestamp 보다 먼저 쓰여진 데이터는 header 만 읽고 건너뛴다. (checksum 검사, content 복사를 하지 않는다.)
+	 * 시간이 없는 데이터는 건너뛰지 않는다.
+	 */
+	BlockGroup next(long minTimestamp) throws IOException {
+		return next(minTimestamp, false);
+	}
+
+	/**
+	 * @param isView content 를 복사하지 않고 view 로 읽을지 여부 (nextView)
+	 */
+	BlockGroup next(long minTimestamp, boolean isView) throws IOException {
+		while (true) {
+			BlockGroup header = nextHeader();
+			if (header == null) {
+				return null;
+			}
+
+			if (!header.hasTimestamp() || header.getTimestamp() >= minTimestamp) {
+				buffer.position(buffer.position() - header.size());
+				return next(true, isView);
+			}
+		}
+	}
+
+	private BlockGroup next(boolean isReadContent, boolean isView) throws IOException {
+		while (true) {
+			BlockGroup blockGroup;
+			if (!isReadContent) {
+				blockGroup = BlockGroup.readHeader(buffer, blockSize);
+			} else {
+				blockGroup = isView ? BlockGroup.readView(buffer, blockSize) : BlockGroup.read(buffer, blockSize);
+			}
+			if (blockGroup != null) {
+				return blockGroup;
+			}
+
+			if (buffer.position() == 0 && buffer.limit() == buffer.capacity()) {
+				// buffer 보다 큰 데이터는 content 를 buffer 를 거치지 않고 바로 읽는다.
+				int size = BlockGroup.peekSize(buffer, blockSize);
+				if (isReadContent && size > buffer.capacity() && fileChannel != null && directChannel == null) {
+					if (fileChannel.size() < bufferOffset + size) {
+						return null;
+					}
+
+					BlockGroup large = readScattered(size);
+					if (large != null) {
+						return large;
+					}
+					// checksum 이 맞지 않다면 buffer 를 늘려서 읽고 건너뛴다.
+				}
+
+				// 그 외에는 buffer 를 늘려서 읽는다.
+				ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+				larger.put(buffer);
+				larger.flip();
+				buffer = larger;
+			}
+
+			if (fill() <= 0) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * buffer 에 이미 읽은 부분만 복사하고 나머지는 content 배열로 바로 읽는다. (scattering read)
+	 * 다음 BlockGroup 은 buffer 를 비우고 파일에서 다시 읽는다.
+	 * @return checksum 이 맞지 않다면 null
+	 */
+	private BlockGroup readScattered(int size) throws IOException {
+		long start = offset();
+		int prefixLength = BlockGroup.peekPrefixLength(buffer);
+		byte[] content = new byte[BlockGroup.peekContentLength(buffer)];
+
+		ByteBuffer prefix = ByteBuffer.allocate(prefixLength);
+		ByteBuffer duplicate = buffer.duplicate();
+		duplicate.limit(duplicate.position() + prefixLength);
+		prefix.put(duplicate);
+		prefix.flip();
+
+		int buffered = Math.min(buffer.remaining() - prefixLength, content.length);
+		duplicate.limit(buffer.limit());
+		duplicate.get(content, 0, buffered);
+
+		ByteBuffer rest = ByteBuffer.wrap(content, buffered, content.length - buffered);
+		long position = start + prefixLength + buffered;
+		while (rest.hasRemaining()) {
+			int n = fileChannel.read(rest, position);
+			if (n < 0) {
+				throw new IOException("Unexpected end of file(" + file.getName() + "). offset:" + position);
+			}
+			position += n;
+		}
+
+		BlockGroup blockGroup = BlockGroup.read(prefix, content, blockSize);
+		if (blockGroup != null) {
+			reset(start + size);
+		}
+
+		return blockGroup;
+	}
+
+	private int fill() throws IOException {
+		bufferOffset += buffer.position();
+		buffer.compact();
+
+		int n;
+		try {
+			if (directChannel != null) {
+				n = readDirect(bufferOffset + buffer.position());
+			} else {
+				n = fileChannel != null ? fileChannel.read(buffer, bufferOffset + buffer.position()) : channel.read(buffer);
+			}
+		} finally {
+			buffer.flip();
+		}
+
+		return n;
+	}
+
+	/**
+	 * O_DIRECT 는 정렬된 위치와 크기로만 읽을 수 있으므로 정렬된 buffer 로 읽은 후에 필요한 부분만 복사한다.
+	 */
+	private int readDirect(long position) throws IOException {
+		long alignedPosition = DirectIo.alignDown(position);
+		int skip = (int) (position - alignedPosition);
+		int length = (int) DirectIo.alignUp(skip + buffer.remaining());
+		if (directBuffer == null || directBuffer.capacity() < length) {
+			directBuffer = DirectIo.allocate(length);
+		}
+
+		directBuffer.clear();
+		directBuffer.limit(length);
+		int n = directChannel.read(directBuffer, alignedPosition);
+		if (n <= skip) {
+			return n < 0 ? n : 0;
+		}
+
+		directBuffer.flip();
+		directBuffer.position(skip);
+		int copied = Math.min(directBuffer.remaining(), buffer.remaining());
+		directBuffer.limit(skip + copied);
+		buffer.put(directBuffer);
+		return copied;
+	}
+
+	/**
+	 * @return 마지막으로 읽은 BlockGroup 다음의 파일 위치
+	 */
+	long offset() {
+		return bufferOffset + buffer.position();
+	}
+
+	long fileNo() {
+		return fileNo;
+	}
+
+	/**
+	 * @return 백업 폴더의 파일이라면 true
+	 */
+	boolean isArchived() {
+		return isArchived;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (directChannel != null) {
+				directChannel.close();
+			}
+		} finally {
+			closeable.close();
+		}
+	}
+}
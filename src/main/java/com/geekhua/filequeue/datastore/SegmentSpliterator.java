@@ -0,0 +1,272 @@
+package com.geekhua.filequeue.datastore;
+
+import com.geekhua.filequeue.codec.Codec;
+import com.geekhua.filequeue.exception.CodecException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 만들 때의 읽기 위치부터 쓰기 위치까지의 데이터를 읽는 읽기 전용 Spliterator. meta 를 변경하지 않는다.
+ * 여러 파일에 걸쳐 있다면 파일 경계에서, 하나의 파일이라면 시간 인덱스의 항목(데이터가 시작하는 위치)에서 나눈다.
+ * 읽는 동안 정리(삭제, 백업)된 파일은 백업 폴더에서 읽고, 없다면 건너뛴다.
+ * 소비자와 같이 commit 되지 않은 transaction, 만료된 데이터, 디코딩하지 못한 데이터는 건너뛴다.
+ * 끝까지 읽지 않으면 열려있는 파일은 GC 될 때 닫힌다.
+ */
+class SegmentSpliterator<E> implements Spliterator<E> {
+	private static final Logger log = LoggerFactory.getLogger(SegmentSpliterator.class);
+
+	private final File dataDir;
+	private final File backDir;
+	private final int blockSize;
+	private final int bufferSize;
+	private final long fileSize;
+	private final Codec codec;
+	// 0 이면 만료되지 않는다.
+	private final long messageTtlNanos;
+	// 읽지 않는 위치 (이 위치의 직전까지 읽는다.)
+	private final long endFileNo;
+	private final long endOffset;
+
+	private long fileNo;
+	private long offset;
+	private SegmentReader reader;
+	// 읽은 batch, commit 된 transaction 에서 아직 반환하지 않은 데이터
+	private final Deque<byte[]> records = new ArrayDeque<>();
+
+	SegmentSpliterator(File dataDir, File backDir, long fileNo, long offset, long endFileNo, long endOffset,
+					   int blockSize, int bufferSize, long fileSize, Codec codec, long messageTtlNanos) {
+		this.dataDir = dataDir;
+		this.backDir = backDir;
+		this.fileNo = fileNo;
+		this.offset = offset;
+		this.endFileNo = endFileNo;
+		this.endOffset = endOffset;
+		this.blockSize = blockSize;
+		this.bufferSize = bufferSize;
+		this.fileSize = fileSize;
+		this.codec = codec;
+		this.messageTtlNanos = messageTtlNanos;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public boolean tryAdvance(Consumer<? super E> action) {
+		while (true) {
+			try {
+				if (!fill()) {
+					return false;
+				}
+			} catch (IOException e) {
+				closeReader();
+				throw new UncheckedIOException(e);
+			}
+
+			E element;
+			try {
+				element = (E) codec.decode(records.poll());
+			} catch (CodecException e) {
+				log.warn(String.format("Decode data in file(%s) fail. skip.", SegmentFiles.dataFileName(fileNo)), e);
+				continue;
+			}
+
+			action.accept(element);
+			return true;
+		}
+	}
+
+	/**
+	 * 다음 데이터를 records 에 넣는다. batch 는 풀어서 넣고 transaction 은 commit 되었을 때만 넣는다.
+	 * @return 읽을 데이터가 없다면 false
+	 */
+	private boolean fill() throws IOException {
+		while (records.isEmpty()) {
+			BlockGroup blockGroup = nextBlockGroup();
+			if (blockGroup == null) {
+				return false;
+			}
+
+			if (blockGroup.isBatch()) {
+				records.addAll(blockGroup.records());
+			} else if (blockGroup.hasTxnId()) {
+				readTransaction(blockGroup);
+			} else {
+				records.add(blockGroup.getContent());
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * transaction 의 commit marker 를 찾을 때까지 미리 읽는다. commit 되었다면 데이터들을 records 에 넣는다.
+	 * abort marker 나 다른 데이터를 만나거나, commit 전에 파일 또는 읽을 범위가 끝나면 transaction 의 데이터를 버린다.
+	 */
+	private void readTransaction(BlockGroup first) throws IOException {
+		long txnId = first.getTxnId();
+		List<byte[]> contents = new ArrayList<>();
+		contents.add(first.getContent());
+
+		while (!isExhausted()) {
+			BlockGroup blockGroup = reader.next();
+			if (blockGroup == null || blockGroup.isEnd()) {
+				return;
+			}
+
+			if (!blockGroup.hasTxnId() || blockGroup.getTxnId() != txnId) {
+				// 다음에 다시 읽는다.
+				reader.reset(offset);
+				return;
+			}
+
+			offset = reader.offset();
+			if (blockGroup.getType() == BlockGroup.TYPE_ABORT) {
+				return;
+			}
+
+			if (blockGroup.getType() == BlockGroup.TYPE_COMMIT) {
+				records.addAll(contents);
+				return;
+			}
+			contents.add(blockGroup.getContent());
+		}
+	}
+
+	private BlockGroup nextBlockGroup() throws IOException {
+		while (true) {
+			if (isExhausted()) {
+				closeReader();
+				return null;
+			}
+
+			if (reader == null) {
+				reader = open();
+				if (reader == null) {
+					nextFile();
+					continue;
+				}
+			}
+
+			BlockGroup blockGroup;
+			if (messageTtlNanos > 0) {
+				blockGroup = reader.next(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - messageTtlNanos);
+			} else {
+				blockGroup = reader.next();
+			}
+			if (blockGroup == null || blockGroup.isEnd()) {
+				nextFile();
+				continue;
+			}
+
+			offset = reader.offset();
+			// commit, abort marker 는 건너뛴다.
+			if (blockGroup.isData() || blockGroup.isBatch()) {
+				return blockGroup;
+			}
+		}
+	}
+
+	/**
+	 * 파일을 찾은 후 여는 사이에 백업 폴더로 옮겨졌다면 다시 찾는다.
+	 */
+	private SegmentReader open() throws IOException {
+		try {
+			return SegmentReader.open(dataDir, backDir, fileNo, offset, blockSize, bufferSize);
+		} catch (FileNotFoundException e) {
+			return SegmentReader.open(dataDir, backDir, fileNo, offset, blockSize, bufferSize);
+		}
+	}
+
+	private boolean isExhausted() {
+		return fileNo > endFileNo || (fileNo == endFileNo && offset >= endOffset);
+	}
+
+	private void nextFile() {
+		closeReader();
+		++fileNo;
+		offset = 0L;
+	}
+
+	private void closeReader() {
+		if (reader != null) {
+			try {
+				reader.close();
+			} catch (IOException e) {
+				// 읽기만 했으므로 무시한다.
+			}
+			reader = null;
+		}
+	}
+
+	/**
+	 * 앞부분을 나눠서 반환한다. 읽기 시작한 후에는 나누지 않는다.
+	 */
+	@Override
+	public Spliterator<E> trySplit() {
+		if (reader != null || !records.isEmpty() || isExhausted()) {
+			return null;
+		}
+
+		long splitFileNo;
+		long splitOffset;
+		if (endFileNo - fileNo >= 2) {
+			splitFileNo = fileNo + (endFileNo - fileNo) / 2;
+			splitOffset = 0L;
+		} else if (endFileNo - fileNo == 1 && endOffset > 0) {
+			splitFileNo = endFileNo;
+			splitOffset = 0L;
+		} else {
+			// 하나의 파일이라면 시간 인덱스의 항목에서 나눈다.
+			long to = endFileNo == fileNo ? endOffset : fileSize;
+			splitFileNo = fileNo;
+			splitOffset = middleIndexOffset(to);
+			if (splitOffset < 0) {
+				return null;
+			}
+		}
+
+		SegmentSpliterator<E> prefix = new SegmentSpliterator<>(dataDir, backDir, fileNo, offset, splitFileNo, splitOffset,
+				blockSize, bufferSize, fileSize, codec, messageTtlNanos);
+		fileNo = splitFileNo;
+		offset = splitOffset;
+		return prefix;
+	}
+
+	private long middleIndexOffset(long to) {
+		File indexFile = TimeIndex.find(dataDir, backDir, fileNo);
+		if (indexFile == null) {
+			return -1L;
+		}
+
+		try {
+			return TimeIndex.load(indexFile).middleOffset(offset, to);
+		} catch (IOException e) {
+			return -1L;
+		}
+	}
+
+	/**
+	 * @return 남은 byte 를 block 크기로 나눈 값. 데이터가 block 보다 크면 실제 개수보다 크다.
+	 */
+	@Override
+	public long estimateSize() {
+		long bytes = (endFileNo - fileNo) * fileSize + endOffset - offset;
+		return Math.max(bytes, 0L) / blockSize;
+	}
+
+	@Override
+	public int characteristics() {
+		return ORDERED | IMMUTABLE;
+	}
+}
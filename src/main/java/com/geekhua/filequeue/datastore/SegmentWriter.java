@@ -0,0 +1,67 @@
+package com.geekhua.filequeue.datastore;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 쓰고 있는 큐 파일. 파일의 끝에 이어서 쓴다.
+ */
+class SegmentWriter implements Closeable {
+	final RandomAccessFile file;
+
+	SegmentWriter(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "rw");
+		this.file.seek(this.file.length());
+	}
+
+	/**
+	 * @param isDirect O_DIRECT 로 쓸지 여부. 지원하지 않는다면 page cache 를 거쳐서 쓴다.
+	 */
+	static SegmentWriter open(File file, boolean isDirect) throws IOException {
+		return isDirect ? new DirectSegmentWriter(file) : new SegmentWriter(file);
+	}
+
+	long length() throws IOException {
+		return file.length();
+	}
+
+	long position() throws IOException {
+		return file.getFilePointer();
+	}
+
+	/**
+	 * 다음에 쓸 위치를 옮긴다. 파일의 끝보다 뒤라면 그 사이는 0 으로 채워진다.
+	 */
+	void seek(long position) throws IOException {
+		file.seek(position);
+	}
+
+	void write(byte[] data) throws IOException {
+		file.write(data);
+	}
+
+	/**
+	 * 여러 buffer 를 이어붙이지 않고 한 번에 쓴다. (gathering write)
+	 */
+	void write(ByteBuffer[] buffers) throws IOException {
+		long remaining = 0L;
+		for (ByteBuffer buffer : buffers) {
+			remaining += buffer.remaining();
+		}
+
+		// channel 의 위치는 file 의 위치와 같다.
+		FileChannel channel = file.getChannel();
+		while (remaining > 0) {
+			remaining -= channel.write(buffers);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+}
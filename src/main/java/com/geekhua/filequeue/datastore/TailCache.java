@@ -0,0 +1,72 @@
+package com.geekhua.filequeue.datastore;
+
+/**
+ * 최근에 쓴 BlockGroup 을 기억하여 쓴 직후에 읽는 데이터는 파일을 읽지 않고 전달한다.
+ * 쓴 순서(파일 번호, 위치)대로 저장하므로 이진 탐색으로 찾으며 maxBytes 를 넘으면 오래된 것부터 버린다.
+ */
+class TailCache {
+	private final long maxBytes;
+	private final long[] fileNos;
+	private final long[] offsets;
+	private final BlockGroup[] blockGroups;
+	// 가장 오래된 항목의 index
+	private int head;
+	private int size;
+	private long bytes;
+
+	TailCache(long maxBytes, int blockSize) {
+		this.maxBytes = maxBytes;
+		int capacity = (int) Math.max(Math.min(maxBytes / blockSize, Integer.MAX_VALUE - 8), 1);
+		this.fileNos = new long[capacity];
+		this.offsets = new long[capacity];
+		this.blockGroups = new BlockGroup[capacity];
+	}
+
+	/**
+	 * content 는 호출자의 배열(putContent)일 수 있으므로 복사해서 저장한다.
+	 * @param blockGroup 파일에 쓴 BlockGroup
+	 */
+	synchronized void put(long fileNo, long offset, BlockGroup blockGroup) {
+		int blockGroupSize = blockGroup.size();
+		if (blockGroupSize > maxBytes) {
+			return;
+		}
+
+		while (size > 0 && (size == blockGroups.length || bytes + blockGroupSize > maxBytes)) {
+			bytes -= blockGroups[head].size();
+			blockGroups[head] = null;
+			head = (head + 1) % blockGroups.length;
+			--size;
+		}
+
+		int index = (head + size) % blockGroups.length;
+		fileNos[index] = fileNo;
+		offsets[index] = offset;
+		blockGroups[index] = blockGroup.copy();
+		bytes += blockGroupSize;
+		++size;
+	}
+
+	/**
+	 * @return 없다면 null
+	 */
+	synchronized BlockGroup get(long fileNo, long offset) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int index = (head + mid) % blockGroups.length;
+
+			int compare = fileNos[index] != fileNo ? Long.compare(fileNos[index], fileNo) : Long.compare(offsets[index], offset);
+			if (compare < 0) {
+				low = mid + 1;
+			} else if (compare > 0) {
+				high = mid - 1;
+			} else {
+				return blockGroups[index];
+			}
+		}
+
+		return null;
+	}
+}
@@ -0,0 +1,214 @@
+package com.geekhua.filequeue.datastore;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * 큐 파일(segment) 하나의 시간 인덱스. 큐 파일과 같은 폴더에 q-000000000000000001.idx 로 저장한다.
+ * -------------------------------
+ * | timestamp(8) | offset(8) | ...
+ * -------------------------------
+ * 첫 번째 데이터와 interval(byte) 마다 하나씩 추가하며 큐 파일이 끝나면 마지막 데이터의 시간과 offset -1 을 추가한다. (seal)
+ * timestamp 는 epoch nanoseconds 이다.
+ */
+class TimeIndex {
+	private static final int ENTRY_SIZE = 16;
+	private static final long SEAL_OFFSET = -1L;
+
+	private final long[] timestamps;
+	private final long[] offsets;
+	private final int count;
+	private final boolean isSealed;
+
+	private TimeIndex(long[] timestamps, long[] offsets, int count, boolean isSealed) {
+		this.timestamps = timestamps;
+		this.offsets = offsets;
+		this.count = count;
+		this.isSealed = isSealed;
+	}
+
+	/**
+	 * 데이터 폴더, 백업 폴더 순서로 인덱스 파일을 찾는다. (압축된 백업 파일의 인덱스는 압축하지 않는다.)
+	 * @return 파일이 없다면 null
+	 */
+	static File find(File dataDir, File backDir, long fileNo) {
+		File file = new File(dataDir, SegmentFiles.indexFileName(fileNo));
+		if (file.exists()) {
+			return file;
+		}
+
+		file = new File(backDir, SegmentFiles.indexFileName(fileNo));
+		return file.exists() ? file : null;
+	}
+
+	/**
+	 * 쓰는 중에 종료되어 마지막 항목이 온전하지 않다면 무시한다.
+	 */
+	static TimeIndex load(File file) throws IOException {
+		byte[] data;
+		try (RandomAccessFile randomFile = new RandomAccessFile(file, "r")) {
+			data = new byte[(int) (randomFile.length() / ENTRY_SIZE * ENTRY_SIZE)];
+			randomFile.readFully(data);
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		int count = data.length / ENTRY_SIZE;
+		long[] timestamps = new long[count];
+		long[] offsets = new long[count];
+		for (int i = 0; i < count; ++i) {
+			timestamps[i] = buffer.getLong();
+			offsets[i] = buffer.getLong();
+		}
+
+		boolean isSealed = count > 0 && offsets[count - 1] == SEAL_OFFSET;
+		return new TimeIndex(timestamps, offsets, isSealed ? count - 1 : count, isSealed);
+	}
+
+	/**
+	 * 큐 파일이 끝났음을 기록한다.
+	 * @param lastTimestamp 큐 파일의 마지막 데이터의 시간
+	 */
+	static void seal(File file, long lastTimestamp) throws IOException {
+		try (FileOutputStream out = new FileOutputStream(file, true)) {
+			out.write(entry(lastTimestamp, SEAL_OFFSET));
+		}
+	}
+
+	private static byte[] entry(long timestamp, long offset) {
+		return ByteBuffer.allocate(ENTRY_SIZE).putLong(timestamp).putLong(offset).array();
+	}
+
+	boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * @return 큐 파일이 끝났다면 true. 마지막 데이터의 시간을 알 수 있다.
+	 */
+	boolean isSealed() {
+		return isSealed;
+	}
+
+	long firstTimestamp() {
+		return timestamps[0];
+	}
+
+	/**
+	 * @return seal 되었다면 마지막 데이터의 시간, 아니라면 마지막 항목의 시간
+	 */
+	long lastTimestamp() {
+		return timestamps[isSealed ? count : count - 1];
+	}
+
+	/**
+	 * @return 마지막 항목의 위치
+	 */
+	long lastOffset() {
+		return offsets[count - 1];
+	}
+
+	/**
+	 * @return from 과 to 사이(둘 다 포함하지 않는다)의 항목 중에서 가운데에 가장 가까운 항목의 위치. 없다면 -1
+	 */
+	long middleOffset(long from, long to) {
+		long middle = from + (to - from) / 2;
+		long found = -1L;
+
+		for (int i = 0; i < count; ++i) {
+			long offset = offsets[i];
+			if (offset > from && offset < to && (found < 0 || Math.abs(offset - middle) < Math.abs(found - middle))) {
+				found = offset;
+			}
+		}
+
+		return found;
+	}
+
+	/**
+	 * @return timestamp 보다 먼저 쓰여진 마지막 항목의 위치. 없다면 0
+	 */
+	long floorOffset(long timestamp) {
+		int low = 0;
+		int high = count - 1;
+		long offset = 0L;
+
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (timestamps[mid] < timestamp) {
+				offset = offsets[mid];
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+
+		return offset;
+	}
+
+	/**
+	 * 쓰고 있는 큐 파일의 인덱스를 기록한다. 첫 번째 데이터를 쓸 때 파일을 만든다.
+	 */
+	static class Writer implements Closeable {
+		private final File file;
+		private final long interval;
+
+		private FileOutputStream out;
+		private long lastIndexedOffset = -1L;
+		private long lastTimestamp;
+
+		Writer(File file, long interval) {
+			this(file, interval, -1L);
+		}
+
+		/**
+		 * @param lastIndexedOffset 이어서 쓰는 인덱스의 마지막 항목의 위치. 없다면 -1
+		 */
+		Writer(File file, long interval, long lastIndexedOffset) {
+			this.file = file;
+			this.interval = interval;
+			this.lastIndexedOffset = lastIndexedOffset;
+		}
+
+		/**
+		 * @param offset 데이터를 쓴 위치
+		 */
+		void append(long timestamp, long offset) throws IOException {
+			lastTimestamp = timestamp;
+
+			if (lastIndexedOffset < 0 || offset - lastIndexedOffset >= interval) {
+				if (out == null) {
+					out = new FileOutputStream(file, true);
+				}
+
+				out.write(entry(timestamp, offset));
+				lastIndexedOffset = offset;
+			}
+		}
+
+		/**
+		 * 마지막 데이터의 시간을 기록하고 닫는다.
+		 */
+		void seal() throws IOException {
+			if (lastIndexedOffset >= 0) {
+				if (out == null) {
+					out = new FileOutputStream(file, true);
+				}
+				out.write(entry(lastTimestamp, SEAL_OFFSET));
+			}
+
+			close();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (out != null) {
+				out.close();
+				out = null;
+			}
+		}
+	}
+}
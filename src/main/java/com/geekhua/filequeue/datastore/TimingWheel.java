@@ -0,0 +1,371 @@
+package com.geekhua.filequeue.datastore;
+
+import com.geekhua.filequeue.Config;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * 지연 데이터를 저장하는 디스크 기반의 계층형 timing wheel.
+ * level 0 의 bucket 은 tickMillis, level k 의 bucket 은 tickMillis * wheelSize^k 동안 전달할 데이터를 하나의 파일(BlockGroup 형식)에 모은다.
+ * 전달할 시간이 가까운 데이터일수록 낮은 level 에 저장하고, 상위 level 의 bucket 은 시작 시간이 되면 하위 level 로 옮긴다. (cascade)
+ * level 0 의 bucket 은 끝나는 시간이 되면 큐로 옮긴다. 데이터마다 시간을 확인하지 않기 때문에 데이터 하나에 O(level) 의 쓰기만 필요하다.
+ * bucket 파일은 큐로 옮긴 후에 삭제하므로 그 사이에 종료되면 중복으로 전달될 수 있다.
+ */
+public class TimingWheel {
+	private static final Logger log = LoggerFactory.getLogger(TimingWheel.class);
+
+	private static final String DELAY_DIR = "delay";
+	// d0-000000000000000001.fq
+	private static final String BUCKET_PREFIX = "d";
+	// 전달 중인 bucket 파일. 같은 bucket 에 새로 추가되는 데이터는 새로운 파일에 쓴다.
+	private static final String FIRING_EXTENSION = ".firing";
+	private static final int LEVELS = 3;
+	private static final int BATCH_SIZE = 256;
+
+	/**
+	 * 전달할 시간이 된 데이터를 받는다.
+	 */
+	public interface Sink {
+		/**
+		 * @param contents codec 으로 인코딩된 데이터
+		 */
+		void deliver(List<byte[]> contents) throws IOException;
+
+		/**
+		 * @return 큐의 사용량 제한에 도달했다면 true. 줄어들 때까지 전달을 미룬다.
+		 */
+		boolean isFull();
+	}
+
+	private final File dir;
+	private final int blockSize;
+	private final int readBufferSize;
+	private final long tickMillis;
+	private final int wheelSize;
+	private final String name;
+	private final Sink sink;
+
+	// 추가할 수 있는 bucket
+	private final Map<String, Bucket> buckets = new HashMap<>();
+	// 시간 순서로 정렬된 전달(cascade)할 bucket
+	private final TreeSet<Bucket> schedule = new TreeSet<>(new Comparator<Bucket>() {
+		@Override
+		public int compare(Bucket o1, Bucket o2) {
+			if (o1.dueTime != o2.dueTime) {
+				return Long.compare(o1.dueTime, o2.dueTime);
+			}
+
+			// 같은 시간이라면 상위 level 부터 cascade 한다.
+			if (o1.level != o2.level) {
+				return Integer.compare(o2.level, o1.level);
+			}
+
+			return o1.file.compareTo(o2.file);
+		}
+	});
+	private final Object signal = new Object();
+
+	private Thread thread;
+	private volatile boolean isStopped = false;
+
+	public TimingWheel(Config config, Sink sink) {
+		this.dir = new File(new File(config.getBaseDir(), config.getName()), DELAY_DIR);
+		this.blockSize = BlockGroup.estimateBlockGroupSize(config.getMsgAvgLen());
+		this.readBufferSize = config.getReadBufferSize();
+		this.tickMillis = config.getDelayTickMillis();
+		this.wheelSize = config.getDelayWheelSize();
+		this.name = config.getName();
+		this.sink = sink;
+	}
+
+	/**
+	 * 전에 저장된 bucket 파일을 읽어온다. bucket 이 있다면 스레드를 시작한다.
+	 */
+	public synchronized void init() throws IOException {
+		String[] names = dir.list();
+		if (names == null) {
+			return;
+		}
+
+		for (String fileName : names) {
+			if (!fileName.startsWith(BUCKET_PREFIX) || fileName.indexOf('-') < 0) {
+				continue;
+			}
+
+			boolean isFiring = fileName.endsWith(FIRING_EXTENSION);
+			String bucketName = isFiring ? StringUtils.removeEnd(fileName, FIRING_EXTENSION) : fileName;
+			int dash = bucketName.indexOf('-');
+			int level = Integer.parseInt(bucketName.substring(BUCKET_PREFIX.length(), dash));
+			long index = Long.parseLong(bucketName.substring(dash + 1, bucketName.indexOf(SegmentFiles.DATAFILE_EXTENSION)));
+
+			Bucket bucket = new Bucket(level, index, new File(dir, fileName));
+			if (isFiring) {
+				// 전달하는 중에 종료되었다면 바로 다시 전달한다.
+				bucket.dueTime = 0L;
+			} else {
+				buckets.put(fileName, bucket);
+			}
+			schedule.add(bucket);
+		}
+
+		if (!schedule.isEmpty()) {
+			startIfNeeded();
+		}
+	}
+
+	/**
+	 * @param content codec 으로 인코딩된 데이터
+	 * @param deliverAt 큐로 전달할 시간 (epoch millis)
+	 */
+	public void add(byte[] content, long deliverAt) throws IOException {
+		if (isStopped) {
+			throw new IOException("Timing wheel is stopped.");
+		}
+
+		synchronized (this) {
+			startIfNeeded();
+			append(content, deliverAt, System.currentTimeMillis());
+		}
+	}
+
+	private void append(byte[] content, long deliverAt, long now) throws IOException {
+		// 전달할 시간까지 남은 시간이 level 전체 범위(width * wheelSize)보다 작은 가장 낮은 level 을 찾는다.
+		int level = 0;
+		long width = tickMillis;
+		while (level < LEVELS - 1 && deliverAt - now >= width * wheelSize) {
+			++level;
+			width *= wheelSize;
+		}
+
+		long index = deliverAt / width;
+		String fileName = bucketFileName(level, index);
+		Bucket bucket = buckets.get(fileName);
+		if (bucket == null) {
+			if (!dir.exists() && !dir.mkdirs()) {
+				throw new IOException("Can not create queue delay directory. " + dir.getAbsolutePath());
+			}
+
+			bucket = new Bucket(level, index, new File(dir, fileName));
+			buckets.put(fileName, bucket);
+			schedule.add(bucket);
+
+			synchronized (signal) {
+				signal.notifyAll();
+			}
+		}
+
+		bucket.append(BlockGroup.allocate(content, blockSize).deliverAt(deliverAt).array());
+	}
+
+	private static String bucketFileName(int level, long index) {
+		return BUCKET_PREFIX + level + "-" + String.format("%018d", index) + SegmentFiles.DATAFILE_EXTENSION;
+	}
+
+	private void startIfNeeded() {
+		if (thread == null) {
+			thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, "FileQueue-delay-" + name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private void work() {
+		while (!isStopped) {
+			long now = System.currentTimeMillis();
+			Bucket due = pollDue(now);
+
+			if (due == null) {
+				await(Math.min(tickMillis, nextDueTime() - now));
+				continue;
+			}
+
+			// bucket 의 일부만 전달하면 다시 전달할 때 중복되므로 시작하기 전에만 확인한다.
+			if (due.level == 0 && sink.isFull()) {
+				reschedule(due);
+				await(tickMillis);
+				continue;
+			}
+
+			try {
+				fire(due, now);
+				FileUtils.forceDelete(due.file);
+			} catch (IOException e) {
+				log.warn(String.format("Deliver delayed file(%s) fail. retry later.", due.file), e);
+				reschedule(due);
+				await(tickMillis);
+			}
+		}
+	}
+
+	/**
+	 * 시간이 된 bucket 을 꺼내서 전달 중인 파일로 이름을 바꾼다.
+	 */
+	private synchronized Bucket pollDue(long now) {
+		if (schedule.isEmpty() || schedule.first().dueTime > now) {
+			return null;
+		}
+
+		Bucket bucket = schedule.pollFirst();
+		buckets.remove(bucket.file.getName());
+
+		try {
+			bucket.close();
+		} catch (IOException e) {
+			log.warn("Close delayed file({}) fail.", bucket.file);
+		}
+
+		if (!bucket.file.getName().endsWith(FIRING_EXTENSION)) {
+			File firing = new File(dir, bucket.file.getName() + FIRING_EXTENSION);
+			if (bucket.file.renameTo(firing)) {
+				bucket.file = firing;
+			} else if (bucket.file.exists()) {
+				log.warn("Rename delayed file({}) fail.", bucket.file);
+			}
+		}
+
+		return bucket;
+	}
+
+	private synchronized void reschedule(Bucket bucket) {
+		bucket.dueTime = System.currentTimeMillis() + tickMillis;
+		schedule.add(bucket);
+	}
+
+	private synchronized long nextDueTime() {
+		return schedule.isEmpty() ? Long.MAX_VALUE : schedule.first().dueTime;
+	}
+
+	private void await(long millis) {
+		if (millis <= 0) {
+			return;
+		}
+
+		synchronized (signal) {
+			if (!isStopped) {
+				try {
+					signal.wait(millis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	/**
+	 * level 0 의 bucket 은 큐로 전달하고 상위 level 의 bucket 은 하위 level 로 옮긴다.
+	 */
+	private void fire(Bucket bucket, long now) throws IOException {
+		if (!bucket.file.exists()) {
+			return;
+		}
+
+		List<byte[]> batch = new ArrayList<>(BATCH_SIZE);
+
+		try (SegmentReader reader = SegmentReader.open(bucket.file, 0L, blockSize, readBufferSize)) {
+			BlockGroup blockGroup;
+			while ((blockGroup = reader.next()) != null) {
+				if (bucket.level == 0 || blockGroup.getDeliverAt() <= now) {
+					batch.add(blockGroup.getContent());
+					if (batch.size() >= BATCH_SIZE) {
+						sink.deliver(batch);
+						batch = new ArrayList<>(BATCH_SIZE);
+					}
+				} else {
+					synchronized (this) {
+						append(blockGroup.getContent(), blockGroup.getDeliverAt(), now);
+					}
+				}
+			}
+		}
+
+		if (!batch.isEmpty()) {
+			sink.deliver(batch);
+		}
+	}
+
+	/**
+	 * 스레드를 멈춘다. 저장된 지연 데이터는 다시 시작할 때 전달된다.
+	 */
+	public void stop() {
+		isStopped = true;
+		synchronized (signal) {
+			signal.notifyAll();
+		}
+
+		Thread t;
+		synchronized (this) {
+			t = thread;
+		}
+
+		if (t != null) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		synchronized (this) {
+			for (Bucket bucket : buckets.values()) {
+				try {
+					bucket.close();
+				} catch (IOException e) {
+					log.warn("Close delayed file({}) fail.", bucket.file);
+				}
+			}
+			buckets.clear();
+			schedule.clear();
+		}
+	}
+
+	private class Bucket {
+		private final int level;
+		private File file;
+		// level 0 은 bucket 이 끝나는 시간, 상위 level 은 시작하는 시간
+		private long dueTime;
+		private FileOutputStream out;
+
+		private Bucket(int level, long index, File file) {
+			long width = tickMillis;
+			for (int i = 0; i < level; ++i) {
+				width *= wheelSize;
+			}
+
+			this.level = level;
+			this.file = file;
+			this.dueTime = level == 0 ? (index + 1) * width : index * width;
+		}
+
+		private void append(byte[] data) throws IOException {
+			if (out == null) {
+				out = new FileOutputStream(file, true);
+			}
+
+			out.write(data);
+		}
+
+		private void close() throws IOException {
+			if (out != null) {
+				out.close();
+				out = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package com.geekhua.filequeue.exception;
+
+/**
+ * 데이터를 디코딩할 수 없을 때 Codec 이 던진다. 큐는 이 데이터를 dead letter 로 옮기고 다음 데이터를 읽는다.
+ */
+public class CodecException extends RuntimeException {
+
+    private static final long serialVersionUID = -2904619385167402375L;
+
+    public CodecException(String message) {
+        super(message);
+    }
+
+    public CodecException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,15 @@
+package com.geekhua.filequeue.exception;
+
+import java.io.IOException;
+
+/**
+ * 큐 또는 공유 사용량(DiskQuota)이 제한에 도달해서 데이터를 추가할 수 없을 때 발생한다. (Config.setQuotaPolicy)
+ */
+public class QuotaExceededException extends IOException {
+
+    private static final long serialVersionUID = 6208416236493383245L;
+
+    public QuotaExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,72 @@
+package com.geekhua.filequeue.meta;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * mmap 한 meta 파일을 다른 프로세스와 함께 사용할 때 읽기, 쓰기의 순서를 지키기 위한 memory fence.
+ * Java 8 에서도 동작하도록 sun.misc.Unsafe 의 fence 를 사용한다. (VarHandle 의 fence 는 Java 9 부터 사용할 수 있다.)
+ * Unsafe 를 사용할 수 없다면 full fence 인 CAS 로 대신한다.
+ */
+final class Fences {
+	private static final MethodHandle STORE_FENCE;
+	private static final MethodHandle LOAD_FENCE;
+	private static final AtomicLong fallback = new AtomicLong();
+
+	static {
+		MethodHandle storeFence = null;
+		MethodHandle loadFence = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			Object unsafe = field.get(null);
+
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			storeFence = lookup.unreflect(unsafeClass.getMethod("storeFence")).bindTo(unsafe);
+			loadFence = lookup.unreflect(unsafeClass.getMethod("loadFence")).bindTo(unsafe);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			storeFence = null;
+			loadFence = null;
+		}
+		STORE_FENCE = storeFence;
+		LOAD_FENCE = loadFence;
+	}
+
+	private Fences() {
+	}
+
+	/**
+	 * 앞의 쓰기가 뒤의 쓰기보다 늦게 보이지 않게 한다.
+	 */
+	static void storeFence() {
+		if (STORE_FENCE == null) {
+			fallback.incrementAndGet();
+			return;
+		}
+
+		try {
+			STORE_FENCE.invokeExact();
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * 뒤의 읽기가 앞의 읽기보다 먼저 일어나지 않게 한다.
+	 */
+	static void loadFence() {
+		if (LOAD_FENCE == null) {
+			fallback.incrementAndGet();
+			return;
+		}
+
+		try {
+			LOAD_FENCE.invokeExact();
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -16,6 +16,16 @@ public interface MetaHolder extends Closeable
 	long getReadingFileNo();
 
 	long getReadingFileOffset();
+
+	/**
+	 * 쓰기를 완료한 위치를 다른 프로세스와 공유한다.
+	 */
+	void updateWriting(long writingFileNo, long writingFileOffset);
+
+	/**
+	 * @return {writingFileNo, writingFileOffset}, 공유된 위치가 없다면 null
+	 */
+	long[] getWriting();
 	
 	void close() throws IOException;
 }
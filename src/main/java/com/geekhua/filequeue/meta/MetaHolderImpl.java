@@ -8,18 +8,34 @@ import java.nio.channels.FileChannel.MapMode;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
+ * meta 파일(control block) 형식. 여러 프로세스가 mmap 으로 함께 사용한다.
+ * | readingFileNo(8) | readingFileOffset(8) | version(4) | reserved(4) | writing sequence(8) | writingFileNo(8) | writingFileOffset(8) | reserved |
+ * 읽기 위치는 읽는 프로세스만, 쓰기 위치는 쓰는 프로세스만 갱신한다.
+ * 쓰기 위치는 sequence 가 홀수인 동안 갱신 중이며(seqlock) 읽는 쪽은 sequence 가 바뀌지 않을 때까지 다시 읽는다.
+ * sequence 와 쓰기 위치 사이의 순서는 fence 로 지키며, 쓰는 프로세스 안에서는 마지막으로 갱신한 값을 그대로 읽는다.
+ *
  * @author Leo Liang
  * 
  */
 public class MetaHolderImpl implements MetaHolder {
 	private static final String META_FILE_DIRNAME = "meta";
 	private static final String META_FILE_NAME = "meta";
-	private static final int META_FILE_SIZE = 16;
+	private static final int META_FILE_SIZE = 128;
+	private static final int VERSION = 1;
+	private static final int READING_FILE_NO_POSITION = 0;
+	private static final int READING_FILE_OFFSET_POSITION = 8;
+	private static final int VERSION_POSITION = 16;
+	private static final int WRITING_SEQUENCE_POSITION = 24;
+	private static final int WRITING_FILE_NO_POSITION = 32;
+	private static final int WRITING_FILE_OFFSET_POSITION = 40;
+	// 쓰는 프로세스가 갱신 중에 종료되었다면 sequence 가 홀수로 남으므로 무한히 기다리지 않는다.
+	private static final int MAX_READ_RETRY = 1000;
 
 	private AtomicReference<Meta> meta;
+	// 이 프로세스에서 마지막으로 갱신한 쓰기 위치 {fileNo, offset}. 갱신하지 않았다면 null
+	private volatile long[] writing;
 	private File baseDir;
 	
-	private RandomAccessFile randomFile;
 	private MappedByteBuffer fileMappedBuf;
 
 	public MetaHolderImpl(String queueName, String baseDir) {
@@ -29,9 +45,60 @@ public class MetaHolderImpl implements MetaHolder {
 	public void update(long readingFileNo, long readingFileOffset) {
 		this.meta.set(new Meta(readingFileNo, readingFileOffset));
 
-		fileMappedBuf.position(0);
-		fileMappedBuf.putLong(readingFileNo);
-        fileMappedBuf.putLong(readingFileOffset);
+		fileMappedBuf.putLong(READING_FILE_NO_POSITION, readingFileNo);
+		fileMappedBuf.putLong(READING_FILE_OFFSET_POSITION, readingFileOffset);
+	}
+
+	/**
+	 * 이전 버전(16 bytes)의 meta 파일은 version 이 0 이며 처음 쓰기 위치를 갱신할 때 version 을 기록한다.
+	 */
+	public void updateWriting(long writingFileNo, long writingFileOffset) {
+		long sequence = fileMappedBuf.getLong(WRITING_SEQUENCE_POSITION);
+		if ((sequence & 1L) != 0L) {
+			// 갱신 중에 종료되었다.
+			++sequence;
+		}
+
+		fileMappedBuf.putLong(WRITING_SEQUENCE_POSITION, sequence + 1L);
+		Fences.storeFence();
+		fileMappedBuf.putLong(WRITING_FILE_NO_POSITION, writingFileNo);
+		fileMappedBuf.putLong(WRITING_FILE_OFFSET_POSITION, writingFileOffset);
+		Fences.storeFence();
+		fileMappedBuf.putLong(WRITING_SEQUENCE_POSITION, sequence + 2L);
+		writing = new long[] {writingFileNo, writingFileOffset};
+
+		if (fileMappedBuf.getInt(VERSION_POSITION) != VERSION) {
+			fileMappedBuf.putInt(VERSION_POSITION, VERSION);
+		}
+	}
+
+	public long[] getWriting() {
+		long[] snapshot = writing;
+		if (snapshot != null) {
+			return snapshot.clone();
+		}
+
+		if (fileMappedBuf.getInt(VERSION_POSITION) != VERSION) {
+			return null;
+		}
+
+		for (int i = 0; i < MAX_READ_RETRY; ++i) {
+			long sequence = fileMappedBuf.getLong(WRITING_SEQUENCE_POSITION);
+			if ((sequence & 1L) == 0L) {
+				Fences.loadFence();
+				long writingFileNo = fileMappedBuf.getLong(WRITING_FILE_NO_POSITION);
+				long writingFileOffset = fileMappedBuf.getLong(WRITING_FILE_OFFSET_POSITION);
+				Fences.loadFence();
+
+				if (fileMappedBuf.getLong(WRITING_SEQUENCE_POSITION) == sequence) {
+					return new long[] {writingFileNo, writingFileOffset};
+				}
+			}
+
+			Thread.yield();
+		}
+
+		return null;
 	}
 
 	public void init() throws IOException {
@@ -44,11 +111,13 @@ public class MetaHolderImpl implements MetaHolder {
 
 	private void loadFromFile() throws IOException {
 		File metaFile = new File(baseDir, META_FILE_NAME);
-        randomFile = new RandomAccessFile(metaFile, "rwd");
-        fileMappedBuf = randomFile.getChannel().map(MapMode.READ_WRITE, 0, META_FILE_SIZE);
+        // mapping 은 파일을 닫아도 유지되므로 큐마다 file descriptor 를 가지고 있지 않도록 바로 닫는다.
+        try (RandomAccessFile randomFile = new RandomAccessFile(metaFile, "rwd")) {
+            fileMappedBuf = randomFile.getChannel().map(MapMode.READ_WRITE, 0, META_FILE_SIZE);
+        }
 
-        long readingFileNo = fileMappedBuf.getLong();
-        long readingFileOffset = fileMappedBuf.getLong();
+        long readingFileNo = fileMappedBuf.getLong(READING_FILE_NO_POSITION);
+        long readingFileOffset = fileMappedBuf.getLong(READING_FILE_OFFSET_POSITION);
         meta = new AtomicReference<>(new Meta(readingFileNo, readingFileOffset));
 	}
 
@@ -62,6 +131,8 @@ public class MetaHolderImpl implements MetaHolder {
 	}
 
 	public void close() throws IOException {
-		this.randomFile.close();
+		if (fileMappedBuf != null) {
+			fileMappedBuf.force();
+		}
 	}
 }
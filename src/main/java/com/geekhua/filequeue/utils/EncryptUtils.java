@@ -9,11 +9,32 @@ public class EncryptUtils {
     }
 
 	public static byte[] sha1(byte[] data) {
+		return sha1(data, 0, data.length);
+	}
+
+	/**
+	 * data 의 일부와 more 를 이어붙인 데이터의 sha1 을 복사하지 않고 구한다.
+	 */
+	public static byte[] sha1(byte[] data, int offset, int length, byte[] more) {
+		MessageDigest mDigest;
+
+		try {
+			mDigest = MessageDigest.getInstance("SHA1");
+			mDigest.update(data, offset, length);
+			mDigest.update(more);
+			return mDigest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			return new byte[40];
+		}
+	}
+
+	public static byte[] sha1(byte[] data, int offset, int length) {
 		MessageDigest mDigest;
 		
 		try {
 			mDigest = MessageDigest.getInstance("SHA1");
-			return mDigest.digest(data);
+			mDigest.update(data, offset, length);
+			return mDigest.digest();
 		} catch (NoSuchAlgorithmException e) {
 			return new byte[40];
 		}
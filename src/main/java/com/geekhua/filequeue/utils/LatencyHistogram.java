@@ -0,0 +1,119 @@
+package com.geekhua.filequeue.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 지연 시간(nanoseconds) 분포. HdrHistogram 과 같은 log-linear bucket 을 사용한다.
+ * 2 의 거듭제곱 구간마다 SUB_BUCKET_COUNT / 2 개의 같은 크기의 bucket 을 두므로 상대 오차는 1 / 128 보다 작다.
+ * 0 부터 Long.MAX_VALUE 까지 기록할 수 있으며 기록할 때 할당하지 않고 잠그지 않는다.
+ * 분포를 계산하는 동안 기록된 값은 일부만 반영될 수 있다.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 8;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+	// 가장 큰 구간(63 bit 값)의 마지막 index 다음
+	private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_HALF;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param value 0 보다 작다면 0 으로 기록한다.
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+
+		counts.incrementAndGet(indexOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long current = count.get();
+		return current == 0 ? 0.0 : (double) sum.get() / current;
+	}
+
+	/**
+	 * @param percentile 0 ~ 100
+	 * @return percentile 에 해당하는 값이 속한 bucket 의 가장 큰 값. 기록된 값이 없다면 0
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; ++i) {
+			total += counts.get(i);
+		}
+
+		if (total == 0) {
+			return 0L;
+		}
+
+		long rank = Math.max(1L, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; ++i) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestValueOf(i), max.get());
+			}
+		}
+
+		return max.get();
+	}
+
+	/**
+	 * 기록을 지운다. 지우는 동안 기록된 값은 남을 수 있다.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; ++i) {
+			counts.set(i, 0L);
+		}
+		count.set(0L);
+		sum.set(0L);
+		max.set(0L);
+	}
+
+	static int indexOf(long value) {
+		int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+		if (shift == 0) {
+			return (int) value;
+		}
+
+		return shift * SUB_BUCKET_HALF + (int) (value >>> shift);
+	}
+
+	static long highestValueOf(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+
+		int shift = index / SUB_BUCKET_HALF - 1;
+		long subBucket = index - shift * SUB_BUCKET_HALF;
+		long highest = ((subBucket + 1) << shift) - 1;
+		// 가장 큰 bucket 은 Long.MAX_VALUE 를 넘는다.
+		return highest < 0 ? Long.MAX_VALUE : highest;
+	}
+
+	@Override
+	public String toString() {
+		return "LatencyHistogram [count=" + getCount() + ", mean=" + (long) getMean() + ", p50=" + getValueAtPercentile(50)
+				+ ", p99=" + getValueAtPercentile(99) + ", max=" + getMax() + "]";
+	}
+}
@@ -3,22 +3,40 @@ package com.geekhua.filequeue;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.Spliterator;
 import java.util.TreeSet;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.builder.CompareToBuilder;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.geekhua.filequeue.codec.ByteArrayCodec;
+import com.geekhua.filequeue.codec.Codec;
 import com.geekhua.filequeue.codec.MyObject;
+import com.geekhua.filequeue.datastore.Delivery;
+import com.geekhua.filequeue.datastore.DiskQuota;
+import com.geekhua.filequeue.datastore.ReplayCursor;
+import com.geekhua.filequeue.exception.CodecException;
 import com.geekhua.filequeue.exception.FileQueueClosedException;
+import com.geekhua.filequeue.exception.QuotaExceededException;
+import com.geekhua.filequeue.utils.LatencyHistogram;
 
 
 public class FileQueueImplTest {
@@ -215,6 +233,60 @@ public class FileQueueImplTest {
 
     }
 
+    @Test
+    public void testWaitStrategies() throws Exception {
+        for (WaitStrategies waitStrategy : WaitStrategies.values()) {
+            File queueDir = new File(baseDir, "testWaitStrategies");
+            if (queueDir.exists()) {
+                FileUtils.deleteDirectory(queueDir);
+            }
+
+            Config config = new Config();
+            config.setBaseDir(baseDir.getAbsolutePath());
+            config.setMsgAvgLen(10);
+            config.setName("testWaitStrategies");
+            config.setWaitStrategy(waitStrategy);
+            final FileQueueImpl<Long> fq = new FileQueueImpl<>(config);
+
+            try {
+                long start = System.nanoTime();
+                Assert.assertNull(fq.get(10, TimeUnit.MILLISECONDS));
+                Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(10));
+
+                final int times = 2000;
+                Thread producer = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < times; i++) {
+                                // 소비자가 기다리는 중에 쓴다.
+                                TimeUnit.MICROSECONDS.sleep(50);
+                                fq.add(System.nanoTime());
+                            }
+                        } catch (Exception e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                };
+                producer.start();
+
+                long totalLatency = 0L;
+                for (int i = 0; i < times; i++) {
+                    Long written = fq.get(5, TimeUnit.SECONDS);
+                    Assert.assertNotNull(written);
+                    totalLatency += System.nanoTime() - written;
+                }
+                producer.join();
+                Assert.assertNull(fq.get());
+
+                System.out.println("[WaitStrategy]" + waitStrategy + " avg latency " + totalLatency / times / 1000
+                        + "us for " + times + " times.");
+            } finally {
+                fq.close();
+            }
+        }
+    }
+
     @Test
     public void testReadWriteSpeed() throws Exception {
         Config config = new Config();
@@ -502,6 +574,795 @@ public class FileQueueImplTest {
         Assert.assertEquals(expected, results);
     }
 
+    @Test
+    public void testRewindByTime() throws Exception {
+        File queueDir = new File(baseDir, "testRewindByTime");
+        if (queueDir.exists()) {
+            FileUtils.deleteDirectory(queueDir);
+        }
+
+        Config config = new Config();
+        config.setBaseDir(baseDir.getAbsolutePath());
+        config.setMsgAvgLen(10);
+        config.setName("testRewindByTime");
+        config.setFileSiz(10);
+        config.setBackupReadFile(true);
+        FileQueueImpl<Integer> fq = new FileQueueImpl<>(config);
+
+        try {
+            for (int i = 0; i < 10; i++) {
+                fq.add(i);
+            }
+
+            // 파일의 수정 시간은 초 단위일 수 있다.
+            Thread.sleep(1100);
+            long timestamp = System.currentTimeMillis();
+
+            for (int i = 10; i < 20; i++) {
+                fq.add(i);
+            }
+
+            for (int i = 0; i < 20; i++) {
+                Assert.assertEquals(Integer.valueOf(i), fq.get());
+            }
+            Assert.assertNull(fq.get());
+
+            // 파일 단위로 옮기기 때문에 timestamp 이전의 마지막 파일(end block 을 이후에 씀)부터 읽을 수 있다.
+            fq.rewind(timestamp);
+            Integer first = fq.get();
+            Assert.assertTrue(first == 9 || first == 10);
+            for (int i = first + 1; i < 20; i++) {
+                Assert.assertEquals(Integer.valueOf(i), fq.get());
+            }
+            Assert.assertNull(fq.get());
+        } finally {
+            fq.close();
+        }
+    }
+
+    @Test
+    public void testBrowse() throws Exception {
+        File queueDir = new File(baseDir, "testBrowse");
+        if (queueDir.exists()) {
+            FileUtils.deleteDirectory(queueDir);
+        }
+
+        Config config = new Config();
+        config.setBaseDir(baseDir.getAbsolutePath());
+        config.setMsgAvgLen(10);
+        config.setName("testBrowse");
+        config.setFileSiz(1024);
+        config.setRecordTimestamp(true);
+        config.setTimeIndexInterval(128);
+        config.setBackupReadFile(true);
+        FileQueueImpl<Integer> fq = new FileQueueImpl<>(config);
+
+        try {
+            for (int i = 0; i < 500; i++) {
+                fq.add(i);
+            }
+            for (int i = 0; i < 100; i++) {
+                Assert.assertEquals(Integer.valueOf(i), fq.get());
+            }
+
+            Spliterator<Integer> spliterator = fq.browse();
+            Assert.assertNotNull(spliterator.trySplit());
+
+            TreeSet<Integer> browsed = new TreeSet<>(StreamSupport.stream(fq.browse(), true).collect(Collectors.toList()));
+            Assert.assertEquals(400, browsed.size());
+            Assert.assertEquals(Integer.valueOf(100), browsed.first());
+            Assert.assertEquals(Integer.valueOf(499), browsed.last());
+
+            // 순서대로 읽을 수 있으며 읽기 위치는 바뀌지 않는다.
+            List<Integer> ordered = StreamSupport.stream(fq.browse(), false).collect(Collectors.toList());
+            Assert.assertEquals(400, ordered.size());
+            for (int i = 0; i < 400; i++) {
+                Assert.assertEquals(Integer.valueOf(i + 100), ordered.get(i));
+            }
+            Assert.assertEquals(Integer.valueOf(100), fq.get());
+
+            // 쓰기 위치 이후에 쓴 데이터는 읽지 않는다.
+            Spliterator<Integer> snapshot = fq.browse();
+            fq.add(500);
+            Assert.assertEquals(399, StreamSupport.stream(snapshot, false).count());
+        } finally {
+            fq.close();
+        }
+    }
+
+    private static Config createQuotaConfig(String name, QuotaPolicy quotaPolicy) throws IOException {
+        File queueDir = new File(baseDir, name);
+        if (queueDir.exists()) {
+            FileUtils.deleteDirectory(queueDir);
+        }
+
+        Config config = new Config();
+        config.setBaseDir(baseDir.getAbsolutePath());
+        config.setMsgAvgLen(10);
+        config.setName(name);
+        config.setFileSiz(256);
+        config.setMaxQueueMessages(10);
+        config.setQuotaPolicy(quotaPolicy);
+        config.setQuotaTimeoutMillis(100);
+        return config;
+    }
+
+    @Test
+    public void testQuota() throws Exception {
+        Config reopenConfig = createQuotaConfig("testQuotaFail", QuotaPolicy.FAIL);
+        FileQueueImpl<Integer> fq = new FileQueueImpl<>(reopenConfig);
+        try {
+            for (int i = 0; i < 10; i++) {
+                fq.add(i);
+            }
+            Assert.assertEquals(10, fq.getUsedMessages());
+            try {
+                fq.add(10);
+                Assert.fail();
+            } catch (QuotaExceededException e) {
+                // 제한에 도달했다.
+            }
+
+            Assert.assertEquals(Integer.valueOf(0), fq.get());
+            fq.add(10);
+        } finally {
+            fq.close();
+        }
+
+        // 다시 열면 읽지 않은 데이터를 다시 센다.
+        fq = new FileQueueImpl<>(reopenConfig);
+        try {
+            Assert.assertEquals(10, fq.getUsedMessages());
+            Assert.assertTrue(fq.getUsedBytes() > 0);
+            for (int i = 1; i <= 10; i++) {
+                Assert.assertEquals(Integer.valueOf(i), fq.get());
+            }
+            Assert.assertNull(fq.get());
+            Assert.assertEquals(0, fq.getUsedMessages());
+            Assert.assertEquals(0, fq.getUsedBytes());
+        } finally {
+            fq.close();
+        }
+
+        fq = new FileQueueImpl<>(createQuotaConfig("testQuotaDropNewest", QuotaPolicy.DROP_NEWEST));
+        try {
+            for (int i = 0; i < 20; i++) {
+                fq.add(i);
+            }
+            Assert.assertEquals(10, fq.getDroppedCount());
+            for (int i = 0; i < 10; i++) {
+                Assert.assertEquals(Integer.valueOf(i), fq.get());
+            }
+            Assert.assertNull(fq.get());
+        } finally {
+            fq.close();
+        }
+
+        fq = new FileQueueImpl<>(createQuotaConfig("testQuotaDropOldest", QuotaPolicy.DROP_OLDEST));
+        try {
+            for (int i = 0; i < 20; i++) {
+                fq.add(i);
+            }
+            Assert.assertEquals(10, fq.getDroppedCount());
+            for (int i = 10; i < 20; i++) {
+                Assert.assertEquals(Integer.valueOf(i), fq.get());
+            }
+            Assert.assertNull(fq.get());
+        } finally {
+            fq.close();
+        }
+    }
+
+    @Test
+    public void testQuotaBlock() throws Exception {
+        DiskQuota global = new DiskQuota(0, 15);
+        Config config = createQuotaConfig("testQuotaBlock", QuotaPolicy.BLOCK);
+        config.setGlobalQuota(global);
+        config.setQuotaTimeoutMillis(5000);
+        final FileQueueImpl<Integer> fq = new FileQueueImpl<>(config);
+        Config otherConfig = createQuotaConfig("testQuotaBlockOther", QuotaPolicy.FAIL);
+        otherConfig.setGlobalQuota(global);
+        FileQueueImpl<Integer> other = new FileQueueImpl<>(otherConfig);
+
+        try {
+            for (int i = 0; i < 10; i++) {
+                fq.add(i);
+            }
+            for (int i = 0; i < 5; i++) {
+                other.add(i);
+            }
+            // 큐의 제한에 도달하지 않았지만 공유 사용량 제한에 도달했다.
+            Assert.assertEquals(15, global.getUsedMessages());
+            try {
+                other.add(5);
+                Assert.fail();
+            } catch (QuotaExceededException e) {
+                // 제한에 도달했다.
+            }
+
+            Thread consumer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(200);
+                        fq.get();
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+            consumer.start();
+
+            long start = System.nanoTime();
+            fq.add(10);
+            Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+            consumer.join();
+            Assert.assertEquals(10, fq.getUsedMessages());
+            Assert.assertTrue(global.getUsedBytes() > 0);
+        } finally {
+            fq.close();
+            other.close();
+        }
+
+        // 닫은 큐의 사용량은 공유 사용량에서 빠지고, 다시 열면 한 번만 센다.
+        Assert.assertEquals(0, global.getUsedMessages());
+        Assert.assertEquals(0, global.getUsedBytes());
+        FileQueueImpl<Integer> reopened = new FileQueueImpl<>(config);
+        try {
+            Assert.assertEquals(10, global.getUsedMessages());
+            Assert.assertEquals(reopened.getUsedBytes(), global.getUsedBytes());
+        } finally {
+            reopened.close();
+        }
+        Assert.assertEquals(0, global.getUsedMessages());
+    }
+
+    @Test
+    public void testTransaction() throws Exception {
+        File queueDir = new File(baseDir, "testTransaction");
+        if (queueDir.exists()) {
+            FileUtils.deleteDirectory(queueDir);
+        }
+
+        Config config = new Config();
+        config.setBaseDir(baseDir.getAbsolutePath());
+        config.setMsgAvgLen(10);
+        config.setName("testTransaction");
+        config.setPrefetchCount(4);
+
+        FileQueueImpl<Integer> fq = new FileQueueImpl<>(config);
+        try {
+            Transaction<Integer> txn = fq.beginTransaction();
+            txn.add(1);
+            txn.add(2);
+            Assert.assertNull(fq.get());
+
+            fq.add(0);
+            txn.commit();
+
+            Transaction<Integer> rolledBack = fq.beginTransaction();
+            rolledBack.add(100);
+            rolledBack.rollback();
+
+            Transaction<Integer> next = fq.beginTransaction();
+            for (int i = 3; i < 10; i++) {
+                next.add(i);
+            }
+            next.commit();
+
+            for (int i = 0; i < 10; i++) {
+                Assert.assertEquals(Integer.valueOf(i), fq.get(1, TimeUnit.SECONDS));
+            }
+            Assert.assertNull(fq.get());
+
+            try {
+                txn.add(3);
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                // 끝난 transaction 은 다시 사용할 수 없다.
+            }
+        } finally {
+            fq.close();
+        }
+    }
+
+    private static Config createBatchConfig(String name) throws IOException {
+        File queueDir = new File(baseDir, name);
+        if (queueDir.exists()) {
+            FileUtils.deleteDirectory(queueDir);
+        }
+
+        Config config = new Config();
+        config.setBaseDir(baseDir.getAbsolutePath());
+        config.setMsgAvgLen(10);
+        config.setName(name);
+        config.setBatchMaxBytes(256);
+        config.setMaxQueueMessages(1000);
+        return config;
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        List<Integer> elements = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            elements.add(i);
+        }
+
+        long singleOffset;
+        FileQueueImpl<Integer> single = new FileQueueImpl<>(createBatchConfig("testBatchSingle"));
+        try {
+            for (Integer element : elements) {
+                single.add(element);
+            }
+            singleOffset = single.getWritingFileOffset();
+        } finally {
+            single.close();
+        }
+
+        Config config = createBatchConfig("testBatch");
+        FileQueueImpl<Integer> fq = new FileQueueImpl<>(config);
+        try {
+            fq.addAll(elements.subList(0, 100));
+            fq.add(100);
+            fq.addAll(elements.subList(101, 200));
+            Assert.assertTrue(fq.getWritingFileOffset() < singleOffset);
+            Assert.assertEquals(200, fq.getUsedMessages());
+
+            for (int i = 0; i < 50; i++) {
+                Assert.assertEquals(Integer.valueOf(i), fq.get());
+            }
+            // 읽기 위치는 batch 단위로 기록되므로 읽고 있는 batch 의 처음부터 보인다.
+            List<Integer> browsed = StreamSupport.stream(fq.browse(), false).collect(Collectors.toList());
+            Assert.assertTrue(browsed.get(0) <= 50);
+            Assert.assertEquals(Integer.valueOf(199), browsed.get(browsed.size() - 1));
+        } finally {
+            fq.close();
+        }
+
+        // 다시 열면 batch 안의 데이터도 개수를 센다. batch 중간까지 읽었다면 batch 처음부터 다시 읽는다.
+        fq = new FileQueueImpl<>(config);
+        try {
+            Assert.assertTrue(fq.getUsedMessages() >= 150);
+            Integer first = fq.get();
+            Assert.assertTrue(first <= 50);
+            for (int i = first + 1; i < 200; i++) {
+                Assert.assertEquals(Integer.valueOf(i), fq.get());
+            }
+            Assert.assertNull(fq.get());
+        } finally {
+            fq.close();
+        }
+
+        Config lingerConfig = createBatchConfig("testBatchLinger");
+        lingerConfig.setBatchLingerMillis(20);
+        lingerConfig.setBatchMaxRecords(10);
+        fq = new FileQueueImpl<>(lingerConfig);
+        try {
+            fq.add(0);
+            fq.add(1);
+            Assert.assertEquals(Integer.valueOf(0), fq.get(1, TimeUnit.SECONDS));
+            Assert.assertEquals(Integer.valueOf(1), fq.get());
+
+            // batchMaxRecords 개가 모이면 바로 쓴다.
+            for (int i = 2; i < 12; i++) {
+                fq.add(i);
+            }
+            Assert.assertEquals(Integer.valueOf(2), fq.get());
+
+            // 다른 방법으로 쓰기 전에 모아둔 데이터를 먼저 쓰므로 순서가 바뀌지 않는다.
+            fq.add(12);
+            fq.add(13, 1L);
+            fq.add(14);
+        } finally {
+            fq.close();
+        }
+
+        fq = new FileQueueImpl<>(lingerConfig);
+        try {
+            Integer first = fq.get();
+            Assert.assertTrue(first <= 3);
+            for (int i = first + 1; i < 15; i++) {
+                Assert.assertEquals(Integer.valueOf(i), fq.get());
+            }
+            Assert.assertNull(fq.get());
+        } finally {
+            fq.close();
+        }
+    }
+
+    @Test
+    public void testLatencyStats() throws Exception {
+        Config config = createBatchConfig("testLatencyStats");
+        FileQueueImpl<Integer> fq = new FileQueueImpl<>(config);
+        try {
+            Assert.assertNull(fq.getLatencyStats());
+            fq.add(0);
+        } finally {
+            fq.close();
+        }
+
+        config.setTrackLatency(true);
+        fq = new FileQueueImpl<>(config);
+        try {
+            fq.add(1);
+            fq.addAll(Arrays.asList(2, 3, 4));
+            Thread.sleep(50);
+
+            for (int i = 0; i < 5; i++) {
+                Assert.assertEquals(Integer.valueOf(i), fq.get());
+            }
+
+            // 설정하기 전에 쓴 데이터는 쓴 시간이 없으므로 기록하지 않는다.
+            LatencyHistogram latency = fq.getLatencyStats();
+            Assert.assertEquals(4, latency.getCount());
+            Assert.assertTrue(latency.getValueAtPercentile(50) >= TimeUnit.MILLISECONDS.toNanos(50));
+            Assert.assertTrue(latency.getMax() < TimeUnit.SECONDS.toNanos(10));
+        } finally {
+            fq.close();
+        }
+    }
+
+    @Test
+    public void testPollHandler() throws Exception {
+        Config config = createBatchConfig("testPollHandler");
+        config.setCodec(new ByteArrayCodec());
+        config.setReadBufferSize(4096);
+        // 파일에서 읽도록 최근에 쓴 데이터를 기억하지 않는다.
+        config.setTailCacheBytes(0);
+        FileQueueImpl<byte[]> fq = new FileQueueImpl<>(config);
+        final List<String> received = new ArrayList<>();
+        Consumer<ByteBuffer> handler = new Consumer<ByteBuffer>() {
+            @Override
+            public void accept(ByteBuffer content) {
+                Assert.assertTrue(content.isReadOnly());
+                byte[] bytes = new byte[content.remaining()];
+                content.get(bytes);
+                received.add(new String(bytes, Charset.forName("UTF-8")));
+            }
+        };
+
+        try {
+            Assert.assertFalse(fq.poll(handler));
+
+            char[] large = new char[10000];
+            Arrays.fill(large, 'x');
+            fq.add("first".getBytes("UTF-8"));
+            fq.add(new String(large).getBytes("UTF-8"));
+            fq.addAll(Arrays.asList("batch-1".getBytes("UTF-8"), "batch-2".getBytes("UTF-8")));
+            fq.add("last".getBytes("UTF-8"));
+
+            // view 를 전달하는 중에 Error 를 던져도 다시 전달한다.
+            try {
+                fq.poll(new Consumer<ByteBuffer>() {
+                    @Override
+                    public void accept(ByteBuffer content) {
+                        throw new Error("handler");
+                    }
+                });
+                Assert.fail();
+            } catch (Error e) {
+                Assert.assertEquals("handler", e.getMessage());
+            }
+
+            Assert.assertTrue(fq.poll(handler));
+            Assert.assertEquals("first", received.get(0));
+
+            // handler 가 실패하면 읽기 위치를 옮기지 않는다.
+            try {
+                fq.poll(new Consumer<ByteBuffer>() {
+                    @Override
+                    public void accept(ByteBuffer content) {
+                        throw new IllegalStateException();
+                    }
+                });
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                // 다시 전달된다.
+            }
+
+            while (fq.poll(handler)) {
+                // 모두 읽는다.
+            }
+            Assert.assertEquals(5, received.size());
+            Assert.assertEquals(new String(large), received.get(1));
+            Assert.assertEquals("batch-1", received.get(2));
+            Assert.assertEquals("batch-2", received.get(3));
+            Assert.assertEquals("last", received.get(4));
+
+            fq.add("after".getBytes("UTF-8"));
+            Assert.assertTrue(fq.poll(handler));
+            Assert.assertEquals("after", received.get(5));
+        } finally {
+            fq.close();
+        }
+
+        fq = new FileQueueImpl<>(config);
+        try {
+            Assert.assertNull(fq.get());
+        } finally {
+            fq.close();
+        }
+    }
+
+    @Test
+    public void testPollHandlerCopiedContent() throws Exception {
+        // batch, transaction 의 데이터와 선읽기한 데이터는 view 가 아니지만 다시 인코딩하지 않고 원본을 전달한다.
+        for (int prefetchCount : new int[] {0, 4}) {
+            Config config = createBatchConfig("testPollHandlerCopiedContent");
+            FailingCodec codec = new FailingCodec();
+            config.setCodec(codec);
+            config.setPrefetchCount(prefetchCount);
+            FileQueueImpl<String> fq = new FileQueueImpl<>(config);
+            final List<String> received = new ArrayList<>();
+            Consumer<ByteBuffer> handler = new Consumer<ByteBuffer>() {
+                @Override
+                public void accept(ByteBuffer content) {
+                    byte[] bytes = new byte[content.remaining()];
+                    content.get(bytes);
+                    received.add(new String(bytes, Charset.forName("UTF-8")));
+                }
+            };
+
+            try {
+                fq.addAll(Arrays.asList("batch-1", "batch-2"));
+                Transaction<String> txn = fq.beginTransaction();
+                txn.add("txn-1");
+                txn.add("txn-2");
+                txn.commit();
+                codec.isEncodeFailing = true;
+
+                long deadline = System.currentTimeMillis() + 1000;
+                while (received.size() < 4 && System.currentTimeMillis() < deadline) {
+                    fq.poll(handler);
+                }
+                Assert.assertEquals(Arrays.asList("batch-1", "batch-2", "txn-1", "txn-2"), received);
+            } finally {
+                fq.close();
+            }
+        }
+    }
+
+    @Test
+    public void testAddDelayed() throws Exception {
+        File queueDir = new File(baseDir, "testAddDelayed");
+        if (queueDir.exists()) {
+            FileUtils.deleteDirectory(queueDir);
+        }
+
+        Config config = new Config();
+        config.setBaseDir(baseDir.getAbsolutePath());
+        config.setMsgAvgLen(10);
+        config.setName("testAddDelayed");
+        config.setDelayTickMillis(20);
+        config.setDelayWheelSize(4);
+
+        FileQueueImpl<Integer> fq = new FileQueueImpl<>(config);
+        try {
+            long start = System.currentTimeMillis();
+            // level 0 의 범위(80ms)를 넘는 데이터는 상위 level 에 저장되었다가 옮겨진다.
+            fq.addDelayed(3, 700, TimeUnit.MILLISECONDS);
+            fq.addDelayed(2, 300, TimeUnit.MILLISECONDS);
+            fq.addDelayed(1, 50, TimeUnit.MILLISECONDS);
+            fq.add(0);
+
+            Assert.assertEquals(Integer.valueOf(0), fq.get());
+            Assert.assertNull(fq.get());
+
+            for (int i = 1; i <= 3; i++) {
+                Assert.assertEquals(Integer.valueOf(i), fq.get(2, TimeUnit.SECONDS));
+            }
+            Assert.assertTrue(System.currentTimeMillis() - start >= 700);
+            Assert.assertNull(fq.get());
+
+            fq.addDelayed(4, 300, TimeUnit.MILLISECONDS);
+        } finally {
+            fq.close();
+        }
+
+        // 저장된 지연 데이터는 다시 시작한 후에 전달된다.
+        fq = new FileQueueImpl<>(config);
+        try {
+            Assert.assertEquals(Integer.valueOf(4), fq.get(2, TimeUnit.SECONDS));
+            Assert.assertNull(fq.get());
+        } finally {
+            fq.close();
+        }
+    }
+
+    @Test
+    public void testAddDelayedQuota() throws Exception {
+        Config config = createQuotaConfig("testAddDelayedQuota", QuotaPolicy.FAIL);
+        config.setDelayTickMillis(20);
+
+        FileQueueImpl<Integer> fq = new FileQueueImpl<>(config);
+        try {
+            for (int i = 0; i < 10; i++) {
+                fq.add(i);
+            }
+            try {
+                fq.addDelayed(100, 50, TimeUnit.MILLISECONDS);
+                Assert.fail();
+            } catch (QuotaExceededException e) {
+                // 추가할 때 제한을 확인한다.
+            }
+
+            Assert.assertEquals(Integer.valueOf(0), fq.get());
+            fq.addDelayed(100, 50, TimeUnit.MILLISECONDS);
+            fq.add(10);
+
+            // 시간이 되었지만 제한에 도달했으므로 전달하지 않는다.
+            Thread.sleep(300);
+            Assert.assertEquals(10, fq.getUsedMessages());
+
+            Set<Integer> received = new TreeSet<>();
+            for (int i = 0; i < 11; i++) {
+                Integer element = fq.get(2, TimeUnit.SECONDS);
+                Assert.assertNotNull(element);
+                received.add(element);
+            }
+            Assert.assertTrue(received.contains(100));
+            Assert.assertNull(fq.get());
+        } finally {
+            fq.close();
+        }
+    }
+
+    @Test
+    public void testAckAndRedelivery() throws Exception {
+        File queueDir = new File(baseDir, "testAckAndRedelivery");
+        if (queueDir.exists()) {
+            FileUtils.deleteDirectory(queueDir);
+        }
+
+        Config config = new Config();
+        config.setBaseDir(baseDir.getAbsolutePath());
+        config.setMsgAvgLen(10);
+        config.setName("testAckAndRedelivery");
+        config.setFileSiz(256);
+        config.setVisibilityTimeoutMillis(300);
+        config.setMaxInFlight(8);
+
+        FileQueueImpl<Integer> fq = new FileQueueImpl<>(config);
+        try {
+            for (int i = 0; i < 20; i++) {
+                fq.add(i);
+            }
+
+            List<Delivery<Integer>> deliveries = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                Delivery<Integer> delivery = fq.receive();
+                Assert.assertEquals(Integer.valueOf(i), delivery.getElement());
+                Assert.assertEquals(1, delivery.getDeliveryCount());
+                deliveries.add(delivery);
+            }
+            // ack 하지 않은 데이터가 maxInFlight 개라면 더 읽지 않는다.
+            Assert.assertNull(fq.receive());
+
+            // 가장 오래된 데이터를 ack 하기 전에는 읽기 위치가 옮겨지지 않는다.
+            long readingFileNo = fq.getReadingFileNo();
+            long readingOffset = fq.getReadingFileOffset();
+            for (int i = 1; i < 8; i++) {
+                Assert.assertTrue(fq.ack(deliveries.get(i)));
+            }
+            Assert.assertEquals(readingFileNo, fq.getReadingFileNo());
+            Assert.assertEquals(readingOffset, fq.getReadingFileOffset());
+            Assert.assertFalse(fq.ack(deliveries.get(1)));
+
+            // nack 한 데이터는 다음에 다시 전달된다.
+            Assert.assertTrue(fq.nack(deliveries.get(0)));
+            Delivery<Integer> redelivered = fq.receive();
+            Assert.assertEquals(Integer.valueOf(0), redelivered.getElement());
+            Assert.assertEquals(2, redelivered.getDeliveryCount());
+            Assert.assertTrue(fq.ack(redelivered));
+            Assert.assertTrue(fq.getReadingFileNo() > readingFileNo);
+
+            // 시간 안에 ack 하지 않은 데이터는 다시 전달된다.
+            Delivery<Integer> expiring = fq.receive();
+            Assert.assertEquals(Integer.valueOf(8), expiring.getElement());
+            Assert.assertEquals(Integer.valueOf(9), fq.receive().getElement());
+            Thread.sleep(400);
+            Delivery<Integer> expired = fq.receive();
+            Assert.assertEquals(Integer.valueOf(8), expired.getElement());
+            Assert.assertEquals(2, expired.getDeliveryCount());
+            Assert.assertTrue(fq.ack(expiring));
+        } finally {
+            fq.close();
+        }
+
+        // ack 하지 않은 데이터부터 다시 읽는다.
+        fq = new FileQueueImpl<>(config);
+        try {
+            for (int i = 9; i < 20; i++) {
+                Assert.assertEquals(Integer.valueOf(i), fq.get());
+            }
+            Assert.assertNull(fq.get());
+        } finally {
+            fq.close();
+        }
+    }
+
+    @Test
+    public void testDeadLetter() throws Exception {
+        File queueDir = new File(baseDir, "testDeadLetter");
+        if (queueDir.exists()) {
+            FileUtils.deleteDirectory(queueDir);
+        }
+
+        Config config = new Config();
+        config.setBaseDir(baseDir.getAbsolutePath());
+        config.setMsgAvgLen(10);
+        config.setName("testDeadLetter");
+        FailingCodec codec = new FailingCodec();
+        config.setCodec(codec);
+        config.setVisibilityTimeoutMillis(10000);
+        config.setMaxDeliveries(2);
+
+        FileQueueImpl<String> fq = new FileQueueImpl<>(config);
+        try {
+            fq.add("a");
+            fq.add("bad");
+            fq.add("b");
+
+            // 디코딩하지 못한 데이터는 건너뛰고 바로 다음 데이터를 읽는다.
+            Assert.assertEquals("a", fq.get(1, TimeUnit.SECONDS));
+            Assert.assertEquals("b", fq.get(1, TimeUnit.SECONDS));
+            Assert.assertNull(fq.get());
+            Assert.assertEquals(1, fq.getDeadLetterStats().getDecodeFailedCount());
+
+            // maxDeliveries 번 전달했지만 ack 되지 않은 데이터는 다시 encode 하지 않고 원본을 dead letter 로 옮긴다.
+            fq.add("poison");
+            codec.isEncodeFailing = true;
+            for (int i = 1; i <= 2; i++) {
+                Delivery<String> delivery = fq.receive();
+                Assert.assertEquals("poison", delivery.getElement());
+                Assert.assertEquals(i, delivery.getDeliveryCount());
+                Assert.assertTrue(fq.nack(delivery));
+            }
+            Assert.assertNull(fq.receive());
+            Assert.assertEquals(1, fq.getDeadLetterStats().getPoisonCount());
+
+            List<String> deadLetters = new ArrayList<>();
+            try (ReplayCursor<byte[]> cursor = fq.browseDeadLetters()) {
+                byte[] content;
+                while ((content = cursor.next()) != null) {
+                    deadLetters.add(new String(content, "UTF-8"));
+                }
+            }
+            Assert.assertEquals(Arrays.asList("bad", "poison"), deadLetters);
+            codec.isEncodeFailing = false;
+
+            // 다시 넣은 데이터는 다시 읽는다. 여전히 디코딩하지 못하는 데이터는 다시 dead letter 로 옮겨진다.
+            Assert.assertEquals(2, fq.requeueDeadLetters(10));
+            Assert.assertEquals("poison", fq.get());
+            Assert.assertNull(fq.get());
+            Assert.assertEquals(2, fq.getDeadLetterStats().getDecodeFailedCount());
+            Assert.assertEquals(2, fq.getDeadLetterStats().getRequeuedCount());
+        } finally {
+            fq.close();
+        }
+    }
+
+    private static class FailingCodec implements Codec {
+        private volatile boolean isEncodeFailing;
+
+        @Override
+        public byte[] encode(Object element) {
+            if (isEncodeFailing) {
+                throw new CodecException("Can not encode.");
+            }
+            return ((String) element).getBytes(Charset.forName("UTF-8"));
+        }
+
+        @Override
+        public Object decode(byte[] bytes) {
+            String decoded = new String(bytes, Charset.forName("UTF-8"));
+            if (decoded.startsWith("bad")) {
+                throw new CodecException("Can not decode.");
+            }
+            return decoded;
+        }
+    }
+
     /**
      * 빈 큐파일을 닫고 열 경우 readingFileNo 가 업데이트 되지 않아
      * 다시 파일을 열 경우 계속해서 그 전 파일을 찾는 현상 테스트
@@ -0,0 +1,98 @@
+package com.geekhua.filequeue;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileQueueManagerTest {
+    private static final File baseDir = new File("target/fileque", "manager-test");
+
+    @Before
+    public void before() throws Exception {
+        if (baseDir.exists()) {
+            FileUtils.deleteDirectory(baseDir);
+        }
+    }
+
+    private static Config createConfig() {
+        Config config = new Config();
+        config.setBaseDir(baseDir.getAbsolutePath());
+        config.setMsgAvgLen(10);
+        config.setPrefetchCount(16);
+        return config;
+    }
+
+    @Test
+    public void testOpenQueuesBounded() throws Exception {
+        FileQueueManager manager = new FileQueueManager(createConfig(), 2, 3);
+        try {
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < 10; i++) {
+                    FileQueue<String> fq = manager.getQueue("queue-" + i);
+                    fq.add(i + "-" + round);
+                    Assert.assertTrue(manager.getOpenQueueCount() <= 3);
+                }
+            }
+            Assert.assertEquals(10, manager.getQueueCount());
+
+            for (int i = 0; i < 10; i++) {
+                FileQueue<String> fq = manager.getQueue("queue-" + i);
+                for (int round = 0; round < 3; round++) {
+                    Assert.assertEquals(i + "-" + round, fq.get());
+                }
+                Assert.assertNull(fq.get());
+                Assert.assertTrue(manager.getOpenQueueCount() <= 3);
+            }
+
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                Assert.assertFalse(thread.getName(), thread.getName().startsWith("FileQueue-janitor-queue-"));
+                Assert.assertFalse(thread.getName(), thread.getName().startsWith("FileQueue-prefetch-queue-"));
+            }
+        } finally {
+            manager.close();
+        }
+
+        Assert.assertTrue(new File(baseDir, "queue-9/data").exists());
+    }
+
+    @Test
+    public void testReleaseInMiddleOfFile() throws Exception {
+        Config config = createConfig();
+        config.setFileSiz(1024);
+        config.setRecordTimestamp(true);
+        config.setTimeIndexInterval(128);
+        config.setBackupReadFile(true);
+
+        FileQueueManager manager = new FileQueueManager(config, 1, 1);
+        try {
+            FileQueueImpl<Integer> first = manager.getQueue("first", 2);
+            FileQueueImpl<Integer> second = manager.getQueue("second");
+
+            for (int i = 0; i < 200; i++) {
+                first.add(i);
+                // 번갈아 사용하므로 매번 다른 큐의 파일이 닫힌다.
+                second.add(i);
+                Assert.assertEquals(Integer.valueOf(i), first.get());
+            }
+
+            for (int i = 0; i < 200; i++) {
+                Assert.assertEquals(Integer.valueOf(i), second.get());
+            }
+            Assert.assertNull(first.get());
+            Assert.assertNull(second.get());
+            Assert.assertEquals(1, manager.getOpenQueueCount());
+
+            manager.closeQueue("second");
+            Assert.assertEquals(1, manager.getQueueCount());
+        } finally {
+            manager.close();
+        }
+
+        // 읽기가 끝난 파일은 공유 스레드에서 백업 폴더로 옮겨진다.
+        Assert.assertEquals(1, FileUtils.listFiles(new File(baseDir, "first/data"), new String[] {"fq"}, false).size());
+        Assert.assertTrue(new File(baseDir, "first/bak").list().length > 1);
+    }
+}
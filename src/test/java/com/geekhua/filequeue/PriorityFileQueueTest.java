@@ -0,0 +1,125 @@
+package com.geekhua.filequeue;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PriorityFileQueueTest {
+    private static final File baseDir = new File("target/fileque", "priority-test");
+
+    @Before
+    public void before() throws Exception {
+        if (baseDir.exists()) {
+            FileUtils.deleteDirectory(baseDir);
+        }
+    }
+
+    private static Config createConfig(String name) {
+        Config config = new Config();
+        config.setBaseDir(baseDir.getAbsolutePath());
+        config.setMsgAvgLen(10);
+        config.setName(name);
+        return config;
+    }
+
+    @Test
+    public void testHighestLaneFirst() throws Exception {
+        PriorityFileQueue<String> fq = new PriorityFileQueue<>(createConfig("highest"));
+        try {
+            Assert.assertEquals(3, fq.getLaneCount());
+
+            fq.add("bulk");
+            fq.add("normal", 1);
+            fq.add("urgent", 0);
+
+            Assert.assertEquals("urgent", fq.get());
+            Assert.assertEquals("normal", fq.get());
+            Assert.assertEquals("bulk", fq.get());
+            Assert.assertNull(fq.get());
+        } finally {
+            fq.close();
+        }
+
+        Assert.assertTrue(new File(baseDir, "highest/lane-0/data").exists());
+        Assert.assertTrue(new File(baseDir, "highest/lane-2/data").exists());
+    }
+
+    @Test
+    public void testWeightedDrain() throws Exception {
+        Config config = createConfig("weighted");
+        config.setPriorityWeights(2, 1);
+
+        PriorityFileQueue<Integer> fq = new PriorityFileQueue<>(config);
+        try {
+            for (int i = 0; i < 6; i++) {
+                fq.add(100 + i, 1);
+                fq.add(i, 0);
+            }
+
+            // 높은 lane 에서 두 개, 낮은 lane 에서 하나씩 읽는다.
+            int[] expected = new int[] {0, 1, 100, 2, 3, 101, 4, 5, 102, 103, 104, 105};
+            for (int value : expected) {
+                Assert.assertEquals(Integer.valueOf(value), fq.get());
+            }
+            Assert.assertNull(fq.get());
+        } finally {
+            fq.close();
+        }
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        Config config = createConfig("restart");
+
+        PriorityFileQueue<String> fq = new PriorityFileQueue<>(config);
+        try {
+            fq.add("low", 2);
+            fq.add("high", 0);
+        } finally {
+            fq.close();
+        }
+
+        fq = new PriorityFileQueue<>(config);
+        try {
+            Assert.assertEquals("high", fq.get());
+            Assert.assertEquals("low", fq.get());
+            Assert.assertNull(fq.get());
+        } finally {
+            fq.close();
+        }
+    }
+
+    @Test
+    public void testIgnoreQuota() throws Exception {
+        Config config = createConfig("quota");
+        config.setMaxQueueMessages(1);
+        config.setQuotaPolicy(QuotaPolicy.FAIL);
+
+        PriorityFileQueue<String> fq = new PriorityFileQueue<>(config);
+        try {
+            fq.add("a", 0);
+            fq.add("b", 0);
+            fq.add("c", 1);
+
+            Assert.assertEquals("a", fq.get());
+            Assert.assertEquals("b", fq.get());
+            Assert.assertEquals("c", fq.get());
+            Assert.assertNull(fq.get());
+        } finally {
+            fq.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPriority() throws Exception {
+        PriorityFileQueue<String> fq = new PriorityFileQueue<>(createConfig("invalid"));
+        try {
+            fq.add("x", 3);
+        } finally {
+            fq.close();
+        }
+    }
+}
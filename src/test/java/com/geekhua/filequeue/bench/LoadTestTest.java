@@ -0,0 +1,42 @@
+package com.geekhua.filequeue.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LoadTestTest {
+    @Test
+    public void testRun() throws Exception {
+        LoadTest loadTest = new LoadTest();
+        loadTest.set("--dir=" + new File("target/fileque", "loadtest").getAbsolutePath());
+        loadTest.set("--producers=2");
+        loadTest.set("--consumers=2");
+        loadTest.set("--warmup=0");
+        loadTest.set("--duration=1");
+        loadTest.set("--size=uniform:16-256");
+        loadTest.set("--batch=8");
+        loadTest.set("--rate=2000");
+
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        Assert.assertTrue(report.toString(), loadTest.run(new PrintStream(report, true)));
+        Assert.assertEquals(0, loadTest.getFailedWorkers());
+
+        Assert.assertTrue(loadTest.getProducedCount() > 0);
+        Assert.assertEquals(loadTest.getProducedCount(), loadTest.getConsumedCount());
+        // warmup 동안 읽은 데이터는 지연 시간에 포함하지 않는다.
+        Assert.assertTrue(loadTest.getLatency().getCount() > 0);
+        Assert.assertTrue(loadTest.getLatency().getCount() <= loadTest.getConsumedCount());
+        Assert.assertTrue(report.toString().contains("p99.99="));
+        Assert.assertFalse(new File("target/fileque", "loadtest/loadtest").exists());
+
+        try {
+            loadTest.set("--size=exp:4");
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // 보낸 시간을 기록할 8 byte 보다 작을 수 없다.
+        }
+    }
+}
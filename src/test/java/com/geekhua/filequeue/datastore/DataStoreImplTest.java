@@ -1,19 +1,36 @@
 package com.geekhua.filequeue.datastore;
 
+import com.geekhua.filequeue.AccessMode;
 import com.geekhua.filequeue.Config;
 import com.geekhua.filequeue.codec.ByteArrayCodec;
+import com.geekhua.filequeue.codec.Codec;
+import com.geekhua.filequeue.exception.CodecException;
+import com.geekhua.filequeue.meta.MetaHolderImpl;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
 
 public class DataStoreImplTest {
     private static final File   baseDir = new File("target/fileque", "data-store-test");
@@ -147,6 +164,1140 @@ public class DataStoreImplTest {
 		}
 	}
 
+	@Test
+	public void testPrefetch() throws Exception {
+		Config config = new Config();
+		config.setBaseDir(baseDir.getAbsolutePath());
+		config.setCodec(new ByteArrayCodec());
+		config.setMsgAvgLen(10);
+		config.setFileSiz(100);
+		config.setPrefetchCount(5);
+
+		DataStore<byte[]> ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+
+			for (int i = 0; i < 100; ++i) {
+				ds.put(String.valueOf(i).getBytes());
+			}
+
+			for (int i = 0; i < 100; ++i) {
+				Assert.assertEquals(String.valueOf(i), new String(takeWithin(ds, 1000)));
+			}
+
+			Assert.assertNull(takeWithin(ds, 100));
+			Assert.assertEquals(ds.readingFileNo(), ds.writingFileNo());
+			Assert.assertEquals(ds.readingFileOffset(), ds.writingFileOffset());
+		} finally {
+			ds.close();
+		}
+	}
+
+	@Test
+	public void testPrefetchRestart() throws Exception {
+		Config config = new Config();
+		config.setBaseDir(baseDir.getAbsolutePath());
+		config.setCodec(new ByteArrayCodec());
+		config.setMsgAvgLen(10);
+		config.setFileSiz(100);
+		config.setPrefetchCount(50);
+
+		DataStore<byte[]> ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+
+			for (int i = 0; i < 100; ++i) {
+				ds.put(String.valueOf(i).getBytes());
+			}
+
+			for (int i = 0; i < 30; ++i) {
+				Assert.assertEquals(String.valueOf(i), new String(takeWithin(ds, 1000)));
+			}
+		} finally {
+			// 선읽기 버퍼에 남아 있는 데이터는 버려진다.
+			ds.close();
+		}
+
+		ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+
+			for (int i = 30; i < 100; ++i) {
+				Assert.assertEquals(String.valueOf(i), new String(takeWithin(ds, 1000)));
+			}
+		} finally {
+			ds.close();
+		}
+	}
+
+	@Test
+	public void testJanitorBackup() throws Exception {
+		Config config = new Config();
+		config.setBaseDir(baseDir.getAbsolutePath());
+		config.setName("janitor");
+		config.setCodec(new ByteArrayCodec());
+		config.setMsgAvgLen(10);
+		config.setFileSiz(100);
+		config.setBackupReadFile(true);
+		config.setJanitorBacklog(2);
+		byte[] data = "18573957538474".getBytes();
+
+		DataStoreImpl<byte[]> ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+
+			for (int i = 0; i < 20; ++i) {
+				ds.put(data);
+			}
+
+			for (int i = 0; i < 20; ++i) {
+				Assert.assertTrue(Arrays.equals(data, ds.take()));
+			}
+		} finally {
+			ds.close();
+		}
+
+		// close 시 대기중인 파일은 모두 정리된다.
+		JanitorStats stats = ds.janitorStats();
+		Assert.assertEquals(ds.readingFileNo(), stats.getSubmittedCount());
+		Assert.assertEquals(stats.getSubmittedCount(), stats.getCompletedCount());
+		Assert.assertEquals(0, stats.getBacklog());
+		Assert.assertEquals(ds.readingFileNo(), new File(baseDir, "janitor/bak").list().length);
+		Assert.assertEquals(1, new File(baseDir, "janitor/data").list().length);
+	}
+
+	@Test
+	public void testCleanUpRemainingFiles() throws Exception {
+		Config config = new Config();
+		config.setBaseDir(baseDir.getAbsolutePath());
+		config.setName("remain");
+		config.setCodec(new ByteArrayCodec());
+		config.setMsgAvgLen(10);
+		config.setFileSiz(100);
+		config.setBackupReadFile(true);
+
+		DataStore<byte[]> ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+
+			for (int i = 0; i < 20; ++i) {
+				ds.put("18573957538474".getBytes());
+			}
+		} finally {
+			ds.close();
+		}
+
+		// 파일을 정리하기 전에 종료된 상황을 만든다.
+		MetaHolderImpl metaHolder = new MetaHolderImpl("remain", baseDir.getAbsolutePath());
+		metaHolder.init();
+		metaHolder.update(3, 0);
+		metaHolder.close();
+
+		ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+		} finally {
+			ds.close();
+		}
+
+		Assert.assertEquals(3, new File(baseDir, "remain/bak").list().length);
+		Assert.assertFalse(new File(baseDir, "remain/data/q-000000000000000002.fq").exists());
+		Assert.assertTrue(new File(baseDir, "remain/data/q-000000000000000003.fq").exists());
+	}
+
+	@Test
+	public void testBackupRetentionWithCompress() throws Exception {
+		Config config = new Config();
+		config.setBaseDir(baseDir.getAbsolutePath());
+		config.setName("retention");
+		config.setCodec(new ByteArrayCodec());
+		config.setMsgAvgLen(10);
+		config.setFileSiz(100);
+		config.setBackupReadFile(true);
+		config.setBackupCompress(true);
+		config.setBackupMaxFiles(2);
+		byte[] data = "18573957538474".getBytes();
+
+		DataStoreImpl<byte[]> ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+
+			for (int i = 0; i < 20; ++i) {
+				ds.put(data);
+			}
+
+			for (int i = 0; i < 20; ++i) {
+				Assert.assertTrue(Arrays.equals(data, ds.take()));
+			}
+		} finally {
+			ds.close();
+		}
+
+		File backDir = new File(baseDir, "retention/bak");
+		String[] archived = backDir.list();
+		Arrays.sort(archived);
+		Assert.assertEquals(2, archived.length);
+		Assert.assertEquals(2, ds.janitorStats().getBackupFileCount());
+		Assert.assertEquals(ds.readingFileNo() - 2, ds.janitorStats().getExpiredCount());
+
+		long lastFileNo = ds.readingFileNo() - 1;
+		Assert.assertEquals(String.format("q-%018d.fq.gz", lastFileNo), archived[1]);
+
+		// 압축된 파일의 첫 데이터는 header 로 시작한다.
+		try (InputStream in = new GZIPInputStream(new FileInputStream(new File(backDir, archived[1])))) {
+			Assert.assertEquals(0xAA, in.read());
+			Assert.assertEquals(0xAA, in.read());
+			Assert.assertEquals(0xAA, in.read());
+			Assert.assertEquals(0xAB, in.read());
+		}
+	}
+
+	@Test
+	public void testBackupRetentionMaxAge() throws Exception {
+		File backDir = new File(baseDir, "age/bak");
+		Assert.assertTrue(backDir.mkdirs());
+
+		File old = new File(backDir, "q-000000000000000000.fq");
+		FileUtils.writeStringToFile(old, "old");
+		Assert.assertTrue(old.setLastModified(System.currentTimeMillis() - 60 * 60 * 1000L));
+		File recent = new File(backDir, "q-000000000000000001.fq.gz");
+		FileUtils.writeStringToFile(recent, "recent");
+
+		Config config = new Config();
+		config.setBaseDir(baseDir.getAbsolutePath());
+		config.setName("age");
+		config.setBackupReadFile(true);
+		config.setBackupMaxAgeMillis(60 * 1000L);
+
+		DataStoreImpl<String> ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+		} finally {
+			ds.close();
+		}
+
+		Assert.assertFalse(old.exists());
+		Assert.assertTrue(recent.exists());
+		Assert.assertEquals(1, ds.janitorStats().getExpiredCount());
+	}
+
+	@Test
+	public void testRewindToCompressedBackup() throws Exception {
+		Config config = new Config();
+		config.setBaseDir(baseDir.getAbsolutePath());
+		config.setName("rewind");
+		config.setCodec(new ByteArrayCodec());
+		config.setMsgAvgLen(10);
+		config.setFileSiz(100);
+		config.setBackupReadFile(true);
+		config.setBackupCompress(true);
+		config.setJanitorBacklog(0);
+
+		DataStoreImpl<byte[]> ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+
+			for (int i = 0; i < 20; ++i) {
+				ds.put(String.valueOf(i).getBytes());
+			}
+
+			for (int i = 0; i < 20; ++i) {
+				Assert.assertEquals(String.valueOf(i), new String(ds.take()));
+			}
+
+			int archived = new File(baseDir, "rewind/bak").list().length;
+			Assert.assertTrue(archived > 0);
+
+			ds.rewind(0, 0);
+			for (int i = 0; i < 20; ++i) {
+				Assert.assertEquals(String.valueOf(i), new String(ds.take()));
+			}
+			Assert.assertNull(ds.take());
+
+			// 다시 읽은 백업 파일은 다시 정리하지 않는다.
+			Assert.assertEquals(archived, new File(baseDir, "rewind/bak").list().length);
+			Assert.assertEquals(0, ds.janitorStats().getFailedCount());
+		} finally {
+			ds.close();
+		}
+
+		// 되감은 위치는 meta 에 기록된다.
+		ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+			ds.rewind(1, 0);
+		} finally {
+			ds.close();
+		}
+
+		ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+			Assert.assertEquals(1, ds.readingFileNo());
+			Assert.assertNotNull(ds.take());
+		} finally {
+			ds.close();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRewindToInvalidOffset() throws Exception {
+		Config config = new Config();
+		config.setBaseDir(baseDir.getAbsolutePath());
+		config.setMsgAvgLen(10);
+
+		DataStoreImpl<String> ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+			ds.put("data");
+			ds.rewind(0, 3);
+		} finally {
+			ds.close();
+		}
+	}
+
+	@Test
+	public void testReplay() throws Exception {
+		Config config = new Config();
+		config.setBaseDir(baseDir.getAbsolutePath());
+		config.setName("replay");
+		config.setCodec(new ByteArrayCodec());
+		config.setMsgAvgLen(10);
+		config.setFileSiz(100);
+		config.setBackupReadFile(true);
+		config.setJanitorBacklog(0);
+
+		DataStoreImpl<byte[]> ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+
+			for (int i = 0; i < 20; ++i) {
+				ds.put(String.valueOf(i).getBytes());
+			}
+
+			for (int i = 0; i < 10; ++i) {
+				Assert.assertEquals(String.valueOf(i), new String(ds.take()));
+			}
+
+			long readingFileNo = ds.readingFileNo();
+			long readingOffset = ds.readingFileOffset();
+
+			try (ReplayCursor<byte[]> cursor = ds.replay(0, 0)) {
+				for (int i = 0; i < 20; ++i) {
+					Assert.assertEquals(String.valueOf(i), new String(cursor.next()));
+				}
+				Assert.assertNull(cursor.next());
+
+				// 이후에 쓰여진 데이터도 이어서 읽는다.
+				ds.put("20".getBytes());
+				Assert.assertEquals("20", new String(cursor.next()));
+				Assert.assertEquals(ds.writingFileNo(), cursor.getFileNo());
+				Assert.assertEquals(ds.writingFileOffset(), cursor.getOffset());
+			}
+
+			Assert.assertEquals(readingFileNo, ds.readingFileNo());
+			Assert.assertEquals(readingOffset, ds.readingFileOffset());
+			Assert.assertEquals("10", new String(ds.take()));
+		} finally {
+			ds.close();
+		}
+	}
+
+	@Test
+	public void testSeekToTime() throws Exception {
+		Config config = new Config();
+		config.setBaseDir(baseDir.getAbsolutePath());
+		config.setName("seekToTime");
+		config.setCodec(new ByteArrayCodec());
+		config.setMsgAvgLen(10);
+		config.setFileSiz(500);
+		config.setBackupReadFile(true);
+		config.setRecordTimestamp(true);
+		config.setTimeIndexInterval(100);
+		config.setJanitorBacklog(0);
+
+		long timestamp;
+		DataStoreImpl<byte[]> ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+
+			for (int i = 0; i < 30; ++i) {
+				ds.put(String.valueOf(i).getBytes());
+			}
+
+			Thread.sleep(5);
+			timestamp = System.currentTimeMillis();
+			Thread.sleep(5);
+
+			for (int i = 30; i < 60; ++i) {
+				ds.put(String.valueOf(i).getBytes());
+			}
+
+			for (int i = 0; i < 60; ++i) {
+				Assert.assertEquals(String.valueOf(i), new String(ds.take()));
+			}
+			Assert.assertNull(ds.take());
+			Assert.assertTrue(new File(baseDir, "seekToTime/bak/" + SegmentFiles.indexFileName(0)).exists());
+
+			ds.seekToTime(timestamp);
+			Assert.assertEquals("30", new String(ds.take()));
+		} finally {
+			ds.close();
+		}
+
+		// 종료 전에 쓰던 파일의 인덱스는 다시 시작할 때 마무리된다.
+		ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+
+			ds.seekToTime(timestamp);
+			for (int i = 30; i < 60; ++i) {
+				Assert.assertEquals(String.valueOf(i), new String(ds.take()));
+			}
+			Assert.assertNull(ds.take());
+
+			ds.seekToTime(0L);
+			Assert.assertEquals("0", new String(ds.take()));
+
+			ds.seekToTime(System.currentTimeMillis() + 60000L);
+			Assert.assertNull(ds.take());
+
+			try (ReplayCursor<byte[]> cursor = ds.replay(timestamp)) {
+				Assert.assertEquals("30", new String(cursor.next()));
+			}
+		} finally {
+			ds.close();
+		}
+	}
+
+	@Test
+	public void testMessageTtl() throws Exception {
+		final AtomicInteger decodeCount = new AtomicInteger();
+
+		Config config = new Config();
+		config.setBaseDir(baseDir.getAbsolutePath());
+		config.setName("messageTtl");
+		config.setCodec(new ByteArrayCodec() {
+			@Override
+			public Object decode(byte[] bytes) {
+				decodeCount.incrementAndGet();
+				return super.decode(bytes);
+			}
+		});
+		config.setMsgAvgLen(10);
+		config.setFileSiz(200);
+		config.setMessageTtlMillis(300);
+		config.setJanitorBacklog(0);
+
+		DataStoreImpl<byte[]> ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+
+			for (int i = 0; i < 30; ++i) {
+				ds.put(String.valueOf(i).getBytes());
+			}
+
+			Thread.sleep(500);
+
+			for (int i = 30; i < 40; ++i) {
+				ds.put(String.valueOf(i).getBytes());
+			}
+
+			// 만료된 데이터는 디코딩하지 않고 건너뛴다.
+			for (int i = 30; i < 40; ++i) {
+				Assert.assertEquals(String.valueOf(i), new String(ds.take()));
+			}
+			Assert.assertNull(ds.take());
+			Assert.assertEquals(10, decodeCount.get());
+
+			// 만료된 파일도 읽기가 끝난 파일처럼 정리된다.
+			Assert.assertFalse(new File(baseDir, "messageTtl/data/" + SegmentFiles.dataFileName(0)).exists());
+		} finally {
+			ds.close();
+		}
+	}
+
+	@Test
+	public void testUncommittedTransaction() throws Exception {
+		Config config = new Config();
+		config.setBaseDir(baseDir.getAbsolutePath());
+		config.setName("transaction");
+		config.setCodec(new ByteArrayCodec());
+		config.setMsgAvgLen(10);
+
+		int blockSize = BlockGroup.estimateBlockGroupSize(10);
+		File dataFile = new File(baseDir, "transaction/data/" + SegmentFiles.dataFileName(0));
+
+		DataStoreImpl<byte[]> ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+			ds.put("a".getBytes());
+
+			// commit marker 를 쓰기 전에는 읽을 수 없다.
+			try (RandomAccessFile file = new RandomAccessFile(dataFile, "rw")) {
+				file.seek(file.length());
+				file.write(BlockGroup.allocate("t1".getBytes(), blockSize).txnId(1L).array());
+				file.write(BlockGroup.allocate("t2".getBytes(), blockSize).txnId(1L).array());
+			}
+			Assert.assertEquals("a", new String(ds.take()));
+			Assert.assertNull(ds.take());
+
+			try (RandomAccessFile file = new RandomAccessFile(dataFile, "rw")) {
+				file.seek(file.length());
+				file.write(BlockGroup.allocate(new byte[0], blockSize).type(BlockGroup.TYPE_COMMIT).txnId(1L).array());
+				// commit 없이 종료된 transaction
+				file.write(BlockGroup.allocate("t3".getBytes(), blockSize).txnId(2L).array());
+			}
+			Assert.assertEquals("t1", new String(ds.take()));
+			Assert.assertEquals("t2", new String(ds.take()));
+			Assert.assertNull(ds.take());
+
+			try (RandomAccessFile file = new RandomAccessFile(dataFile, "rw")) {
+				file.seek(file.length());
+				file.write(BlockGroup.allocate("b".getBytes(), blockSize).array());
+			}
+			Assert.assertEquals("b", new String(ds.take()));
+			Assert.assertNull(ds.take());
+		} finally {
+			ds.close();
+		}
+
+		ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+
+			ds.putTransaction(Arrays.asList("c".getBytes(), "d".getBytes()));
+			Assert.assertEquals("c", new String(ds.take()));
+			Assert.assertEquals("d", new String(ds.take()));
+			Assert.assertEquals(ds.writingFileOffset(), ds.readingFileOffset());
+		} finally {
+			ds.close();
+		}
+	}
+
+	@Test
+	public void testBrowseSkipsUncommitted() throws Exception {
+		Config config = new Config();
+		config.setBaseDir(baseDir.getAbsolutePath());
+		config.setName("browseTransaction");
+		config.setMsgAvgLen(10);
+		Codec codec = new ByteArrayCodec() {
+			@Override
+			public Object decode(byte[] bytes) {
+				if ("bad".equals(new String(bytes))) {
+					throw new CodecException("bad");
+				}
+				return super.decode(bytes);
+			}
+		};
+		config.setCodec(codec);
+
+		int blockSize = BlockGroup.estimateBlockGroupSize(10);
+		File dataDir = new File(baseDir, "browseTransaction/data");
+		File dataFile = new File(dataDir, SegmentFiles.dataFileName(0));
+
+		DataStoreImpl<byte[]> ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+			ds.put("a".getBytes());
+		} finally {
+			ds.close();
+		}
+
+		long now = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+		try (RandomAccessFile file = new RandomAccessFile(dataFile, "rw")) {
+			file.seek(file.length());
+			// abort 된 transaction
+			file.write(BlockGroup.allocate("t1".getBytes(), blockSize).txnId(1L).array());
+			file.write(BlockGroup.allocate("t2".getBytes(), blockSize).txnId(1L).array());
+			file.write(BlockGroup.allocate(new byte[0], blockSize).type(BlockGroup.TYPE_ABORT).txnId(1L).array());
+			// commit 없이 종료된 transaction
+			file.write(BlockGroup.allocate("t3".getBytes(), blockSize).txnId(2L).array());
+			file.write(BlockGroup.allocate("b".getBytes(), blockSize).array());
+			file.write(BlockGroup.allocate("c1".getBytes(), blockSize).txnId(3L).array());
+			file.write(BlockGroup.allocate("c2".getBytes(), blockSize).txnId(3L).array());
+			file.write(BlockGroup.allocate(new byte[0], blockSize).type(BlockGroup.TYPE_COMMIT).txnId(3L).array());
+			file.write(BlockGroup.allocate("bad".getBytes(), blockSize).array());
+			file.write(BlockGroup.allocate("old".getBytes(), blockSize).timestamp(now - TimeUnit.MINUTES.toNanos(1)).array());
+			file.write(BlockGroup.allocate("new".getBytes(), blockSize).timestamp(now).array());
+			// 아직 commit 되지 않은 transaction
+			file.write(BlockGroup.allocate("t4".getBytes(), blockSize).txnId(4L).array());
+		}
+
+		SegmentSpliterator<byte[]> spliterator = new SegmentSpliterator<>(dataDir, new File(baseDir, "browseTransaction/bak"),
+				0L, 0L, 0L, dataFile.length(), blockSize, config.getReadBufferSize(), config.getFileSize(), codec,
+				TimeUnit.SECONDS.toNanos(10));
+		final List<String> browsed = new ArrayList<>();
+		while (spliterator.tryAdvance(new Consumer<byte[]>() {
+			@Override
+			public void accept(byte[] content) {
+				browsed.add(new String(content));
+			}
+		})) {
+			// 끝까지 읽는다.
+		}
+		Assert.assertEquals(Arrays.asList("a", "b", "c1", "c2", "new"), browsed);
+	}
+
+	@Test
+	public void testDedupWindow() throws Exception {
+		Config config = new Config();
+		config.setBaseDir(baseDir.getAbsolutePath());
+		config.setName("dedup");
+		config.setCodec(new ByteArrayCodec());
+		config.setMsgAvgLen(10);
+		config.setFileSiz(200);
+		config.setDedupWindowSize(10);
+
+		DataStoreImpl<byte[]> ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+
+			for (int i = 0; i < 20; ++i) {
+				Assert.assertTrue(ds.putContent(String.valueOf(i).getBytes(), i));
+			}
+
+			Assert.assertFalse(ds.putContent("19".getBytes(), 19));
+			Assert.assertFalse(ds.putContent("10".getBytes(), 10));
+			// window 에서 밀려난 id
+			Assert.assertTrue(ds.putContent("9".getBytes(), 9));
+		} finally {
+			ds.close();
+		}
+
+		// 다시 시작하면 최근 파일들에서 window 를 다시 만든다.
+		ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+
+			Assert.assertFalse(ds.putContent("9".getBytes(), 9));
+			Assert.assertFalse(ds.putContent("11".getBytes(), 11));
+			Assert.assertTrue(ds.putContent("10".getBytes(), 10));
+
+			for (int i = 0; i < 20; ++i) {
+				Assert.assertEquals(String.valueOf(i), new String(ds.take()));
+			}
+			Assert.assertEquals("9", new String(ds.take()));
+			Assert.assertEquals("10", new String(ds.take()));
+			Assert.assertNull(ds.take());
+		} finally {
+			ds.close();
+		}
+	}
+
+	@Test
+	public void testDedupWindowEviction() {
+		DedupWindow window = new DedupWindow(100);
+		Random random = new Random(7);
+		long[] ids = new long[1000];
+		for (int i = 0; i < ids.length; ++i) {
+			ids[i] = i % 3 == 0 ? random.nextLong() : random.nextInt(4096);
+			window.add(ids[i]);
+		}
+
+		Assert.assertEquals(100, window.size());
+		Set<Long> recent = new HashSet<>();
+		for (int i = ids.length - 1; recent.size() < 100; --i) {
+			recent.add(ids[i]);
+		}
+		for (long id : recent) {
+			Assert.assertTrue(window.contains(id));
+		}
+		for (int i = 0; i < ids.length; ++i) {
+			Assert.assertEquals(recent.contains(ids[i]), window.contains(ids[i]));
+		}
+	}
+
+	private static byte[] takeWithin(DataStore<byte[]> ds, long timeoutMillis) throws Exception {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		byte[] data = ds.take();
+		while (data == null && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+			data = ds.take();
+		}
+
+		return data;
+	}
+
+	@Test
+	public void testQueueLock() throws Exception {
+		Config config = new Config();
+		config.setBaseDir(baseDir.getAbsolutePath());
+		config.setMsgAvgLen(10);
+
+		DataStore<String> ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+
+			for (AccessMode accessMode : AccessMode.values()) {
+				config.setAccessMode(accessMode);
+				DataStore<String> other = new DataStoreImpl<>(config);
+				try {
+					other.init();
+					Assert.fail(accessMode + " must fail.");
+				} catch (IOException e) {
+					// 이미 EXCLUSIVE 로 열려있다.
+				} finally {
+					other.close();
+				}
+			}
+		} finally {
+			ds.close();
+		}
+
+		// 닫으면 다시 열 수 있다.
+		config.setAccessMode(AccessMode.EXCLUSIVE);
+		ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+		} finally {
+			ds.close();
+		}
+	}
+
+	@Test
+	public void testProducerAndConsumer() throws Exception {
+		Config producerConfig = new Config();
+		producerConfig.setBaseDir(baseDir.getAbsolutePath());
+		producerConfig.setMsgAvgLen(10);
+		producerConfig.setFileSiz(200);
+		producerConfig.setBackupReadFile(false);
+		producerConfig.setAccessMode(AccessMode.PRODUCER);
+
+		Config consumerConfig = new Config();
+		consumerConfig.setBaseDir(baseDir.getAbsolutePath());
+		consumerConfig.setMsgAvgLen(10);
+		consumerConfig.setFileSiz(200);
+		consumerConfig.setBackupReadFile(false);
+		consumerConfig.setAccessMode(AccessMode.CONSUMER);
+
+		// 쓰는 프로세스보다 먼저 시작해도 된다.
+		DataStore<String> consumer = new DataStoreImpl<>(consumerConfig);
+		DataStore<String> producer = new DataStoreImpl<>(producerConfig);
+		try {
+			consumer.init();
+			Assert.assertNull(consumer.take());
+
+			producer.init();
+			Assert.assertEquals(producer.writingFileNo(), consumer.writingFileNo());
+
+			for (int i = 0; i < 20; ++i) {
+				producer.put("message-" + i);
+				Assert.assertEquals("message-" + i, consumer.take());
+			}
+			Assert.assertNull(consumer.take());
+
+			Assert.assertTrue(producer.writingFileNo() > 0);
+			Assert.assertEquals(producer.writingFileNo(), consumer.writingFileNo());
+			Assert.assertEquals(producer.writingFileOffset(), consumer.writingFileOffset());
+			Assert.assertEquals(producer.writingFileNo(), consumer.readingFileNo());
+
+			try {
+				producer.take();
+				Assert.fail();
+			} catch (IllegalStateException e) {
+				// 쓰기만 할 수 있다.
+			}
+
+			try {
+				consumer.put("x");
+				Assert.fail();
+			} catch (IllegalStateException e) {
+				// 읽기만 할 수 있다.
+			}
+		} finally {
+			producer.close();
+			consumer.close();
+		}
+
+		// 쓰는 프로세스가 다시 시작해도 읽던 위치부터 읽는다.
+		producer = new DataStoreImpl<>(producerConfig);
+		consumer = new DataStoreImpl<>(consumerConfig);
+		try {
+			producer.init();
+			producer.put("restart");
+
+			consumer.init();
+			Assert.assertEquals("restart", consumer.take());
+			Assert.assertNull(consumer.take());
+		} finally {
+			producer.close();
+			consumer.close();
+		}
+	}
+
+	@Test
+	public void testCompetingConsumers() throws Exception {
+		Config config = new Config();
+		config.setBaseDir(baseDir.getAbsolutePath());
+		config.setMsgAvgLen(10);
+		config.setFileSiz(200);
+		config.setBackupReadFile(false);
+		config.setJanitorBacklog(0);
+
+		config.setAccessMode(AccessMode.PRODUCER);
+		DataStore<String> producer = new DataStoreImpl<>(config);
+		config.setAccessMode(AccessMode.COMPETING_CONSUMER);
+		DataStore<String> consumer1 = new DataStoreImpl<>(config);
+		DataStore<String> consumer2 = new DataStoreImpl<>(config);
+		try {
+			producer.init();
+			consumer1.init();
+			consumer2.init();
+
+			// 함께 읽는 consumer 가 있다면 혼자 읽는 consumer 는 열 수 없다.
+			config.setAccessMode(AccessMode.CONSUMER);
+			DataStore<String> consumer = new DataStoreImpl<>(config);
+			try {
+				consumer.init();
+				Assert.fail();
+			} catch (IOException e) {
+				// expected
+			} finally {
+				consumer.close();
+			}
+
+			int count = 40;
+			for (int i = 0; i < count; ++i) {
+				producer.put("message-" + i);
+			}
+			Assert.assertTrue(producer.writingFileNo() > 2);
+
+			Set<String> received = new HashSet<>();
+			int[] counts = new int[2];
+			long deadline = System.currentTimeMillis() + 5000L;
+			while (received.size() < count && System.currentTimeMillis() < deadline) {
+				String message = consumer1.take();
+				if (message != null) {
+					Assert.assertTrue(received.add(message));
+					++counts[0];
+				}
+
+				message = consumer2.take();
+				if (message != null) {
+					Assert.assertTrue(received.add(message));
+					++counts[1];
+				}
+			}
+
+			Assert.assertEquals(count, received.size());
+			Assert.assertTrue(counts[0] > 0);
+			Assert.assertTrue(counts[1] > 0);
+			Assert.assertNull(consumer1.take());
+			Assert.assertNull(consumer2.take());
+
+			// 다 읽은 파일은 정리된다.
+			Assert.assertFalse(new File(baseDir, "default/data/q-000000000000000000.fq").exists());
+		} finally {
+			producer.close();
+			consumer1.close();
+			consumer2.close();
+		}
+	}
+
+	@Test
+	public void testCompetingDeadLetters() throws Exception {
+		Config config = new Config();
+		config.setBaseDir(baseDir.getAbsolutePath());
+		config.setMsgAvgLen(10);
+		config.setCodec(new ByteArrayCodec() {
+			@Override
+			public Object decode(byte[] bytes) {
+				if (new String(bytes).startsWith("bad")) {
+					throw new CodecException("bad");
+				}
+				return super.decode(bytes);
+			}
+		});
+
+		config.setAccessMode(AccessMode.PRODUCER);
+		DataStore<byte[]> producer = new DataStoreImpl<>(config);
+		config.setAccessMode(AccessMode.COMPETING_CONSUMER);
+		DataStore<byte[]> consumer1 = new DataStoreImpl<>(config);
+		DataStore<byte[]> consumer2 = new DataStoreImpl<>(config);
+		try {
+			producer.init();
+			consumer1.init();
+			consumer2.init();
+
+			for (int i = 0; i < 10; ++i) {
+				producer.put(("bad-" + i).getBytes());
+			}
+			producer.put("good".getBytes());
+
+			// 두 consumer 가 번갈아 같은 dead-letter 폴더에 옮긴다.
+			byte[] content;
+			while ((content = consumer1.take()) == null) {
+				content = consumer2.take();
+				if (content != null) {
+					break;
+				}
+			}
+			Assert.assertEquals("good", new String(content));
+			Assert.assertEquals(10, consumer1.deadLetterStats().getDecodeFailedCount() + consumer2.deadLetterStats().getDecodeFailedCount());
+		} finally {
+			consumer1.close();
+			consumer2.close();
+		}
+
+		// 재시작한 후에도 PRODUCER 가 다시 넣을 수 있다.
+		try {
+			Assert.assertEquals(10, producer.requeueDeadLetters(100));
+		} finally {
+			producer.close();
+		}
+	}
+
+	@Test
+	public void testLeaseExpiry() throws Exception {
+		Config config = new Config();
+		config.setBaseDir(baseDir.getAbsolutePath());
+		config.setMsgAvgLen(10);
+		config.setLeaseTimeoutMillis(300L);
+
+		config.setAccessMode(AccessMode.PRODUCER);
+		DataStore<String> producer = new DataStoreImpl<>(config);
+		config.setAccessMode(AccessMode.COMPETING_CONSUMER);
+		DataStore<String> consumer = new DataStoreImpl<>(config);
+		File leaseDir = new File(baseDir, "default/lease");
+		File leaseFile = new File(leaseDir, "q-000000000000000000.lease");
+		try {
+			producer.init();
+			producer.put("a");
+			producer.put("b");
+			long offset = producer.writingFileOffset();
+			producer.put("c");
+			producer.put("d");
+
+			// 두 개를 읽은 후에 멈춘 consumer 의 만료된 lease
+			Assert.assertTrue(leaseDir.mkdirs());
+			writeLease(leaseFile, System.currentTimeMillis() - 1000L, offset, 1L);
+
+			consumer.init();
+			Assert.assertEquals("c", consumer.take());
+
+			// 다른 consumer 가 가져가면 더 이상 읽지 않는다.
+			Assert.assertTrue(leaseFile.delete());
+			writeLease(leaseFile, System.currentTimeMillis() + 60000L, offset, 2L);
+			Thread.sleep(300L);
+			Assert.assertNull(consumer.take());
+		} finally {
+			producer.close();
+			consumer.close();
+		}
+	}
+
+	private static void writeLease(File file, long heartbeat, long offset, long owner) throws IOException {
+		try (RandomAccessFile randomFile = new RandomAccessFile(file, "rw")) {
+			randomFile.writeLong(heartbeat);
+			randomFile.writeLong(offset);
+			randomFile.writeLong(owner);
+		}
+	}
+
+	@Test
+	public void testDirectIo() throws Exception {
+		Config config = new Config();
+		config.setBaseDir(baseDir.getAbsolutePath());
+		config.setMsgAvgLen(100);
+		config.setFileSiz(64 * 1024);
+		config.setDirectIo(true);
+
+		List<String> messages = new ArrayList<>();
+		Random random = new Random(7);
+		for (int i = 0; i < 500; ++i) {
+			messages.add(i + "-" + StringUtils.repeat("x", random.nextInt(300)));
+		}
+
+		DataStore<String> ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+			for (int i = 0; i < 250; ++i) {
+				ds.put(messages.get(i));
+				Assert.assertEquals(messages.get(i), ds.take());
+			}
+			for (int i = 250; i < 400; ++i) {
+				ds.put(messages.get(i));
+			}
+			Assert.assertTrue(ds.writingFileNo() > 0);
+		} finally {
+			ds.close();
+		}
+
+		// 다시 시작하면 파일을 O_DIRECT 로 읽는다.
+		ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+			for (int i = 400; i < 500; ++i) {
+				ds.put(messages.get(i));
+			}
+			for (int i = 250; i < 500; ++i) {
+				Assert.assertEquals(messages.get(i), ds.take());
+			}
+			Assert.assertNull(ds.take());
+		} finally {
+			ds.close();
+		}
+
+		// 쓴 후에 배열을 바꿔도 tail cache 에서 읽은 데이터는 바뀌지 않는다.
+		config.setName("direct-bytes");
+		config.setCodec(new ByteArrayCodec());
+		DataStore<byte[]> bytesDs = new DataStoreImpl<>(config);
+		try {
+			bytesDs.init();
+			byte[] content = "original".getBytes("UTF-8");
+			bytesDs.putContent(content);
+			Arrays.fill(content, (byte) 'x');
+			Assert.assertEquals("original", new String(bytesDs.take(), "UTF-8"));
+		} finally {
+			bytesDs.close();
+		}
+	}
+
+	@Test
+	public void testDirectSegmentWriter() throws Exception {
+		Assume.assumeTrue(DirectIo.isSupported());
+
+		File file = new File(baseDir, "direct.fq");
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		Random random = new Random(11);
+
+		SegmentWriter writer = SegmentWriter.open(file, true);
+		try {
+			for (int i = 0; i < 200; ++i) {
+				if (i % 50 == 49) {
+					// 건너뛴 부분은 0 으로 채워진다.
+					long position = writer.length() + 100;
+					writer.seek(position);
+					expected.write(new byte[100]);
+				}
+
+				byte[] data = new byte[random.nextInt(3 * DirectIo.ALIGNMENT)];
+				random.nextBytes(data);
+				writer.write(data);
+				expected.write(data);
+
+				Assert.assertEquals(expected.size(), writer.length());
+				Assert.assertEquals(expected.size(), file.length());
+			}
+		} finally {
+			writer.close();
+		}
+
+		// 이어서 쓴다.
+		writer = SegmentWriter.open(file, true);
+		try {
+			Assert.assertEquals(expected.size(), writer.length());
+			byte[] data = new byte[DirectIo.ALIGNMENT + 1];
+			random.nextBytes(data);
+			writer.write(data);
+			expected.write(data);
+		} finally {
+			writer.close();
+		}
+
+		Assert.assertArrayEquals(expected.toByteArray(), FileUtils.readFileToByteArray(file));
+	}
+
+	@Test
+	public void testLargeContent() throws Exception {
+		Config config = new Config();
+		config.setBaseDir(baseDir.getAbsolutePath());
+		config.setMsgAvgLen(100);
+		config.setReadBufferSize(1024);
+		config.setRecordTimestamp(true);
+
+		List<String> messages = new ArrayList<>();
+		Random random = new Random(3);
+		for (int i = 0; i < 30; ++i) {
+			// 읽기 buffer 보다 큰 데이터는 buffer 를 거치지 않고 읽는다.
+			int length = i % 3 == 0 ? 10 : 1000 + random.nextInt(20000);
+			messages.add(i + "-" + StringUtils.repeat("y", length));
+		}
+
+		DataStore<String> ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+			for (String message : messages) {
+				ds.put(message);
+			}
+		} finally {
+			ds.close();
+		}
+
+		ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+			for (String message : messages) {
+				Assert.assertEquals(message, ds.take());
+			}
+			Assert.assertNull(ds.take());
+		} finally {
+			ds.close();
+		}
+	}
+
+	@Test
+	public void testResumeWritingFile() throws Exception {
+		Config config = new Config();
+		config.setBaseDir(baseDir.getAbsolutePath());
+		config.setName("resume");
+		config.setCodec(new ByteArrayCodec());
+		config.setMsgAvgLen(10);
+		config.setRecordTimestamp(true);
+		config.setTimeIndexInterval(64);
+		File dataDir = new File(baseDir, "resume/data");
+
+		// 다시 시작해도 같은 파일에 이어서 쓴다.
+		for (int round = 0; round < 5; ++round) {
+			DataStoreImpl<byte[]> ds = new DataStoreImpl<>(config);
+			try {
+				ds.init();
+				Assert.assertEquals(0L, ds.writingFileNo());
+
+				for (int i = 0; i < 10; ++i) {
+					ds.put(String.valueOf(round * 10 + i).getBytes());
+				}
+			} finally {
+				ds.close();
+			}
+		}
+		Assert.assertEquals(1, FileUtils.listFiles(dataDir, new String[] {"fq"}, false).size());
+
+		// 쓰던 중에 종료되어 온전하지 않은 데이터가 남았다면 마지막 온전한 데이터 다음까지 잘라내고 이어서 쓴다.
+		// 깨진 header 는 건너뛰며 읽으므로 block 단위가 아닌 위치까지 읽게 되는 경우도 확인한다.
+		File dataFile = new File(dataDir, SegmentFiles.dataFileName(0L));
+		long wroteLength = dataFile.length();
+		byte[] garbage = new byte[BlockGroup.estimateBlockGroupSize(10) + 6];
+		Arrays.fill(garbage, (byte) 0x7f);
+		try (RandomAccessFile file = new RandomAccessFile(dataFile, "rw")) {
+			file.seek(file.length());
+			file.write(garbage);
+			file.write(BlockGroup.allocate("broken".getBytes(), BlockGroup.estimateBlockGroupSize(10)).array(), 0, 7);
+		}
+
+		DataStoreImpl<byte[]> ds = new DataStoreImpl<>(config);
+		try {
+			ds.init();
+			Assert.assertEquals(0L, ds.writingFileNo());
+			Assert.assertEquals(wroteLength, ds.writingFileOffset());
+			Assert.assertEquals(wroteLength, dataFile.length());
+			ds.put("50".getBytes());
+
+			for (int i = 0; i <= 50; ++i) {
+				Assert.assertEquals(String.valueOf(i), new String(ds.take()));
+			}
+			Assert.assertNull(ds.take());
+
+			// 시간 인덱스도 이어서 기록된다.
+			TimeIndex index = TimeIndex.load(new File(dataDir, SegmentFiles.indexFileName(0L)));
+			Assert.assertFalse(index.isSealed());
+			Assert.assertTrue(index.lastOffset() > 0L);
+		} finally {
+			ds.close();
+		}
+	}
+
 	@Test(expected = IOException.class)
 	public void testFailInit() throws Exception {
     	Config config = new Config();
@@ -46,4 +46,47 @@ public class MetaHolderImplTest {
 
         metaHolder.close();
     }
+
+    @Test
+    public void testWritingSeqlock() throws Exception {
+        File file = new File("target/fileque/test-seqlock/meta/meta");
+        if (file.exists()) {
+            Assert.assertTrue(file.delete());
+        }
+
+        final MetaHolderImpl writer = new MetaHolderImpl("test-seqlock", "target/fileque");
+        writer.init();
+        // 다른 프로세스처럼 mmap 에서 읽는다.
+        MetaHolderImpl reader = new MetaHolderImpl("test-seqlock", "target/fileque");
+        reader.init();
+        try {
+            Assert.assertNull(reader.getWriting());
+            writer.updateWriting(1L, 10L);
+            Assert.assertArrayEquals(new long[] {1L, 10L}, writer.getWriting());
+            Assert.assertArrayEquals(new long[] {1L, 10L}, reader.getWriting());
+
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (long i = 2; i < 200000; ++i) {
+                        writer.updateWriting(i, i * 10);
+                    }
+                }
+            };
+            thread.start();
+
+            // 갱신 중에도 파일 번호와 위치가 어긋나지 않는다.
+            while (thread.isAlive()) {
+                long[] writing = reader.getWriting();
+                if (writing != null) {
+                    Assert.assertEquals(writing[0] * 10, writing[1]);
+                }
+            }
+            thread.join();
+            Assert.assertArrayEquals(new long[] {199999L, 1999990L}, reader.getWriting());
+        } finally {
+            writer.close();
+            reader.close();
+        }
+    }
 }
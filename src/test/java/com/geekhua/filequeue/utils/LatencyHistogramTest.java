@@ -0,0 +1,45 @@
+package com.geekhua.filequeue.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+    @Test
+    public void testIndex() {
+        long previous = -1;
+        for (int index = 0; index < LatencyHistogram.indexOf(Long.MAX_VALUE) + 1; index++) {
+            long highest = LatencyHistogram.highestValueOf(index);
+            Assert.assertTrue(highest > previous);
+            Assert.assertEquals(index, LatencyHistogram.indexOf(highest));
+            Assert.assertEquals(index, LatencyHistogram.indexOf(previous + 1));
+            previous = highest;
+        }
+        Assert.assertEquals(Long.MAX_VALUE, previous);
+    }
+
+    @Test
+    public void testPercentile() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getValueAtPercentile(99));
+
+        for (long i = 1; i <= 100000; i++) {
+            histogram.record(i * 1000);
+        }
+        histogram.record(-1);
+
+        Assert.assertEquals(100001, histogram.getCount());
+        Assert.assertEquals(100000000L, histogram.getMax());
+        assertNear(50000000L, histogram.getValueAtPercentile(50));
+        assertNear(99000000L, histogram.getValueAtPercentile(99));
+        assertNear(99990000L, histogram.getValueAtPercentile(99.99));
+        Assert.assertEquals(100000000L, histogram.getValueAtPercentile(100));
+
+        histogram.reset();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+
+    private static void assertNear(long expected, long actual) {
+        Assert.assertTrue(expected + " != " + actual, Math.abs(expected - actual) <= expected / 128);
+    }
+}